@@ -1,8 +1,11 @@
 package org.micromanager.autofocus.optimizers;
 
 import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import javax.swing.SwingUtilities;
 import mmcorej.CMMCore;
@@ -36,6 +39,9 @@ public class ZStackFocusOptimizer implements FocusOptimizer {
     * @param imgScoringFunction A function that takes an ImageJ `ImageProcessor`
     *                           and returns a double indicating a measure of the
     *                           image sharpness. A large value indicates a sharper image.
+    *                           Images are scored in the background while the stack is
+    *                           acquired, so the function should be thread-safe, and
+    *                           should not modify the processor.
     */
    public ZStackFocusOptimizer(Function<ImageProcessor, Double> imgScoringFunction) {
       imgScoringFunction_ = imgScoringFunction;
@@ -116,7 +122,8 @@ public class ZStackFocusOptimizer implements FocusOptimizer {
       for (int i = 0; i < nrZ; i++) {
          positions.add(z - dz + i * absoluteToleranceUm_);
       }
-      SortedMap<Double, Double> focusScoreMap = new TreeMap<>();
+      // Scores are computed on other threads while acquisition continues
+      List<CompletableFuture<Double>> scores = new ArrayList<>(nrZ);
 
       if (core.isStageSequenceable(zDrive_)) {
          core.loadStageSequence(zDrive_, positions);
@@ -135,7 +142,7 @@ public class ZStackFocusOptimizer implements FocusOptimizer {
                   });
                }
                ImageProcessor proc = studio_.data().ij().createProcessor(img);
-               focusScoreMap.put(positions.get(imageCount_), imgScoringFunction_.apply(proc));
+               scores.add(CompletableFuture.supplyAsync(() -> imgScoringFunction_.apply(proc)));
                imageCount_++;
             }
          }
@@ -148,10 +155,14 @@ public class ZStackFocusOptimizer implements FocusOptimizer {
                throw new Exception("Failed to acquire image.");
             }
             ImageProcessor proc = studio_.data().ij().createProcessor(img);
-            focusScoreMap.put(positions.get(imageCount_), imgScoringFunction_.apply(proc));
+            scores.add(CompletableFuture.supplyAsync(() -> imgScoringFunction_.apply(proc)));
             imageCount_++;
          }
       }
+      SortedMap<Double, Double> focusScoreMap = new TreeMap<>();
+      for (int i = 0; i < scores.size(); i++) {
+         focusScoreMap.put(positions.get(i), scores.get(i).join());
+      }
 
       // we have the map relating Z stage positions to Focus Score, now fit to find the
       // optimum position.
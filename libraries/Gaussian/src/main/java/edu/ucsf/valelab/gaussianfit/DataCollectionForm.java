@@ -55,7 +55,7 @@ import edu.ucsf.valelab.gaussianfit.fitting.ZCalibrator;
 import edu.ucsf.valelab.gaussianfit.internal.tabledisplay.DataTable;
 import edu.ucsf.valelab.gaussianfit.internal.tabledisplay.DataTableModel;
 import edu.ucsf.valelab.gaussianfit.internal.tabledisplay.DataTableRowSorter;
-import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPoint2D;
+import edu.ucsf.valelab.gaussianfit.spotoperations.SpotGrid;
 import edu.ucsf.valelab.gaussianfit.spotoperations.SpotLinker;
 import edu.ucsf.valelab.gaussianfit.utils.DisplayUtils;
 import edu.ucsf.valelab.gaussianfit.utils.FileDialogs;
@@ -1206,42 +1206,43 @@ public class DataCollectionForm extends JFrame {
          CoordinateMapper.PointMap points = new CoordinateMapper.PointMap();
          for (int row : rows) {
 
-            // Get points from both channels in first frame as ArrayLists        
-            ArrayList<Point2D.Double> xyPointsCh1 = new ArrayList<Point2D.Double>();
-            ArrayList<Point2D.Double> xyPointsCh2 = new ArrayList<Point2D.Double>();
+            // Get spots from both channels in first frame as ArrayLists
+            ArrayList<SpotData> gsCh1 = new ArrayList<SpotData>();
+            ArrayList<SpotData> gsCh2 = new ArrayList<SpotData>();
             for (SpotData gs : mainTableModel_.getRow(row).spotList_) {
                if (gs.getFrame() == 1) {
-                  Point2D.Double point = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
                   if (gs.getChannel() == 1) {
-                     xyPointsCh1.add(point);
+                     gsCh1.add(gs);
                   } else if (gs.getChannel() == 2) {
-                     xyPointsCh2.add(point);
+                     gsCh2.add(gs);
                   }
                }
             }
 
-            if (xyPointsCh2.isEmpty()) {
+            if (gsCh2.isEmpty()) {
                JOptionPane.showMessageDialog(this,
                      "No points found in second channel.  Is this a dual channel dataset?");
                return;
             }
 
-            // Find matching points in the two ArrayLists
-            Iterator it2 = xyPointsCh1.iterator();
-            NearestPoint2D np;
+            // Find matching spots in the two channels
+            SpotGrid grid;
             try {
-               np = new NearestPoint2D(xyPointsCh2,
+               grid = new SpotGrid(
                      NumberUtils.displayStringToDouble(pairsMaxDistanceField_.getText()));
             } catch (ParseException ex) {
                ReportingUtils.showError("Problem parsing Pairs max distance number");
                return;
             }
-
-            while (it2.hasNext()) {
-               Point2D.Double pCh1 = (Point2D.Double) it2.next();
-               Point2D.Double pCh2 = np.findKDWSE(pCh1);
-               if (pCh2 != null) {
-                  points.put(pCh1, pCh2);
+            SpotData[] ch1 = gsCh1.toArray(new SpotData[0]);
+            SpotData[] ch2 = gsCh2.toArray(new SpotData[0]);
+            grid.index(ch2, ch2.length);
+            int[] partners = grid.join(ch1, ch1.length);
+            for (int i = 0; i < ch1.length; i++) {
+               if (partners[i] >= 0) {
+                  SpotData partner = ch2[partners[i]];
+                  points.put(new Point2D.Double(ch1[i].getXCenter(), ch1[i].getYCenter()),
+                        new Point2D.Double(partner.getXCenter(), partner.getYCenter()));
                }
             }
             if (points.size() < 4) {
@@ -2325,26 +2326,36 @@ public class DataCollectionForm extends JFrame {
       Runnable doWorkRunnable = new Runnable() {
          @Override
          public void run() {
-
-            List<SpotData> correctedData =
-                  Collections.synchronizedList(new ArrayList<SpotData>());
-            Iterator it = rowData.spotList_.iterator();
-            int frameNr = 0;
-            while (it.hasNext()) {
-               SpotData gs = (SpotData) it.next();
-               if (gs.getFrame() != frameNr) {
-                  frameNr = gs.getFrame();
-                  ij.IJ.showStatus("Executing color correction...");
-                  ij.IJ.showProgress(frameNr, rowData.nrFrames_);
+            try {
+               // Gather the channel 1 coordinates and transform them all at once
+               int nrCh1 = 0;
+               for (SpotData gs : rowData.spotList_) {
+                  if (gs.getChannel() == 1) {
+                     nrCh1++;
+                  }
                }
-               if (gs.getChannel() == 1) {
-                  Point2D.Double point = new Point2D.Double(gs.getXCenter(), gs.getYCenter());
-                  try {
-                     Point2D.Double corPoint = c2t_.transform(point);
-                     SpotData gsn = new SpotData(gs);
-                     if (corPoint != null) {
-                        gsn.setXCenter(corPoint.x);
-                        gsn.setYCenter(corPoint.y);
+               double[] x = new double[nrCh1];
+               double[] y = new double[nrCh1];
+               int i = 0;
+               for (SpotData gs : rowData.spotList_) {
+                  if (gs.getChannel() == 1) {
+                     x[i] = gs.getXCenter();
+                     y[i] = gs.getYCenter();
+                     i++;
+                  }
+               }
+               double[] corX = new double[nrCh1];
+               double[] corY = new double[nrCh1];
+               c2t_.transform(x, y, corX, corY);
+
+               List<SpotData> correctedData = new ArrayList<SpotData>(rowData.spotList_.size());
+               i = 0;
+               for (SpotData gs : rowData.spotList_) {
+                  if (gs.getChannel() == 1) {
+                     if (!Double.isNaN(corX[i]) && !Double.isNaN(corY[i])) {
+                        SpotData gsn = new SpotData(gs);
+                        gsn.setXCenter(corX[i]);
+                        gsn.setYCenter(corY[i]);
                         correctedData.add(gsn);
                      } else {
                         ReportingUtils.logError(
@@ -2352,25 +2363,25 @@ public class DataCollectionForm extends JFrame {
                                     + gs.getX() + "-" + gs.getY() + ", micron: "
                                     + gs.getXCenter() + "-" + gs.getYCenter());
                      }
-
-                  } catch (Exception ex) {
-                     ReportingUtils.logError(ex);
+                     i++;
+                  } else if (gs.getChannel() == 2) {
+                     correctedData.add(gs);
                   }
-               } else if (gs.getChannel() == 2) {
-                  correctedData.add(gs);
                }
+               ij.IJ.showProgress(1.0);
 
+               // Add transformed data to data overview window
+               RowData.Builder builder = rowData.copy();
+               builder.setName(rowData.getName() + "-CC-" + reference2CName_.getText() + "-"
+                     + method2CBox_.getSelectedItem())
+                           .setColColorRef(reference2CName_.getText())
+                                 .setSpotList(correctedData);
+               addSpotData(builder);
+            } catch (RuntimeException ex) {
+               ReportingUtils.showError(ex, "Color correction failed");
+            } finally {
+               semaphore_.release();
             }
-
-            // Add transformed data to data overview window
-            RowData.Builder builder = rowData.copy();
-            builder.setName(rowData.getName() + "-CC-" + reference2CName_.getText() + "-"
-                  + method2CBox_.getSelectedItem())
-                        .setColColorRef(reference2CName_.getText())
-                              .setSpotList(correctedData);
-            addSpotData(builder);
-
-            semaphore_.release();
          }
       };
 
@@ -40,6 +40,7 @@ import ij.plugin.filter.GaussianBlur;
 import ij.process.ImageProcessor;
 import java.awt.Polygon;
 import java.awt.Rectangle;
+import java.util.Arrays;
 
 
 
@@ -63,20 +64,38 @@ public class FindLocalMaxima {
     * @param n          - minimum distance to other local maximum
     * @param threshold  - value below which a maximum will be rejected
     * @param filterType - Prefilter the image.  Either none or Gaussian1_5
-    * @return Polygon with maxima
+    * @return Polygon with maxima, ordered by x, then y
     */
    public static Polygon findMax(ImagePlus iPlus, int n, int threshold, FilterType filterType) {
-      Polygon maxima = new Polygon();
+      int[][] maxima = findMaxima(iPlus, n, threshold, filterType,
+            new LocalMaximaFinder());
+      int count = maxima[0].length;
+      long[] sorted = new long[count];
+      for (int i = 0; i < count; i++) {
+         sorted[i] = ((long) maxima[0][i] << 32) | maxima[1][i];
+      }
+      Arrays.sort(sorted);
+      Polygon result = new Polygon();
+      for (long point : sorted) {
+         result.addPoint((int) (point >>> 32), (int) point);
+      }
+      return result;
+   }
 
+   /**
+    * Finds local maxima in the ROI of the current image of iPlus.
+    *
+    * @param iPlus      - ImagePlus object in which to look for local maxima
+    * @param n          - minimum distance to other local maximum
+    * @param threshold  - value below which a maximum will be rejected
+    * @param filterType - Prefilter the image.  Either none or Gaussian1_5
+    * @param finder     - finder to use (re-use one for a series of images)
+    * @return {x coordinates, y coordinates} of the maxima, ordered by row
+    */
+   public static int[][] findMaxima(ImagePlus iPlus, int n, int threshold, FilterType filterType,
+                                    LocalMaximaFinder finder) {
       ImageProcessor iProc = iPlus.getProcessor();
       Rectangle roi = iProc.getRoi();
-      // HACK: need to figure out the underlying cause, but make it workable for now
-      if (roi.height == 0 && roi.width == 0) {
-         roi.x = 0;
-         roi.y = 0;
-         roi.height = iProc.getHeight();
-         roi.width = iProc.getWidth();
-      }
 
       // Prefilter if needed
       if  (filterType == GAUSSIAN1_5) {
@@ -91,37 +110,7 @@ public class FindLocalMaxima {
          iProc = p1.getProcessor();
       }
 
-      for (int x = roi.x + n; x < roi.width + roi.x - n - 1; x++) {
-         for (int y = roi.y + n; y < roi.height + roi.y - n - 1; y++) {
-            // Is this a local maximum?
-            boolean failed = false;
-            for (int mx = x - n; mx < x + n && !failed; mx++) {
-               for (int my = y - n; my < y + n && !failed; my++) {
-                  if (iProc.get(mx, my) > iProc.get(x, y)) {
-                     failed = true;
-                  } else if (iProc.get(mx, my) == iProc.get(x, y)) {
-                     // special handling of pixels of equal intensity
-                     if (mx > x || my > y) {
-                        // avoid excluding x,y itself, when there are multiple 
-                        // pixel of same intensity in the box, take the first one
-                        failed = true;
-                     }
-                  }
-               }
-            }
-            if (!failed) {
-               int cornerAverage = (iProc.get(x - n, y - n) + iProc.get(x - n, y + n)
-                       + iProc.get(x + n, y - n) + iProc.get(x + n, y + n)) / 4;
-               if (iProc.get(x, y) - threshold > cornerAverage) {
-                  maxima.addPoint(x, y);
-               }
-            }
-         }
-      }
-
-      // note, there is code to divide in blocks in the git repository
-
-      return maxima;
+      return finder.find(iProc, roi, n, threshold);
    }
 
 
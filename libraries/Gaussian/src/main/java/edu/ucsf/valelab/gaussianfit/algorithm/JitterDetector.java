@@ -34,6 +34,7 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.algorithm;
 
 import ij.process.FHT;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Point;
 import java.awt.geom.Point2D;
@@ -61,6 +62,33 @@ public class JitterDetector {
       m.inverseTransform();
       m.swapQuadrants();
 
+      locatePeak(m, com);
+   }
+
+   /**
+    * Same as getJitter(ImageProcessor, Point2D.Double), for a test image given as the pixels of
+    * a float image with the same size as the reference.  The transforms use the sine/cosine and
+    * bit reversal tables of plan rather than building new ones for every image.  Several threads
+    * can use the same JitterDetector at the same time, as long as each uses its own plan.
+    *
+    * @param test - pixels of the test image, will be overwritten
+    * @param plan - FHT used for its tables only, create with new FHT()
+    * @param com  - used to return the position of the cross-correlation peak
+    */
+   public void getJitter(float[] test, FHT plan, Point2D.Double com) {
+      int maxN = ref_.getWidth();
+      plan.rc2DFHT(test, false, maxN);
+      FHT t = new FHT(new FloatProcessor(maxN, maxN, test, null), true);
+
+      FHT m = ref_.conjugateMultiply(t);
+
+      plan.rc2DFHT((float[]) m.getPixels(), true, maxN);
+      m.swapQuadrants();
+
+      locatePeak(m, com);
+   }
+
+   private void locatePeak(FHT m, Point2D.Double com) {
       // return the position of the brightest pixel
       Point brightPix = new Point(0, 0);
       brightestPixel(m, brightPix, 32);
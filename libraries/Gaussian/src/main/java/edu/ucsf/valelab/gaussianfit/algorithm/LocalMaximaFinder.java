@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2012-2017, Regents of the University of California All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of
+ * conditions and the following disclaimer. 2. Redistributions in binary form must reproduce the
+ * above copyright notice, this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the authors
+ * and should not be interpreted as representing official policies, either expressed or implied, of
+ * the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.algorithm;
+
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Finds the same local maxima as FindLocalMaxima.findMax, but computes the
+ * maximum of the neighborhood of each pixel with a separable max filter
+ * (van Herk / Gil-Werman), which takes three comparisons per pixel and
+ * direction independent of the size of the neighborhood, rather than
+ * comparing each pixel with all its neighbors. Rows are processed in bands,
+ * in parallel.
+ *
+ * <p>A pixel at (x, y) is a maximum when no pixel in the box from (x - n, y - n)
+ * to (x + n - 1, y + n - 1) is brighter, no pixel of the same intensity lies
+ * to the right or below it in that box, and its intensity exceeds the average
+ * of the four pixels at (x +/- n, y +/- n) by more than the threshold.
+ *
+ * <p>Keeps its buffers between calls, so re-use an instance for a series of
+ * images. Not thread-safe.
+ *
+ * @author nico
+ */
+public final class LocalMaximaFinder {
+
+   // Below this, the overhead of parallel processing outweighs the benefit
+   private static final int MIN_PIXELS_PER_BAND = 64 * 1024;
+
+   private int[] pixels_ = new int[0];
+   private int[] rowMax_ = new int[0];
+   private int[] prefix_ = new int[0];
+   private int[] suffix_ = new int[0];
+
+   /**
+    * Finds local maxima in the ROI of the given processor.
+    *
+    * @param iProc     - image in which to look for local maxima (ROI is respected)
+    * @param n         - minimum distance to other local maximum
+    * @param threshold - value by which a maximum has to exceed the local background
+    * @return {x coordinates, y coordinates} of the maxima, in image coordinates,
+    *     ordered by row
+    */
+   public int[][] find(ImageProcessor iProc, int n, int threshold) {
+      return find(iProc, iProc.getRoi(), n, threshold);
+   }
+
+   /**
+    * Finds local maxima in the given region of the processor.
+    *
+    * @param iProc     - image in which to look for local maxima
+    * @param region    - region in which to look for local maxima
+    * @param n         - minimum distance to other local maximum
+    * @param threshold - value by which a maximum has to exceed the local background
+    * @return {x coordinates, y coordinates} of the maxima, in image coordinates,
+    *     ordered by row
+    */
+   public int[][] find(ImageProcessor iProc, Rectangle region, int n, int threshold) {
+      // HACK: need to figure out the underlying cause, but make it workable for now
+      final Rectangle roi = region.height == 0 && region.width == 0
+            ? new Rectangle(0, 0, iProc.getWidth(), iProc.getHeight()) : region;
+      final int width = roi.width;
+      final int height = roi.height;
+      // range of pixels that can be maxima (relative to the ROI), end exclusive
+      final int x0 = Math.max(n, 0);
+      final int x1 = width - n - 1;
+      final int y0 = Math.max(n, 0);
+      final int y1 = height - n - 1;
+      if (x1 <= x0 || y1 <= y0) {
+         return new int[][] {new int[0], new int[0]};
+      }
+      final int size = width * height;
+      if (pixels_.length < size) {
+         pixels_ = new int[size];
+         rowMax_ = new int[size];
+         prefix_ = new int[size];
+         suffix_ = new int[size];
+      }
+      final int nBands = Math.max(1, Math.min(height, Math.min(
+            Runtime.getRuntime().availableProcessors(), size / MIN_PIXELS_PER_BAND)));
+
+      copy(iProc, roi, nBands);
+      if (n > 0) {
+         rowMaxima(width, height, n, nBands);
+         columnPrefixes(width, height, 2 * n, nBands);
+      }
+
+      final int[][][] bandResults = new int[nBands][][];
+      IntStream.range(0, nBands).parallel().forEach(b -> {
+         int start = y0 + (int) ((long) (y1 - y0) * b / nBands);
+         int end = y0 + (int) ((long) (y1 - y0) * (b + 1) / nBands);
+         bandResults[b] = scan(width, n, threshold, x0, x1, start, end, roi.x, roi.y);
+      });
+
+      int count = 0;
+      for (int[][] result : bandResults) {
+         count += result[2][0];
+      }
+      int[] xs = new int[count];
+      int[] ys = new int[count];
+      int index = 0;
+      for (int[][] result : bandResults) {
+         System.arraycopy(result[0], 0, xs, index, result[2][0]);
+         System.arraycopy(result[1], 0, ys, index, result[2][0]);
+         index += result[2][0];
+      }
+      return new int[][] {xs, ys};
+   }
+
+   /**
+    * Copies the ROI into pixels_, using the same values as ImageProcessor.get().
+    */
+   private void copy(ImageProcessor iProc, Rectangle roi, int nBands) {
+      final int imageWidth = iProc.getWidth();
+      final Object source = iProc.getPixels();
+      final int[] pixels = pixels_;
+      IntStream.range(0, nBands).parallel().forEach(b -> {
+         int start = (int) ((long) roi.height * b / nBands);
+         int end = (int) ((long) roi.height * (b + 1) / nBands);
+         for (int y = start; y < end; y++) {
+            int in = (roi.y + y) * imageWidth + roi.x;
+            int out = y * roi.width;
+            if (source instanceof short[]) {
+               short[] s = (short[]) source;
+               for (int x = 0; x < roi.width; x++) {
+                  pixels[out + x] = s[in + x] & 0xffff;
+               }
+            } else if (source instanceof byte[]) {
+               byte[] s = (byte[]) source;
+               for (int x = 0; x < roi.width; x++) {
+                  pixels[out + x] = s[in + x] & 0xff;
+               }
+            } else {
+               for (int x = 0; x < roi.width; x++) {
+                  pixels[out + x] = iProc.get(in + x);
+               }
+            }
+         }
+      });
+   }
+
+   /**
+    * rowMax_[y * width + x] = max(pixels_[y * width + x - n .. y * width + x + n - 1]),
+    * for n <= x < width - n.
+    */
+   private void rowMaxima(int width, int height, int n, int nBands) {
+      final int w = 2 * n;
+      final int[] pixels = pixels_;
+      final int[] rowMax = rowMax_;
+      IntStream.range(0, nBands).parallel().forEach(b -> {
+         int start = (int) ((long) height * b / nBands);
+         int end = (int) ((long) height * (b + 1) / nBands);
+         int[] prefix = new int[width];
+         int[] suffix = new int[width];
+         for (int y = start; y < end; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+               int v = pixels[offset + x];
+               prefix[x] = x % w == 0 ? v : Math.max(prefix[x - 1], v);
+            }
+            for (int x = width - 1; x >= 0; x--) {
+               int v = pixels[offset + x];
+               suffix[x] = (x % w == w - 1 || x == width - 1) ? v : Math.max(suffix[x + 1], v);
+            }
+            for (int x = n; x <= width - n; x++) {
+               rowMax[offset + x] = Math.max(suffix[x - n], prefix[x + n - 1]);
+            }
+         }
+      });
+   }
+
+   /**
+    * Block-wise running maxima of rowMax_ down the columns, in blocks of w rows,
+    * so that the maximum over rows y - n .. y + n - 1 is
+    * max(suffix_[y - n], prefix_[y + n - 1]).
+    */
+   private void columnPrefixes(int width, int height, int w, int nBands) {
+      final int[] rowMax = rowMax_;
+      final int[] prefix = prefix_;
+      final int[] suffix = suffix_;
+      final int nBlocks = (height + w - 1) / w;
+      final int nParts = Math.min(nBands, nBlocks);
+      IntStream.range(0, nParts).parallel().forEach(b -> {
+         int startBlock = (int) ((long) nBlocks * b / nParts);
+         int endBlock = (int) ((long) nBlocks * (b + 1) / nParts);
+         for (int block = startBlock; block < endBlock; block++) {
+            int first = block * w;
+            int last = Math.min(height, first + w) - 1;
+            System.arraycopy(rowMax, first * width, prefix, first * width, width);
+            for (int y = first + 1; y <= last; y++) {
+               int offset = y * width;
+               for (int x = 0; x < width; x++) {
+                  prefix[offset + x] = Math.max(prefix[offset - width + x], rowMax[offset + x]);
+               }
+            }
+            System.arraycopy(rowMax, last * width, suffix, last * width, width);
+            for (int y = last - 1; y >= first; y--) {
+               int offset = y * width;
+               for (int x = 0; x < width; x++) {
+                  suffix[offset + x] = Math.max(suffix[offset + width + x], rowMax[offset + x]);
+               }
+            }
+         }
+      });
+   }
+
+   /**
+    * Finds the maxima in rows start to end (relative to the ROI).
+    *
+    * @return {x, y, {count}}
+    */
+   private int[][] scan(int width, int n, int threshold, int x0, int x1, int start, int end,
+                        int roiX, int roiY) {
+      final int[] pixels = pixels_;
+      int[] xs = new int[16];
+      int[] ys = new int[16];
+      int count = 0;
+      for (int y = start; y < end; y++) {
+         int above = (y - n) * width;
+         int below = (y + n - 1) * width;
+         int offset = y * width;
+         for (int x = x0; x < x1; x++) {
+            int v = pixels[offset + x];
+            if (n > 0 && v < Math.max(suffix_[above + x], prefix_[below + x])) {
+               continue;
+            }
+            int cornerAverage = (pixels[above + x - n] + pixels[(y + n) * width + x - n]
+                  + pixels[above + x + n] + pixels[(y + n) * width + x + n]) / 4;
+            if (v - threshold <= cornerAverage || hasEqualAfter(width, n, x, y, v)) {
+               continue;
+            }
+            if (count == xs.length) {
+               xs = Arrays.copyOf(xs, 2 * count);
+               ys = Arrays.copyOf(ys, 2 * count);
+            }
+            xs[count] = x + roiX;
+            ys[count] = y + roiY;
+            count++;
+         }
+      }
+      return new int[][] {xs, ys, {count}};
+   }
+
+   /**
+    * When there are multiple pixels of the same intensity in the box, only the
+    * first one is a maximum.
+    */
+   private boolean hasEqualAfter(int width, int n, int x, int y, int v) {
+      for (int my = y - n; my < y + n; my++) {
+         int offset = my * width;
+         for (int mx = x - n; mx < x + n; mx++) {
+            if ((mx > x || my > y) && pixels_[offset + mx] == v) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+}
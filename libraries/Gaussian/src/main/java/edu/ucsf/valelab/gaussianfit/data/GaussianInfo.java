@@ -293,6 +293,20 @@ public class GaussianInfo {
       return widthNm_;
    }
 
+   /**
+    * Whether a fitted spot passes the width and number of photons filters.
+    *
+    * @param spotData spot in calibrated units, as returned by SpotDataConverter
+    * @return true if the spot should be kept
+    */
+   public boolean passesFilters(SpotData spotData) {
+      return (!useWidthFilter_
+            || (spotData.getWidth() > widthMin_ && spotData.getWidth() < widthMax_))
+            && (!useNrPhotonsFilter_
+            || (spotData.getIntensity() > nrPhotonsMin_
+            && spotData.getIntensity() < nrPhotonsMax_));
+   }
+
    public void copy(GaussianInfo source) {
       setBaseLevel(source.getBaseLevel());
       setChannelsToSkip(source.getChannelsToSkip());
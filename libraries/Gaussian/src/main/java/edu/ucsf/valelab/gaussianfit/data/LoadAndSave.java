@@ -32,28 +32,17 @@ package edu.ucsf.valelab.gaussianfit.data;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.EXTENSION;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 
-import com.google.protobuf.ExtensionRegistry;
-import com.google.protobuf.InvalidProtocolBufferException;
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
-import edu.ucsf.valelab.gaussianfit.LittleEndianDataInputStream;
-import edu.ucsf.valelab.tsf.MMLocM;
-import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
-import ij.process.ImageProcessor;
 import java.awt.Cursor;
 import java.awt.FileDialog;
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -82,117 +71,7 @@ public class LoadAndSave {
     * @param caller       - Calling JFrame (used to set wait cursor)
     */
    public static void loadBin(File selectedFile, JFrame caller) {
-      try {
-         ij.IJ.showStatus("Loading data..");
-         caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-
-         List<SpotData> spotList = new ArrayList<SpotData>();
-
-         float pixelSize = (float) 160.0; // how do we get this from the file?
-
-         LittleEndianDataInputStream fin = new LittleEndianDataInputStream(
-               new BufferedInputStream(new FileInputStream(selectedFile)));
-         byte[] m425 = {77, 52, 50, 53};
-         for (int i = 0; i < 4; i++) {
-            if (fin.readByte() != m425[i]) {
-               throw (new IOException("Not a .bin file"));
-            }
-         }
-
-         boolean nStorm = true;
-         byte[] ns = new byte[4];
-         byte[] guid = {71, 85, 73, 68};
-         for (int i = 0; i < 4; i++) {
-            ns[i] = fin.readByte();
-            if (ns[i] != guid[i]) {
-               nStorm = false;
-            }
-         }
-
-         if (nStorm) { // read away 57 bytes
-            fin.skipBytes(53);
-         } else {
-            // there may be a more elegant way to go back 4 bytes
-            fin.close();
-            fin = new LittleEndianDataInputStream(
-                  new BufferedInputStream(new FileInputStream(selectedFile)));
-            fin.skipBytes(4);
-         }
-
-         int nrFrames = fin.readInt();
-         int molType = fin.readInt();
-         int nr = 0;
-         boolean hasZ = false;
-         double maxZ = Double.NEGATIVE_INFINITY;
-         double minZ = Double.POSITIVE_INFINITY;
-
-         for (int i = 0; i <= nrFrames; i++) {
-            int nrMolecules = fin.readInt();
-            for (int j = 0; j < nrMolecules; j++) {
-               // total size of data on disk is 17 bytes
-               final float x = fin.readFloat();
-               final float y = fin.readFloat();
-               final float xc = fin.readFloat();
-               final float yc = fin.readFloat();
-               float h = fin.readFloat();
-               float a = fin.readFloat(); // integrated dens. based on fitting
-               final float w = fin.readFloat();
-               final float phi = fin.readFloat();
-               final float ax = fin.readFloat();
-               final float b = fin.readFloat();
-               final float intensity = fin.readFloat();
-               final int c = fin.readInt();
-               int union = fin.readInt();
-               int frame = fin.readInt();
-               int union2 = fin.readInt();
-               int link = fin.readInt();
-               final float z = fin.readFloat();
-               float zc = fin.readFloat();
-
-               if (zc != 0.0) {
-                  hasZ = true;
-               }
-               if (zc > maxZ) {
-                  maxZ = zc;
-               }
-               if (zc < minZ) {
-                  minZ = zc;
-               }
-
-               SpotData gsd = new SpotData(null, 0, 0, i,
-                     0, nr, (int) xc, (int) yc);
-               gsd.setData(intensity, b, pixelSize * xc, pixelSize * yc, 0.0, w, ax, phi, c);
-               gsd.setZCenter(zc);
-               gsd.setOriginalPosition(x, y, z);
-               spotList.add(gsd);
-               nr++;
-            }
-         }
-
-         String name = selectedFile.getName();
-
-         RowData.Builder builder = new RowData.Builder();
-         builder.setName(name).setTitle(name).setDisplayWindow(null)
-                     .setColColorRef("").setWidth(256).setHeight(256)
-                     .setPixelSizeNm(pixelSize).setZStackStepSizeNm(0.0f)
-                     .setShape(3).setHalfSize(2).setNrFrames(1).setNrSlices(1)
-                     .setNrPositions(1).setMaxNrSpots(nr).setSpotList(spotList)
-                     .setIsTrack(false).setCoordinate(DataCollectionForm.Coordinates.NM)
-                     .setHasZ(hasZ).setMinZ(minZ).setMaxZ(maxZ);
-         DataCollectionForm.getInstance().addSpotData(builder);
-
-
-      } catch (FileNotFoundException ex) {
-         JOptionPane.showMessageDialog(getInstance(), "File not found");
-      } catch (IOException ex) {
-         JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
-      } catch (OutOfMemoryError ome) {
-         JOptionPane.showMessageDialog(getInstance(), "Out Of Memory");
-      } finally {
-         caller.setCursor(Cursor.getDefaultCursor());
-         ij.IJ.showStatus("");
-         ij.IJ.showProgress(1.0);
-      }
+      loadSpotFile(selectedFile, caller, false);
    }
 
    /**
@@ -348,136 +227,46 @@ public class LoadAndSave {
     * @param caller       - Calling GUI element, used to set WaitCursor
     */
    public static void loadTSF(File selectedFile, JFrame caller) {
-      TaggedSpotsProtos.SpotList psl;
-      long spotsMissedWithErrors = 0;
-
-      try {
-
-         ij.IJ.showStatus("Loading data..");
-
-         caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-
-         FileInputStream fi = new FileInputStream(selectedFile);
-         DataInputStream di = new DataInputStream(fi);
-
-         // the new file format has an initial 0, then the offset (in long)
-         // to the position of spotList
-         int magic = di.readInt();
-         if (magic != 0) {
-            // reset and mark do not seem to work on my computer
-            fi.close();
-            fi = new FileInputStream(selectedFile);
-            psl = TaggedSpotsProtos.SpotList.parseDelimitedFrom(fi);
-         } else {
-            // TODO: evaluate after creating code writing this format
-            long offset = di.readLong();
-            fi.skip(offset);
-            psl = TaggedSpotsProtos.SpotList.parseDelimitedFrom(fi);
-            fi.close();
-            fi = new FileInputStream(selectedFile);
-            fi.skip(12); // size of int + size of long
-         }
-         ExtensionRegistry registry = ExtensionRegistry.newInstance();
-         int appId = psl.getApplicationId();
-         if (appId == MMAPPID) {
-            registry.add(MMLocM.intensityAperture);
-            registry.add(MMLocM.intensityBackground);
-            registry.add(MMLocM.intensityRatio);
-            registry.add(MMLocM.mSigma);
-            registry.add(MMLocM.integralApertureSigma);
-         }
-         String name = psl.getName();
-         String title = psl.getName();
-         int width = psl.getNrPixelsX();
-         int height = psl.getNrPixelsY();
-         float pixelSize = psl.getPixelSize();
-         int shape = 1;
-         if (psl.getFitMode() == TaggedSpotsProtos.FitMode.TWOAXIS) {
-            shape = 2;
-         } else if (psl.getFitMode() == TaggedSpotsProtos.FitMode.TWOAXISANDTHETA) {
-            shape = 3;
-         }
-         int halfSize = psl.getBoxSize() / 2;
-         int nrChannels = psl.getNrChannels();
-         int nrFrames = psl.getNrFrames();
-         int nrSlices = psl.getNrSlices();
-         int nrPositions = psl.getNrPos();
-         boolean isTrack = psl.getIsTrack();
-         long expectedSpots = psl.getNrSpots();
-         long esf = expectedSpots / 100;
-         long maxNrSpots = 0;
-         boolean hasZ = false;
-         double maxZ = Double.NEGATIVE_INFINITY;
-         double minZ = Double.POSITIVE_INFINITY;
-
-         ArrayList<SpotData> spotList = new ArrayList<SpotData>();
-         TaggedSpotsProtos.Spot pSpot;
-         while (fi.available() > 0 && (expectedSpots == 0 || maxNrSpots < expectedSpots)) {
-
-            try {
-               pSpot = TaggedSpotsProtos.Spot.parseDelimitedFrom(fi, registry);
-
-               SpotData gSpot = new SpotData((ImageProcessor) null, pSpot.getChannel(),
-                     pSpot.getSlice(), pSpot.getFrame(), pSpot.getPos(),
-                     pSpot.getMolecule(), pSpot.getXPosition(), pSpot.getYPosition());
-               gSpot.setData(pSpot.getIntensity(), pSpot.getBackground(), pSpot.getX(),
-                     pSpot.getY(), 0.0, pSpot.getWidth(), pSpot.getA(), pSpot.getTheta(),
-                     pSpot.getXPrecision());
-               if (appId == MMAPPID) {
-                  gSpot.addKeyValue(SpotData.Keys.APERTUREINTENSITY,
-                        pSpot.getExtension(MMLocM.intensityAperture));
-                  gSpot.addKeyValue(SpotData.Keys.APERTUREBACKGROUND,
-                        pSpot.getExtension(MMLocM.intensityBackground));
-                  gSpot.addKeyValue(SpotData.Keys.INTENSITYRATIO,
-                        pSpot.getExtension(MMLocM.intensityRatio));
-                  gSpot.addKeyValue(SpotData.Keys.MSIGMA,
-                        pSpot.getExtension(MMLocM.mSigma));
-                  if (pSpot.hasExtension(MMLocM.integralApertureSigma)) {
-                     gSpot.addKeyValue(SpotData.Keys.INTEGRALAPERTURESIGMA,
-                           pSpot.getExtension(MMLocM.integralApertureSigma));
-                  }
-               }
-               if (pSpot.hasZ()) {
-                  double zc = pSpot.getZ();
-                  gSpot.setZCenter(zc);
-                  hasZ = true;
-                  if (zc > maxZ) {
-                     maxZ = zc;
-                  }
-                  if (zc < minZ) {
-                     minZ = zc;
-                  }
-               }
-               maxNrSpots++;
-               if ((esf > 0) && ((maxNrSpots % esf) == 0)) {
-                  ij.IJ.showProgress((double) maxNrSpots / (double) expectedSpots);
-               }
+      loadSpotFile(selectedFile, caller, true);
+   }
 
-               spotList.add(gSpot);
-            } catch (InvalidProtocolBufferException ipbe) {
-               spotsMissedWithErrors++;
-               ReportingUtils.logError("ProtocolBuffer Exception: " + ipbe.getMessage());
+   /**
+    * Reads a .tsf or .bin file into a SpotTable, and adds it to the data window.
+    * Shows progress in the ImageJ status bar. Pressing Escape cancels loading.
+    *
+    * @param selectedFile - File to be loaded
+    * @param caller       - Calling GUI element, used to set WaitCursor
+    * @param tsf          - true for .tsf, false for .bin files
+    */
+   private static void loadSpotFile(File selectedFile, JFrame caller, boolean tsf) {
+      long spotsMissedWithErrors = 0;
+      String status = "";
+      ij.IJ.showStatus("Loading data.. (press Esc to cancel)");
+      ij.IJ.resetEscape();
+      caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+      try (SpotFileReader reader = new SpotFileReader(selectedFile)) {
+         reader.setProgressListener((double fraction) -> {
+            ij.IJ.showProgress(fraction);
+            if (ij.IJ.escapePressed()) {
+               reader.cancel();
             }
+         });
+         RowData.Builder builder = tsf ? reader.readTSF() : reader.readBin();
+         spotsMissedWithErrors = reader.getNrSpotsWithErrors();
+         if (builder == null) {
+            status = "Loading of " + selectedFile.getName() + " canceled";
+            return;
          }
-
-         RowData.Builder builder = new RowData.Builder();
-         builder.setName(name).setTitle(title).setWidth(width).setHeight(height)
-                 .setPixelSizeNm(pixelSize).setZStackStepSizeNm(0.0f).setShape(shape)
-                 .setHalfSize(halfSize).setNrChannels(nrChannels)
-                 .setNrFrames(nrFrames).setNrSlices(nrSlices)
-                 .setNrPositions(nrPositions).setMaxNrSpots(maxNrSpots)
-                 .setSpotList(spotList).setIsTrack(isTrack)
-                 .setCoordinate(DataCollectionForm.Coordinates.NM)
-                 .setHasZ(hasZ).setMinZ(minZ).setMaxZ(maxZ);
          DataCollectionForm.getInstance().addSpotData(builder);
-
-      } catch (FileNotFoundException ex) {
+      } catch (FileNotFoundException | NoSuchFileException ex) {
          JOptionPane.showMessageDialog(getInstance(), "File not found");
       } catch (IOException ex) {
          JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
+      } catch (OutOfMemoryError ome) {
+         JOptionPane.showMessageDialog(getInstance(), "Out Of Memory");
       } finally {
          caller.setCursor(Cursor.getDefaultCursor());
-         ij.IJ.showStatus("");
+         ij.IJ.showStatus(status);
          ij.IJ.showProgress(1.0);
          if (spotsMissedWithErrors > 0) {
             ReportingUtils.showError("Failed to read " + spotsMissedWithErrors + " spot(s)");
@@ -527,123 +316,29 @@ public class LoadAndSave {
          @Override
          public void run() {
             for (int rowNr = 0; rowNr < rowData.length; rowNr++) {
-               TaggedSpotsProtos.SpotList.Builder tspBuilder = TaggedSpotsProtos.SpotList
-                     .newBuilder();
-               tspBuilder.setApplicationId(MMAPPID)
-                       .setName(rowData[rowNr].getName())
-                       .setFilepath(rowData[rowNr].title_)
-                       .setNrPixelsX(rowData[rowNr].width_)
-                       .setNrPixelsY(rowData[rowNr].height_)
-                       .setNrSpots(rowData[rowNr].spotList_.size())
-                       .setPixelSize(rowData[rowNr].pixelSizeNm_)
-                       .setBoxSize(rowData[rowNr].halfSize_ * 2)
-                       .setNrChannels(rowData[rowNr].nrChannels_)
-                       .setNrSlices(rowData[rowNr].nrSlices_)
-                       .setIsTrack(rowData[rowNr].isTrack_)
-                       .setNrPos(rowData[rowNr].nrPositions_)
-                       .setNrFrames(rowData[rowNr].nrFrames_)
-                       .setLocationUnits(TaggedSpotsProtos.LocationUnits.NM)
-                       .setIntensityUnits(TaggedSpotsProtos.IntensityUnits.PHOTONS)
-                       .setNrSpots(rowData[rowNr].maxNrSpots_);
-               switch (rowData[rowNr].shape_) {
-                  case (1):
-                     tspBuilder.setFitMode(TaggedSpotsProtos.FitMode.ONEAXIS);
-                     break;
-                  case (2):
-                     tspBuilder.setFitMode(TaggedSpotsProtos.FitMode.TWOAXIS);
-                     break;
-                  case (3):
-                     tspBuilder.setFitMode(TaggedSpotsProtos.FitMode.TWOAXISANDTHETA);
-                     break;
-                  default:
-                     break;
-               }
-
-               TaggedSpotsProtos.SpotList spotList = tspBuilder.build();
                try {
                   caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-                  FileOutputStream fo;
-                  if (rowNr == 0) {
-                     fo = new FileOutputStream(selectedFile);
-                  } else {
+                  File file = selectedFile;
+                  if (rowNr > 0) {
                      String[] nameParts = rowData[rowNr].getName().split(File.separator);
                      String tmpName = nameParts[nameParts.length - 1];
-                     fo = new FileOutputStream(
-                           new File(fdir + File.separator + tmpName + EXTENSION));
-                  }
-                  // write space for magic nr and offset to spotList
-                  for (int i = 0; i < 12; i++) {
-                     fo.write(0);
+                     file = new File(fdir + File.separator + tmpName + EXTENSION);
                   }
-
-                  int counter = 0;
-                  for (SpotData gd : rowData[rowNr].spotList_) {
-
-                     if ((counter % 1000) == 0) {
-                        ij.IJ.showStatus("Saving spotData...");
-                        ij.IJ.showProgress(counter, rowData[rowNr].spotList_.size());
-                     }
-
-                     if (gd != null) {
-                        TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot
-                              .newBuilder();
-                        // TODO: precede all these calls with check for presence of member
-                        // or be OK with default values?
-                        spotBuilder.setMolecule(counter)
-                                    .setFrame(gd.getFrame())
-                              .setChannel(gd.getChannel())
-                              .setPos(gd.getPosition())
-                              .setSlice(gd.getSlice())
-                              .setX((float) gd.getXCenter())
-                              .setY((float) gd.getYCenter())
-                              .setIntensity((float) gd.getIntensity())
-                              .setBackground((float) gd.getBackground())
-                              .setXPosition(gd.getX())
-                              .setYPosition(gd.getY())
-                              .setWidth((float) gd.getWidth())
-                              .setA((float) gd.getA())
-                              .setTheta((float) gd.getTheta())
-                              .setXPrecision((float) gd.getSigma())
-                              .setExtension(MMLocM.intensityAperture,
-                                    gd.getValue(SpotData.Keys.APERTUREINTENSITY, -1.0)
-                                          .floatValue())
-                              .setExtension(MMLocM.intensityBackground,
-                                    gd.getValue(SpotData.Keys.APERTUREBACKGROUND, -1.0)
-                                                .floatValue())
-                              .setExtension(MMLocM.intensityRatio,
-                                    gd.getValue(SpotData.Keys.INTENSITYRATIO, -1.0)
-                                          .floatValue())
-                              .setExtension(MMLocM.mSigma,
-                                    gd.getValue(SpotData.Keys.MSIGMA, -1.0).floatValue())
-                              .setExtension(MMLocM.integralApertureSigma,
-                                    gd.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA, -1.0)
-                                          .floatValue()
-                              );
-
-                        if (rowData[rowNr].hasZ_) {
-                           spotBuilder.setZ((float) gd.getZCenter());
+                  try (SpotTSFWriter writer = new SpotTSFWriter(file, rowData[rowNr])) {
+                     int counter = 0;
+                     for (SpotData gd : rowData[rowNr].spotList_) {
+                        if ((counter % 1000) == 0) {
+                           ij.IJ.showStatus("Saving spotData...");
+                           ij.IJ.showProgress(counter, rowData[rowNr].spotList_.size());
+                        }
+                        if (gd != null) {
+                           writer.write(gd);
                         }
-
-                        TaggedSpotsProtos.Spot spot = spotBuilder.build();
-
-                        // write message size and message
-                        spot.writeDelimitedTo(fo);
                         counter++;
                      }
                   }
 
-                  FileChannel fc = fo.getChannel();
-                  long offset = fc.position();
-                  spotList.writeDelimitedTo(fo);
-
-                  // now go back to write offset to the stream
-                  fc.position(4);
-                  DataOutputStream dos = new DataOutputStream(fo);
-                  dos.writeLong(offset - 12);
-
-                  fo.close();
-
                   ij.IJ.showProgress(1);
                   ij.IJ.showStatus("Finished saving spotData...");
                } catch (IOException ex) {
@@ -697,7 +392,6 @@ public class LoadAndSave {
             public void run() {
                try {
                   for (int rowNr = 0; rowNr < rows.length; rowNr++) {
-                     String tab = "\t";
                      caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
                      FileWriter fw;
                      if (rowNr == 0) {
@@ -708,33 +402,7 @@ public class LoadAndSave {
                         fw = new FileWriter(
                               new File(fd.getDirectory() + File.separator + tmpName + ".txt"));
                      }
-                     fw.write(""
-                           + "application_id: " + MMAPPID + tab
-                           + "name: " + rows[rowNr].getName() + tab
-                           + "filepath: " + rows[rowNr].title_ + tab
-                           + "nr_pixels_x: " + rows[rowNr].width_ + tab
-                           + "nr_pixels_y: " + rows[rowNr].height_ + tab
-                           + "pixel_size: " + rows[rowNr].pixelSizeNm_ + tab
-                           + "nr_spots: " + rows[rowNr].maxNrSpots_ + tab
-                           + "box_size: " + rows[rowNr].halfSize_ * 2 + tab
-                           + "nr_channels: " + rows[rowNr].nrChannels_ + tab
-                           + "nr_frames: " + rows[rowNr].nrFrames_ + tab
-                           + "nr_slices: " + rows[rowNr].nrSlices_ + tab
-                           + "nr_pos: " + rows[rowNr].nrPositions_ + tab
-                           + "location_units: " + TaggedSpotsProtos.LocationUnits.NM + tab
-                           + "intensity_units: " + TaggedSpotsProtos.IntensityUnits.PHOTONS + tab
-                           + "fit_mode: " + rows[rowNr].shape_ + tab
-                           + "is_track: " + rows[rowNr].isTrack_ + tab
-                           + "has_Z: " + rows[rowNr].hasZ_ + "\n");
-                     fw.write("molecule\tframe\tslice\tchannel\tpos\tx_position\t"
-                           + "y_position\tx\ty\tintensity\t"
-                           + "background\twidth\ta\ttheta\t"
-                           + "sigma\tintensity_aperture\tbackground_aperture\t"
-                           + "intensity_ratio\tm_sigma\tintegral_aperture_sigma");
-                     if (rows[rowNr].hasZ_) {
-                        fw.write("\tz");
-                     }
-                     fw.write("\n");
+                     SpotTextWriter stw = new SpotTextWriter(fw, rows[rowNr]);
 
                      int counter = 1;
                      for (SpotData gd : rows[rowNr].spotList_) {
@@ -745,72 +413,12 @@ public class LoadAndSave {
                         }
 
                         if (gd != null) {
-                           fw.write("" + counter + tab
-                                 + gd.getFrame() + tab
-                                 + gd.getSlice() + tab
-                                 + gd.getChannel() + tab
-                                 + gd.getPosition() + tab
-                                 + gd.getX() + tab
-                                 + gd.getY() + tab
-                                 + String.format("%.2f", gd.getXCenter()) + tab
-                                 + String.format("%.2f", gd.getYCenter()) + tab
-                                 + String.format("%.2f", gd.getIntensity()) + tab
-                                 + String.format("%.2f", gd.getBackground()) + tab
-                                 + String.format("%.2f", gd.getWidth()) + tab
-                                 + String.format("%.3f", gd.getA()) + tab
-                                 + String.format("%.3f", gd.getTheta()) + tab
-                                 + String.format("%.3f", gd.getSigma()) + tab);
-                           String remainder = "";
-                           if (gd.hasKey(SpotData.Keys.APERTUREINTENSITY)) {
-                              remainder += String.format("%.2f",
-                                    gd.getValue(SpotData.Keys.APERTUREINTENSITY).floatValue());
-                           } else {
-                              remainder += "-1.000";
-                           }
-                           remainder += tab;
-
-                           if (gd.hasKey(SpotData.Keys.APERTUREBACKGROUND)) {
-                              remainder += String.format("%.2f",
-                                    gd.getValue(SpotData.Keys.APERTUREBACKGROUND).floatValue());
-                           } else {
-                              remainder += "-1.000";
-                           }
-
-                           remainder += tab;
-                           if (gd.hasKey(SpotData.Keys.INTENSITYRATIO)) {
-                              remainder += String.format("%.3f",
-                                    gd.getValue(SpotData.Keys.INTENSITYRATIO).floatValue());
-                           } else {
-                              remainder += "-1.000";
-                           }
-
-                           remainder += tab;
-                           if (gd.hasKey(SpotData.Keys.MSIGMA)) {
-                              remainder += String
-                                    .format("%.3f", gd.getValue(SpotData.Keys.MSIGMA).floatValue());
-                           } else {
-                              remainder += "-1.000";
-                           }
-
-                           remainder += tab;
-                           if (gd.hasKey(SpotData.Keys.INTEGRALAPERTURESIGMA)) {
-                              remainder += String.format("%.3f",
-                                    gd.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA).floatValue());
-                           } else {
-                              remainder += "-1.000";
-                           }
-
-                           fw.write(remainder);
-                           if (rows[rowNr].hasZ_) {
-                              fw.write(tab + String.format("%.2f", gd.getZCenter()));
-                           }
-                           fw.write("\n");
-
+                           stw.write(gd);
                            counter++;
                         }
                      }
 
-                     fw.close();
+                     stw.close();
 
                      ij.IJ.showProgress(1);
                      ij.IJ.showStatus("Finished saving spotData to text file...");
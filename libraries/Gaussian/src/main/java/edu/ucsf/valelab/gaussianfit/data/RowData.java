@@ -66,6 +66,7 @@ public class RowData {
       private int nrPositions_ = 1;
       private long maxNrSpots_;
       private List<SpotData> spotList_;
+      private SpotTable spotTable_;
       private ArrayList<Double> timePoints_;
       private boolean isTrack_;
       private Coordinates coordinate_ = Coordinates.NM;
@@ -154,6 +155,17 @@ public class RowData {
 
       public Builder setSpotList(List<SpotData> spotList) {
          spotList_ = spotList;
+         spotTable_ = null;
+         return this;
+      }
+
+      /**
+       * Uses the given table to hold the spots, rather than SpotData objects.
+       * The table should not be added to afterwards.
+       */
+      public Builder setSpotTable(SpotTable spotTable) {
+         spotTable_ = spotTable;
+         spotList_ = null;
          return this;
       }
 
@@ -189,7 +201,11 @@ public class RowData {
 
    }
 
+   // When the RowData was built from a SpotTable, this is a read-only view
+   // of the table that creates SpotData objects on demand
    public final List<SpotData> spotList_;
+   private SpotTable spotTable_;
+   private final boolean tableBacked_;
    private Map<Integer, List<SpotData>> frameIndexSpotList_;
    private Map<ImageIndex, List<SpotData>> indexedSpotList_;
    public final ArrayList<Double> timePoints_;
@@ -238,7 +254,14 @@ public class RowData {
       nrSlices_ = b.nrSlices_;
       nrPositions_ = b.nrPositions_;
       maxNrSpots_ = b.maxNrSpots_;
-      spotList_ = new ArrayList<SpotData>(b.spotList_);
+      if (b.spotTable_ != null) {
+         spotTable_ = b.spotTable_;
+         spotList_ = spotTable_.all().asSpotList();
+         tableBacked_ = true;
+      } else {
+         spotList_ = new ArrayList<SpotData>(b.spotList_);
+         tableBacked_ = false;
+      }
       if (b.timePoints_ != null) {
          timePoints_ = new ArrayList<Double>(b.timePoints_);
       } else {
@@ -294,16 +317,34 @@ public class RowData {
               .setShape(shape_).setHalfSize(halfSize_).setNrChannels(nrChannels_)
               .setNrFrames(nrFrames_).setNrSlices(nrSlices_)
               .setNrPositions(nrPositions_).setMaxNrSpots(maxNrSpots_)
-              .setSpotList(spotList_).setTimePoints(timePoints_)
+              .setTimePoints(timePoints_)
               .setIsTrack(isTrack_).setCoordinate(coordinate_).setHasZ(hasZ_)
               .setMinZ(minZ_).setMaxZ(maxZ_);
+      if (tableBacked_) {
+         builder.setSpotTable(spotTable_);
+      } else {
+         builder.setSpotList(spotList_);
+      }
       return builder;
    }
 
+   /**
+    * Returns the spots as a column oriented table. For RowData built from a
+    * list of SpotData, the table is created on first use.
+    *
+    * @return table with the spots, in the same order as spotList_
+    */
+   public synchronized SpotTable getSpotTable() {
+      if (spotTable_ == null) {
+         spotTable_ = SpotTable.fromSpotList(spotList_);
+      }
+      return spotTable_;
+   }
+
    /**
     * Populates the list frameIndexSpotList which gives access to spots by frame
     */
-   public void index() {
+   public synchronized void index() {
       boolean useFrames = nrFrames_ > nrSlices_;
       int nr = nrSlices_;
       if (useFrames) {
@@ -313,6 +354,26 @@ public class RowData {
       frameIndexSpotList_ = new HashMap<Integer, List<SpotData>>(nr);
       indexedSpotList_ = new HashMap<ImageIndex, List<SpotData>>();
 
+      if (tableBacked_) {
+         // Views on the table, so that no SpotData objects are kept
+         SpotTable table = spotTable_;
+         for (int row = 0; row < table.size(); row++) {
+            int frameIndex = useFrames ? table.getFrame(row) : table.getSlice(row);
+            if (!frameIndexSpotList_.containsKey(frameIndex)) {
+               frameIndexSpotList_.put(frameIndex, (useFrames
+                     ? table.getFrameView(frameIndex)
+                     : table.getSliceView(frameIndex)).asSpotList());
+            }
+            ImageIndex ii = new ImageIndex(table.getFrame(row), table.getSlice(row),
+                  table.getChannel(row), table.getPosition(row));
+            if (!indexedSpotList_.containsKey(ii)) {
+               indexedSpotList_.put(ii, table.get(table.getFrame(row), table.getSlice(row),
+                     table.getChannel(row), table.getPosition(row)).asSpotList());
+            }
+         }
+         return;
+      }
+
       for (SpotData spot : spotList_) {
          int frameIndex = spot.getSlice();
          if (useFrames) {
@@ -332,7 +393,7 @@ public class RowData {
       }
    }
 
-   public Map<Integer, List<SpotData>> getSpotListIndexedByFrame() {
+   public synchronized Map<Integer, List<SpotData>> getSpotListIndexedByFrame() {
       if (frameIndexSpotList_ == null) {
          index();
       }
@@ -340,7 +401,7 @@ public class RowData {
    }
 
 
-   public List<SpotData> get(int frame, int slice, int channel, int position) {
+   public synchronized List<SpotData> get(int frame, int slice, int channel, int position) {
       ImageIndex ii = new ImageIndex(frame, slice, channel, position);
       if (indexedSpotList_ == null) {
          index();
@@ -359,6 +420,16 @@ public class RowData {
     * @return desired spot or null if not found
     */
    public SpotData get(int frame, int channel, double xPos, double yPos) {
+      if (tableBacked_) {
+         SpotTable table = spotTable_;
+         for (int row = 0; row < table.size(); row++) {
+            if (table.getFrame(row) == frame && table.getChannel(row) == channel
+                  && table.getXCenter(row) == xPos && table.getYCenter(row) == yPos) {
+               return table.getSpot(row);
+            }
+         }
+         return null;
+      }
       for (SpotData spot : spotList_) {
          if (spot.getFrame() == frame && spot.getChannel() == channel
                && spot.getXCenter() == xPos && spot.getYCenter() == yPos) {
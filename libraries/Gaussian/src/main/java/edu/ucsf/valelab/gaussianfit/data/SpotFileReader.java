@@ -0,0 +1,538 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.tsf.MMLocM;
+import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Reads Tagged Spot Files (.tsf) and Bo Huang's binary format (.bin) directly
+ * into a SpotTable, without creating a protocol buffer or SpotData object per
+ * spot.
+ *
+ * <p>The file is read in windows of WINDOW_SIZE bytes into a direct buffer that
+ * is reused for the whole file. The file is not memory mapped, as a mapping
+ * stays in place until it is garbage collected, which keeps the file from
+ * being overwritten on Windows. Progress is reported as the fraction of the
+ * file that has been read, and reading stops (returning null) when cancel()
+ * is called.
+ *
+ * @author nico
+ */
+public final class SpotFileReader implements Closeable {
+
+   private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+   // how often progress is reported
+   private static final int PROGRESS_STEPS = 100;
+   // maximum size of a varint
+   private static final int MAX_VARINT_SIZE = 10;
+   // size of a molecule in a .bin file: 18 values of 4 bytes
+   private static final int BIN_RECORD_SIZE = 72;
+
+   // wire types
+   private static final int VARINT = 0;
+   private static final int FIXED64 = 1;
+   private static final int LENGTH_DELIMITED = 2;
+   private static final int FIXED32 = 5;
+
+   // fields of TaggedSpotsProtos.Spot that we read, and that need to be
+   // present in a valid spot
+   private static final int HAS_MOLECULE = 1;
+   private static final int HAS_CHANNEL = 1 << 1;
+   private static final int HAS_FRAME = 1 << 2;
+   private static final int HAS_X = 1 << 3;
+   private static final int HAS_Y = 1 << 4;
+   private static final int HAS_INTENSITY = 1 << 5;
+   private static final int HAS_Z = 1 << 6;
+   private static final int HAS_INTEGRAL_APERTURE_SIGMA = 1 << 7;
+   private static final int REQUIRED = HAS_MOLECULE | HAS_CHANNEL | HAS_FRAME
+         | HAS_X | HAS_Y | HAS_INTENSITY;
+
+   private final File file_;
+   private final FileChannel channel_;
+   private final long size_;
+   private DoubleConsumer progressListener_;
+   private volatile boolean canceled_ = false;
+   private long nrSpotsWithErrors_ = 0;
+   // values of the MMLocM extensions of the last decoded spot
+   private final float[] extensions_ = new float[5];
+
+   // the part of the file from windowStart_ to windowEnd_
+   private ByteBuffer window_;
+   private long windowStart_;
+   private long windowEnd_;
+   // index in the window following the last varint read
+   private int varintEnd_;
+
+   public SpotFileReader(File file) throws IOException {
+      file_ = file;
+      channel_ = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      size_ = channel_.size();
+   }
+
+   /**
+    * @param listener - receives the fraction (0.0 - 1.0) of the file read so far
+    */
+   public void setProgressListener(DoubleConsumer listener) {
+      progressListener_ = listener;
+   }
+
+   /**
+    * Stops reading. Can be called from any thread.
+    */
+   public void cancel() {
+      canceled_ = true;
+   }
+
+   /**
+    * Number of spots in the last file read that could not be decoded.
+    */
+   public long getNrSpotsWithErrors() {
+      return nrSpotsWithErrors_;
+   }
+
+   /**
+    * Reads a Tagged Spot File.
+    *
+    * @return description of the data set, with the spots in a SpotTable, or
+    *     null when reading was canceled
+    * @throws IOException when the file can not be read or is not a tsf file
+    */
+   public RowData.Builder readTSF() throws IOException {
+      nrSpotsWithErrors_ = 0;
+      long start;
+      long end;
+      TaggedSpotsProtos.SpotList psl;
+      // the new file format has an initial 0, then the offset (in long)
+      // to the position of spotList
+      read(0, (int) Math.min(12, size_));
+      // written with a DataOutputStream, so big-endian
+      window_.order(ByteOrder.BIG_ENDIAN);
+      final int magic = window_.getInt(0);
+      final long offset = size_ >= 12 ? window_.getLong(4) : 0;
+      window_.order(ByteOrder.LITTLE_ENDIAN);
+      if (magic != 0) {
+         // old format: spotList first, spots till the end of the file
+         long[] next = new long[1];
+         psl = TaggedSpotsProtos.SpotList.parseFrom(readDelimited(0, next));
+         start = next[0];
+         end = size_;
+      } else {
+         start = 12;
+         end = 12 + offset;
+         if (offset < 0 || end > size_) {
+            throw new IOException("Invalid spot list offset in " + file_.getName());
+         }
+         psl = TaggedSpotsProtos.SpotList.parseFrom(readDelimited(end, new long[1]));
+      }
+      final boolean mmApp = psl.getApplicationId() == LoadAndSave.MMAPPID;
+      final long expectedSpots = psl.getNrSpots();
+      int shape = 1;
+      if (psl.getFitMode() == TaggedSpotsProtos.FitMode.TWOAXIS) {
+         shape = 2;
+      } else if (psl.getFitMode() == TaggedSpotsProtos.FitMode.TWOAXISANDTHETA) {
+         shape = 3;
+      }
+
+      SpotTable spotTable = new SpotTable(
+            (int) Math.min(Math.max(expectedSpots, 16), Integer.MAX_VALUE - 8));
+      boolean hasZ = false;
+      double maxZ = Double.NEGATIVE_INFINITY;
+      double minZ = Double.POSITIVE_INFINITY;
+      long nrSpots = 0;
+      final long progressStep = Math.max(1, (end - start) / PROGRESS_STEPS);
+      long nextProgress = start + progressStep;
+      long pos = start;
+      float[] values = new float[9];
+      int[] ints = new int[7];
+
+      while (pos < end && (expectedSpots == 0 || nrSpots < expectedSpots)) {
+         if (canceled_) {
+            return null;
+         }
+         ensure(pos, (int) Math.min(MAX_VARINT_SIZE, end - pos), end);
+         int index = (int) (pos - windowStart_);
+         long length = readVarint(index);
+         long messageStart = windowStart_ + varintEnd_;
+         long messageEnd = messageStart + length;
+         if (length < 0 || length > WINDOW_SIZE || messageEnd > end) {
+            // the rest of the file can not be interpreted
+            nrSpotsWithErrors_++;
+            break;
+         }
+         ensure(messageStart, (int) length, end);
+         int present = decodeSpot((int) (messageStart - windowStart_),
+               (int) (messageEnd - windowStart_), values, ints);
+         pos = messageEnd;
+         if ((present & REQUIRED) != REQUIRED) {
+            nrSpotsWithErrors_++;
+            continue;
+         }
+         // ints: molecule, channel, frame, slice, pos, xPosition, yPosition
+         int row = spotTable.addRow(ints[2], ints[3], ints[1], ints[4], ints[0],
+               ints[5], ints[6]);
+         // values: x, y, z, intensity, background, width, a, theta, xPrecision
+         spotTable.setData(row, values[3], values[4], values[0], values[1], 0.0,
+               values[5], values[6], values[7], values[8]);
+         if (mmApp) {
+            spotTable.setValue(SpotData.Keys.APERTUREINTENSITY, row, extensions_[0]);
+            spotTable.setValue(SpotData.Keys.APERTUREBACKGROUND, row, extensions_[1]);
+            spotTable.setValue(SpotData.Keys.INTENSITYRATIO, row, extensions_[2]);
+            spotTable.setValue(SpotData.Keys.MSIGMA, row, extensions_[3]);
+            if ((present & HAS_INTEGRAL_APERTURE_SIGMA) != 0) {
+               spotTable.setValue(SpotData.Keys.INTEGRALAPERTURESIGMA, row, extensions_[4]);
+            }
+         }
+         if ((present & HAS_Z) != 0) {
+            double zc = values[2];
+            spotTable.setZCenter(row, zc);
+            hasZ = true;
+            if (zc > maxZ) {
+               maxZ = zc;
+            }
+            if (zc < minZ) {
+               minZ = zc;
+            }
+         }
+         nrSpots++;
+         if (pos >= nextProgress) {
+            nextProgress = pos + progressStep;
+            reportProgress((double) (pos - start) / (end - start));
+         }
+      }
+
+      RowData.Builder builder = new RowData.Builder();
+      builder.setName(psl.getName()).setTitle(psl.getName())
+            .setWidth(psl.getNrPixelsX()).setHeight(psl.getNrPixelsY())
+            .setPixelSizeNm(psl.getPixelSize()).setZStackStepSizeNm(0.0f).setShape(shape)
+            .setHalfSize(psl.getBoxSize() / 2).setNrChannels(psl.getNrChannels())
+            .setNrFrames(psl.getNrFrames()).setNrSlices(psl.getNrSlices())
+            .setNrPositions(psl.getNrPos()).setMaxNrSpots(nrSpots)
+            .setSpotTable(spotTable).setIsTrack(psl.getIsTrack())
+            .setCoordinate(DataCollectionForm.Coordinates.NM)
+            .setHasZ(hasZ).setMinZ(minZ).setMaxZ(maxZ);
+      return builder;
+   }
+
+   /**
+    * Decodes the fields of a TaggedSpotsProtos.Spot between index and end in
+    * the current window.
+    *
+    * @return bit mask of the fields that were present (HAS_...)
+    */
+   private int decodeSpot(int index, int end, float[] values, int[] ints) {
+      Arrays.fill(values, 0.0f);
+      Arrays.fill(ints, 0);
+      Arrays.fill(extensions_, 0.0f);
+      int present = 0;
+      while (index < end) {
+         long tag = readVarint(index);
+         index = varintEnd_;
+         int field = (int) (tag >>> 3);
+         int wireType = (int) (tag & 7);
+         if (wireType == VARINT) {
+            int value = (int) readVarint(index);
+            index = varintEnd_;
+            switch (field) {
+               case TaggedSpotsProtos.Spot.MOLECULE_FIELD_NUMBER:
+                  ints[0] = value;
+                  present |= HAS_MOLECULE;
+                  break;
+               case TaggedSpotsProtos.Spot.CHANNEL_FIELD_NUMBER:
+                  ints[1] = value;
+                  present |= HAS_CHANNEL;
+                  break;
+               case TaggedSpotsProtos.Spot.FRAME_FIELD_NUMBER:
+                  ints[2] = value;
+                  present |= HAS_FRAME;
+                  break;
+               case TaggedSpotsProtos.Spot.SLICE_FIELD_NUMBER:
+                  ints[3] = value;
+                  break;
+               case TaggedSpotsProtos.Spot.POS_FIELD_NUMBER:
+                  ints[4] = value;
+                  break;
+               case TaggedSpotsProtos.Spot.X_POSITION_FIELD_NUMBER:
+                  ints[5] = value;
+                  break;
+               case TaggedSpotsProtos.Spot.Y_POSITION_FIELD_NUMBER:
+                  ints[6] = value;
+                  break;
+               default:
+                  break;
+            }
+         } else if (wireType == FIXED32) {
+            if (index + 4 > end) {
+               return 0;
+            }
+            float value = window_.getFloat(index);
+            index += 4;
+            switch (field) {
+               case TaggedSpotsProtos.Spot.X_FIELD_NUMBER:
+                  values[0] = value;
+                  present |= HAS_X;
+                  break;
+               case TaggedSpotsProtos.Spot.Y_FIELD_NUMBER:
+                  values[1] = value;
+                  present |= HAS_Y;
+                  break;
+               case TaggedSpotsProtos.Spot.Z_FIELD_NUMBER:
+                  values[2] = value;
+                  present |= HAS_Z;
+                  break;
+               case TaggedSpotsProtos.Spot.INTENSITY_FIELD_NUMBER:
+                  values[3] = value;
+                  present |= HAS_INTENSITY;
+                  break;
+               case TaggedSpotsProtos.Spot.BACKGROUND_FIELD_NUMBER:
+                  values[4] = value;
+                  break;
+               case TaggedSpotsProtos.Spot.WIDTH_FIELD_NUMBER:
+                  values[5] = value;
+                  break;
+               case TaggedSpotsProtos.Spot.A_FIELD_NUMBER:
+                  values[6] = value;
+                  break;
+               case TaggedSpotsProtos.Spot.THETA_FIELD_NUMBER:
+                  values[7] = value;
+                  break;
+               case TaggedSpotsProtos.Spot.X_PRECISION_FIELD_NUMBER:
+                  values[8] = value;
+                  break;
+               case MMLocM.INTENSITY_APERTURE_FIELD_NUMBER:
+                  extensions_[0] = value;
+                  break;
+               case MMLocM.INTENSITY_BACKGROUND_FIELD_NUMBER:
+                  extensions_[1] = value;
+                  break;
+               case MMLocM.INTENSITY_RATIO_FIELD_NUMBER:
+                  extensions_[2] = value;
+                  break;
+               case MMLocM.M_SIGMA_FIELD_NUMBER:
+                  extensions_[3] = value;
+                  break;
+               case MMLocM.INTEGRAL_APERTURE_SIGMA_FIELD_NUMBER:
+                  extensions_[4] = value;
+                  present |= HAS_INTEGRAL_APERTURE_SIGMA;
+                  break;
+               default:
+                  break;
+            }
+         } else if (wireType == FIXED64) {
+            index += 8;
+         } else if (wireType == LENGTH_DELIMITED) {
+            long length = readVarint(index);
+            index = varintEnd_;
+            if (length < 0 || length > end - index) {
+               return 0;
+            }
+            index += (int) length;
+         } else {
+            // groups are not used in tsf files
+            return 0;
+         }
+      }
+      return index == end ? present : 0;
+   }
+
+   /**
+    * Reads a file in the binary format developed by Bo Huang and adopted by
+    * Nikon.
+    *
+    * @return description of the data set, with the spots in a SpotTable, or
+    *     null when reading was canceled
+    * @throws IOException when the file can not be read or is not a .bin file
+    */
+   public RowData.Builder readBin() throws IOException {
+      nrSpotsWithErrors_ = 0;
+      final float pixelSize = (float) 160.0; // how do we get this from the file?
+      read(0, (int) Math.min(size_, 65));
+      final byte[] m425 = {77, 52, 50, 53};
+      for (int i = 0; i < 4; i++) {
+         if (window_.get(i) != m425[i]) {
+            throw new IOException("Not a .bin file");
+         }
+      }
+      boolean nStorm = true;
+      final byte[] guid = {71, 85, 73, 68};
+      for (int i = 0; i < 4; i++) {
+         if (window_.get(4 + i) != guid[i]) {
+            nStorm = false;
+         }
+      }
+      long pos = nStorm ? 61 : 4;
+      ensure(pos, 8, size_);
+      final int nrFrames = window_.getInt((int) (pos - windowStart_));
+      pos += 8; // nrFrames and molType
+
+      final long start = pos;
+      final long progressStep = Math.max(1, (size_ - start) / PROGRESS_STEPS);
+      long nextProgress = start + progressStep;
+      SpotTable spotTable = new SpotTable(
+            (int) Math.min(Math.max(16, (size_ - start) / BIN_RECORD_SIZE),
+                  Integer.MAX_VALUE - 8));
+      int nr = 0;
+      boolean hasZ = false;
+      double maxZ = Double.NEGATIVE_INFINITY;
+      double minZ = Double.POSITIVE_INFINITY;
+
+      for (int frame = 0; frame <= nrFrames; frame++) {
+         if (canceled_) {
+            return null;
+         }
+         ensure(pos, 4, size_);
+         final int nrMolecules = window_.getInt((int) (pos - windowStart_));
+         pos += 4;
+         if (nrMolecules < 0 || pos + (long) nrMolecules * BIN_RECORD_SIZE > size_) {
+            throw new IOException("Error while reading file");
+         }
+         for (int j = 0; j < nrMolecules; j++) {
+            ensure(pos, BIN_RECORD_SIZE, size_);
+            final int i = (int) (pos - windowStart_);
+            final float x = window_.getFloat(i);
+            final float y = window_.getFloat(i + 4);
+            final float xc = window_.getFloat(i + 8);
+            final float yc = window_.getFloat(i + 12);
+            // height (i + 16) and area (i + 20) are not used
+            final float w = window_.getFloat(i + 24);
+            final float phi = window_.getFloat(i + 28);
+            final float ax = window_.getFloat(i + 32);
+            final float b = window_.getFloat(i + 36);
+            final float intensity = window_.getFloat(i + 40);
+            final int c = window_.getInt(i + 44);
+            // union (i + 48), frame (i + 52), union2 (i + 56) and link (i + 60) are not used
+            final float z = window_.getFloat(i + 64);
+            final float zc = window_.getFloat(i + 68);
+            pos += BIN_RECORD_SIZE;
+
+            if (zc != 0.0) {
+               hasZ = true;
+            }
+            if (zc > maxZ) {
+               maxZ = zc;
+            }
+            if (zc < minZ) {
+               minZ = zc;
+            }
+            int row = spotTable.addRow(frame, 0, 0, 0, nr, (int) xc, (int) yc);
+            spotTable.setData(row, intensity, b, pixelSize * xc, pixelSize * yc, 0.0,
+                  w, ax, phi, c);
+            spotTable.setZCenter(row, zc);
+            spotTable.setOriginalPosition(row, x, y, z);
+            nr++;
+         }
+         if (pos >= nextProgress) {
+            nextProgress = pos + progressStep;
+            reportProgress((double) (pos - start) / (size_ - start));
+         }
+      }
+
+      String name = file_.getName();
+      RowData.Builder builder = new RowData.Builder();
+      builder.setName(name).setTitle(name).setDisplayWindow(null)
+            .setColColorRef("").setWidth(256).setHeight(256)
+            .setPixelSizeNm(pixelSize).setZStackStepSizeNm(0.0f)
+            .setShape(3).setHalfSize(2).setNrFrames(1).setNrSlices(1)
+            .setNrPositions(1).setMaxNrSpots(nr).setSpotTable(spotTable)
+            .setIsTrack(false).setCoordinate(DataCollectionForm.Coordinates.NM)
+            .setHasZ(hasZ).setMinZ(minZ).setMaxZ(maxZ);
+      return builder;
+   }
+
+   @Override
+   public void close() throws IOException {
+      window_ = null;
+      channel_.close();
+   }
+
+   private void reportProgress(double fraction) {
+      if (progressListener_ != null) {
+         progressListener_.accept(fraction);
+      }
+   }
+
+   /**
+    * Makes sure that the bytes from pos to pos + length are in the window,
+    * reading a new window starting at pos when needed.
+    *
+    * @param limit - end of the region of the file that will be read
+    */
+   private void ensure(long pos, int length, long limit) throws IOException {
+      if (pos + length > limit) {
+         throw new IOException("Unexpected end of file " + file_.getName());
+      }
+      if (window_ == null || pos < windowStart_ || pos + length > windowEnd_) {
+         read(pos, (int) Math.min(Math.max(length, WINDOW_SIZE), limit - pos));
+      }
+   }
+
+   private void read(long pos, int length) throws IOException {
+      if (pos + length > size_) {
+         throw new IOException("Unexpected end of file " + file_.getName());
+      }
+      if (window_ == null || window_.capacity() < length) {
+         window_ = ByteBuffer.allocateDirect(
+               (int) Math.max(length, Math.min(WINDOW_SIZE, size_)));
+      }
+      window_.order(ByteOrder.LITTLE_ENDIAN);
+      window_.clear();
+      window_.limit(length);
+      while (window_.hasRemaining()) {
+         if (channel_.read(window_, pos + window_.position()) < 0) {
+            throw new IOException("Unexpected end of file " + file_.getName());
+         }
+      }
+      windowStart_ = pos;
+      windowEnd_ = pos + length;
+   }
+
+   /**
+    * Reads the length delimited message at pos.
+    *
+    * @param next - receives the position after the message
+    */
+   private byte[] readDelimited(long pos, long[] next) throws IOException {
+      ensure(pos, (int) Math.min(MAX_VARINT_SIZE, size_ - pos), size_);
+      int index = (int) (pos - windowStart_);
+      long length = readVarint(index);
+      long start = windowStart_ + varintEnd_;
+      if (length < 0 || length > Integer.MAX_VALUE) {
+         throw new IOException("Invalid message length in " + file_.getName());
+      }
+      ensure(start, (int) length, size_);
+      byte[] data = new byte[(int) length];
+      ByteBuffer window = window_.duplicate();
+      window.position((int) (start - windowStart_));
+      window.get(data);
+      next[0] = start + length;
+      return data;
+   }
+
+   /**
+    * Reads the varint at index in the window, and sets varintEnd_ to the index
+    * following it.
+    *
+    * @return value, or -1 when the varint is malformed
+    */
+   private long readVarint(int index) {
+      long result = 0;
+      for (int shift = 0; shift < 64 && index < window_.limit(); shift += 7) {
+         byte b = window_.get(index++);
+         result |= (long) (b & 0x7F) << shift;
+         if ((b & 0x80) == 0) {
+            varintEnd_ = index;
+            return result;
+         }
+      }
+      varintEnd_ = index;
+      return -1;
+   }
+}
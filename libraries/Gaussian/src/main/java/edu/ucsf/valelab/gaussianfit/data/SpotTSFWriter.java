@@ -0,0 +1,186 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import edu.ucsf.valelab.tsf.MMLocM;
+import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes spots to a Tagged Spot File (.tsf) as they become available. The
+ * file starts with room for a magic number and the offset to the SpotList
+ * describing the data set, followed by the spots, each preceded by its size.
+ * The SpotList is written, and the offset filled in, when the writer is
+ * closed.
+ *
+ * <p>Spots are encoded directly into a buffer, in the same way as
+ * TaggedSpotsProtos.Spot.writeDelimitedTo would, rather than by building a
+ * protocol buffer per spot.
+ *
+ * @author nico
+ */
+public class SpotTSFWriter implements Closeable {
+
+   private static final int BUFFER_SIZE = 1024 * 1024;
+   // wire types
+   private static final int VARINT = 0;
+   private static final int FIXED32 = 5;
+
+   private final FileOutputStream fo_;
+   private final BufferedOutputStream out_;
+   private final RowData header_;
+   private final boolean hasZ_;
+   // a spot takes at most about 200 bytes
+   private final byte[] spot_ = new byte[512];
+   private int index_;
+   private int counter_ = 0;
+
+   /**
+    * Creates the file and reserves room for the offset to the SpotList.
+    *
+    * @param file   - destination, will be overwritten
+    * @param header - describes the data set. Only the descriptive fields are
+    *               used, spots are written with write()
+    * @throws IOException when the file can not be created
+    */
+   public SpotTSFWriter(File file, RowData header) throws IOException {
+      fo_ = new FileOutputStream(file);
+      out_ = new BufferedOutputStream(fo_, BUFFER_SIZE);
+      header_ = header;
+      hasZ_ = header.hasZ_;
+      // write space for magic nr and offset to spotList
+      for (int i = 0; i < 12; i++) {
+         out_.write(0);
+      }
+   }
+
+   /**
+    * Writes one spot. Spots are numbered in the order they are written.
+    */
+   public void write(SpotData gd) throws IOException {
+      index_ = 0;
+      // fields in order of their field number, followed by the extensions
+      writeInt32(TaggedSpotsProtos.Spot.MOLECULE_FIELD_NUMBER, counter_);
+      writeInt32(TaggedSpotsProtos.Spot.CHANNEL_FIELD_NUMBER, gd.getChannel());
+      writeInt32(TaggedSpotsProtos.Spot.FRAME_FIELD_NUMBER, gd.getFrame());
+      writeInt32(TaggedSpotsProtos.Spot.SLICE_FIELD_NUMBER, gd.getSlice());
+      writeInt32(TaggedSpotsProtos.Spot.POS_FIELD_NUMBER, gd.getPosition());
+      writeFloat(TaggedSpotsProtos.Spot.X_FIELD_NUMBER, (float) gd.getXCenter());
+      writeFloat(TaggedSpotsProtos.Spot.Y_FIELD_NUMBER, (float) gd.getYCenter());
+      if (hasZ_) {
+         writeFloat(TaggedSpotsProtos.Spot.Z_FIELD_NUMBER, (float) gd.getZCenter());
+      }
+      writeFloat(TaggedSpotsProtos.Spot.INTENSITY_FIELD_NUMBER, (float) gd.getIntensity());
+      writeFloat(TaggedSpotsProtos.Spot.BACKGROUND_FIELD_NUMBER, (float) gd.getBackground());
+      writeFloat(TaggedSpotsProtos.Spot.WIDTH_FIELD_NUMBER, (float) gd.getWidth());
+      writeFloat(TaggedSpotsProtos.Spot.A_FIELD_NUMBER, (float) gd.getA());
+      writeFloat(TaggedSpotsProtos.Spot.THETA_FIELD_NUMBER, (float) gd.getTheta());
+      writeFloat(TaggedSpotsProtos.Spot.X_PRECISION_FIELD_NUMBER, (float) gd.getSigma());
+      writeInt32(TaggedSpotsProtos.Spot.X_POSITION_FIELD_NUMBER, gd.getX());
+      writeInt32(TaggedSpotsProtos.Spot.Y_POSITION_FIELD_NUMBER, gd.getY());
+      writeFloat(MMLocM.INTENSITY_APERTURE_FIELD_NUMBER,
+            gd.getValue(SpotData.Keys.APERTUREINTENSITY, -1.0).floatValue());
+      writeFloat(MMLocM.INTENSITY_BACKGROUND_FIELD_NUMBER,
+            gd.getValue(SpotData.Keys.APERTUREBACKGROUND, -1.0).floatValue());
+      writeFloat(MMLocM.INTENSITY_RATIO_FIELD_NUMBER,
+            gd.getValue(SpotData.Keys.INTENSITYRATIO, -1.0).floatValue());
+      writeFloat(MMLocM.M_SIGMA_FIELD_NUMBER,
+            gd.getValue(SpotData.Keys.MSIGMA, -1.0).floatValue());
+      writeFloat(MMLocM.INTEGRAL_APERTURE_SIGMA_FIELD_NUMBER,
+            gd.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA, -1.0).floatValue());
+
+      // write message size and message
+      int length = index_;
+      long size = length;
+      while ((size & ~0x7FL) != 0) {
+         out_.write((int) ((size & 0x7F) | 0x80));
+         size >>>= 7;
+      }
+      out_.write((int) size);
+      out_.write(spot_, 0, length);
+      counter_++;
+   }
+
+   /**
+    * Writes the SpotList describing the data set, and the offset to it at the
+    * start of the file.
+    */
+   @Override
+   public void close() throws IOException {
+      try {
+         out_.flush();
+         FileChannel fc = fo_.getChannel();
+         long offset = fc.position();
+         createSpotList(header_, counter_).writeDelimitedTo(out_);
+         out_.flush();
+
+         // now go back to write offset to the stream
+         fc.position(4);
+         DataOutputStream dos = new DataOutputStream(fo_);
+         dos.writeLong(offset - 12);
+         dos.flush();
+      } finally {
+         fo_.close();
+      }
+   }
+
+   private static TaggedSpotsProtos.SpotList createSpotList(RowData rowData, int nrSpots) {
+      TaggedSpotsProtos.SpotList.Builder tspBuilder = TaggedSpotsProtos.SpotList.newBuilder();
+      tspBuilder.setApplicationId(LoadAndSave.MMAPPID)
+            .setName(rowData.getName())
+            .setFilepath(rowData.title_)
+            .setNrPixelsX(rowData.width_)
+            .setNrPixelsY(rowData.height_)
+            .setPixelSize(rowData.pixelSizeNm_)
+            .setBoxSize(rowData.halfSize_ * 2)
+            .setNrChannels(rowData.nrChannels_)
+            .setNrSlices(rowData.nrSlices_)
+            .setIsTrack(rowData.isTrack_)
+            .setNrPos(rowData.nrPositions_)
+            .setNrFrames(rowData.nrFrames_)
+            .setLocationUnits(TaggedSpotsProtos.LocationUnits.NM)
+            .setIntensityUnits(TaggedSpotsProtos.IntensityUnits.PHOTONS)
+            .setNrSpots(nrSpots);
+      switch (rowData.shape_) {
+         case (1):
+            tspBuilder.setFitMode(TaggedSpotsProtos.FitMode.ONEAXIS);
+            break;
+         case (2):
+            tspBuilder.setFitMode(TaggedSpotsProtos.FitMode.TWOAXIS);
+            break;
+         case (3):
+            tspBuilder.setFitMode(TaggedSpotsProtos.FitMode.TWOAXISANDTHETA);
+            break;
+         default:
+            break;
+      }
+      return tspBuilder.build();
+   }
+
+   private void writeInt32(int field, int value) {
+      writeVarint((field << 3) | VARINT);
+      // negative numbers are sign extended to 64 bits
+      writeVarint(value);
+   }
+
+   private void writeFloat(int field, float value) {
+      writeVarint((field << 3) | FIXED32);
+      int bits = Float.floatToRawIntBits(value);
+      spot_[index_++] = (byte) bits;
+      spot_[index_++] = (byte) (bits >> 8);
+      spot_[index_++] = (byte) (bits >> 16);
+      spot_[index_++] = (byte) (bits >> 24);
+   }
+
+   private void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+         spot_[index_++] = (byte) ((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      spot_[index_++] = (byte) value;
+   }
+}
@@ -0,0 +1,558 @@
+/*
+Copyright (c) 2010-2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+*/
+
+package edu.ucsf.valelab.gaussianfit.data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.IntPredicate;
+
+/**
+ * Column oriented store for spot data.
+ *
+ * <p>Each attribute of a spot is kept in a primitive array, so that a spot
+ * costs about 120 bytes, rather than a SpotData object with its boxed key/value
+ * map. Extra values (see SpotData.Keys) are stored in a column per key, with
+ * NaN for spots that do not have that value.  Spots are identified by their row
+ * number.
+ *
+ * <p>Views select a subset of rows without copying the spot data, and can be
+ * presented as a List of SpotData to code that works with SpotData objects.
+ * SpotData objects obtained from a table are created on demand, and changes
+ * to them are not reflected in the table. The per spot ImageProcessor is not
+ * stored: it is a cache that SpotData.getSpotProcessor recreates when needed.
+ *
+ * <p>Rows can only be added. Adding rows is not thread-safe; once all rows
+ * have been added, the table and its views can be read from multiple threads.
+ *
+ * @author nico
+ */
+public final class SpotTable {
+
+   private int size_ = 0;
+   private int capacity_;
+   private int[] frame_;
+   private int[] slice_;
+   private int[] channel_;
+   private int[] position_;
+   private int[] nr_;
+   private int[] x_;
+   private int[] y_;
+   private int[] nrLinks_;
+   private int[] originalFrame_;
+   private double[] intensity_;
+   private double[] background_;
+   private double[] xCenter_;
+   private double[] yCenter_;
+   private double[] zCenter_;
+   private double[] xOri_;
+   private double[] yOri_;
+   private double[] zOri_;
+   private double[] width_;
+   private double[] a_;
+   private double[] theta_;
+   private double[] sigma_;
+   private final Map<String, double[]> extraColumns_ = new LinkedHashMap<String, double[]>();
+   // Rows grouped by frame and by slice, built when first needed
+   private volatile Index frameIndex_;
+   private volatile Index sliceIndex_;
+
+   public SpotTable() {
+      this(16);
+   }
+
+   /**
+    * @param capacity number of spots for which room is reserved
+    */
+   public SpotTable(int capacity) {
+      capacity_ = Math.max(1, capacity);
+      frame_ = new int[capacity_];
+      slice_ = new int[capacity_];
+      channel_ = new int[capacity_];
+      position_ = new int[capacity_];
+      nr_ = new int[capacity_];
+      x_ = new int[capacity_];
+      y_ = new int[capacity_];
+      nrLinks_ = new int[capacity_];
+      originalFrame_ = new int[capacity_];
+      intensity_ = new double[capacity_];
+      background_ = new double[capacity_];
+      xCenter_ = new double[capacity_];
+      yCenter_ = new double[capacity_];
+      zCenter_ = new double[capacity_];
+      xOri_ = new double[capacity_];
+      yOri_ = new double[capacity_];
+      zOri_ = new double[capacity_];
+      width_ = new double[capacity_];
+      a_ = new double[capacity_];
+      theta_ = new double[capacity_];
+      sigma_ = new double[capacity_];
+   }
+
+   /**
+    * Creates a table holding the data of the given spots, in the same order.
+    *
+    * @param spots spots to copy
+    * @return new table
+    */
+   public static SpotTable fromSpotList(List<SpotData> spots) {
+      SpotTable table = new SpotTable(spots.size());
+      for (SpotData spot : spots) {
+         table.add(spot);
+      }
+      return table;
+   }
+
+   /**
+    * Appends a spot.
+    *
+    * @param spot spot whose data will be copied into the table
+    * @return row number of the new spot
+    */
+   public int add(SpotData spot) {
+      int row = addRow(spot.getFrame(), spot.getSlice(), spot.getChannel(),
+            spot.getPosition(), spot.getNr(), spot.getX(), spot.getY());
+      intensity_[row] = spot.getIntensity();
+      background_[row] = spot.getBackground();
+      xCenter_[row] = spot.getXCenter();
+      yCenter_[row] = spot.getYCenter();
+      zCenter_[row] = spot.getZCenter();
+      xOri_[row] = spot.getXOri();
+      yOri_[row] = spot.geYOri();
+      zOri_[row] = spot.getZOri();
+      width_[row] = spot.getWidth();
+      a_[row] = spot.getA();
+      theta_[row] = spot.getTheta();
+      sigma_[row] = spot.getSigma();
+      nrLinks_[row] = spot.nrLinks_;
+      originalFrame_[row] = spot.originalFrame_;
+      for (String key : spot.getKeys()) {
+         setValue(key, row, spot.getValue(key));
+      }
+      return row;
+   }
+
+   /**
+    * Appends a spot with the given image coordinates. All other values are
+    * zero, and should be set with the setters.
+    *
+    * @return row number of the new spot
+    */
+   public int addRow(int frame, int slice, int channel, int position, int nr,
+                     int x, int y) {
+      if (size_ == capacity_) {
+         grow();
+      }
+      int row = size_++;
+      frame_[row] = frame;
+      slice_[row] = slice;
+      channel_[row] = channel;
+      position_[row] = position;
+      nr_[row] = nr;
+      x_[row] = x;
+      y_[row] = y;
+      frameIndex_ = null;
+      sliceIndex_ = null;
+      return row;
+   }
+
+   private void grow() {
+      capacity_ = capacity_ > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE - 8 : 2 * capacity_;
+      frame_ = Arrays.copyOf(frame_, capacity_);
+      slice_ = Arrays.copyOf(slice_, capacity_);
+      channel_ = Arrays.copyOf(channel_, capacity_);
+      position_ = Arrays.copyOf(position_, capacity_);
+      nr_ = Arrays.copyOf(nr_, capacity_);
+      x_ = Arrays.copyOf(x_, capacity_);
+      y_ = Arrays.copyOf(y_, capacity_);
+      nrLinks_ = Arrays.copyOf(nrLinks_, capacity_);
+      originalFrame_ = Arrays.copyOf(originalFrame_, capacity_);
+      intensity_ = Arrays.copyOf(intensity_, capacity_);
+      background_ = Arrays.copyOf(background_, capacity_);
+      xCenter_ = Arrays.copyOf(xCenter_, capacity_);
+      yCenter_ = Arrays.copyOf(yCenter_, capacity_);
+      zCenter_ = Arrays.copyOf(zCenter_, capacity_);
+      xOri_ = Arrays.copyOf(xOri_, capacity_);
+      yOri_ = Arrays.copyOf(yOri_, capacity_);
+      zOri_ = Arrays.copyOf(zOri_, capacity_);
+      width_ = Arrays.copyOf(width_, capacity_);
+      a_ = Arrays.copyOf(a_, capacity_);
+      theta_ = Arrays.copyOf(theta_, capacity_);
+      sigma_ = Arrays.copyOf(sigma_, capacity_);
+      for (Map.Entry<String, double[]> entry : extraColumns_.entrySet()) {
+         double[] column = Arrays.copyOf(entry.getValue(), capacity_);
+         Arrays.fill(column, entry.getValue().length, capacity_, Double.NaN);
+         entry.setValue(column);
+      }
+   }
+
+   /**
+    * Sets the fit results of a spot (same order as SpotData.setData).
+    */
+   public void setData(int row, double intensity, double background, double xCenter,
+                       double yCenter, double zCenter, double width, double a,
+                       double theta, double sigma) {
+      intensity_[row] = intensity;
+      background_[row] = background;
+      xCenter_[row] = xCenter;
+      yCenter_[row] = yCenter;
+      zCenter_[row] = zCenter;
+      width_[row] = width;
+      a_[row] = a;
+      theta_[row] = theta;
+      sigma_[row] = sigma;
+   }
+
+   public void setOriginalPosition(int row, double xPos, double yPos, double zPos) {
+      xOri_[row] = xPos;
+      yOri_[row] = yPos;
+      zOri_[row] = zPos;
+   }
+
+   public void setXCenter(int row, double x) {
+      xCenter_[row] = x;
+   }
+
+   public void setYCenter(int row, double y) {
+      yCenter_[row] = y;
+   }
+
+   public void setZCenter(int row, double z) {
+      zCenter_[row] = z;
+   }
+
+   /**
+    * Sets an extra value (as in SpotData.addKeyValue).
+    */
+   public void setValue(String key, int row, double value) {
+      double[] column = extraColumns_.get(key);
+      if (column == null) {
+         column = new double[capacity_];
+         Arrays.fill(column, Double.NaN);
+         extraColumns_.put(key, column);
+      }
+      column[row] = value;
+   }
+
+   public int size() {
+      return size_;
+   }
+
+   public int getFrame(int row) {
+      return frame_[row];
+   }
+
+   public int getSlice(int row) {
+      return slice_[row];
+   }
+
+   public int getChannel(int row) {
+      return channel_[row];
+   }
+
+   public int getPosition(int row) {
+      return position_[row];
+   }
+
+   public int getNr(int row) {
+      return nr_[row];
+   }
+
+   public int getX(int row) {
+      return x_[row];
+   }
+
+   public int getY(int row) {
+      return y_[row];
+   }
+
+   public int getNrLinks(int row) {
+      return nrLinks_[row];
+   }
+
+   public int getOriginalFrame(int row) {
+      return originalFrame_[row];
+   }
+
+   public double getIntensity(int row) {
+      return intensity_[row];
+   }
+
+   public double getBackground(int row) {
+      return background_[row];
+   }
+
+   public double getXCenter(int row) {
+      return xCenter_[row];
+   }
+
+   public double getYCenter(int row) {
+      return yCenter_[row];
+   }
+
+   public double getZCenter(int row) {
+      return zCenter_[row];
+   }
+
+   public double getXOri(int row) {
+      return xOri_[row];
+   }
+
+   public double getYOri(int row) {
+      return yOri_[row];
+   }
+
+   public double getZOri(int row) {
+      return zOri_[row];
+   }
+
+   public double getWidth(int row) {
+      return width_[row];
+   }
+
+   public double getA(int row) {
+      return a_[row];
+   }
+
+   public double getTheta(int row) {
+      return theta_[row];
+   }
+
+   public double getSigma(int row) {
+      return sigma_[row];
+   }
+
+   /**
+    * Returns the extra value with the given key, or NaN when the spot does not
+    * have it.
+    */
+   public double getValue(String key, int row) {
+      double[] column = extraColumns_.get(key);
+      return column == null ? Double.NaN : column[row];
+   }
+
+   /**
+    * Keys of the extra values that at least one spot has.
+    */
+   public String[] getKeys() {
+      return extraColumns_.keySet().toArray(new String[extraColumns_.size()]);
+   }
+
+   /**
+    * Creates a SpotData object with the data of the given row.
+    */
+   public SpotData getSpot(int row) {
+      SpotData spot = new SpotData(null, channel_[row], slice_[row], frame_[row],
+            position_[row], nr_[row], x_[row], y_[row]);
+      spot.setData(intensity_[row], background_[row], xCenter_[row], yCenter_[row],
+            zCenter_[row], width_[row], a_[row], theta_[row], sigma_[row]);
+      spot.setZCenter(zCenter_[row]);
+      spot.setOriginalPosition(xOri_[row], yOri_[row], zOri_[row]);
+      spot.nrLinks_ = nrLinks_[row];
+      spot.originalFrame_ = originalFrame_[row];
+      for (Map.Entry<String, double[]> entry : extraColumns_.entrySet()) {
+         double value = entry.getValue()[row];
+         if (!Double.isNaN(value)) {
+            spot.addKeyValue(entry.getKey(), value);
+         }
+      }
+      return spot;
+   }
+
+   /**
+    * View of all rows.
+    */
+   public View all() {
+      return new View(null, 0, size_);
+   }
+
+   /**
+    * View of the rows that pass the filter.
+    */
+   public View filter(IntPredicate rowFilter) {
+      return all().filter(rowFilter);
+   }
+
+   /**
+    * View of the spots in the given frame (in the order they were added).
+    */
+   public View getFrameView(int frame) {
+      Index index = frameIndex_;
+      if (index == null) {
+         index = new Index(frame_, size_);
+         frameIndex_ = index;
+      }
+      return index.view(frame);
+   }
+
+   /**
+    * View of the spots in the given slice (in the order they were added).
+    */
+   public View getSliceView(int slice) {
+      Index index = sliceIndex_;
+      if (index == null) {
+         index = new Index(slice_, size_);
+         sliceIndex_ = index;
+      }
+      return index.view(slice);
+   }
+
+   /**
+    * View of the spots in the given image.
+    */
+   public View get(final int frame, final int slice, final int channel, final int position) {
+      return getFrameView(frame).filter(row -> slice_[row] == slice
+            && channel_[row] == channel && position_[row] == position);
+   }
+
+   /**
+    * Rows grouped by the value of an int column (counting sort), so that the
+    * rows with a given value can be found without scanning the table.
+    */
+   private final class Index {
+      private final int min_;
+      private final int[] offsets_;
+      private final int[] rows_;
+
+      private Index(int[] column, int size) {
+         int min = Integer.MAX_VALUE;
+         int max = Integer.MIN_VALUE;
+         for (int row = 0; row < size; row++) {
+            min = Math.min(min, column[row]);
+            max = Math.max(max, column[row]);
+         }
+         if (size == 0) {
+            min = 0;
+            max = -1;
+         }
+         min_ = min;
+         offsets_ = new int[max - min + 2];
+         for (int row = 0; row < size; row++) {
+            offsets_[column[row] - min + 1]++;
+         }
+         for (int i = 1; i < offsets_.length; i++) {
+            offsets_[i] += offsets_[i - 1];
+         }
+         rows_ = new int[size];
+         int[] next = Arrays.copyOf(offsets_, offsets_.length - 1);
+         for (int row = 0; row < size; row++) {
+            rows_[next[column[row] - min]++] = row;
+         }
+      }
+
+      private View view(int value) {
+         int i = value - min_;
+         if (i < 0 || i >= offsets_.length - 1) {
+            return new View(rows_, 0, 0);
+         }
+         return new View(rows_, offsets_[i], offsets_[i + 1] - offsets_[i]);
+      }
+   }
+
+   /**
+    * A selection of rows of the table. The spot data are not copied.
+    */
+   public final class View {
+      // Selected rows are rows_[start_] to rows_[start_ + size_ - 1], or
+      // start_ to start_ + size_ - 1 when rows_ is null
+      private final int[] rows_;
+      private final int start_;
+      private final int size_;
+
+      private View(int[] rows, int start, int size) {
+         rows_ = rows;
+         start_ = start;
+         size_ = size;
+      }
+
+      public SpotTable getTable() {
+         return SpotTable.this;
+      }
+
+      public int size() {
+         return size_;
+      }
+
+      /**
+       * Row number in the table of the i-th spot of the view.
+       */
+      public int row(int i) {
+         if (i < 0 || i >= size_) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size_);
+         }
+         return rows_ == null ? start_ + i : rows_[start_ + i];
+      }
+
+      /**
+       * View of the rows of this view that pass the filter.
+       */
+      public View filter(IntPredicate rowFilter) {
+         int[] rows = new int[size_];
+         int n = 0;
+         for (int i = 0; i < size_; i++) {
+            int row = rows_ == null ? start_ + i : rows_[start_ + i];
+            if (rowFilter.test(row)) {
+               rows[n++] = row;
+            }
+         }
+         return new View(n < size_ / 2 ? Arrays.copyOf(rows, n) : rows, 0, n);
+      }
+
+      /**
+       * Presents the view as a read-only List. Every call to get() creates a
+       * new SpotData object.
+       */
+      public List<SpotData> asSpotList() {
+         return new SpotList(this);
+      }
+   }
+
+   private static final class SpotList extends AbstractList<SpotData>
+         implements RandomAccess {
+      private final View view_;
+
+      private SpotList(View view) {
+         view_ = view;
+      }
+
+      @Override
+      public SpotData get(int index) {
+         return view_.getTable().getSpot(view_.row(index));
+      }
+
+      @Override
+      public int size() {
+         return view_.size();
+      }
+   }
+}
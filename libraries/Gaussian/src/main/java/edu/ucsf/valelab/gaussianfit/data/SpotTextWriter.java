@@ -0,0 +1,118 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes spots in the tab-separated text format read by
+ * LoadAndSave.loadText: a line with information about the data set, a line
+ * with column names, and one line per spot. Spots can be written as they
+ * become available, and flushed to disk so that the file can be read while
+ * it is still growing.
+ *
+ * @author nico
+ */
+public class SpotTextWriter implements Closeable {
+
+   private static final String TAB = "\t";
+   private final Writer writer_;
+   private final boolean hasZ_;
+   private int counter_ = 1;
+
+   /**
+    * Writes the header lines.
+    *
+    * @param writer - destination, will be buffered
+    * @param header - describes the data set. Only the descriptive fields are
+    *               used, spots are written with write()
+    * @throws IOException when writing fails
+    */
+   public SpotTextWriter(Writer writer, RowData header) throws IOException {
+      writer_ = new BufferedWriter(writer);
+      hasZ_ = header.hasZ_;
+      writer_.write(""
+            + "application_id: " + LoadAndSave.MMAPPID + TAB
+            + "name: " + header.getName() + TAB
+            + "filepath: " + header.title_ + TAB
+            + "nr_pixels_x: " + header.width_ + TAB
+            + "nr_pixels_y: " + header.height_ + TAB
+            + "pixel_size: " + header.pixelSizeNm_ + TAB
+            + "nr_spots: " + header.maxNrSpots_ + TAB
+            + "box_size: " + header.halfSize_ * 2 + TAB
+            + "nr_channels: " + header.nrChannels_ + TAB
+            + "nr_frames: " + header.nrFrames_ + TAB
+            + "nr_slices: " + header.nrSlices_ + TAB
+            + "nr_pos: " + header.nrPositions_ + TAB
+            + "location_units: " + TaggedSpotsProtos.LocationUnits.NM + TAB
+            + "intensity_units: " + TaggedSpotsProtos.IntensityUnits.PHOTONS + TAB
+            + "fit_mode: " + header.shape_ + TAB
+            + "is_track: " + header.isTrack_ + TAB
+            + "has_Z: " + header.hasZ_ + "\n");
+      writer_.write("molecule\tframe\tslice\tchannel\tpos\tx_position\t"
+            + "y_position\tx\ty\tintensity\t"
+            + "background\twidth\ta\ttheta\t"
+            + "sigma\tintensity_aperture\tbackground_aperture\t"
+            + "intensity_ratio\tm_sigma\tintegral_aperture_sigma");
+      if (hasZ_) {
+         writer_.write("\tz");
+      }
+      writer_.write("\n");
+   }
+
+   /**
+    * Writes one spot. Spots are numbered in the order they are written.
+    */
+   public void write(SpotData gd) throws IOException {
+      writer_.write("" + counter_ + TAB
+            + gd.getFrame() + TAB
+            + gd.getSlice() + TAB
+            + gd.getChannel() + TAB
+            + gd.getPosition() + TAB
+            + gd.getX() + TAB
+            + gd.getY() + TAB
+            + String.format("%.2f", gd.getXCenter()) + TAB
+            + String.format("%.2f", gd.getYCenter()) + TAB
+            + String.format("%.2f", gd.getIntensity()) + TAB
+            + String.format("%.2f", gd.getBackground()) + TAB
+            + String.format("%.2f", gd.getWidth()) + TAB
+            + String.format("%.3f", gd.getA()) + TAB
+            + String.format("%.3f", gd.getTheta()) + TAB
+            + String.format("%.3f", gd.getSigma()) + TAB);
+      writer_.write(keyValue(gd, SpotData.Keys.APERTUREINTENSITY, "%.2f") + TAB
+            + keyValue(gd, SpotData.Keys.APERTUREBACKGROUND, "%.2f") + TAB
+            + keyValue(gd, SpotData.Keys.INTENSITYRATIO, "%.3f") + TAB
+            + keyValue(gd, SpotData.Keys.MSIGMA, "%.3f") + TAB
+            + keyValue(gd, SpotData.Keys.INTEGRALAPERTURESIGMA, "%.3f"));
+      if (hasZ_) {
+         writer_.write(TAB + String.format("%.2f", gd.getZCenter()));
+      }
+      writer_.write("\n");
+      counter_++;
+   }
+
+   private static String keyValue(SpotData gd, String key, String format) {
+      if (gd.hasKey(key)) {
+         return String.format(format, gd.getValue(key).floatValue());
+      }
+      return "-1.000";
+   }
+
+   /**
+    * Number of spots written so far.
+    */
+   public int getNrSpots() {
+      return counter_ - 1;
+   }
+
+   public void flush() throws IOException {
+      writer_.flush();
+   }
+
+   @Override
+   public void close() throws IOException {
+      writer_.close();
+   }
+}
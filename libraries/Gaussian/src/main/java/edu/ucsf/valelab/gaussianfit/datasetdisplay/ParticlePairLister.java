@@ -34,10 +34,12 @@ import edu.ucsf.valelab.gaussianfit.data.GsSpotPair;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import edu.ucsf.valelab.gaussianfit.fitting.FittingException;
 import edu.ucsf.valelab.gaussianfit.fitting.Gaussian1DFitter;
+import edu.ucsf.valelab.gaussianfit.fitting.P2DBootstrap;
 import edu.ucsf.valelab.gaussianfit.fitting.P2DEcdfFitter;
 import edu.ucsf.valelab.gaussianfit.fitting.P2DFitter;
 import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPoint2D;
 import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPointByData;
+import edu.ucsf.valelab.gaussianfit.spotoperations.SpotGrid;
 import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
 import edu.ucsf.valelab.gaussianfit.utils.ListUtils;
 import edu.ucsf.valelab.gaussianfit.utils.NumberUtils;
@@ -58,7 +60,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import org.apache.commons.math3.exception.NumberIsTooLargeException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import org.apache.commons.math3.exception.TooManyEvaluationsException;
 import org.micromanager.internal.MMStudio;
 import org.micromanager.internal.utils.ReportingUtils;
@@ -250,71 +253,56 @@ public class ParticlePairLister {
                   spotListsByPosition.get(spot.getPosition()).add(spot);
                }
                Collections.sort(positions);
-               final int maxPos = positions.get(positions.size() - 1);
 
                // First go through all frames to find all pairs, organize by position
+               final int nrFrames = dc.getSpotData(row).nrFrames_;
+               final int nrPositions = positions.size();
+               final AtomicInteger framesDone = new AtomicInteger(0);
                for (int pos : positions) {
-                  spotPairsByFrame.put(pos, new ArrayList<ArrayList<GsSpotPair>>());
-
-                  for (int frame = 1; frame <= dc.getSpotData(row).nrFrames_; frame++) {
-
-                     ij.IJ.showProgress(pos * dc.getSpotData(row).nrFrames_ + frame,
-                           maxPos * dc.getSpotData(row).nrFrames_);
-
-                     spotPairsByFrame.get(pos).add(new ArrayList<GsSpotPair>());
-
-                     // Get points from both channels as ArrayLists   
-                     ArrayList<SpotData> gsCh1 = new ArrayList<SpotData>();
-                     ArrayList<SpotData> gsCh2 = new ArrayList<SpotData>();
-                     ArrayList<Point2D.Double> xyPointsCh2 = new ArrayList<Point2D.Double>();
-                     for (SpotData gs : spotListsByPosition.get(pos)) {
-                        if (gs.getFrame() == frame) {
-                           if (gs.getChannel() == 1) {
-                              gsCh1.add(gs);
-                           } else if (gs.getChannel() == 2) {
-                              gsCh2.add(gs);
-                              Point2D.Double point = new Point2D.Double(
-                                    gs.getXCenter(), gs.getYCenter());
-                              xyPointsCh2.add(point);
-                           }
+                  final ArrayList<ArrayList<GsSpotPair>> pairsByFrame
+                        = new ArrayList<ArrayList<GsSpotPair>>(nrFrames);
+                  // Sort the spots of both channels by frame in a single pass
+                  final List<List<SpotData>> ch1ByFrame = new ArrayList<List<SpotData>>(nrFrames);
+                  final List<List<SpotData>> ch2ByFrame = new ArrayList<List<SpotData>>(nrFrames);
+                  for (int frame = 1; frame <= nrFrames; frame++) {
+                     pairsByFrame.add(new ArrayList<GsSpotPair>());
+                     ch1ByFrame.add(new ArrayList<SpotData>());
+                     ch2ByFrame.add(new ArrayList<SpotData>());
+                  }
+                  spotPairsByFrame.put(pos, pairsByFrame);
+                  for (SpotData gs : spotListsByPosition.get(pos)) {
+                     if (gs.getFrame() >= 1 && gs.getFrame() <= nrFrames) {
+                        if (gs.getChannel() == 1) {
+                           ch1ByFrame.get(gs.getFrame() - 1).add(gs);
+                        } else if (gs.getChannel() == 2) {
+                           ch2ByFrame.get(gs.getFrame() - 1).add(gs);
                         }
                      }
+                  }
 
-                     if (xyPointsCh2.isEmpty()) {
-                        //MMStudio.getInstance().alerts().postAlert("No points found error", null,
-                        //        "Pairs function in Localization plugin: no points found in second
-                        //        channel in frame "
-                        //        + frame);
-                        continue;
-                     }
-
-                     // Find matching points in the two ArrayLists
-                     Iterator it2 = gsCh1.iterator();
-                     NearestPoint2D np = new NearestPoint2D(xyPointsCh2, maxDistanceNm_);
-                     while (it2.hasNext()) {
-                        SpotData ch1Spot = (SpotData) it2.next();
-                        Point2D.Double pCh1 = new Point2D.Double(
-                              ch1Spot.getXCenter(), ch1Spot.getYCenter());
-                        Point2D.Double pCh2 = np.findKDWSE(pCh1);
-                        if (pCh2 != null) {
-                           // find this point in the ch2 spot list
-                           SpotData ch2Spot = null;
-                           for (int i = 0; i < gsCh2.size() && ch2Spot == null; i++) {
-                              if (pCh2.x == gsCh2.get(i).getXCenter()
-                                    && pCh2.y == gsCh2.get(i).getYCenter()) {
-                                 ch2Spot = gsCh2.get(i);
-                              }
-                           }
-                           if (ch2Spot != null) {
-                              GsSpotPair pair = new GsSpotPair(ch1Spot, ch2Spot, pCh1, pCh2);
-                              spotPairsByFrame.get(pos).get(frame - 1).add(pair);
-                           } else {
-                              // this should never happen!
-                              System.out.println("Failed to find spot");
+                  // Frames are independent, join the two channels of each frame in parallel
+                  IntStream.range(0, nrFrames).parallel().forEach((int frameIndex) -> {
+                     SpotData[] gsCh1 = ch1ByFrame.get(frameIndex).toArray(new SpotData[0]);
+                     SpotData[] gsCh2 = ch2ByFrame.get(frameIndex).toArray(new SpotData[0]);
+                     if (gsCh2.length > 0) {
+                        SpotGrid grid = new SpotGrid(maxDistanceNm_);
+                        grid.index(gsCh2, gsCh2.length);
+                        int[] partners = grid.join(gsCh1, gsCh1.length);
+                        List<GsSpotPair> pairs = pairsByFrame.get(frameIndex);
+                        for (int i = 0; i < gsCh1.length; i++) {
+                           if (partners[i] >= 0) {
+                              SpotData ch1Spot = gsCh1[i];
+                              SpotData ch2Spot = gsCh2[partners[i]];
+                              Point2D.Double pCh1 = new Point2D.Double(
+                                    ch1Spot.getXCenter(), ch1Spot.getYCenter());
+                              Point2D.Double pCh2 = new Point2D.Double(
+                                    ch2Spot.getXCenter(), ch2Spot.getYCenter());
+                              pairs.add(new GsSpotPair(ch1Spot, ch2Spot, pCh1, pCh2));
                            }
                         }
                      }
-                  }
+                     ij.IJ.showProgress(framesDone.incrementAndGet(), nrPositions * nrFrames);
+                  });
                } // end of for (int pos : positions)
 
                if (showPairs_) {
@@ -815,59 +803,32 @@ public class ParticlePairLister {
 
                   double muEstimate = 0.0;
                   double stdDevEstimate = 0.0;
+                  double muLowerBound = 0.0;
+                  double muUpperBound = 0.0;
                   boolean bootstrapSucceeded = false;
                   if (bootstrap_) {
                      ij.IJ.showStatus("Bootstrap analysis running");
-                     int counter = 0;
-                     int errorCounter = 0;
                      final int nrRuns = 1000;
                      final int maxNrErrors = 10;
-                     List<Double> mus = new ArrayList<Double>();
-                     double[] bootsTrapResult;
-                     while (counter < nrRuns && errorCounter < maxNrErrors) {
-                        List bootstrapList = ListUtils.listToListForBootstrap(vectorDistances);
-                        try {
-                           bootsTrapResult = p2dLeastSquareFit(bootstrapList, maxDistanceNm_);
-                           mus.add(bootsTrapResult[0]);
-                           counter++;
-                           if (counter % 25 == 0) {
-                              ij.IJ.showProgress(counter, nrRuns);
-                           }
-                        } catch (FittingException fe) {
-                           String msg = "ID: " + dc.getSpotData(row).id_
-                                 + ", Failed to fit p2d function";
-                           MMStudio.getInstance().alerts().postAlert("P2D fit error",
-                                 null, msg);
-                           if (row == rows_[rows_.length - 1]) {
-                              ReportingUtils.showError(msg);
-                           }
-                           errorCounter++;
-                        } catch (TooManyEvaluationsException tmee) {
-                           String msg = "ID: " + dc.getSpotData(row).id_
-                                 + ", Too many evaluations while fitting";
-                           MMStudio.getInstance().alerts().postAlert("P2D fit error",
-                                 null, msg);
-                           if (row == rows_[rows_.length - 1]) {
-                              ReportingUtils.showError(msg);
-                           }
-                           errorCounter++;
-                        } catch (NumberIsTooLargeException nitle) {
-                           String msg = "ID: " + dc.getSpotData(row).id_
-                                 + ", Internal error during bootystrapping";
-                           MMStudio.getInstance().alerts().postAlert("P2D fit error",
-                                 null, msg);
-                           if (row == rows_[rows_.length - 1]) {
-                              ReportingUtils.showError(msg);
-                           }
-                           errorCounter++;
-                        }
-                     }
-                     if (errorCounter >= 100) {
+                     final double[] d = ListUtils.toArray(vectorDistances);
+                     P2DBootstrap.Result bootstrap = P2DBootstrap.run(d.length,
+                           (int[] sample) -> p2dLeastSquareFit(
+                                 P2DBootstrap.resample(d, sample), maxDistanceNm_),
+                           nrRuns, maxNrErrors, 0.95, System.nanoTime());
+                     if (bootstrap.getNrFailures() >= maxNrErrors
+                           || bootstrap.getNrFits() < 2) {
+                        String msg = "ID: " + dc.getSpotData(row).id_
+                              + ", Bootstrap analysis failed due to too many errors";
                         MMStudio.getInstance().alerts().postAlert("Boostrapping error",
-                              null, "Bootstrap analysis failed due to too many errors");
+                              null, msg);
+                        if (row == rows_[rows_.length - 1]) {
+                           ReportingUtils.showError(msg);
+                        }
                      } else {
-                        muEstimate = ListUtils.listAvg(mus);
-                        stdDevEstimate = ListUtils.listStdDev(mus, muEstimate);
+                        muEstimate = bootstrap.getMean(0);
+                        stdDevEstimate = bootstrap.getStdDev(0);
+                        muLowerBound = bootstrap.getLowerBound(0);
+                        muUpperBound = bootstrap.getUpperBound(0);
                         bootstrapSucceeded = true;
                      }
                   }
@@ -908,6 +869,8 @@ public class ParticlePairLister {
                   if (bootstrapSucceeded) {
                      rt3.addValue("bootstrap Mu", muEstimate);
                      rt3.addValue("bootstrap StdDev", stdDevEstimate);
+                     rt3.addValue("bootstrap Mu 95% low", muLowerBound);
+                     rt3.addValue("bootstrap Mu 95% high", muUpperBound);
                   }
 
                   rt3.show("P2D Summary");
@@ -948,11 +911,21 @@ public class ParticlePairLister {
 
    public static double[] p2dLeastSquareFit(List distances, double maxDistance)
          throws FittingException, TooManyEvaluationsException {
-      double[] d = ListUtils.toArray(distances);
+      return p2dLeastSquareFit(ListUtils.toArray(distances), maxDistance);
+   }
 
-      double vectMean = ListUtils.listAvg(distances);
-      double stdDev = ListUtils.listStdDev(distances,
-            vectMean);
+   /**
+    * Fits the P2D function to the cumulative distribution of the distances
+    *
+    * @param d           distances, will be sorted
+    * @param maxDistance maximum distance
+    * @return fitresult, double[0] is mu, double[1] is sigma
+    * @throws FittingException
+    */
+   public static double[] p2dLeastSquareFit(double[] d, double maxDistance)
+         throws FittingException, TooManyEvaluationsException {
+      double vectMean = ListUtils.avg(d);
+      double stdDev = ListUtils.stdDev(d, vectMean);
 
       P2DEcdfFitter p2decdf = new P2DEcdfFitter(d, vectMean, stdDev,
             maxDistance);
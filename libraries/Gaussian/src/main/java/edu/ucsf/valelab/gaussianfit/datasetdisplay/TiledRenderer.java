@@ -0,0 +1,425 @@
+/*
+ * Renders localization microscopy data tile by tile, in parallel
+
+
+Copyright (c) 2010-2017, Regents of the University of California
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those
+of the authors and should not be interpreted as representing official policies,
+either expressed or implied, of the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.datasetdisplay;
+
+import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.data.SpotTable;
+import edu.ucsf.valelab.gaussianfit.datasettransformations.SpotDataFilter;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Renders the spots of a data set as a 2D histogram (method 0), as Gaussians
+ * (method 1), or as Gaussians normalized to unit intensity (method 2), in the
+ * same way as ImageRenderer.renderData.
+ *
+ * <p>Spots are sorted once into cells of CELL_SIZE by CELL_SIZE camera pixels.
+ * The rendered image is divided into tiles of TILE_SIZE by TILE_SIZE pixels,
+ * each rendered into its own buffer on its own thread, using only the spots
+ * in the cells that overlap the tile. Gaussians are evaluated as the product
+ * of a Gaussian in x and one in y, so that a spot takes a few exp() calls per
+ * row and column of its box rather than one per pixel.
+ *
+ * <p>When only a region of the image is rendered (i.e. after zooming in or
+ * panning), its tiles are kept for as long as the method, magnification, and
+ * filter settings stay the same, so that rendering a nearby region only
+ * renders tiles that were not rendered before. Rendering the whole image
+ * writes tiles straight into the output and drops the kept tiles, so that a
+ * full render never holds more than the output image and a tile per thread.
+ *
+ * @author nico
+ */
+public final class TiledRenderer {
+
+   // size of the cells that spots are sorted into, in camera pixels
+   private static final int CELL_SIZE = 16;
+   // size of the tiles that are rendered in parallel, in rendered pixels
+   private static final int TILE_SIZE = 256;
+   // rendered tiles that are kept for region renders, about 16 MB
+   private static final int MAX_CACHED_TILES = 64;
+
+   // no reference to the RowData, so that ImageRenderer can key its cache on it
+   private final int width_;
+   private final int height_;
+   private final double pixelSizeNm_;
+   private final SpotTable table_;
+   private final int nrCellsX_;
+   private final int nrCellsY_;
+   // rows of the table, sorted by cell, and the start of each cell in rows_
+   private final int[] rows_;
+   private final int[] cellStart_;
+   private final double maxSigma_;
+
+   // tiles rendered with the current settings
+   private final Map<Long, Tile> tiles_ = new LinkedHashMap<Long, Tile>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+         return size() > MAX_CACHED_TILES;
+      }
+   };
+   private int method_ = -1;
+   private double magnification_ = 0.0;
+   private SpotDataFilter filter_;
+   private IntPredicate rowFilter_;
+
+   private static final class Tile {
+
+      final float[] pixels_ = new float[TILE_SIZE * TILE_SIZE];
+      // spots centered in this tile
+      long spotsUsed_;
+   }
+
+   /**
+    * Sorts the spots of the data set into cells.
+    *
+    * @param rowData - data set to be rendered
+    */
+   public TiledRenderer(RowData rowData) {
+      width_ = rowData.width_;
+      height_ = rowData.height_;
+      pixelSizeNm_ = rowData.pixelSizeNm_;
+      table_ = rowData.getSpotTable();
+      nrCellsX_ = Math.max(1, (rowData.width_ + CELL_SIZE - 1) / CELL_SIZE);
+      nrCellsY_ = Math.max(1, (rowData.height_ + CELL_SIZE - 1) / CELL_SIZE);
+      final int nrCells = nrCellsX_ * nrCellsY_;
+      final int size = table_.size();
+      final double cellSizeNm = CELL_SIZE * rowData.pixelSizeNm_;
+
+      // counting sort, in parallel chunks
+      final int nrChunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+            size / (64 * 1024)));
+      final int[] cells = new int[size];
+      final int[][] counts = new int[nrChunks][nrCells];
+      final double[] chunkMaxSigma = new double[nrChunks];
+      IntStream.range(0, nrChunks).parallel().forEach(c -> {
+         int start = (int) ((long) size * c / nrChunks);
+         int end = (int) ((long) size * (c + 1) / nrChunks);
+         double maxSigma = 0.0;
+         for (int row = start; row < end; row++) {
+            int cx = clamp((int) (table_.getXCenter(row) / cellSizeNm), nrCellsX_);
+            int cy = clamp((int) (table_.getYCenter(row) / cellSizeNm), nrCellsY_);
+            int cell = cy * nrCellsX_ + cx;
+            cells[row] = cell;
+            counts[c][cell]++;
+            maxSigma = Math.max(maxSigma, table_.getSigma(row));
+         }
+         chunkMaxSigma[c] = maxSigma;
+      });
+      cellStart_ = new int[nrCells + 1];
+      int offset = 0;
+      for (int cell = 0; cell < nrCells; cell++) {
+         cellStart_[cell] = offset;
+         for (int c = 0; c < nrChunks; c++) {
+            int count = counts[c][cell];
+            counts[c][cell] = offset;
+            offset += count;
+         }
+      }
+      cellStart_[nrCells] = offset;
+      rows_ = new int[size];
+      IntStream.range(0, nrChunks).parallel().forEach(c -> {
+         int start = (int) ((long) size * c / nrChunks);
+         int end = (int) ((long) size * (c + 1) / nrChunks);
+         int[] next = counts[c];
+         for (int row = start; row < end; row++) {
+            rows_[next[cells[row]]++] = row;
+         }
+      });
+      double maxSigma = 0.0;
+      for (double sigma : chunkMaxSigma) {
+         maxSigma = Math.max(maxSigma, sigma);
+      }
+      maxSigma_ = maxSigma;
+   }
+
+   private static int clamp(int value, int n) {
+      return value < 0 ? 0 : (value >= n ? n - 1 : value);
+   }
+
+   /**
+    * Renders the spots in the given region.
+    *
+    * @param method        - 0 = 2D scatter, 1 = Gaussians, 2 = Normalized Gaussian
+    * @param magnification - factor x original size
+    * @param rect          - roi in the magnified image that should be rendered, or null
+    *                      for the whole image
+    * @param sf            - filter for the spots. Tiles rendered before are re-used as long
+    *                      as the filter settings are the same
+    * @return ShortProcessor (method 0) or FloatProcessor (methods 1 and 2)
+    */
+   public synchronized ImageProcessor render(final int method, final double magnification,
+                                             Rectangle rect, final SpotDataFilter sf) {
+      if (method != method_ || magnification != magnification_
+            || !Objects.equals(sf, filter_)) {
+         tiles_.clear();
+         method_ = method;
+         magnification_ = magnification;
+         // a copy, the caller may change its filter later on
+         filter_ = sf == null ? null : new SpotDataFilter(sf);
+         rowFilter_ = sf == null ? row -> true : filter_.rowFilter(table_);
+      }
+      final int fullWidth = (int) (width_ * magnification);
+      final int fullHeight = (int) (height_ * magnification);
+      if (rect == null) {
+         rect = new Rectangle(0, 0, fullWidth, fullHeight);
+      }
+      final boolean fullRender = rect.contains(0, 0, fullWidth, fullHeight);
+      if (fullRender) {
+         tiles_.clear();
+      }
+      final Rectangle region = rect;
+      final int width = rect.width;
+      final int height = rect.height;
+      final int firstTileX = Math.max(0, rect.x) / TILE_SIZE;
+      final int firstTileY = Math.max(0, rect.y) / TILE_SIZE;
+      final int lastTileX = (Math.min(fullWidth, rect.x + width) - 1) / TILE_SIZE;
+      final int lastTileY = (Math.min(fullHeight, rect.y + height) - 1) / TILE_SIZE;
+      final int nrTilesX = Math.max(0, lastTileX - firstTileX + 1);
+      final int nrTilesY = Math.max(0, lastTileY - firstTileY + 1);
+      final int nrTiles = nrTilesX * nrTilesY;
+      final int tilesPerRow = (fullWidth + TILE_SIZE - 1) / TILE_SIZE;
+
+      final Tile[] tiles = new Tile[nrTiles];
+      for (int i = 0; i < nrTiles && !fullRender; i++) {
+         long key = (long) (firstTileY + i / nrTilesX) * tilesPerRow + firstTileX + i % nrTilesX;
+         tiles[i] = tiles_.get(key);
+      }
+      final ImageProcessor ip;
+      final short[] shortPixels = method == 0 ? new short[width * height] : null;
+      final float[] floatPixels = method == 0 ? null : new float[width * height];
+      final long[] tileSpotsUsed = new long[nrTiles];
+      final AtomicInteger tilesDone = new AtomicInteger(0);
+      ij.IJ.showStatus("Rendering Image...");
+      IntStream.range(0, nrTiles).parallel().forEach(i -> {
+         int tileX = (firstTileX + i % nrTilesX) * TILE_SIZE;
+         int tileY = (firstTileY + i / nrTilesX) * TILE_SIZE;
+         Tile tile = tiles[i];
+         if (tile == null) {
+            tile = new Tile();
+            tile.spotsUsed_ = method == 0
+                  ? renderScatter(tile.pixels_, tileX, tileY, fullWidth, fullHeight)
+                  : renderGaussians(tile.pixels_, tileX, tileY, fullWidth, fullHeight,
+                        method == 2);
+         }
+         // tiles cover disjoint parts of the output
+         copyTile(tile.pixels_, tileX, tileY, region, shortPixels, floatPixels);
+         tileSpotsUsed[i] = tile.spotsUsed_;
+         if (!fullRender) {
+            tiles[i] = tile;
+         }
+         ij.IJ.showProgress(tilesDone.incrementAndGet(), nrTiles);
+      });
+      long spotsUsed = 0;
+      for (int i = 0; i < nrTiles; i++) {
+         if (!fullRender) {
+            long key = (long) (firstTileY + i / nrTilesX) * tilesPerRow
+                  + firstTileX + i % nrTilesX;
+            tiles_.put(key, tiles[i]);
+         }
+         spotsUsed += tileSpotsUsed[i];
+      }
+
+      if (method == 0) {
+         ip = new ShortProcessor(width, height, shortPixels, null);
+      } else {
+         ip = new FloatProcessor(width, height, floatPixels);
+      }
+      ij.IJ.showProgress(1);
+      ij.IJ.showStatus("Rendered image using " + spotsUsed + " spots.");
+      return ip;
+   }
+
+   /**
+    * Copies the part of a tile that lies within the rendered region into the
+    * output, which is either shortPixels (method 0) or floatPixels.
+    */
+   private static void copyTile(float[] pixels, int tileX, int tileY, Rectangle rect,
+                                short[] shortPixels, float[] floatPixels) {
+      int x0 = Math.max(tileX, rect.x);
+      int x1 = Math.min(tileX + TILE_SIZE, rect.x + rect.width);
+      int y0 = Math.max(tileY, rect.y);
+      int y1 = Math.min(tileY + TILE_SIZE, rect.y + rect.height);
+      for (int y = y0; y < y1; y++) {
+         int in = (y - tileY) * TILE_SIZE + x0 - tileX;
+         int out = (y - rect.y) * rect.width + x0 - rect.x;
+         if (shortPixels != null) {
+            for (int x = x0; x < x1; x++) {
+               shortPixels[out++] = (short) Math.min(65535.0f, pixels[in++]);
+            }
+         } else {
+            System.arraycopy(pixels, in, floatPixels, out, x1 - x0);
+         }
+      }
+   }
+
+   /**
+    * Counts the spots in each pixel of the tile.
+    *
+    * @return number of spots in the tile
+    */
+   private long renderScatter(float[] tile, int tileX, int tileY, int fullWidth,
+                              int fullHeight) {
+      final double factor = magnification_ / pixelSizeNm_;
+      long used = 0;
+      for (int cellY = cellOf(tileY), lastY = cellOf(tileY + TILE_SIZE - 1);
+           cellY <= lastY && cellY < nrCellsY_; cellY++) {
+         for (int cellX = cellOf(tileX), lastX = cellOf(tileX + TILE_SIZE - 1);
+              cellX <= lastX && cellX < nrCellsX_; cellX++) {
+            int cell = cellY * nrCellsX_ + cellX;
+            for (int i = cellStart_[cell]; i < cellStart_[cell + 1]; i++) {
+               int row = rows_[i];
+               int x = (int) (factor * table_.getXCenter(row));
+               int y = (int) (factor * table_.getYCenter(row));
+               if (x > 0 && x < fullWidth && y > 0 && y < fullHeight
+                     && x >= tileX && x < tileX + TILE_SIZE
+                     && y >= tileY && y < tileY + TILE_SIZE
+                     && rowFilter_.test(row)) {
+                  tile[(y - tileY) * TILE_SIZE + x - tileX] += 1.0f;
+                  used++;
+               }
+            }
+         }
+      }
+      return used;
+   }
+
+   /**
+    * Adds the Gaussians of all spots that overlap the tile. Each spot covers a
+    * box of 2 * halfWidth pixels, with halfWidth twice its precision, and is
+    * only drawn when that box lies within the image.
+    *
+    * @return number of spots centered in the tile
+    */
+   private long renderGaussians(float[] tile, int tileX, int tileY, int fullWidth,
+                                int fullHeight, boolean normalize) {
+      final double renderedPixelInNm = pixelSizeNm_ / magnification_;
+      final double factor = magnification_ / pixelSizeNm_;
+      // spots further away than this can not reach the tile
+      final int margin = Math.max(2, (int) (2 * maxSigma_ / renderedPixelInNm)) + 1;
+      double[] gx = new double[0];
+      double[] gy = new double[0];
+      long used = 0;
+      for (int cellY = cellOf(tileY - margin),
+           lastY = cellOf(tileY + TILE_SIZE + margin);
+           cellY <= lastY && cellY < nrCellsY_; cellY++) {
+         for (int cellX = cellOf(tileX - margin),
+              lastX = cellOf(tileX + TILE_SIZE + margin);
+              cellX <= lastX && cellX < nrCellsX_; cellX++) {
+            int cell = cellY * nrCellsX_ + cellX;
+            for (int i = cellStart_[cell]; i < cellStart_[cell + 1]; i++) {
+               int row = rows_[i];
+               double sigma = table_.getSigma(row);
+               // cover 2 * precision on either side
+               int halfWidth = (int) (2 * sigma / renderedPixelInNm);
+               if (halfWidth == 0) {
+                  halfWidth = 2;
+               }
+               int xc = (int) (factor * table_.getXCenter(row));
+               int yc = (int) (factor * table_.getYCenter(row));
+               int xStart = xc - halfWidth;
+               int xEnd = xc + halfWidth;
+               int yStart = yc - halfWidth;
+               int yEnd = yc + halfWidth;
+               if (xc <= halfWidth || xc >= fullWidth - halfWidth
+                     || yc <= halfWidth || yc >= fullHeight - halfWidth
+                     || xEnd <= tileX || xStart >= tileX + TILE_SIZE
+                     || yEnd <= tileY || yStart >= tileY + TILE_SIZE
+                     || !rowFilter_.test(row)) {
+                  continue;
+               }
+               if (xc >= tileX && xc < tileX + TILE_SIZE
+                     && yc >= tileY && yc < tileY + TILE_SIZE) {
+                  used++;
+               }
+
+               // exp(-((x - x0)^2 + (y - y0)^2) / (2 s^2)) = exp(-(x - x0)^2 / (2 s^2)) * ...
+               int boxSize = 2 * halfWidth;
+               if (gx.length < boxSize) {
+                  gx = new double[boxSize];
+                  gy = new double[boxSize];
+               }
+               double x0 = table_.getXCenter(row) / renderedPixelInNm;
+               double y0 = table_.getYCenter(row) / renderedPixelInNm;
+               double s = sigma / renderedPixelInNm;
+               double denominator = 2 * s * s;
+               double sumX = 0.0;
+               double sumY = 0.0;
+               for (int j = 0; j < boxSize; j++) {
+                  double dx = xStart + j - x0;
+                  double dy = yStart + j - y0;
+                  gx[j] = Math.exp(-dx * dx / denominator);
+                  gy[j] = Math.exp(-dy * dy / denominator);
+                  sumX += gx[j];
+                  sumY += gy[j];
+               }
+               double scale = 1.0;
+               if (normalize) {
+                  double totalInt = sumX * sumY;
+                  if (!(totalInt > 0)) {
+                     continue;
+                  }
+                  scale = 1.0 / totalInt;
+               }
+
+               int bx0 = Math.max(xStart, tileX);
+               int bx1 = Math.min(xEnd, tileX + TILE_SIZE);
+               int by0 = Math.max(yStart, tileY);
+               int by1 = Math.min(yEnd, tileY + TILE_SIZE);
+               for (int y = by0; y < by1; y++) {
+                  double fy = gy[y - yStart] * scale;
+                  int index = (y - tileY) * TILE_SIZE + bx0 - tileX;
+                  for (int x = bx0; x < bx1; x++) {
+                     tile[index++] += (float) (gx[x - xStart] * fy);
+                  }
+               }
+            }
+         }
+      }
+      return used;
+   }
+
+   /**
+    * Cell containing the given rendered pixel coordinate.
+    */
+   private int cellOf(int renderedPixel) {
+      return Math.max(0, (int) Math.floor(renderedPixel / (magnification_ * CELL_SIZE)));
+   }
+}
@@ -29,15 +29,16 @@ package edu.ucsf.valelab.gaussianfit.datasettransformations;
 
 import ags.utils.KdTree;
 import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPoint2D;
-import edu.ucsf.valelab.gaussianfit.utils.ListUtils;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.stream.IntStream;
 import org.apache.commons.math.linear.Array2DRowRealMatrix;
 import org.apache.commons.math.linear.DecompositionSolver;
 import org.apache.commons.math.linear.LUDecompositionImpl;
@@ -59,6 +60,10 @@ public class CoordinateMapper {
    private final ExponentPairs exponentPairs_;
    private final ControlPoints controlPoints_;
    private final EnhancedKDTree kdTree_;
+   private final Point2D.Double[] keys_;
+   private final double[] rNormalized_;
+   private final double[][] polyX_;
+   private final double[][] polyY_;
    private final int order_;
    private final PointMap pointMap_;
    private boolean log_;
@@ -301,9 +306,21 @@ public class CoordinateMapper {
 
    public static double evaluatePolynomial(double x, double y, double[] coeffs,
          ExponentPairs exponentPairs) {
+      return evaluatePolynomial(coeffs, powerTerms(x, y, exponentPairs));
+   }
+
+   /**
+    * Evaluates a polynomial for a point of which the power terms were already calculated, so that
+    * the terms can be shared between polynomials
+    *
+    * @param coeffs     - polynomial coefficients
+    * @param powerTerms - output of powerTerms() for the point of interest
+    * @return value of the polynomial
+    */
+   public static double evaluatePolynomial(double[] coeffs, double[] powerTerms) {
       double result = 0;
       for (int i = 0; i < coeffs.length; ++i) {
-         result += coeffs[i] * powerTerms(x, y, exponentPairs)[i];
+         result += coeffs[i] * powerTerms[i];
       }
       return result;
    }
@@ -318,15 +335,37 @@ public class CoordinateMapper {
     * @param pointMap
     * @return
     */
-   public static ControlPoints createControlPoints(EnhancedKDTree kdTree, int order,
-         PointMap pointMap) {
+   public static ControlPoints createControlPoints(final EnhancedKDTree kdTree, final int order,
+         final PointMap pointMap) {
+      final Point2D.Double[] srcPoints = pointMap.keySet().toArray(new Point2D.Double[0]);
+      final ControlPoint[] controlPoints = new ControlPoint[srcPoints.length];
+      final int nrChunks = nrChunks(srcPoints.length);
+      IntStream.range(0, nrChunks).parallel().forEach((int chunk) -> {
+         // searching the kd tree changes its state, so each thread needs its own copy
+         EnhancedKDTree tree = chunk == 0 ? kdTree : new EnhancedKDTree(kdTree.points_);
+         for (int i = chunkStart(chunk, nrChunks, srcPoints.length);
+               i < chunkStart(chunk + 1, nrChunks, srcPoints.length); i++) {
+            controlPoints[i] = new ControlPoint(tree, srcPoints[i], order, pointMap);
+         }
+      });
       final ControlPoints controlPointMap = new ControlPoints();
-      for (Point2D.Double srcPoint : pointMap.keySet()) {
-         controlPointMap.put(srcPoint, new ControlPoint(kdTree, srcPoint, order, pointMap));
+      for (int i = 0; i < srcPoints.length; i++) {
+         controlPointMap.put(srcPoints[i], controlPoints[i]);
       }
       return controlPointMap;
    }
 
+   /**
+    * Number of chunks in which to divide work that needs a private kd tree per thread
+    */
+   private static int nrChunks(int size) {
+      return Math.max(1, Math.min(size, Runtime.getRuntime().availableProcessors()));
+   }
+
+   private static int chunkStart(int chunk, int nrChunks, int size) {
+      return (int) ((long) chunk * size / nrChunks);
+   }
+
    /**
     * Computes the transform of Ch1 into Ch2 coordinates using the LWM
     *
@@ -339,24 +378,22 @@ public class CoordinateMapper {
    public static Point2D.Double computeTransformation(EnhancedKDTree kdTree,
          Point2D.Double testPoint, ControlPoints controlPoints, ExponentPairs exponentPairs) {
       final List<Point2D.Double> neighbors = kdTree.nearestNeighbor(testPoint, 20, false);
+      final double[] powerTerms = powerTerms(testPoint.x, testPoint.y, exponentPairs);
       double sumWeights = 0;
       double sumWeightedPolyX = 0;
       double sumWeightedPolyY = 0;
-      int count = 0;
       for (Point2D.Double srcPoint : neighbors) {
          final ControlPoint controlPoint = controlPoints.get(srcPoint);
          final double r = testPoint.distance(controlPoint.point) / controlPoint.rnormalized;
          final double weight = weightFunction(r);
          if (weight > 0) {
-            count++;
             sumWeights += weight;
-            sumWeightedPolyX += weight * evaluatePolynomial(testPoint.x, testPoint.y,
-                  controlPoint.polynomialCoefficients.polyX, exponentPairs);
-            sumWeightedPolyY += weight * evaluatePolynomial(testPoint.x, testPoint.y,
-                  controlPoint.polynomialCoefficients.polyY, exponentPairs);
+            sumWeightedPolyX += weight * evaluatePolynomial(
+                  controlPoint.polynomialCoefficients.polyX, powerTerms);
+            sumWeightedPolyY += weight * evaluatePolynomial(
+                  controlPoint.polynomialCoefficients.polyY, powerTerms);
          }
       }
-      System.out.println("Used " + count + "  controlpoints in computeTransform");
       return new Point2D.Double(sumWeightedPolyX / sumWeights,
             sumWeightedPolyY / sumWeights);
    }
@@ -469,9 +506,14 @@ public class CoordinateMapper {
     */
    public AffineTransform generateLocalAffineTransform(
          Point2D.Double srcTestPoint, int maxNrControlPoints, double maxDistance) {
+      return generateLocalAffineTransform(kdTree_, srcTestPoint, maxNrControlPoints, maxDistance);
+   }
+
+   private AffineTransform generateLocalAffineTransform(EnhancedKDTree kdTree,
+         Point2D.Double srcTestPoint, int maxNrControlPoints, double maxDistance) {
 
       List<Point2D.Double> nearestNeighbors
-            = kdTree_.nearestNeighbor(srcTestPoint, maxNrControlPoints, maxDistance);
+            = kdTree.nearestNeighbor(srcTestPoint, maxNrControlPoints, maxDistance);
       if (nearestNeighbors.size() > 10) {
          PointMap localMap = selectPoints(pointMap_, nearestNeighbors);
          return generateAffineTransformFromPointPairs(localMap);
@@ -492,16 +534,7 @@ public class CoordinateMapper {
       }
       if (method_ == AFFINE) {
          try {
-            if (cleanedPointMap_ == null) {
-               cleanedPointMap_ = makeCleanedPointMap();
-               af_ = generateAffineTransformFromPointPairs(cleanedPointMap_);
-               if (log_) {
-                  logAffineTransform(af_);
-               }
-               ij.IJ.log("Used " + cleanedPointMap_.size()
-                     + " spot pairs to calculate 2C reference");
-            }
-            return (Point2D.Double) af_.transform(srcTestPoint, null);
+            return (Point2D.Double) cleanedAffineTransform().transform(srcTestPoint, null);
          } catch (Exception ex) {
             return null;
          }
@@ -528,6 +561,113 @@ public class CoordinateMapper {
       return null;
    }
 
+   /**
+    * Transforms many points at once, in parallel.  Gives the same results as calling
+    * transform(Point2D.Double) for each point, but avoids creating objects per point.
+    *
+    * @param x    - x coordinates of the input points
+    * @param y    - y coordinates of the input points
+    * @param xOut - receives the transformed x coordinates, NaN when a point could not be
+    *             transformed
+    * @param yOut - receives the transformed y coordinates, NaN when a point could not be
+    *             transformed
+    */
+   public void transform(final double[] x, final double[] y,
+         final double[] xOut, final double[] yOut) {
+      final int method = method_;
+      AffineTransform globalAf = null;
+      if (method == AFFINE) {
+         try {
+            globalAf = cleanedAffineTransform();
+         } catch (Exception ex) {
+            Arrays.fill(xOut, 0, x.length, Double.NaN);
+            Arrays.fill(yOut, 0, x.length, Double.NaN);
+            return;
+         }
+      } else if (method == NONRFEFLECTIVESIMILARITY) {
+         globalAf = rbAf_;
+      }
+      final AffineTransform af = globalAf;
+      final int nrChunks = nrChunks(x.length);
+      IntStream.range(0, nrChunks).parallel().forEach((int chunk) -> {
+         // searching the kd tree changes its state, so each thread needs its own copy
+         EnhancedKDTree tree = null;
+         if (method == LWM || method == PIECEWISEAFFINE) {
+            tree = new EnhancedKDTree(keys_);
+         }
+         Point2D.Double point = new Point2D.Double();
+         for (int i = chunkStart(chunk, nrChunks, x.length);
+               i < chunkStart(chunk + 1, nrChunks, x.length); i++) {
+            xOut[i] = Double.NaN;
+            yOut[i] = Double.NaN;
+            if (method == LWM) {
+               computeTransformation(tree, x[i], y[i], xOut, yOut, i);
+               continue;
+            }
+            point.setLocation(x[i], y[i]);
+            AffineTransform pointAf = af;
+            if (method == PIECEWISEAFFINE) {
+               try {
+                  pointAf = generateLocalAffineTransform(tree, point,
+                        pieceWiseAffineMaxControlPoints_, pieceWiseAffineMaxDistance_);
+               } catch (Exception ex) {
+                  pointAf = null;
+               }
+            }
+            if (pointAf != null) {
+               pointAf.transform(point, point);
+               xOut[i] = point.x;
+               yOut[i] = point.y;
+            }
+         }
+      });
+   }
+
+   /**
+    * LWM transform of a single point, using the control points stored in primitive arrays.
+    * Arithmetic is identical to computeTransformation(EnhancedKDTree, Point2D.Double,
+    * ControlPoints, ExponentPairs).
+    */
+   @SuppressWarnings("unchecked")
+   private void computeTransformation(EnhancedKDTree kdTree, double x, double y,
+         double[] xOut, double[] yOut, int index) {
+      final List<KdTree.Entry<Integer>> neighbors = kdTree.nearestNeighbor(
+            new double[]{x, y}, 20, false);
+      final double[] powerTerms = powerTerms(x, y, exponentPairs_);
+      double sumWeights = 0;
+      double sumWeightedPolyX = 0;
+      double sumWeightedPolyY = 0;
+      for (int n = neighbors.size() - 1; n >= 0; n--) {
+         final int cp = neighbors.get(n).value;
+         final double r = Point2D.distance(keys_[cp].x, keys_[cp].y, x, y) / rNormalized_[cp];
+         final double weight = weightFunction(r);
+         if (weight > 0) {
+            sumWeights += weight;
+            sumWeightedPolyX += weight * evaluatePolynomial(polyX_[cp], powerTerms);
+            sumWeightedPolyY += weight * evaluatePolynomial(polyY_[cp], powerTerms);
+         }
+      }
+      xOut[index] = sumWeightedPolyX / sumWeights;
+      yOut[index] = sumWeightedPolyY / sumWeights;
+   }
+
+   /**
+    * Affine transform calculated from the point pairs that remain after removing outliers.
+    * Calculated on first use.
+    */
+   private synchronized AffineTransform cleanedAffineTransform() {
+      if (cleanedPointMap_ == null) {
+         cleanedPointMap_ = makeCleanedPointMap();
+         af_ = generateAffineTransformFromPointPairs(cleanedPointMap_);
+         if (log_) {
+            logAffineTransform(af_);
+         }
+         ij.IJ.log("Used " + cleanedPointMap_.size()
+               + " spot pairs to calculate 2C reference");
+      }
+      return af_;
+   }
+
    public void setMethod(int method) {
       method_ = method;
    }
@@ -540,49 +680,133 @@ public class CoordinateMapper {
       pieceWiseAffineMaxDistance_ = max;
    }
 
+   /**
+    * Repeatedly fits an affine transform to the point pairs and removes the worst fitting pair,
+    * until the spread of the residuals is small compared to their mean.  Works on primitive
+    * arrays, since this may take as many iterations as there are pairs.
+    */
    private PointMap makeCleanedPointMap() {
-      PointMap cleanedPointMap = pointMap_.copy();
-      // TODO: copy controlPOints to cleanedControlPoints
-      boolean continueQualityCheck = true;
+      final int size = pointMap_.size();
+      final Point2D.Double[] keys = new Point2D.Double[size];
+      final double[] srcX = new double[size];
+      final double[] srcY = new double[size];
+      final double[] destX = new double[size];
+      final double[] destY = new double[size];
+      int nr = 0;
+      for (Map.Entry<Point2D.Double, Point2D.Double> pair : pointMap_.entrySet()) {
+         keys[nr] = pair.getKey();
+         srcX[nr] = pair.getKey().x;
+         srcY[nr] = pair.getKey().y;
+         destX[nr] = pair.getValue().x;
+         destY[nr] = pair.getValue().y;
+         nr++;
+      }
+      final double[] distances = new double[size];
+      final double[] af = new double[6];
       int nrOfRemovedSpots = 0;
 
-      while (continueQualityCheck && cleanedPointMap.size() > 4) {
-         // quality control on our new coordinate mapper.  
-         // Apply an affine transform on our data and check distribution 
-
-         CoordinateMapper.PointMap corPoints = new CoordinateMapper.PointMap();
-         List<Double> distances = new ArrayList<Double>();
+      // quality control on our new coordinate mapper.
+      // Apply an affine transform on our data and check distribution
+      while (nr > 4 && fitAffine(srcX, srcY, destX, destY, nr, af)) {
          double maxDistance = 0.0;
-         AffineTransform af = generateAffineTransformFromPointPairs(cleanedPointMap);
-         Point2D.Double maxPairKey = null;
-         for (Map.Entry pair : cleanedPointMap.entrySet()) {
-            Point2D.Double uPt = (Point2D.Double) pair.getValue();
-            Point2D.Double otherPt = (Point2D.Double) pair.getKey();
-            Point2D.Double corPt = (Point2D.Double) af.transform(otherPt, null);
-            corPoints.put(uPt, corPt);
-            double distance = Math.sqrt(NearestPoint2D.distance2(uPt, corPt));
-            if (distance > maxDistance) {
-               maxDistance = distance;
-               maxPairKey = otherPt;
+         int maxPair = -1;
+         double sum = 0.0;
+         for (int i = 0; i < nr; i++) {
+            double dx = destX[i] - (af[0] * srcX[i] + af[1] * srcY[i] + af[2]);
+            double dy = destY[i] - (af[3] * srcX[i] + af[4] * srcY[i] + af[5]);
+            distances[i] = Math.sqrt(dx * dx + dy * dy);
+            if (distances[i] > maxDistance) {
+               maxDistance = distances[i];
+               maxPair = i;
             }
-            distances.add(distance);
+            sum += distances[i];
          }
-         Double avg = ListUtils.listAvg(distances);
-         Double stdDev = ListUtils.listStdDev(distances, avg);
+         final double avg = sum / nr;
+         double sumSq = 0.0;
+         for (int i = 0; i < nr; i++) {
+            sumSq += (distances[i] - avg) * (distances[i] - avg);
+         }
+         final double stdDev = Math.sqrt(sumSq / (nr - 1));
 
          // Quality control check
-         if (2 * stdDev > avg) {
+         if (2 * stdDev > avg && maxPair >= 0) {
             nrOfRemovedSpots += 1;
-            cleanedPointMap.remove(maxPairKey);
+            nr--;
+            keys[maxPair] = keys[nr];
+            srcX[maxPair] = srcX[nr];
+            srcY[maxPair] = srcY[nr];
+            destX[maxPair] = destX[nr];
+            destY[maxPair] = destY[nr];
          } else {
-            continueQualityCheck = false;
             ij.IJ.log("Removed " + nrOfRemovedSpots + " pairs, " + " avg. distance: "
                   + avg + ", std. dev: " + stdDev);
+            break;
          }
       }
+
+      PointMap cleanedPointMap = new PointMap();
+      for (int i = 0; i < nr; i++) {
+         cleanedPointMap.put(keys[i], pointMap_.get(keys[i]));
+      }
       return cleanedPointMap;
    }
 
+   /**
+    * Least squares fit of an affine transform to the first nr point pairs, by solving the normal
+    * equations around the centroid of the source points.
+    *
+    * @param af - receives the transform as {m00, m01, m02, m10, m11, m12}
+    * @return false if the source points do not determine an affine transform
+    */
+   private static boolean fitAffine(double[] srcX, double[] srcY, double[] destX,
+         double[] destY, int nr, double[] af) {
+      double meanX = 0.0;
+      double meanY = 0.0;
+      double meanU = 0.0;
+      double meanV = 0.0;
+      for (int i = 0; i < nr; i++) {
+         meanX += srcX[i];
+         meanY += srcY[i];
+         meanU += destX[i];
+         meanV += destY[i];
+      }
+      meanX /= nr;
+      meanY /= nr;
+      meanU /= nr;
+      meanV /= nr;
+      double sxx = 0.0;
+      double sxy = 0.0;
+      double syy = 0.0;
+      double sxu = 0.0;
+      double syu = 0.0;
+      double sxv = 0.0;
+      double syv = 0.0;
+      for (int i = 0; i < nr; i++) {
+         double dx = srcX[i] - meanX;
+         double dy = srcY[i] - meanY;
+         double du = destX[i] - meanU;
+         double dv = destY[i] - meanV;
+         sxx += dx * dx;
+         sxy += dx * dy;
+         syy += dy * dy;
+         sxu += dx * du;
+         syu += dy * du;
+         sxv += dx * dv;
+         syv += dy * dv;
+      }
+      double det = sxx * syy - sxy * sxy;
+      if (!(Math.abs(det) > 1.0e-12 * (sxx * syy))) {
+         return false;
+      }
+      af[0] = (syy * sxu - sxy * syu) / det;
+      af[1] = (sxx * syu - sxy * sxu) / det;
+      af[2] = meanU - af[0] * meanX - af[1] * meanY;
+      af[3] = (syy * sxv - sxy * syv) / det;
+      af[4] = (sxx * syv - sxy * sxv) / det;
+      af[5] = meanV - af[3] * meanX - af[4] * meanY;
+      return true;
+   }
+
    public CoordinateMapper(PointMap pointMap, int order, int method) {
       this(pointMap, order, method, true);
    }
@@ -605,9 +829,19 @@ public class CoordinateMapper {
       exponentPairs_ = polynomialExponents(order);
       final ArrayList<Point2D.Double> keys = new ArrayList<Point2D.Double>();
       keys.addAll(pointMap.keySet());
-      final Point2D.Double[] keyArray = keys.toArray(new Point2D.Double[]{});
-      kdTree_ = new EnhancedKDTree(keyArray);
+      keys_ = keys.toArray(new Point2D.Double[]{});
+      kdTree_ = new EnhancedKDTree(keys_);
       controlPoints_ = createControlPoints(kdTree_, order_, pointMap_);
+      // the same control points, as arrays in the order of the kd tree
+      rNormalized_ = new double[keys_.length];
+      polyX_ = new double[keys_.length][];
+      polyY_ = new double[keys_.length][];
+      for (int i = 0; i < keys_.length; i++) {
+         ControlPoint controlPoint = controlPoints_.get(keys_[i]);
+         rNormalized_[i] = controlPoint.rnormalized;
+         polyX_[i] = controlPoint.polynomialCoefficients.polyX;
+         polyY_[i] = controlPoint.polynomialCoefficients.polyY;
+      }
 
       // Set up Affine transform
       af_ = generateAffineTransformFromPointPairs(pointMap);
@@ -35,14 +35,16 @@ import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.algorithm.JitterDetector;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
+import edu.ucsf.valelab.gaussianfit.data.SpotTable;
+import ij.process.FHT;
+import ij.process.FloatProcessor;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import javax.swing.JOptionPane;
 
 /**
@@ -94,8 +96,6 @@ public class DriftCorrector {
             int width = mag * rowData.width_;
             int height = mag * rowData.height_;
 
-            int size = width * height;
-
             // TODO: add 0 padding to deal with aberrant image sizes
             if ((width != height) || ((width & (width - 1)) != 0)) {
                JOptionPane.showMessageDialog(getInstance(),
@@ -131,143 +131,30 @@ public class DriftCorrector {
                }
             }
 
-            ArrayList<StageMovementData> stagePos = new ArrayList<>();
-
-            try {
-               // make imageprocessors for all the images that we will generate
-               ImageProcessor[] ip = new ImageProcessor[nrOfTests];
-               byte[][] pixels = new byte[nrOfTests][width * height];
-
-               for (int i = 0; i < nrOfTests; i++) {
-                  ip[i] = new ByteProcessor(width, height);
-                  ip[i].setPixels(pixels[i]);
+            // window of every spot
+            SpotTable table = rowData.getSpotTable();
+            int[] windows = new int[table.size()];
+            for (int row = 0; row < windows.length; row++) {
+               int j;
+               if (useSlices) {
+                  j = (table.getSlice(row) - 1) / framesToCombine;
+               } else {
+                  j = (table.getFrame(row) - 1) / framesToCombine;
                }
+               windows[row] = j < nrOfTests ? j : -1;
+            }
 
-               double factor = (double) mag / rowData.pixelSizeNm_;
-
-               // make 2D scattergrams of all pixelData
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
-                  int index = (y * width) + x;
-                  if (index < size && index > 0) {
-                     if (pixels[j][index] != -1) {
-                        pixels[j][index] += 1;
-                     }
-                  }
-
-               }
-
-               JitterDetector jd = new JitterDetector(ip[0]);
-
-               Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-               Point2D.Double com = new Point2D.Double(0.0, 0.0);
-
-               jd.getJitter(ip[0], fp);
-
-               for (int i = 1; i < ip.length; i++) {
-                  ij.IJ.showStatus("Executing jitter correction..." + i);
-                  ij.IJ.showProgress(i, ip.length);
-                  int spotCount = 0;
-                  for (int j = 0; j < ip[i].getPixelCount(); j++) {
-                     spotCount += ip[i].get(j);
-                  }
-
-                  jd.getJitter(ip[i], com);
-                  double x = (fp.x - com.x) / factor;
-                  double y = (fp.y - com.y) / factor;
-                  if (rowData.timePoints_ != null) {
-                     rowData.timePoints_.get(i);
-                  }
-                  stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-                        new Point(i * framesToCombine, ((i + 1) * framesToCombine - 1))));
-                  System.out.println("i: " + i + " nSpots: " + spotCount + " X: " + x + " Y: " + y);
-               }
-
-            } catch (OutOfMemoryError ex) {
-               // not enough memory to allocate all images in one go
-               // we need to cycle through all gaussian spots cycle by cycle
-
-               double factor = (double) mag / rowData.pixelSizeNm_;
-
-               ImageProcessor ipRef = new ByteProcessor(width, height);
-               byte[] pixelsRef = new byte[width * height];
-               ipRef.setPixels(pixelsRef);
-
-               // take the first image as reference
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  if (j == 0) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     int index = (y * width) + x;
-                     if (index < size && index > 0) {
-                        if (pixelsRef[index] != -1) {
-                           pixelsRef[index] += 1;
-                        }
-                     }
-                  }
-               }
-
-               JitterDetector jd = new JitterDetector(ipRef);
-
-               Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-               jd.getJitter(ipRef, fp);
-
-               Point2D.Double com = new Point2D.Double(0.0, 0.0);
-               ImageProcessor ipTest = new ByteProcessor(width, height);
-               byte[] pixelsTest = new byte[width * height];
-               ipTest.setPixels(pixelsTest);
-
+            ArrayList<StageMovementData> stagePos = new ArrayList<>();
+            try {
+               Point2D.Double[] drift = measureDrift(rowData, windows, nrOfTests, mag);
                for (int i = 1; i < nrOfTests; i++) {
-                  ij.IJ.showStatus("Executing jitter correction..." + i);
-                  ij.IJ.showProgress(i, nrOfTests);
-                  for (int p = 0; p < size; p++) {
-                     ipTest.set(p, 0);
-                  }
-
-                  for (SpotData spot : rowData.spotList_) {
-                     int j;
-                     if (useSlices) {
-                        j = (spot.getSlice() - 1) / framesToCombine;
-                     } else {
-                        j = (spot.getFrame() - 1) / framesToCombine;
-                     }
-                     if (j == i) {
-                        int x = (int) (factor * spot.getXCenter());
-                        int y = (int) (factor * spot.getYCenter());
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixelsTest[index] != -1) {
-                              pixelsTest[index] += 1;
-                           }
-                        }
-                     }
-                  }
-
-                  jd.getJitter(ipTest, com);
-                  double x = (fp.x - com.x) / factor;
-                  double y = (fp.y - com.y) / factor;
-                  double timePoint = i;
-                  if (rowData.timePoints_ != null) {
-                     rowData.timePoints_.get(i);
-                  }
-                  stagePos.add(new StageMovementData(new Point2D.Double(x, y),
+                  stagePos.add(new StageMovementData(drift[i],
                         new Point(i * framesToCombine, ((i + 1) * framesToCombine - 1))));
-                  System.out.println("X: " + x + " Y: " + y);
                }
-
+            } catch (OutOfMemoryError oom) {
+               System.gc();
+               ij.IJ.error("Out of Memory");
+               return;
             }
 
             try {
@@ -323,49 +210,12 @@ public class DriftCorrector {
                ij.IJ.showStatus("Assembling jitter corrected dataset...");
                ij.IJ.showProgress(1);
 
-               List<SpotData> correctedData = new ArrayList<SpotData>();
-               Iterator it = rowData.spotList_.iterator();
-
-               int testNr = 0;
-               StageMovementData smd = stagePosMA.get(0);
-               int counter = 0;
-               while (it.hasNext()) {
-                  counter++;
-                  SpotData gs = (SpotData) it.next();
-                  int test;
-                  if (useSlices) {
-                     test = gs.getSlice();
-                  } else {
-                     test = gs.getFrame();
-                  }
-                  if (test != testNr) {
-                     testNr = test - 1;
-                  }
-                  boolean found = false;
-                  if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                     found = true;
-                  }
-                  if (!found) {
-                     for (int i = 0; i < stagePosMA.size() && !found; i++) {
-                        smd = stagePosMA.get(i);
-                        if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                           found = true;
-                        }
-                     }
-                  }
-                  if (found) {
-                     Point2D.Double point = new Point2D.Double(gs.getXCenter() - smd.pos_.x,
-                           gs.getYCenter() - smd.pos_.y);
-                     SpotData gsn = new SpotData(gs);
-                     gsn.setXCenter(point.x);
-                     gsn.setYCenter(point.y);
-                     correctedData.add(gsn);
-                  } else {
-                     correctedData.add(gs);
-                  }
-
-
+               // the moving average starting at window i + 1 is used for that window
+               Point2D.Double[] correction = new Point2D.Double[nrOfTests];
+               for (int i = 0; i < stagePosMA.size(); i++) {
+                  correction[i + 1] = stagePosMA.get(i).pos_;
                }
+               List<SpotData> correctedData = correct(rowData, windows, correction);
 
                // Add transformed data to data overview window
                builder = rowData.copy();
@@ -413,8 +263,6 @@ public class DriftCorrector {
       int width = mag * rowData.width_;
       int height = mag * rowData.height_;
 
-      int size = width * height;
-
       // TODO: add 0 padding to deal with aberrant image sizes
       if ((width != height) || ((width & (width - 1)) != 0)) {
          JOptionPane.showMessageDialog(DataCollectionForm.getInstance(),
@@ -431,94 +279,52 @@ public class DriftCorrector {
       }
       final int nrImages = useSlices ? rowData.nrSlices_ : rowData.nrFrames_;
 
-      ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
-
-      double factor = (double) mag / rowData.pixelSizeNm_;
-
-      // Assemble the reference image (the first one)
-      ImageProcessor ipRef = new ByteProcessor(width, height);
-      byte[] pixelsRef = new byte[width * height];
-      ipRef.setPixels(pixelsRef);
-
-      Map<Integer, List<SpotData>> frameIndexSpotList =
-            rowData.getSpotListIndexedByFrame();
-
-      int spotNr = 0;
-      int frameNr = 0;
-      while (spotNr < maxNrSpots && frameNr < maxNrFrames && frameNr < nrImages) {
-         List<SpotData> frameSpots = frameIndexSpotList.get(frameNr);
-         if (frameSpots != null) {
-            for (SpotData spot : frameSpots) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int index = (y * width) + x;
-               if (index < size && index > 0) {
-                  if (pixelsRef[index] != -1) {
-                     pixelsRef[index] += 1;
-                  }
-               }
-               spotNr++;
-            }
+      // Frames are added to a window until it holds at least maxNrSpots spots or
+      // maxNrFrames frames.  The first window is the reference.
+      SpotTable table = rowData.getSpotTable();
+      int[] spotsPerFrame = new int[nrImages + 1];
+      for (int row = 0; row < table.size(); row++) {
+         int frame = useSlices ? table.getSlice(row) : table.getFrame(row);
+         if (frame >= 1 && frame <= nrImages) {
+            spotsPerFrame[frame]++;
          }
-         frameNr++;
       }
-
-      JitterDetector jd = new JitterDetector(ipRef);
-
-      Point2D.Double fp = new Point2D.Double(0.0, 0.0);
-      jd.getJitter(ipRef, fp);
-
-      // Assemble images for all subsequent frames and calculate cross-correlation with
-      // the first image
-      Point2D.Double com = new Point2D.Double(0.0, 0.0);
-      ImageProcessor ipTest = new ByteProcessor(width, height);
-      byte[] pixelsTest = new byte[width * height];
-      ipTest.setPixels(pixelsTest);
-
-      int estimatedNrTests;
-      int testNr = 1;
-
-      while (frameNr < nrImages) {
-         estimatedNrTests = nrImages / (frameNr / testNr) + 1;
-         ij.IJ.showStatus("Executing jitter correction..." + testNr
-               + "/" + estimatedNrTests);
-         ij.IJ.showProgress(testNr, estimatedNrTests);
-         for (int p = 0; p < size; p++) {
-            ipTest.set(p, 0);
-         }
-
-         int tmpFrameNr = 0;
-         spotNr = 0;
-
-         while (spotNr < maxNrSpots && tmpFrameNr < maxNrFrames && frameNr < nrImages) {
-            List<SpotData> frameSpots = frameIndexSpotList.get(frameNr);
-            if (frameSpots != null) {
-               for (SpotData spot : frameSpots) {
-                  int x = (int) (factor * spot.getXCenter());
-                  int y = (int) (factor * spot.getYCenter());
-                  int index = (y * width) + x;
-                  if (index < size && index > 0) {
-                     if (pixelsTest[index] != -1) {
-                        pixelsTest[index] += 1;
-                     }
-                  }
-                  spotNr++;
-               }
-            }
-            tmpFrameNr++;
-            frameNr++;
+      int[] windowOfFrame = new int[nrImages + 1];
+      List<Point> frameRanges = new ArrayList<Point>();
+      int window = 0;
+      int nrFramesInWindow = 0;
+      int nrSpotsInWindow = 0;
+      for (int frame = 1; frame <= nrImages; frame++) {
+         if (nrFramesInWindow > 0
+               && (nrSpotsInWindow >= maxNrSpots || nrFramesInWindow >= maxNrFrames)) {
+            frameRanges.add(new Point(frame - 1 - nrFramesInWindow, frame - 2));
+            window++;
+            nrFramesInWindow = 0;
+            nrSpotsInWindow = 0;
          }
+         windowOfFrame[frame] = window;
+         nrFramesInWindow++;
+         nrSpotsInWindow += spotsPerFrame[frame];
+      }
+      frameRanges.add(new Point(nrImages - nrFramesInWindow, nrImages - 1));
+      final int nrWindows = window + 1;
+      int[] windows = new int[table.size()];
+      for (int row = 0; row < windows.length; row++) {
+         int frame = useSlices ? table.getSlice(row) : table.getFrame(row);
+         windows[row] = frame >= 1 && frame <= nrImages ? windowOfFrame[frame] : -1;
+      }
 
-         jd.getJitter(ipTest, com);
-         double x = (fp.x - com.x) / factor;
-         double y = (fp.y - com.y) / factor;
-         if (rowData.timePoints_ != null) {
-            rowData.timePoints_.get(frameNr);
-         }
-         stagePos.add(new StageMovementData(new Point2D.Double(x, y),
-               new Point(frameNr - tmpFrameNr, frameNr - 1)));
-         System.out.println("X: " + x + " Y: " + y);
-         testNr++;
+      ArrayList<StageMovementData> stagePos = new ArrayList<StageMovementData>();
+      Point2D.Double[] drift;
+      try {
+         drift = measureDrift(rowData, windows, nrWindows, mag);
+      } catch (OutOfMemoryError oom) {
+         System.gc();
+         ij.IJ.error("Out of Memory");
+         return;
+      }
+      for (int i = 1; i < nrWindows; i++) {
+         stagePos.add(new StageMovementData(drift[i], frameRanges.get(i)));
       }
 
       // Assemble stage movement data into a track
@@ -552,45 +358,8 @@ public class DriftCorrector {
          ij.IJ.showStatus("Assembling jitter corrected dataset...");
          ij.IJ.showProgress(1);
 
-         List<SpotData> correctedData = new ArrayList<SpotData>();
-         Iterator it = rowData.spotList_.iterator();
-
-         testNr = 0;
-         StageMovementData smd = stagePos.get(0);
-         while (it.hasNext()) {
-            SpotData gs = (SpotData) it.next();
-            int test;
-            if (useSlices) {
-               test = gs.getSlice();
-            } else {
-               test = gs.getFrame();
-            }
-            if (test != testNr) {
-               testNr = test - 1;
-            }
-            boolean found = false;
-            if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-               found = true;
-            }
-            if (!found) {
-               for (int i = 0; i < stagePos.size() && !found; i++) {
-                  smd = stagePos.get(i);
-                  if (testNr >= smd.frameRange_.x && testNr <= smd.frameRange_.y) {
-                     found = true;
-                  }
-               }
-            }
-            if (found) {
-               Point2D.Double point = new Point2D.Double(gs.getXCenter() - smd.pos_.x,
-                     gs.getYCenter() - smd.pos_.y);
-               SpotData gsn = new SpotData(gs);
-               gsn.setXCenter(point.x);
-               gsn.setYCenter(point.y);
-               correctedData.add(gsn);
-            } else {
-               correctedData.add(gs);
-            }
-         }
+         drift[0] = null;
+         List<SpotData> correctedData = correct(rowData, windows, drift);
 
          // Add transformed data to data overview window
          builder = rowData.copy();
@@ -605,4 +374,120 @@ public class DriftCorrector {
    }
 
 
-}
\ No newline at end of file
+   /**
+    * Measures drift by cross-correlating 2D histograms of the spots in each window with that of
+    * the first window.  Spots are sorted by window in a single pass, after which the windows are
+    * rendered and correlated by several threads at the same time, each with its own FHT plan and
+    * image buffer.
+    *
+    * @param rowData   - spots to be corrected
+    * @param windows   - window of every spot (in the order of rowData.spotList_), or -1 for
+    *                  spots that do not belong to any window
+    * @param nrWindows - number of windows
+    * @param mag       - size of the histogram pixels relative to the camera pixels
+    * @return displacement (in nm) of every window relative to the first one
+    */
+   private static Point2D.Double[] measureDrift(final RowData rowData, final int[] windows,
+         final int nrWindows, final int mag) {
+      final int width = mag * rowData.width_;
+      final int size = width * width;
+      final double factor = (double) mag / rowData.pixelSizeNm_;
+
+      // sort the histogram pixel of every spot by window
+      final SpotTable table = rowData.getSpotTable();
+      final int[] pixel = new int[windows.length];
+      final int[] windowStart = new int[nrWindows + 1];
+      for (int row = 0; row < windows.length; row++) {
+         int x = (int) (factor * table.getXCenter(row));
+         int y = (int) (factor * table.getYCenter(row));
+         int index = (y * width) + x;
+         if (windows[row] >= 0 && index < size && index > 0) {
+            pixel[row] = index;
+            windowStart[windows[row] + 1]++;
+         } else {
+            pixel[row] = -1;
+         }
+      }
+      for (int w = 0; w < nrWindows; w++) {
+         windowStart[w + 1] += windowStart[w];
+      }
+      final int[] next = Arrays.copyOf(windowStart, nrWindows);
+      final int[] sortedPixels = new int[windowStart[nrWindows]];
+      for (int row = 0; row < windows.length; row++) {
+         if (pixel[row] >= 0) {
+            sortedPixels[next[windows[row]]++] = pixel[row];
+         }
+      }
+
+      final float[] pixels = new float[size];
+      histogram(sortedPixels, windowStart[0], windowStart[1], pixels);
+      final JitterDetector jd = new JitterDetector(new FloatProcessor(width, width, pixels, null));
+      final Point2D.Double fp = new Point2D.Double(0.0, 0.0);
+      histogram(sortedPixels, windowStart[0], windowStart[1], pixels);
+      jd.getJitter(pixels, new FHT(), fp);
+
+      final Point2D.Double[] drift = new Point2D.Double[nrWindows];
+      drift[0] = new Point2D.Double(0.0, 0.0);
+      final AtomicInteger nextWindow = new AtomicInteger(1);
+      final AtomicInteger windowsDone = new AtomicInteger(0);
+      final int nrThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+            nrWindows - 1));
+      IntStream.range(0, nrThreads).parallel().forEach(t -> {
+         FHT plan = new FHT();
+         plan.setShowProgress(false);
+         float[] testPixels = t == 0 ? pixels : new float[size];
+         Point2D.Double com = new Point2D.Double(0.0, 0.0);
+         int w;
+         while ((w = nextWindow.getAndIncrement()) < nrWindows) {
+            histogram(sortedPixels, windowStart[w], windowStart[w + 1], testPixels);
+            jd.getJitter(testPixels, plan, com);
+            drift[w] = new Point2D.Double((fp.x - com.x) / factor, (fp.y - com.y) / factor);
+            int done = windowsDone.incrementAndGet();
+            ij.IJ.showStatus("Executing jitter correction..." + done);
+            ij.IJ.showProgress(done, nrWindows - 1);
+         }
+      });
+
+      return drift;
+   }
+
+   /**
+    * Renders a 2D histogram of the given spots, that saturates at 255 like a ByteProcessor.
+    */
+   private static void histogram(int[] sortedPixels, int start, int end, float[] pixels) {
+      Arrays.fill(pixels, 0.0f);
+      for (int i = start; i < end; i++) {
+         if (pixels[sortedPixels[i]] < 255.0f) {
+            pixels[sortedPixels[i]] += 1.0f;
+         }
+      }
+   }
+
+   /**
+    * Subtracts the correction for its window from every spot, in parallel.
+    *
+    * @param rowData    - spots to be corrected
+    * @param windows    - window of every spot, or -1
+    * @param correction - correction (in nm) for every window, or null to leave the spots in
+    *                   that window alone
+    * @return corrected spots, in the same order as rowData.spotList_
+    */
+   private static List<SpotData> correct(final RowData rowData, final int[] windows,
+         final Point2D.Double[] correction) {
+      final SpotData[] correctedData = new SpotData[rowData.spotList_.size()];
+      IntStream.range(0, correctedData.length).parallel().forEach(i -> {
+         SpotData gs = rowData.spotList_.get(i);
+         Point2D.Double pos = windows[i] >= 0 ? correction[windows[i]] : null;
+         if (pos != null) {
+            SpotData gsn = new SpotData(gs);
+            gsn.setXCenter(gs.getXCenter() - pos.x);
+            gsn.setYCenter(gs.getYCenter() - pos.y);
+            correctedData[i] = gsn;
+         } else {
+            correctedData[i] = gs;
+         }
+      });
+      return new ArrayList<SpotData>(Arrays.asList(correctedData));
+   }
+
+}
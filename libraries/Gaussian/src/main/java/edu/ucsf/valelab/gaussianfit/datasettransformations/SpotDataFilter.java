@@ -30,9 +30,12 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.datasettransformations;
 
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotTable;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.IntPredicate;
 
 /**
  * Simple filter for spot data.
@@ -61,6 +64,20 @@ public class SpotDataFilter {
          minimum_ = min;
          maximum_ = max;
       }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Extremes)) {
+            return false;
+         }
+         Extremes other = (Extremes) o;
+         return minimum_ == other.minimum_ && maximum_ == other.maximum_;
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hash(minimum_, maximum_);
+      }
    }
 
    private final Map<String, Extremes> itemFilter_ = new HashMap<String, Extremes>();
@@ -68,6 +85,40 @@ public class SpotDataFilter {
    public SpotDataFilter() {
    }
 
+   /**
+    * Copy constructor, the copy does not change when the original does
+    *
+    * @param other - filter to copy the settings from
+    */
+   public SpotDataFilter(SpotDataFilter other) {
+      setSigma(other.useSigma_, other.sigmaMin_, other.sigmaMax_);
+      setIntensity(other.useIntensity_, other.intensityMin_, other.intensityMax_);
+      for (Map.Entry<String, Extremes> entry : other.itemFilter_.entrySet()) {
+         setItemFilter(entry.getKey(), entry.getValue().minimum_, entry.getValue().maximum_);
+      }
+   }
+
+   /**
+    * Filters are equal when they accept the same spots, i.e. have the same settings
+    */
+   @Override
+   public boolean equals(Object o) {
+      if (!(o instanceof SpotDataFilter)) {
+         return false;
+      }
+      SpotDataFilter other = (SpotDataFilter) o;
+      return useSigma_ == other.useSigma_ && sigmaMin_ == other.sigmaMin_
+            && sigmaMax_ == other.sigmaMax_ && useIntensity_ == other.useIntensity_
+            && intensityMin_ == other.intensityMin_ && intensityMax_ == other.intensityMax_
+            && itemFilter_.equals(other.itemFilter_);
+   }
+
+   @Override
+   public int hashCode() {
+      return Objects.hash(useSigma_, sigmaMin_, sigmaMax_, useIntensity_, intensityMin_,
+            intensityMax_, itemFilter_);
+   }
+
    public void setSigma(boolean filter, double min, double max) {
       useSigma_ = filter;
       sigmaMin_ = min;
@@ -128,5 +179,53 @@ public class SpotDataFilter {
       return true;
    }
 
+   /**
+    * Same test as filter(SpotData), for the rows of a SpotTable, so that a
+    * table can be filtered without creating SpotData objects. The settings of
+    * the filter are copied, later changes do not affect the returned predicate.
+    *
+    * @param table - table with the spots
+    * @return predicate that is true for acceptable rows
+    */
+   public IntPredicate rowFilter(final SpotTable table) {
+      final boolean useSigma = useSigma_;
+      final double sigmaMin = sigmaMin_;
+      final double sigmaMax = sigmaMax_;
+      final boolean useIntensity = useIntensity_;
+      final double intensityMin = intensityMin_;
+      final double intensityMax = intensityMax_;
+      final String[] keys = itemFilter_.keySet().toArray(new String[itemFilter_.size()]);
+      final double[] minima = new double[keys.length];
+      final double[] maxima = new double[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+         minima[i] = itemFilter_.get(keys[i]).minimum_;
+         maxima[i] = itemFilter_.get(keys[i]).maximum_;
+      }
+      if (!useSigma && !useIntensity && keys.length == 0) {
+         return row -> true;
+      }
+      return row -> {
+         // values that a spot does not have are NaN, and are not filtered
+         if (useSigma) {
+            double sigma = table.getValue(SpotData.Keys.INTEGRALSIGMA, row);
+            if (sigma < sigmaMin || sigma > sigmaMax) {
+               return false;
+            }
+         }
+         if (useIntensity) {
+            double intensity = table.getValue(SpotData.Keys.APERTUREINTENSITY, row);
+            if (intensity < intensityMin || intensity > intensityMax) {
+               return false;
+            }
+         }
+         for (int i = 0; i < keys.length; i++) {
+            double value = table.getValue(keys[i], row);
+            if (value < minima[i] || value > maxima[i]) {
+               return false;
+            }
+         }
+         return true;
+      };
+   }
 
 }
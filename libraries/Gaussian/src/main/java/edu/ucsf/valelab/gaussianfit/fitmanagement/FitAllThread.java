@@ -34,6 +34,7 @@ package edu.ucsf.valelab.gaussianfit.fitmanagement;
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.algorithm.FindLocalMaxima;
+import edu.ucsf.valelab.gaussianfit.algorithm.LocalMaximaFinder;
 import edu.ucsf.valelab.gaussianfit.data.GaussianInfo;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
@@ -56,10 +57,13 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import org.micromanager.Studio;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Coords.CoordsBuilder;
@@ -75,13 +79,19 @@ public class FitAllThread extends GaussianInfo implements Runnable {
    double[] steps_ = new double[5];
    GaussianFitStackThread[] gfsThreads_;
    private volatile Thread t_ = null;
-   private static boolean running_ = false;
+   private static volatile boolean running_ = false;
    private final FindLocalMaxima.FilterType preFilterType_;
    private final String positionString_;
    private boolean showDataWindow_ = true;
    private final Studio studio_;
    private final ExecutorService threadPool_;
    private final int nrThreads_;
+   // Images whose spots are waiting to be fit. Bounded, so that finding spots
+   // does not run too far ahead of fitting them and use up all memory.
+   static final int MAX_QUEUED_BATCHES = 1000;
+   // How long to wait for room in the queue before checking whether the fit was stopped
+   private static final long OFFER_TIMEOUT_MS = 100;
+   private BlockingQueue<SpotBatch> batches_;
 
    public FitAllThread(Studio studio,
          int nrThreads,
@@ -140,7 +150,7 @@ public class FitAllThread extends GaussianInfo implements Runnable {
    public void run() {
 
       // List with spot positions found through the Find Maxima command
-      sourceList_ = new LinkedBlockingQueue<SpotData>();
+      batches_ = new LinkedBlockingQueue<SpotBatch>(MAX_QUEUED_BATCHES);
       resultList_ = Collections.synchronizedList(new ArrayList<SpotData>());
 
       // take the active ImageJ image
@@ -307,7 +317,7 @@ public class FitAllThread extends GaussianInfo implements Runnable {
       gfsThreads_ = new GaussianFitStackThread[nrThreads_];
       Future<?>[] futures = new Future<?>[nrThreads_];
       for (int i = 0; i < nrThreads_; i++) {
-         gfsThreads_[i] = new GaussianFitStackThread(sourceList_, resultList_, siPlus);
+         gfsThreads_[i] = new GaussianFitStackThread(batches_, resultList_, siPlus);
          gfsThreads_[i].copy(this);
          futures[i] = threadPool_.submit(gfsThreads_[i]);
       }
@@ -325,6 +335,8 @@ public class FitAllThread extends GaussianInfo implements Runnable {
          nrChannels -= channelsToSkip_.length;
       }
       int nrImages = nrChannels * siPlus.getNSlices() * siPlus.getNFrames();
+      // keeps its buffers from one image to the next
+      LocalMaximaFinder finder = new LocalMaximaFinder();
       int imageCount = 0;
       try {
          for (int c = 1; c <= siPlus.getNChannels(); c++) {
@@ -340,22 +352,11 @@ public class FitAllThread extends GaussianInfo implements Runnable {
                      if (!running_) {
                         break;
                      }
-                     // to avoid making a gigantic sourceList and running out of memory
-                     // sleep a bit when the sourcesize gets too big
-                     // once we have very fast multi-core computers, this constant can be increased
-                     if (sourceList_.size() > 100000) {
-                        try {
-                           Thread.sleep(1000);
-                        } catch (InterruptedException ex) {
-                           // not sure what to do
-                        }
-                     }
-
                      imageCount++;
                      ij.IJ.showStatus("Processing image " + imageCount);
 
                      ImageProcessor siProc = null;
-                     Polygon p = new Polygon();
+                     int[][] maxima;
                      synchronized (SpotData.LOCK_IP) {
                         siPlus.setPositionWithoutUpdate(c, z, f);
                         // If ROI manager is used, use RoiManager Rois
@@ -366,6 +367,7 @@ public class FitAllThread extends GaussianInfo implements Runnable {
                         //   rois = roiM.getSelectedRoisAsArray();
                         //}
                         if (rois != null && rois.length > 0) {
+                           Polygon p = new Polygon();
                            for (Roi roi : rois) {
                               siPlus.setRoi(roi, false);
                               siProc = siPlus.getProcessor();
@@ -376,55 +378,49 @@ public class FitAllThread extends GaussianInfo implements Runnable {
                                  p.addPoint(q.xpoints[i], q.ypoints[i]);
                               }
                            }
+                           maxima = new int[][] {Arrays.copyOf(p.xpoints, p.npoints),
+                                 Arrays.copyOf(p.ypoints, p.npoints)};
                         } else {  // no Rois in RoiManager
                            siPlus.setRoi(originalRoi, false);
                            siProc = siPlus.getProcessor();
-                           p = FindLocalMaxima
-                                 .findMax(siPlus, 2 * super.getHalfBoxSize(), noiseTolerance_,
-                                       preFilterType_);
+                           maxima = FindLocalMaxima.findMaxima(siPlus,
+                                 2 * super.getHalfBoxSize(), noiseTolerance_, preFilterType_,
+                                 finder);
                         }
                      }
 
                      ij.IJ.showProgress(imageCount, nrImages);
 
-                     if (p.npoints > nrSpots) {
-                        nrSpots = p.npoints;
+                     int nrMaxima = maxima[0].length;
+                     if (nrMaxima > nrSpots) {
+                        nrSpots = nrMaxima;
                      }
-                     int[][] sC = new int[p.npoints][2];
-                     for (int j = 0; j < p.npoints; j++) {
-                        sC[j][0] = p.xpoints[j];
-                        sC[j][1] = p.ypoints[j];
+                     int[][] sC = new int[nrMaxima][2];
+                     for (int j = 0; j < nrMaxima; j++) {
+                        sC[j][0] = maxima[0][j];
+                        sC[j][1] = maxima[1][j];
                      }
 
                      Arrays.sort(sC, new SpotSortComparator());
 
+                     SpotBatch batch = new SpotBatch(c, z, f, position, 2 * halfSize,
+                           sC.length);
                      for (int j = 0; j < sC.length; j++) {
                         // filter out spots too close to the edge
                         if (sC[j][0] > halfSize && sC[j][0] < siPlus.getWidth() - halfSize
                               && sC[j][1] > halfSize && sC[j][1] < siPlus.getHeight() - halfSize) {
-                           ImageProcessor sp = SpotData.getSpotProcessor(siProc,
-                                 halfSize, sC[j][0], sC[j][1]);
-                           if (sp == null) {
-                              continue;
-                           }
-                           int channel = c;
-
-                           SpotData thisSpot = new SpotData(sp, channel, z, f,
-                                 position, j, sC[j][0], sC[j][1]);
-                           try {
-                              sourceList_.put(thisSpot);
-                           } catch (InterruptedException iex) {
-                              Thread.currentThread().interrupt();
-                              throw new RuntimeException("Unexpected interruption");
-                           }
+                           batch.add(siProc, j, sC[j][0], sC[j][1]);
                         }
                      }
+                     if (batch.count_ > 0) {
+                        enqueue(batches_, batch, this::isRunning);
+                     }
                   }
                }
             }
          }
          // start ProgresBar thread
-         ProgressThread pt = new ProgressThread(sourceList_);
+         ProgressThread pt = new ProgressThread(batches_);
          pt.init();
 
 
@@ -433,13 +429,7 @@ public class FitAllThread extends GaussianInfo implements Runnable {
       }
 
       // Send working threads signal that we are done:
-      SpotData lastSpot = new SpotData(null, -1, 1, -1, -1, -1, -1, -1);
-      try {
-         sourceList_.put(lastSpot);
-      } catch (InterruptedException iex) {
-         Thread.currentThread().interrupt();
-         throw new RuntimeException("Unexpected interruption");
-      }
+      signalEnd(batches_, this::isRunning);
 
       // wait for worker threads to finish
       for (int i = 0; i < nrThreads_; i++) {
@@ -453,11 +443,47 @@ public class FitAllThread extends GaussianInfo implements Runnable {
 
       siPlus.setPosition(shownChannel, shownSlice, shownFrame);
 
-      sourceList_.clear();
+      batches_.clear();
       return nrSpots;
    }
 
 
+   /**
+    * Adds a batch to the queue, waiting for room for as long as the fit runs.
+    * The fitting threads quit when the fit is stopped, so waiting for room
+    * then could block forever.
+    *
+    * @return false if the fit was stopped before there was room
+    */
+   static boolean enqueue(BlockingQueue<SpotBatch> batches, SpotBatch batch,
+         BooleanSupplier running) {
+      try {
+         while (!batches.offer(batch, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            if (!running.getAsBoolean()) {
+               return false;
+            }
+         }
+         return true;
+      } catch (InterruptedException iex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Unexpected interruption");
+      }
+   }
+
+   /**
+    * Signals the fitting threads that there are no more batches.  If the fit
+    * was stopped, the batches that were not fit yet are dropped, so that the
+    * signal does not wait for room in the queue.
+    */
+   static void signalEnd(BlockingQueue<SpotBatch> batches, BooleanSupplier running) {
+      if (!running.getAsBoolean()) {
+         batches.clear();
+      }
+      while (!enqueue(batches, SpotBatch.END, running)) {
+         batches.clear();
+      }
+   }
+
    private class SpotSortComparator implements Comparator {
 
       // Return the result of comparing the two row arrays
@@ -36,10 +36,11 @@ import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit;
 import edu.ucsf.valelab.gaussianfit.data.GaussianInfo;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.fitting.GaussianFitKernel;
 import edu.ucsf.valelab.gaussianfit.fitting.ZCalibrator;
 import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
@@ -52,10 +53,12 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
    Thread t_;
    boolean stopNow_ = false;
 
-   public GaussianFitStackThread(BlockingQueue<SpotData> sourceList,
+   private final BlockingQueue<SpotBatch> batches_;
+
+   GaussianFitStackThread(BlockingQueue<SpotBatch> batches,
          List<SpotData> resultList, ImagePlus siPlus) {
       siPlus_ = siPlus;
-      sourceList_ = sourceList;
+      batches_ = batches;
       resultList_ = resultList;
    }
 
@@ -81,18 +84,24 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
 
    @Override
    public void run() {
-      GaussianFit gs = new GaussianFit(super.getShape(), super.getFitMode(),
-            super.getUseFixedWidth(), super.getFixedWidthNm() / super.getPixelSize() / 2);
+      GaussianFitKernel kernel = new GaussianFitKernel(super.getShape(), super.getFitMode(),
+            super.getUseFixedWidth(), super.getFixedWidthNm() / super.getPixelSize() / 2,
+            maxIterations_);
+      final int nrParms = kernel.getNrParameters();
       ZCalibrator zc = DataCollectionForm.zc_;
+      // reused for all batches, grown when needed
+      double[] parms = new double[0];
+      double[] aperture = new double[0];
+      List<SpotData> fitted = new ArrayList<SpotData>();
 
       while (!stopNow_) {
-         SpotData spot;
+         SpotBatch batch;
          synchronized (GFSLOCK) {
             try {
-               spot = sourceList_.take();
+               batch = batches_.take();
                // Look for signal that we are done, add back to queue if found
-               if (spot.getFrame() == -1) {
-                  sourceList_.add(spot);
+               if (batch == SpotBatch.END) {
+                  batches_.add(batch);
                   return;
                }
             } catch (InterruptedException iExp) {
@@ -102,22 +111,27 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
          }
 
          try {
-            // Note: the implementation will try to return a cached version of the ImageProcessor
-            ImageProcessor ip = spot.getSpotProcessor(siPlus_, super.getHalfBoxSize());
-            GaussianFit.Data fitResult = gs.dogaussianfit(ip, maxIterations_);
-            // Note that the copy constructor will not copy pixel data, so we loose 
-            // those when spot goes out of scope
-            SpotData spotData = SpotDataConverter.convert(spot, fitResult, this, zc);
-
-            if (fitResult.getParms().length > 1
-                    && (!useWidthFilter_
-                    || (spotData.getWidth() > widthMin_ && spotData.getWidth() < widthMax_))
-                  && (!useNrPhotonsFilter_
-                    || (spotData.getIntensity() > nrPhotonsMin_
-                    && spotData.getIntensity() < nrPhotonsMax_))) {
-               resultList_.add(spotData);
+            if (parms.length < batch.count_ * nrParms) {
+               parms = new double[batch.count_ * nrParms];
+               aperture = new double[batch.count_ * 2];
             }
+            kernel.fitBatch(batch.pixels_, batch.boxSize_, batch.boxSize_, batch.count_,
+                  parms, aperture);
+            fitted.clear();
+            for (int i = 0; i < batch.count_; i++) {
+               if (Double.isNaN(parms[i * nrParms + GaussianFit.INT])) {
+                  continue;
+               }
+               SpotData spot = new SpotData(null, batch.channel_, batch.slice_, batch.frame_,
+                     batch.position_, batch.nr_[i], batch.x_[i], batch.y_[i]);
+               SpotData spotData = SpotDataConverter.convert(spot, parms, i * nrParms,
+                     nrParms, aperture[2 * i], aperture[2 * i + 1], this, zc);
 
+               if (passesFilters(spotData)) {
+                  fitted.add(spotData);
+               }
+            }
+            resultList_.addAll(fitted);
 
          } catch (Exception ex) {
             ReportingUtils.logError(ex);
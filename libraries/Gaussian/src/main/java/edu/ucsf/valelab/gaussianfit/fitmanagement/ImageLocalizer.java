@@ -0,0 +1,104 @@
+package edu.ucsf.valelab.gaussianfit.fitmanagement;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.algorithm.FindLocalMaxima;
+import edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit;
+import edu.ucsf.valelab.gaussianfit.algorithm.LocalMaximaFinder;
+import edu.ucsf.valelab.gaussianfit.data.GaussianInfo;
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.fitting.GaussianFitKernel;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Finds and fits the spots in one image at a time, for instance as images
+ * arrive during an acquisition. Settings are those of GaussianInfo, and
+ * should be set before the first image is analyzed. Spots of an image are
+ * fit in parallel.
+ *
+ * <p>Keeps buffers from one image to the next. Not thread-safe.
+ *
+ * @author nico
+ */
+public class ImageLocalizer extends GaussianInfo {
+
+   private final FindLocalMaxima.FilterType preFilterType_;
+   private final LocalMaximaFinder finder_ = new LocalMaximaFinder();
+   private GaussianFitKernel kernel_;
+   private double[] parms_ = new double[0];
+   private double[] aperture_ = new double[0];
+
+   public ImageLocalizer(FindLocalMaxima.FilterType preFilterType) {
+      preFilterType_ = preFilterType;
+   }
+
+   /**
+    * Finds and fits the spots in an image.
+    *
+    * @param siProc   - image to analyze, ROI is respected
+    * @param channel  - channel (1-based) to be recorded with the spots
+    * @param slice    - slice (1-based)
+    * @param frame    - frame (1-based)
+    * @param position - position (1-based)
+    * @return spots that could be fit and passed the filters, in calibrated units
+    */
+   public List<SpotData> localize(ImageProcessor siProc, int channel, int slice, int frame,
+                                  int position) {
+      final int halfSize = super.getHalfBoxSize();
+      int[][] maxima = FindLocalMaxima.findMaxima(new ImagePlus("", siProc), 2 * halfSize,
+            noiseTolerance_, preFilterType_, finder_);
+      final SpotBatch batch = new SpotBatch(channel, slice, frame, position, 2 * halfSize,
+            maxima[0].length);
+      for (int j = 0; j < maxima[0].length; j++) {
+         int x = maxima[0][j];
+         int y = maxima[1][j];
+         // filter out spots too close to the edge
+         if (x > halfSize && x < siProc.getWidth() - halfSize
+               && y > halfSize && y < siProc.getHeight() - halfSize) {
+            batch.add(siProc, j, x, y);
+         }
+      }
+      List<SpotData> result = new ArrayList<SpotData>(batch.count_);
+      if (batch.count_ == 0) {
+         return result;
+      }
+
+      if (kernel_ == null) {
+         kernel_ = new GaussianFitKernel(super.getShape(), super.getFitMode(),
+               super.getUseFixedWidth(), super.getFixedWidthNm() / super.getPixelSize() / 2,
+               maxIterations_);
+      }
+      final GaussianFitKernel kernel = kernel_;
+      final int nrParms = kernel.getNrParameters();
+      if (parms_.length < batch.count_ * nrParms) {
+         parms_ = new double[batch.count_ * nrParms];
+         aperture_ = new double[batch.count_ * 2];
+      }
+      final double[] parms = parms_;
+      final double[] aperture = aperture_;
+      final int boxPixels = batch.boxSize_ * batch.boxSize_;
+      IntStream.range(0, batch.count_).parallel().forEach(i -> {
+         if (!kernel.fit(batch.pixels_, i * boxPixels, batch.boxSize_, batch.boxSize_,
+               parms, i * nrParms, aperture, 2 * i)) {
+            parms[i * nrParms + GaussianFit.INT] = Double.NaN;
+         }
+      });
+
+      for (int i = 0; i < batch.count_; i++) {
+         if (Double.isNaN(parms[i * nrParms + GaussianFit.INT])) {
+            continue;
+         }
+         SpotData spot = new SpotData(null, channel, slice, frame, position, batch.nr_[i],
+               batch.x_[i], batch.y_[i]);
+         SpotData spotData = SpotDataConverter.convert(spot, parms, i * nrParms, nrParms,
+               aperture[2 * i], aperture[2 * i + 1], this, DataCollectionForm.zc_);
+         if (passesFilters(spotData)) {
+            result.add(spotData);
+         }
+      }
+      return result;
+   }
+}
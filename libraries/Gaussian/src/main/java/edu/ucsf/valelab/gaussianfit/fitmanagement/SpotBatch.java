@@ -0,0 +1,79 @@
+package edu.ucsf.valelab.gaussianfit.fitmanagement;
+
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+/**
+ * The spots found in one image, with the pixels of the box around each spot
+ * copied one after the other into a single array, so that they can be fit
+ * without cropping an ImageProcessor per spot.
+ *
+ * @author nico
+ */
+final class SpotBatch {
+
+   /**
+    * Signals the fitting threads that there are no more batches.
+    */
+   static final SpotBatch END = new SpotBatch(-1, -1, -1, -1, 0, 0);
+
+   final int channel_;
+   final int slice_;
+   final int frame_;
+   final int position_;
+   final int boxSize_;
+   int[] nr_;
+   int[] x_;
+   int[] y_;
+   short[] pixels_;
+   int count_ = 0;
+
+   SpotBatch(int channel, int slice, int frame, int position, int boxSize, int capacity) {
+      channel_ = channel;
+      slice_ = slice;
+      frame_ = frame;
+      position_ = position;
+      boxSize_ = boxSize;
+      nr_ = new int[capacity];
+      x_ = new int[capacity];
+      y_ = new int[capacity];
+      pixels_ = new short[capacity * boxSize * boxSize];
+   }
+
+   /**
+    * Copies the box of boxSize pixels with its upper left corner at
+    * (x - boxSize / 2, y - boxSize / 2), which should lie within the image.
+    */
+   void add(ImageProcessor siProc, int nr, int x, int y) {
+      final int boxPixels = boxSize_ * boxSize_;
+      if (count_ == nr_.length) {
+         int capacity = Math.max(16, 2 * count_);
+         nr_ = Arrays.copyOf(nr_, capacity);
+         x_ = Arrays.copyOf(x_, capacity);
+         y_ = Arrays.copyOf(y_, capacity);
+         pixels_ = Arrays.copyOf(pixels_, capacity * boxPixels);
+      }
+      final int x0 = x - boxSize_ / 2;
+      final int y0 = y - boxSize_ / 2;
+      final int width = siProc.getWidth();
+      final Object pixels = siProc.getPixels();
+      int index = count_ * boxPixels;
+      if (pixels instanceof short[]) {
+         for (int row = 0; row < boxSize_; row++) {
+            System.arraycopy(pixels, (y0 + row) * width + x0, pixels_, index, boxSize_);
+            index += boxSize_;
+         }
+      } else {
+         for (int row = 0; row < boxSize_; row++) {
+            for (int col = 0; col < boxSize_; col++) {
+               float v = siProc.getf(x0 + col, y0 + row);
+               pixels_[index++] = (short) Math.max(0, Math.min(65535, Math.round(v)));
+            }
+         }
+      }
+      nr_[count_] = nr;
+      x_[count_] = x;
+      y_[count_] = y;
+      count_++;
+   }
+}
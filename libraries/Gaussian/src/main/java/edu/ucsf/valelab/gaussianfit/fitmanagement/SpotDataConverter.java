@@ -25,6 +25,33 @@ public class SpotDataConverter {
          GaussianFit.Data fitResult,
          GaussianInfo info,
          ZCalibrator zc) {
+      return convert(spot, fitResult.getParms(), 0, fitResult.getParms().length,
+            fitResult.getApertureIntensity(), fitResult.getApertureBackground(), info, zc);
+   }
+
+   /**
+    * As above, for fit results stored in an array, as returned by GaussianFitKernel.
+    *
+    * @param spot               - input spot (which will be copied)
+    * @param parms              - array containing the fitted parameters
+    * @param offset             - index of the first parameter of this spot in parms
+    * @param nrParms            - number of fitted parameters
+    * @param apertureIntensity  - aperture intensity in digital counts
+    * @param apertureBackground - aperture background in digital counts
+    * @param info               - Information about the system needed to convert to real world
+    *                           values
+    * @param zc                 - ZCailbration information if available
+    * @return SpotData with calibrated values
+    */
+   public static SpotData convert(
+         SpotData spot,
+         double[] parms,
+         int offset,
+         int nrParms,
+         double apertureIntensity,
+         double apertureBackground,
+         GaussianInfo info,
+         ZCalibrator zc) {
 
       SpotData spotData = new SpotData(spot);
       double sx;
@@ -33,34 +60,34 @@ public class SpotDataConverter {
       double theta = 0;
       double gs = info.getFixedWidthNm() / info.getPixelSize() / 2;
       double cPCF = info.getPhotonConversionFactor() / info.getGain();
-      if (fitResult.getParms().length >= 4) {
+      if (nrParms >= 4) {
 
-         final double xMax = (fitResult.getParms()[GaussianFit.XC]
+         final double xMax = (parms[offset + GaussianFit.XC]
                - info.getHalfBoxSize() + spot.getX()) * info.getPixelSize();
-         final double yMax = (fitResult.getParms()[GaussianFit.YC]
+         final double yMax = (parms[offset + GaussianFit.YC]
                - info.getHalfBoxSize() + spot.getY()) * info.getPixelSize();
          // express background in photons after base level correction
          double bInElectrons =
-               cPCF * (fitResult.getParms()[GaussianFit.BGR] - info.getBaseLevel());
+               cPCF * (parms[offset + GaussianFit.BGR] - info.getBaseLevel());
          // Add the read-noise of the camera (expressed in electrons
          double bgr = Math.sqrt(bInElectrons + (info.getReadNoise() * info.getReadNoise()));
 
-         if (fitResult.getParms().length >= 5) {
-            gs = fitResult.getParms()[GaussianFit.S];
+         if (nrParms >= 5) {
+            gs = parms[offset + GaussianFit.S];
          }
-         double n = cPCF * fitResult.getParms()[GaussianFit.INT]
+         double n = cPCF * parms[offset + GaussianFit.INT]
                * (2 * Math.PI * gs * gs);
 
          // # of photons and background as calculated using the method by
          // Franke et al. : http://dx.doi/org/10.1038/nmeth.4073
-         final double nAperture = cPCF * fitResult.getApertureIntensity();
+         final double nAperture = cPCF * apertureIntensity;
          // first calculate aperture background-noise squared 
          // (i.e. background expressed in photons)
          double bgrAperture = cPCF
-                 * (fitResult.getApertureBackground() - info.getBaseLevel());
+                 * (apertureBackground - info.getBaseLevel());
          // Add the read-noise of the camera (expressed in electrons)
          bgrAperture = Math.sqrt(bgrAperture + (info.getReadNoise() * info.getReadNoise()));
-         // double n = info.getPhotonConversionFactor() * fitResult.getParms()[GaussianFit.INT];
+         // double n = info.getPhotonConversionFactor() * parms[offset + GaussianFit.INT];
 
          // calculate error using formula from Thompson et al (2002)
          // (dx)2 = (s*s + (a*a/12)) / n + (8*pi*s*s*s*s * b*b) / (a*a*n*n)
@@ -107,9 +134,9 @@ public class SpotDataConverter {
          }
          final double altSigmaApt = Math.sqrt(altVarXApt);
 
-         if (fitResult.getParms().length >= 6) {
-            sx = fitResult.getParms()[GaussianFit.S1] * info.getPixelSize();
-            sy = fitResult.getParms()[GaussianFit.S2] * info.getPixelSize();
+         if (nrParms >= 6) {
+            sx = parms[offset + GaussianFit.S1] * info.getPixelSize();
+            sy = parms[offset + GaussianFit.S2] * info.getPixelSize();
             a = sx / sy;
 
             double z;
@@ -121,8 +148,8 @@ public class SpotDataConverter {
 
          }
 
-         if (fitResult.getParms().length >= 7) {
-            theta = fitResult.getParms()[GaussianFit.S3];
+         if (nrParms >= 7) {
+            theta = parms[offset + GaussianFit.S3];
          }
 
          double width = 2 * s;
@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2015-2017, Regents the University of California
+ * Author: Nico Stuurman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.ucsf.valelab.gaussianfit.fitting;
+
+import edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit;
+
+/**
+ * Fits 2D Gaussians to small boxes of 16-bit pixels, without the Apache Commons
+ * Math machinery used by GaussianFit.
+ *
+ * <p>Uses Levenberg-Marquardt iterations with analytical derivatives, either on
+ * the sum of squared residuals (least squares), or on the Poisson negative
+ * log-likelihood (maximum likelihood, with the Fisher information matrix in
+ * place of the Hessian, as in Laurence and Chromy, Nat. Meth. 2010). The
+ * models, parameter order, starting estimates and the returned parameters are
+ * the same as those of GaussianFit, so that results can be passed to
+ * SpotDataConverter: {A, b, xc, yc, s} (or {A, b, xc, yc} with a fixed width),
+ * {A, b, xc, yc, sx, sy}, or {A, b, xc, yc, sx, sy, theta} for the ellipse.
+ *
+ * <p>Each thread gets its own work arrays, so that fitting does not allocate
+ * and an instance can be shared by all fitting threads.
+ *
+ * @author nico
+ */
+public final class GaussianFitKernel {
+
+   private static final int INT = GaussianFit.INT;
+   private static final int BGR = GaussianFit.BGR;
+   private static final int XC = GaussianFit.XC;
+   private static final int YC = GaussianFit.YC;
+   private static final int S1 = GaussianFit.S1;
+   private static final int S2 = GaussianFit.S2;
+   private static final int S3 = GaussianFit.S3;
+   // Damping factor increase and decrease
+   private static final double LAMBDA_FACTOR = 10.0;
+   private static final int MAX_DAMPING_TRIES = 10;
+   // Stop when the objective improves by less than this fraction
+   private static final double TOLERANCE = 1e-7;
+
+   private static final class Workspace {
+      private final double[] params_;
+      private final double[] trial_;
+      private final double[] jacobian_;
+      private final double[] hessian_;
+      private final double[] lhs_;
+      private final double[] gradient_;
+      private final double[] step_;
+
+      private Workspace(int n) {
+         params_ = new double[n];
+         trial_ = new double[n];
+         jacobian_ = new double[n];
+         hessian_ = new double[n * n];
+         lhs_ = new double[n * n];
+         gradient_ = new double[n];
+         step_ = new double[n];
+      }
+   }
+
+   private final int shape_;
+   private final boolean mle_;
+   private final boolean fitWidth_;
+   private final double fixedWidth_;
+   private final int nrParams_;
+   private final int maxIterations_;
+   private final ThreadLocal<Workspace> workspace_;
+
+   /**
+    * Arguments are as for GaussianFit.
+    *
+    * @param shape         - fit circle (1) ellipse(2), or ellipse with varying angle (3)
+    * @param fitMode       - GaussianFit.NELDERMEAD and LEVENBERGMARQUARD give least
+    *                      squares fits, NELDERMEADMLE and LEVENBERGMARQUARDMLE maximum
+    *                      likelihood fits
+    * @param fixWidth      - if true, do not fit the width
+    * @param fixedWidth    - width of the Gaussian in pixels
+    * @param maxIterations - maximum number of iterations per fit
+    */
+   public GaussianFitKernel(int shape, int fitMode, boolean fixWidth, double fixedWidth,
+                            int maxIterations) {
+      mle_ = fitMode == GaussianFit.NELDERMEADMLE
+            || fitMode == GaussianFit.LEVENBERGMARQUARDMLE;
+      fitWidth_ = !(fixWidth && fixedWidth > 0.0);
+      fixedWidth_ = fitWidth_ ? -1.0 : fixedWidth;
+      shape_ = fitWidth_ ? shape : GaussianFit.CIRCLE;
+      nrParams_ = shape_ + (fitWidth_ ? 4 : 3);
+      maxIterations_ = maxIterations;
+      final int n = nrParams_;
+      workspace_ = ThreadLocal.withInitial(() -> new Workspace(n));
+   }
+
+   /**
+    * Number of parameters of each fit result.
+    */
+   public int getNrParameters() {
+      return nrParams_;
+   }
+
+   /**
+    * Fits a number of boxes stored one after the other.
+    *
+    * @param boxes    pixels of all boxes
+    * @param width    width of each box
+    * @param height   height of each box
+    * @param count    number of boxes
+    * @param results  receives getNrParameters() values per box; INT is set to NaN
+    *                 for boxes that could not be fit
+    * @param aperture receives the aperture intensity and background (in raw
+    *                 units) of each box
+    * @return number of successful fits
+    */
+   public int fitBatch(short[] boxes, int width, int height, int count,
+                       double[] results, double[] aperture) {
+      int nrFit = 0;
+      for (int i = 0; i < count; i++) {
+         if (fit(boxes, i * width * height, width, height, results, i * nrParams_,
+               aperture, 2 * i)) {
+            nrFit++;
+         } else {
+            results[i * nrParams_ + INT] = Double.NaN;
+         }
+      }
+      return nrFit;
+   }
+
+   /**
+    * Fits a single box.
+    *
+    * @param pixels         array containing the box
+    * @param offset         index of the first pixel of the box
+    * @param width          width of the box
+    * @param height         height of the box
+    * @param result         receives the fitted parameters
+    * @param resultOffset   index of the first parameter in result
+    * @param aperture       receives aperture intensity and background
+    * @param apertureOffset index in aperture
+    * @return false if the fit failed
+    */
+   public boolean fit(short[] pixels, int offset, int width, int height,
+                      double[] result, int resultOffset, double[] aperture,
+                      int apertureOffset) {
+      final Workspace ws = workspace_.get();
+      final double[] params = ws.params_;
+      estimate(pixels, offset, width, height, params, aperture, apertureOffset);
+
+      double objective = objective(pixels, offset, width, height, params);
+      if (Double.isInfinite(objective) || Double.isNaN(objective)) {
+         return false;
+      }
+      double lambda = 1e-3;
+      for (int iteration = 0; iteration < maxIterations_; iteration++) {
+         accumulate(pixels, offset, width, height, params, ws);
+         boolean accepted = false;
+         double newObjective = objective;
+         for (int tries = 0; tries < MAX_DAMPING_TRIES; tries++) {
+            if (solve(ws, lambda)) {
+               for (int i = 0; i < nrParams_; i++) {
+                  ws.trial_[i] = params[i] + ws.step_[i];
+               }
+               if (isValid(ws.trial_)) {
+                  newObjective = objective(pixels, offset, width, height, ws.trial_);
+                  if (newObjective < objective) {
+                     accepted = true;
+                     break;
+                  }
+               }
+            }
+            lambda *= LAMBDA_FACTOR;
+         }
+         if (!accepted) {
+            // No step improves the fit: at the minimum (or stuck)
+            break;
+         }
+         System.arraycopy(ws.trial_, 0, params, 0, nrParams_);
+         lambda = Math.max(lambda / (LAMBDA_FACTOR * LAMBDA_FACTOR), 1e-12);
+         boolean done = objective - newObjective <= TOLERANCE * Math.abs(objective);
+         objective = newObjective;
+         if (done) {
+            break;
+         }
+      }
+      for (int i = 0; i < nrParams_; i++) {
+         if (Double.isNaN(params[i]) || Double.isInfinite(params[i])) {
+            return false;
+         }
+      }
+      System.arraycopy(params, 0, result, resultOffset, nrParams_);
+      if (shape_ == GaussianFit.ELLIPSE) {
+         // Convert a, b, c to sigma x, sigma y and theta, as GaussianFit does
+         double a = params[S1];
+         double b = params[S2];
+         double c = params[S3];
+         double u = (a - c) / b;
+         double theta = Math.atan((-u + Math.sqrt(u * u + 1)) / 2.0);
+         double cos = Math.cos(theta);
+         double sin = Math.sin(theta);
+         result[resultOffset + S1] = Math.sqrt((cos * cos - sin * sin) / (cos * a - sin * c));
+         result[resultOffset + S2] = Math.sqrt((cos * cos - sin * sin) / (cos * c - sin * a));
+         result[resultOffset + S3] = theta;
+      }
+      return true;
+   }
+
+   /**
+    * Starting values, as in GaussianFit: background from the edge pixels,
+    * amplitude from the total signal, center from the centroid, and a width of
+    * 0.9 pixels.
+    */
+   private void estimate(short[] pixels, int offset, int width, int height,
+                         double[] params, double[] aperture, int apertureOffset) {
+      double s = fitWidth_ ? 0.9 : fixedWidth_;
+      if (fitWidth_) {
+         params[S1] = s;
+      }
+      if (shape_ >= GaussianFit.ASYMMETRIC) {
+         params[S2] = 0.9;
+      }
+      if (shape_ == GaussianFit.ELLIPSE) {
+         params[S1] = 1;
+         params[S2] = 0;
+         params[S3] = 1;
+      }
+      double bg = 0.0;
+      int n = 0;
+      int lastRow = offset + (height - 1) * width;
+      for (int i = 0; i < width; i++) {
+         bg += (pixels[offset + i] & 0xffff) + (pixels[lastRow + i] & 0xffff);
+         n += 2;
+      }
+      for (int i = 1; i < height - 1; i++) {
+         bg += (pixels[offset + i * width] & 0xffff)
+               + (pixels[offset + (i + 1) * width - 1] & 0xffff);
+         n += 2;
+      }
+      double background = bg / n;
+      double total = 0.0;
+      double mx = 0.0;
+      double my = 0.0;
+      for (int y = 0, i = offset; y < height; y++) {
+         for (int x = 0; x < width; x++, i++) {
+            int v = pixels[i] & 0xffff;
+            total += v;
+            mx += v * x;
+            my += v * y;
+         }
+      }
+      double signal = total - background * width * height;
+      params[BGR] = background;
+      params[INT] = signal / (2 * Math.PI * s * s);
+      params[XC] = mx / total;
+      params[YC] = my / total;
+      aperture[apertureOffset] = signal;
+      aperture[apertureOffset + 1] = background;
+   }
+
+   /**
+    * Value of the model at (x, y) minus the background, i.e. A * exp(-E).
+    */
+   private double peak(double[] p, int x, int y) {
+      double dx = x - p[XC];
+      double dy = y - p[YC];
+      double exponent;
+      switch (shape_) {
+         case GaussianFit.ASYMMETRIC:
+            exponent = dx * dx / (2 * p[S1] * p[S1]) + dy * dy / (2 * p[S2] * p[S2]);
+            break;
+         case GaussianFit.ELLIPSE:
+            exponent = (p[S1] * dx * dx + p[S3] * dy * dy + 2.0 * p[S2] * dx * dy) / 2;
+            break;
+         default:
+            double s = fitWidth_ ? p[S1] : fixedWidth_;
+            exponent = (dx * dx + dy * dy) / (2 * s * s);
+            break;
+      }
+      return p[INT] * Math.exp(-exponent);
+   }
+
+   /**
+    * Derivatives of the model with respect to the parameters, given q, the
+    * value of peak(p, x, y).
+    */
+   private void derivatives(double[] p, int x, int y, double q, double[] jacobian) {
+      double dx = x - p[XC];
+      double dy = y - p[YC];
+      jacobian[INT] = p[INT] != 0.0 ? q / p[INT] : 0.0;
+      jacobian[BGR] = 1.0;
+      switch (shape_) {
+         case GaussianFit.ASYMMETRIC: {
+            double sx2 = p[S1] * p[S1];
+            double sy2 = p[S2] * p[S2];
+            jacobian[XC] = dx * q / sx2;
+            jacobian[YC] = dy * q / sy2;
+            jacobian[S1] = dx * dx * q / (sx2 * p[S1]);
+            jacobian[S2] = dy * dy * q / (sy2 * p[S2]);
+            break;
+         }
+         case GaussianFit.ELLIPSE:
+            jacobian[XC] = (p[S1] * dx + p[S2] * dy) * q;
+            jacobian[YC] = (p[S2] * dx + p[S3] * dy) * q;
+            jacobian[S1] = -0.5 * dx * dx * q;
+            jacobian[S2] = -dx * dy * q;
+            jacobian[S3] = -0.5 * dy * dy * q;
+            break;
+         default: {
+            double s = fitWidth_ ? p[S1] : fixedWidth_;
+            double s2 = s * s;
+            jacobian[XC] = dx * q / s2;
+            jacobian[YC] = dy * q / s2;
+            if (fitWidth_) {
+               jacobian[S1] = (dx * dx + dy * dy) * q / (s2 * s);
+            }
+            break;
+         }
+      }
+   }
+
+   /**
+    * Sum of squared residuals, or twice the Poisson negative log-likelihood
+    * ratio (deviance). Infinite for parameters where the model is not
+    * positive (MLE).
+    */
+   private double objective(short[] pixels, int offset, int width, int height, double[] p) {
+      double sum = 0.0;
+      for (int y = 0, i = offset; y < height; y++) {
+         for (int x = 0; x < width; x++, i++) {
+            double d = pixels[i] & 0xffff;
+            double f = peak(p, x, y) + p[BGR];
+            if (mle_) {
+               if (!(f > 0.0)) {
+                  return Double.POSITIVE_INFINITY;
+               }
+               sum += d > 0.0 ? 2.0 * (f - d + d * Math.log(d / f)) : 2.0 * f;
+            } else {
+               sum += (f - d) * (f - d);
+            }
+         }
+      }
+      return sum;
+   }
+
+   /**
+    * Computes the (approximate) Hessian and the gradient of the objective
+    * (with reversed sign) at p.
+    */
+   private void accumulate(short[] pixels, int offset, int width, int height, double[] p,
+                           Workspace ws) {
+      final int n = nrParams_;
+      final double[] h = ws.hessian_;
+      final double[] g = ws.gradient_;
+      final double[] j = ws.jacobian_;
+      java.util.Arrays.fill(h, 0.0);
+      java.util.Arrays.fill(g, 0.0);
+      for (int y = 0, i = offset; y < height; y++) {
+         for (int x = 0; x < width; x++, i++) {
+            double d = pixels[i] & 0xffff;
+            double q = peak(p, x, y);
+            double f = q + p[BGR];
+            derivatives(p, x, y, q, j);
+            double weight;
+            double residual;
+            if (mle_) {
+               // Fisher information and gradient of the log-likelihood
+               weight = 1.0 / f;
+               residual = d / f - 1.0;
+            } else {
+               weight = 1.0;
+               residual = d - f;
+            }
+            for (int r = 0; r < n; r++) {
+               double wj = weight * j[r];
+               for (int c = 0; c <= r; c++) {
+                  h[r * n + c] += wj * j[c];
+               }
+               g[r] += residual * j[r];
+            }
+         }
+      }
+   }
+
+   /**
+    * Solves (H + lambda * diag(H)) step = g by Cholesky decomposition.
+    *
+    * @return false when the matrix is not positive definite
+    */
+   private boolean solve(Workspace ws, double lambda) {
+      final int n = nrParams_;
+      final double[] h = ws.hessian_;
+      final double[] l = ws.lhs_;
+      final double[] step = ws.step_;
+      for (int r = 0; r < n; r++) {
+         for (int c = 0; c <= r; c++) {
+            double sum = h[r * n + c];
+            if (r == c) {
+               sum *= 1.0 + lambda;
+            }
+            for (int k = 0; k < c; k++) {
+               sum -= l[r * n + k] * l[c * n + k];
+            }
+            if (r == c) {
+               if (!(sum > 0.0)) {
+                  return false;
+               }
+               l[r * n + r] = Math.sqrt(sum);
+            } else {
+               l[r * n + c] = sum / l[c * n + c];
+            }
+         }
+      }
+      for (int r = 0; r < n; r++) {
+         double sum = ws.gradient_[r];
+         for (int k = 0; k < r; k++) {
+            sum -= l[r * n + k] * step[k];
+         }
+         step[r] = sum / l[r * n + r];
+      }
+      for (int r = n - 1; r >= 0; r--) {
+         double sum = step[r];
+         for (int k = r + 1; k < n; k++) {
+            sum -= l[k * n + r] * step[k];
+         }
+         step[r] = sum / l[r * n + r];
+      }
+      return true;
+   }
+
+   /**
+    * Rejects parameters for which the model is not a peak.
+    */
+   private boolean isValid(double[] p) {
+      switch (shape_) {
+         case GaussianFit.ASYMMETRIC:
+            return p[S1] > 0.0 && p[S2] > 0.0;
+         case GaussianFit.ELLIPSE:
+            return p[S1] > 0.0 && p[S3] > 0.0 && p[S1] * p[S3] - p[S2] * p[S2] > 0.0;
+         default:
+            return !fitWidth_ || p[S1] > 0.0;
+      }
+   }
+}
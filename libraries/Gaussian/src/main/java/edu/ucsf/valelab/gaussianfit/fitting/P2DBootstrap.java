@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018, Regents the University of California
+ * Author: Nico Stuurman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.ucsf.valelab.gaussianfit.fitting;
+
+import edu.ucsf.valelab.gaussianfit.utils.ListUtils;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.apache.commons.math3.exception.MathIllegalArgumentException;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+
+/**
+ * Bootstrap analysis of P2D fits: repeats a fit on resamples (with replacement) of the data and
+ * reports the spread of the fitted parameters.  Resamples are fitted in parallel, on the common
+ * fork/join pool.
+ *
+ * <p>Every resample gets its own random generator, split off a single seed in advance, so that the
+ * result does not depend on the order in which the resamples happen to be fitted.
+ *
+ * <p>Progress is reported in the ImageJ progress bar, as the number of resamples handled so far.
+ *
+ * @author nico
+ */
+public final class P2DBootstrap {
+
+   /**
+    * Fits a single resample
+    */
+   @FunctionalInterface
+   public interface Estimator {
+
+      /**
+       * @param sample indices into the original data, one per data point, drawn with replacement
+       * @return fitted parameters, always in the same order
+       * @throws FittingException when the fit fails
+       */
+      double[] fit(int[] sample) throws FittingException;
+   }
+
+   /**
+    * Fitted parameters of all resamples that could be fitted
+    */
+   public static final class Result {
+
+      private final double[][] estimates_;
+      private final int nrFailures_;
+      private final double confidence_;
+
+      private Result(double[][] estimates, int nrFailures, double confidence) {
+         estimates_ = estimates;
+         nrFailures_ = nrFailures;
+         confidence_ = confidence;
+      }
+
+      public int getNrFits() {
+         return estimates_.length;
+      }
+
+      public int getNrFailures() {
+         return nrFailures_;
+      }
+
+      public double getConfidence() {
+         return confidence_;
+      }
+
+      /**
+       * @param parameter index in the arrays returned by the Estimator
+       * @return fitted values of this parameter for all resamples, sorted
+       */
+      public double[] getValues(int parameter) {
+         double[] values = new double[estimates_.length];
+         for (int i = 0; i < estimates_.length; i++) {
+            values[i] = estimates_[i][parameter];
+         }
+         Arrays.sort(values);
+         return values;
+      }
+
+      public double getMean(int parameter) {
+         return ListUtils.avg(getValues(parameter));
+      }
+
+      public double getStdDev(int parameter) {
+         double[] values = getValues(parameter);
+         return ListUtils.stdDev(values, ListUtils.avg(values));
+      }
+
+      /**
+       * @return lower bound of the percentile confidence interval
+       */
+      public double getLowerBound(int parameter) {
+         return percentile(getValues(parameter), 0.5 * (1.0 - confidence_));
+      }
+
+      /**
+       * @return upper bound of the percentile confidence interval
+       */
+      public double getUpperBound(int parameter) {
+         return percentile(getValues(parameter), 1.0 - 0.5 * (1.0 - confidence_));
+      }
+
+      private static double percentile(double[] sorted, double fraction) {
+         if (sorted.length == 0) {
+            return Double.NaN;
+         }
+         double position = fraction * (sorted.length - 1);
+         int index = (int) Math.floor(position);
+         if (index >= sorted.length - 1) {
+            return sorted[sorted.length - 1];
+         }
+         return sorted[index] + (position - index) * (sorted[index + 1] - sorted[index]);
+      }
+   }
+
+   private P2DBootstrap() {
+   }
+
+   /**
+    * Fits nrRuns resamples of a data set.
+    *
+    * @param nrPoints    number of data points in the data set
+    * @param estimator   fits a single resample
+    * @param nrRuns      number of resamples
+    * @param maxNrErrors once this many fits failed, remaining resamples are skipped
+    * @param confidence  confidence level of the reported intervals, i.e. 0.95
+    * @param seed        seed for the random resampling
+    * @return parameters of all successful fits
+    */
+   public static Result run(final int nrPoints, final Estimator estimator, final int nrRuns,
+         final int maxNrErrors, final double confidence, final long seed) {
+      final SplittableRandom[] randoms = new SplittableRandom[nrRuns];
+      SplittableRandom seedRandom = new SplittableRandom(seed);
+      for (int run = 0; run < nrRuns; run++) {
+         randoms[run] = seedRandom.split();
+      }
+      final double[][] estimates = new double[nrRuns][];
+      final AtomicInteger nrFailures = new AtomicInteger(0);
+      final AtomicInteger runsDone = new AtomicInteger(0);
+      IntStream.range(0, nrRuns).parallel().forEach((int run) -> {
+         if (nrFailures.get() >= maxNrErrors) {
+            ij.IJ.showProgress(runsDone.incrementAndGet(), nrRuns);
+            return;
+         }
+         int[] sample = new int[nrPoints];
+         for (int i = 0; i < nrPoints; i++) {
+            sample[i] = randoms[run].nextInt(nrPoints);
+         }
+         try {
+            estimates[run] = estimator.fit(sample);
+         } catch (FittingException | MathIllegalStateException
+               | MathIllegalArgumentException ex) {
+            nrFailures.incrementAndGet();
+         }
+         ij.IJ.showProgress(runsDone.incrementAndGet(), nrRuns);
+      });
+
+      int nrFits = 0;
+      for (double[] estimate : estimates) {
+         if (estimate != null) {
+            estimates[nrFits++] = estimate;
+         }
+      }
+      return new Result(Arrays.copyOf(estimates, nrFits), nrFailures.get(), confidence);
+   }
+
+   /**
+    * Copies the sampled values out of the data.
+    *
+    * @param data   original data
+    * @param sample indices into the data, as handed to the Estimator
+    * @return resampled data
+    */
+   public static double[] resample(double[] data, int[] sample) {
+      double[] result = new double[sample.length];
+      for (int i = 0; i < sample.length; i++) {
+         result[i] = data[sample[i]];
+      }
+      return result;
+   }
+
+}
@@ -58,6 +58,7 @@ public class P2DFitter {
    class P2DFunc implements MultivariateFunction {
 
       private final double[] points_;
+      private final P2DLikelihood likelihood_;
       private final boolean fitSigma_;
       private final double sigma_;
 
@@ -70,6 +71,7 @@ public class P2DFitter {
        */
       public P2DFunc(double[] points, final boolean fitSigma, final double sigma) {
          points_ = points;
+         likelihood_ = new P2DLikelihood(points, null);
          fitSigma_ = fitSigma;
          sigma_ = sigma;
       }
@@ -82,16 +84,11 @@ public class P2DFitter {
        */
       @Override
       public double value(double[] doubles) {
-         double sum = 0.0;
          double sigma = sigma_;
          if (fitSigma_) {
             sigma = doubles[1];
          }
-         for (double point : points_) {
-            double predictedValue = P2DFunctions.p2d(point, doubles[0], sigma);
-            sum += Math.log(predictedValue);
-         }
-         return sum;
+         return likelihood_.logLikelihood(doubles[0], sigma);
       }
 
       public double nonLogValue(double[] doubles) {
@@ -120,6 +117,7 @@ public class P2DFitter {
    class P2DFuncFixedMu implements MultivariateFunction {
 
       private final double[] points_;
+      private final P2DLikelihood likelihood_;
       private final double mu_;
 
       /**
@@ -131,6 +129,7 @@ public class P2DFitter {
        */
       public P2DFuncFixedMu(double[] points, final double mu) {
          points_ = points;
+         likelihood_ = new P2DLikelihood(points, null);
          mu_ = mu;
       }
 
@@ -142,13 +141,7 @@ public class P2DFitter {
        */
       @Override
       public double value(double[] doubles) {
-         double sum = 0.0;
-         double mu = mu_;
-         for (double point : points_) {
-            double predictedValue = P2DFunctions.p2d(point, mu, doubles[0]);
-            sum += Math.log(predictedValue);
-         }
-         return sum;
+         return likelihood_.logLikelihood(mu_, doubles[0]);
       }
 
       public double nonLogValue(double[] doubles) {
@@ -210,6 +203,7 @@ public class P2DFitter {
 
       private final double[] points_;
       private final double[] sigmas_;
+      private final P2DLikelihood likelihood_;
       private final boolean useApproximation_;
 
       /**
@@ -225,6 +219,7 @@ public class P2DFitter {
          useApproximation_ = useApproximation;
          points_ = points;
          sigmas_ = sigmas;
+         likelihood_ = new P2DLikelihood(points, sigmas);
 
          // TODO: bail out if these two arrays are not identical in size
       }
@@ -237,20 +232,7 @@ public class P2DFitter {
        */
       @Override
       public double value(double[] doubles) {
-         double sum = 0.0;
-         if (useApproximation_) {
-            for (int i = 0; i < points_.length; i++) {
-               double predictedValue = P2DFunctions
-                       .p2dApproximation(points_[i], doubles[0], sigmas_[i]);
-               sum += Math.log(predictedValue);
-            }
-         } else {
-            for (int i = 0; i < points_.length; i++) {
-               double predictedValue = P2DFunctions.p2d(points_[i], doubles[0], sigmas_[i]);
-               sum += Math.log(predictedValue);
-            }
-         }
-         return sum;
+         return likelihood_.logLikelihood(doubles[0], useApproximation_);
       }
 
       public double nonLogValue(double[] doubles) {
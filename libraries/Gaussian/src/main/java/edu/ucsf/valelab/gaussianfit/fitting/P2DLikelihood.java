@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2018, Regents the University of California
+ * Author: Nico Stuurman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.ucsf.valelab.gaussianfit.fitting;
+
+import edu.ucsf.valelab.gaussianfit.utils.Besseli;
+
+/**
+ * Log likelihood of a set of measured distances under the P2D distribution, see
+ * http://dx.doi.org/10.1529/biophysj.105.065599
+ *
+ * <p>Everything that depends only on the distances (and their sigmas) is calculated once, so that
+ * every evaluation during a fit is a single loop over primitive arrays.  The sum is calculated in
+ * log space, so that exp() and I0() do not overflow.
+ *
+ * <p>Each distance contributes what log(P2DFunctions.p2d()) (or log(p2dApproximation())) would:
+ * the same floors and ceilings are applied, in log space.  These bound how much a distance far
+ * from mu can pull on the fit, so they are kept rather than using the exact log density.
+ *
+ * @author nico
+ */
+final class P2DLikelihood {
+
+   private static final double LOG_2PI = Math.log(2.0 * Math.PI);
+   // P2DFunctions.p2d() raises exp(-(mu^2 + r^2) / 2 sigma^2) to at least 1e-300, and lowers an
+   // infinite I0() to Double.MAX_VALUE
+   private static final double MIN_LOG_EXP = Math.log(1e-300);
+   private static final double MAX_LOG_BESSEL = Math.log(Double.MAX_VALUE);
+   // P2DFunctions.p2dApproximation() returns at least Double.MIN_NORMAL
+   private static final double MIN_LOG_APPROXIMATION = Math.log(Double.MIN_NORMAL);
+
+   private final double[] r_;
+   private final double[] r2_;
+   private final double[] logR_;
+   // only used when each distance has its own sigma
+   private final double[] invS2_;
+   private final double[] logInvS2_;
+   private final double[] logSigma_;
+   private final double[] besselFactor_;
+
+   /**
+    * @param distances measured distances
+    * @param sigmas    sigma of each distance, or null when a single sigma will be used
+    */
+   P2DLikelihood(double[] distances, double[] sigmas) {
+      final int n = distances.length;
+      r_ = distances.clone();
+      r2_ = new double[n];
+      logR_ = new double[n];
+      for (int i = 0; i < n; i++) {
+         r2_[i] = r_[i] * r_[i];
+         logR_[i] = Math.log(r_[i]);
+      }
+      if (sigmas == null) {
+         invS2_ = null;
+         logInvS2_ = null;
+         logSigma_ = null;
+         besselFactor_ = null;
+      } else {
+         invS2_ = new double[n];
+         logInvS2_ = new double[n];
+         logSigma_ = new double[n];
+         besselFactor_ = new double[n];
+         for (int i = 0; i < n; i++) {
+            invS2_[i] = 1.0 / (sigmas[i] * sigmas[i]);
+            logInvS2_[i] = Math.log(invS2_[i]);
+            logSigma_[i] = Math.log(sigmas[i]);
+            besselFactor_[i] = r_[i] * invS2_[i];
+         }
+      }
+   }
+
+   /**
+    * Sum of log(p2d(r, mu, sigma)) over all distances r
+    *
+    * @param mu    distance between the two spots
+    * @param sigma sigma of the distance measurements
+    * @return log likelihood of the distances
+    */
+   double logLikelihood(double mu, double sigma) {
+      final double invS2 = 1.0 / (sigma * sigma);
+      final double logInvS2 = Math.log(invS2);
+      final double muInvS2 = mu * invS2;
+      final double mu2 = mu * mu;
+      double sum = 0.0;
+      for (int i = 0; i < r_.length; i++) {
+         sum += logR_[i] + logInvS2 + Math.max(-0.5 * (mu2 + r2_[i]) * invS2, MIN_LOG_EXP)
+               + Math.min(Besseli.logBessi0(r_[i] * muInvS2), MAX_LOG_BESSEL);
+      }
+      return sum;
+   }
+
+   /**
+    * Sum of the log P2D over all distances, using the sigma of each distance
+    *
+    * @param mu               distance between the two spots
+    * @param useApproximation use P2DFunctions.p2dApproximation() rather than p2d(), needed when
+    *                         mu &gt;&gt; sigma
+    * @return log likelihood of the distances
+    */
+   double logLikelihood(double mu, boolean useApproximation) {
+      double sum = 0.0;
+      if (useApproximation) {
+         final double logMu = Math.log(mu);
+         for (int i = 0; i < r_.length; i++) {
+            double dr = r_[i] - mu;
+            sum += Math.max(0.5 * (logR_[i] - LOG_2PI - logSigma_[i] - logMu)
+                  - 0.5 * dr * dr * invS2_[i], MIN_LOG_APPROXIMATION);
+         }
+      } else {
+         final double mu2 = mu * mu;
+         for (int i = 0; i < r_.length; i++) {
+            sum += logR_[i] + logInvS2_[i]
+                  + Math.max(-0.5 * (mu2 + r2_[i]) * invS2_[i], MIN_LOG_EXP)
+                  + Math.min(Besseli.logBessi0(besselFactor_[i] * mu), MAX_LOG_BESSEL);
+         }
+      }
+      return sum;
+   }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2012-2017, Regents of the University of California All rights reserved.
+ * <p>
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * <p>
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer. 2. Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * <p>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * <p>
+ * The views and conclusions contained in the software and documentation are those of the authors
+ * and should not be interpreted as representing official policies, either expressed or implied, of
+ * the FreeBSD Project.
+ */
+
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import java.util.Arrays;
+
+/**
+ * Finds the spot closest to a given point, within a maximum distance, using a
+ * grid of cells at least maxDistance wide, so that only the 3 x 3 cells
+ * around the point need to be searched.
+ *
+ * <p>Meant to be used for many sets of spots in turn (i.e. one per frame):
+ * index() re-uses the arrays of the previous set whenever they are large
+ * enough.  Not thread safe, use one SpotGrid per thread.
+ *
+ * <p>join() pairs every spot of a second set with its partner in the grid in one go, which
+ * is how two channels are matched.
+ *
+ * @author nico
+ */
+public final class SpotGrid {
+
+   private final double maxDistance_;
+   private final double maxDistanceSquared_;
+
+   private int nrSpots_;
+   private double[] x_ = new double[0];
+   private double[] y_ = new double[0];
+   // spots sorted by cell, and the start of each cell in order_
+   private int[] order_ = new int[0];
+   private int[] cell_ = new int[0];
+   private int[] cellStart_ = new int[1];
+   private double minX_;
+   private double minY_;
+   private double cellSize_;
+   private int nrCellsX_;
+   private int nrCellsY_;
+
+   public SpotGrid(double maxDistance) {
+      maxDistance_ = maxDistance;
+      maxDistanceSquared_ = maxDistance * maxDistance;
+   }
+
+   /**
+    * Replaces the spots in the grid.
+    *
+    * @param spots - spots to be indexed, only the first n are used
+    * @param n     - number of spots
+    */
+   public void index(SpotData[] spots, int n) {
+      nrSpots_ = n;
+      if (x_.length < n) {
+         x_ = new double[n];
+         y_ = new double[n];
+         order_ = new int[n];
+         cell_ = new int[n];
+      }
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      for (int i = 0; i < n; i++) {
+         x_[i] = spots[i].getXCenter();
+         y_[i] = spots[i].getYCenter();
+         minX = Math.min(minX, x_[i]);
+         minY = Math.min(minY, y_[i]);
+         maxX = Math.max(maxX, x_[i]);
+         maxY = Math.max(maxY, y_[i]);
+      }
+      if (n == 0) {
+         minX = minY = maxX = maxY = 0.0;
+      }
+      minX_ = minX;
+      minY_ = minY;
+      // cells need to be at least maxDistance wide, but there is no point in
+      // having many more cells than spots, in total or along either axis
+      cellSize_ = Math.max(maxDistance_, Math.sqrt((maxX - minX) * (maxY - minY) / (2 * n + 1)));
+      cellSize_ = Math.max(cellSize_, Math.max(maxX - minX, maxY - minY) / (n + 1));
+      if (!(cellSize_ > 0.0) || Double.isInfinite(cellSize_)) {
+         cellSize_ = Math.max(1.0, Math.max(maxX - minX, maxY - minY));
+      }
+      nrCellsX_ = (int) ((maxX - minX) / cellSize_) + 1;
+      nrCellsY_ = (int) ((maxY - minY) / cellSize_) + 1;
+      int nrCells = nrCellsX_ * nrCellsY_;
+      if (cellStart_.length < nrCells + 1) {
+         cellStart_ = new int[nrCells + 1];
+      } else {
+         Arrays.fill(cellStart_, 0, nrCells + 1, 0);
+      }
+
+      // counting sort of the spots by cell
+      for (int i = 0; i < n; i++) {
+         int cell = cellY(y_[i]) * nrCellsX_ + cellX(x_[i]);
+         cell_[i] = cell;
+         cellStart_[cell + 1]++;
+      }
+      for (int cell = 0; cell < nrCells; cell++) {
+         cellStart_[cell + 1] += cellStart_[cell];
+      }
+      for (int i = 0; i < n; i++) {
+         order_[cellStart_[cell_[i]]++] = i;
+      }
+      // cellStart_ now holds the end of each cell, shift back
+      for (int cell = nrCells; cell > 0; cell--) {
+         cellStart_[cell] = cellStart_[cell - 1];
+      }
+      cellStart_[0] = 0;
+   }
+
+   private int cellX(double x) {
+      int cx = (int) ((x - minX_) / cellSize_);
+      return cx < 0 ? 0 : (cx >= nrCellsX_ ? nrCellsX_ - 1 : cx);
+   }
+
+   private int cellY(double y) {
+      int cy = (int) ((y - minY_) / cellSize_);
+      return cy < 0 ? 0 : (cy >= nrCellsY_ ? nrCellsY_ - 1 : cy);
+   }
+
+   /**
+    * Finds the spot closest to the given point.
+    *
+    * @return index (in the array given to index()) of the closest spot, or -1
+    *         when no spot is closer than maxDistance
+    */
+   public int nearest(double x, double y) {
+      if (nrSpots_ == 0) {
+         return -1;
+      }
+      // cells outside the grid are empty
+      double fx = (x - minX_) / cellSize_;
+      double fy = (y - minY_) / cellSize_;
+      if (fx < -1.0 || fy < -1.0 || fx >= nrCellsX_ + 1.0 || fy >= nrCellsY_ + 1.0) {
+         return -1;
+      }
+      int cx = (int) Math.floor(fx);
+      int cy = (int) Math.floor(fy);
+      int closest = -1;
+      double minDistance = maxDistanceSquared_;
+      for (int j = Math.max(0, cy - 1); j <= Math.min(nrCellsY_ - 1, cy + 1); j++) {
+         for (int i = Math.max(0, cx - 1); i <= Math.min(nrCellsX_ - 1, cx + 1); i++) {
+            int cell = j * nrCellsX_ + i;
+            for (int k = cellStart_[cell]; k < cellStart_[cell + 1]; k++) {
+               int spot = order_[k];
+               double dx = x_[spot] - x;
+               double dy = y_[spot] - y;
+               double distance = dx * dx + dy * dy;
+               if (distance < minDistance) {
+                  minDistance = distance;
+                  closest = spot;
+               }
+            }
+         }
+      }
+      return closest;
+   }
+
+   /**
+    * Finds, for each of the given spots, the closest spot in the grid.
+    *
+    * @param spots - spots to be matched, only the first n are used
+    * @param n     - number of spots
+    * @return for each spot the index (in the array given to index()) of its partner, or -1
+    *         when no spot in the grid is closer than maxDistance
+    */
+   public int[] join(SpotData[] spots, int n) {
+      int[] partners = new int[n];
+      for (int i = 0; i < n; i++) {
+         partners[i] = nearest(spots[i].getXCenter(), spots[i].getYCenter());
+      }
+      return partners;
+   }
+}
@@ -31,17 +31,17 @@ package edu.ucsf.valelab.gaussianfit.spotoperations;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
-import edu.ucsf.valelab.gaussianfit.data.GsSpotPair;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import edu.ucsf.valelab.gaussianfit.data.TrackData;
-import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 import javax.swing.JOptionPane;
 
 /**
@@ -67,77 +67,29 @@ public class SpotLinker {
     * @param maxDistance
     */
    public static void link(RowData rowData, double maxDistance) {
+      link(rowData, maxDistance, 0);
+   }
+
+   /**
+    * As link(rowData, maxDistance), but a spot may be missing from up to maxGap frames without
+    * ending the link.
+    *
+    * @param rowData     - input Spot data
+    * @param maxDistance - maximum distance between spots in consecutive frames
+    * @param maxGap      - number of consecutive frames in which a spot may be missing
+    */
+   public static void link(final RowData rowData, final double maxDistance, final int maxGap) {
       try {
          ij.IJ.showStatus("Linking spotData...");
-         boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
-         int nr = rowData.nrSlices_;
-         if (useFrames) {
-            nr = rowData.nrFrames_;
-         }
+         final boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
+
+         final List<TrackData>[] finished = track(rowData, maxDistance, maxGap, false);
 
          // linked spots go here:
          List<SpotData> destList = new ArrayList<SpotData>();
-         // maintain active tracks here
-         List<List<SpotData>> tracks =
-               new ArrayList<List<SpotData>>();
-         for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
-            for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
-               for (int s = 1; s <= rowData.nrSlices_; s++) {
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           ArrayList<GsSpotPair> gsSpots = new ArrayList<GsSpotPair>();
-                           for (SpotData spot : spots) {
-                              gsSpots.add(new GsSpotPair(spot, null,
-                                    new Point2D.Double(spot.getXCenter(), spot.getYCenter()),
-                                    new Point2D.Double(0.0, 0.0)));
-                           }
-                           NearestPointByData nsp = new NearestPointByData(gsSpots, maxDistance);
-                           List<List<SpotData>> removedTracks =
-                                 new ArrayList<List<SpotData>>();
-                           for (List<SpotData> track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              // TODO: do we really need a copy here?
-                              GsSpotPair newSpot = ((GsSpotPair) nsp.findKDWSE(new Point2D.Double(
-                                    tSpot.getXCenter(), tSpot.getYCenter()))).copy();
-                              if (newSpot == null) {
-                                 // track could not be extended, finalize it
-                                 linkSpots(track, destList, useFrames);
-                                 // and remove from the list of tracks
-                                 // to avoid a concurrent modification exception
-                                 // the removal needs to be a two step process
-                                 removedTracks.add(track);
-                              } else {
-                                 track.add(newSpot.getFirstSpot());
-                                 markedSpots.add(newSpot.getFirstSpot());
-                              }
-                           }
-                           // second part of removing tracks
-                           for (List<SpotData> track : removedTracks) {
-                              tracks.remove(track);
-                           }
-                        }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              List<SpotData> track = new ArrayList<SpotData>();
-                              track.add(spot);
-                              tracks.add(track);
-                           }
-                        }
-                     }
-                  }
-                  // add tracks that made it to the end to destination list
-                  for (List<SpotData> track : tracks) {
-                     linkSpots(track, destList, useFrames);
-                  }
-                  tracks.clear();
-               }
+         for (List<TrackData> tracks : finished) {
+            for (TrackData track : tracks) {
+               linkSpots(track.getList(), destList, useFrames);
             }
          }
 
@@ -153,6 +105,91 @@ public class SpotLinker {
       }
    }
 
+   /**
+    * Follows spots from frame to frame, independently (and in parallel) for every position,
+    * channel and slice.  In every frame, each track is extended with the spot closest to its last
+    * spot, if that is closer than maxDistance.  Spots that were not added to a track start a new
+    * one.  Tracks that could not be extended for more than maxGap frames are finished.
+    *
+    * @param rowData     - input Spot data
+    * @param maxDistance - maximum distance between spots in consecutive frames
+    * @param maxGap      - number of consecutive frames in which a track may not be extended
+    * @param exclusive   - when true, a spot can only be added to one track, when false the
+    *                    closest spot is added to every track it is closest to
+    * @return for every position, channel and slice (in that order), the tracks in the order in
+    *         which they finished, followed by the tracks that reached the last frame
+    */
+   private static List<TrackData>[] track(final RowData rowData, final double maxDistance,
+         final int maxGap, final boolean exclusive) {
+      final int nrSequences = rowData.nrPositions_ * rowData.nrChannels_ * rowData.nrSlices_;
+      @SuppressWarnings("unchecked")
+      final List<TrackData>[] finished = new List[nrSequences];
+      final long nrFrames = (long) nrSequences * rowData.nrFrames_;
+      final AtomicLong framesDone = new AtomicLong(0);
+      IntStream.range(0, nrSequences).parallel().forEach(sequence -> {
+         final int pos = sequence / (rowData.nrChannels_ * rowData.nrSlices_) + 1;
+         final int ch = (sequence / rowData.nrSlices_) % rowData.nrChannels_ + 1;
+         final int s = sequence % rowData.nrSlices_ + 1;
+         SpotGrid grid = new SpotGrid(maxDistance);
+         SpotData[] frameSpots = new SpotData[0];
+         boolean[] marked = new boolean[0];
+         List<TrackData> done = new ArrayList<TrackData>();
+         // maintain active tracks here
+         List<TrackData> tracks = new ArrayList<TrackData>();
+         for (int f = 1; f <= rowData.nrFrames_; f++) {
+            List<SpotData> spots = rowData.get(f, s, ch, pos);
+            final int n = spots == null ? 0 : spots.size();
+            if (frameSpots.length < n) {
+               frameSpots = new SpotData[n];
+               marked = new boolean[n];
+            }
+            for (int i = 0; i < n; i++) {
+               frameSpots[i] = spots.get(i);
+               marked[i] = false;
+            }
+            grid.index(frameSpots, n);
+            // go through all tracks to see if they can be extended
+            List<TrackData> active = new ArrayList<TrackData>(tracks.size() + n);
+            for (TrackData track : tracks) {
+               SpotData tSpot = track.get(track.size() - 1);
+               int i = grid.nearest(tSpot.getXCenter(), tSpot.getYCenter());
+               if (i >= 0 && !(exclusive && marked[i])) {
+                  track.resetMissing();
+                  track.add(frameSpots[i]);
+                  marked[i] = true;
+                  active.add(track);
+               } else {
+                  track.addMissing();
+                  if (track.missingMoreThan(maxGap)) {
+                     done.add(track);
+                  } else {
+                     active.add(track);
+                  }
+               }
+            }
+            // go through spots and start a new track with any spot
+            // that was not part of a track
+            for (int i = 0; i < n; i++) {
+               if (!marked[i]) {
+                  TrackData track = new TrackData();
+                  track.add(frameSpots[i]);
+                  active.add(track);
+               }
+            }
+            tracks = active;
+            long nrDone = framesDone.incrementAndGet();
+            if (nrDone % 1000 == 0) {
+               ij.IJ.showProgress((double) nrDone / nrFrames);
+            }
+         }
+         // tracks that made it to the end
+         done.addAll(tracks);
+         finished[sequence] = done;
+      });
+      ij.IJ.showProgress(1.0);
+      return finished;
+   }
+
    /**
     * Given a list of linked spots, create a single spot entry that will be added to the destination
     * list
@@ -261,72 +298,32 @@ public class SpotLinker {
       try {
          ij.IJ.showStatus("Extracting tracks...");
 
-         // maintain active tracks here
+         final List<TrackData>[] finished = track(rowData, maxDistance, nrMissing, true);
+
+         // tracks that finished before the last frame are written right away, the others
+         // may still be combined with tracks in other channels
          List<Integer> trackIndex;
          Map<List<Integer>, List<TrackData>> trackMap = new HashMap<>();
+         int sequence = 0;
          for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
             for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
                for (int s = 1; s <= rowData.nrSlices_; s++) {
                   trackIndex = Collections.unmodifiableList(Arrays.asList(pos, ch, s));
-                  List<TrackData> tracks =
-                        new ArrayList<TrackData>();
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           NearestPointByData nsp = new NearestPointByData(spots, maxDistance);
-                           List<TrackData> removedTracks =
-                                 new ArrayList<TrackData>();
-                           for (TrackData track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              // TODO: do we really need a copy here?
-                              SpotData newSpot = (SpotData) nsp.findKDWSE(new Point2D.Double(
-                                    tSpot.getXCenter(), tSpot.getYCenter()));
-                              if (newSpot == null || markedSpots.contains(newSpot)) {
-                                 track.addMissing();
-                                 if (track.missingMoreThan(nrMissing)) {
-                                    // track could not be extended, finalize it
-                                    // Write out the track:
-                                    if (track.size() > minNr
-                                            && track.get(0).distance(track.get(track.size() - 1))
-                                                > minTotalDistance) {
-                                       writeTrack(rowData, track.getList(), trackNr);
-                                       trackNr++;
-                                       // and remove from the list of tracks
-                                       // to avoid a concurrent modification exception
-                                       // the removal needs to be a two step process
-                                       removedTracks.add(track);
-                                    }
-                                 }
-                              } else {
-                                 track.resetMissing();
-                                 track.add(newSpot);
-                                 markedSpots.add(newSpot);
-                              }
-                           }
-                           // second part of removing tracks
-                           for (TrackData track : removedTracks) {
-                              tracks.remove(track);
-                           }
-                        }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a previous track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              TrackData track = new TrackData();
-                              track.add(spot);
-                              tracks.add(track);
-                           }
+                  List<TrackData> tracks = new ArrayList<TrackData>();
+                  for (TrackData track : finished[sequence]) {
+                     if (track.missingMoreThan(nrMissing)) {
+                        if (track.size() > minNr
+                              && track.get(0).distance(track.get(track.size() - 1))
+                              > minTotalDistance) {
+                           writeTrack(rowData, track.getList(), trackNr);
+                           trackNr++;
                         }
+                     } else {
+                        tracks.add(track);
                      }
                   }
-
-                  // add tracks that made it to the end to destination list 
                   trackMap.put(trackIndex, tracks);
-
+                  sequence++;
                }
             }
          }
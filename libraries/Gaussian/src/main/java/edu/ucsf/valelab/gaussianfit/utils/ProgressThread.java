@@ -32,7 +32,6 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.utils;
 
 
-import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import java.util.concurrent.BlockingQueue;
 
 
@@ -42,10 +41,10 @@ import java.util.concurrent.BlockingQueue;
 public class ProgressThread implements Runnable {
 
    Thread t_;
-   BlockingQueue<SpotData> sourceList_;
+   BlockingQueue<?> sourceList_;
 
 
-   public ProgressThread(BlockingQueue<SpotData> sourceList) {
+   public ProgressThread(BlockingQueue<?> sourceList) {
       sourceList_ = sourceList;
    }
 
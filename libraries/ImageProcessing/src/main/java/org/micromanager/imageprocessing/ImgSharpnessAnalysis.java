@@ -32,22 +32,53 @@
 package org.micromanager.imageprocessing;
 
 import ij.gui.OvalRoi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.stream.IntStream;
 
 /**
  * Collection of Image Sharpness algorithms.  These are all static methods that take an
  * ImageProcessor.
  *
+ * <p>Many planes can be scored at once with {@link #computeAll(List)}, which works on raw pixel
+ * arrays, scores planes in parallel, and caches scores by image UUID, position and size.
+ *
  * @author Nick Anthony
  */
 public class ImgSharpnessAnalysis {
 
+   // Enough for a plate of 96 wells with 50 z slices, at ~100 bytes per entry
+   private static final int MAX_CACHED_SCORES = 16384;
+   // Per-thread work buffer for computeAll, so that scoring does not allocate
+   private static final ThreadLocal<float[]> WORK_PLANE =
+         ThreadLocal.withInitial(() -> new float[0]);
+
    private double fftLowerCutoff_ = 2.5;
    private double fftUpperCutoff_ = 14;
    private Method method_ = Method.Edges;
    private boolean allowInPlaceModification_ = false;
+   private Rectangle roi_ = null;
+   private int downsample_ = 1;
+   // Only valid for the current settings; cleared when they change.
+   private final Map<ScoreKey, Double> scoreCache_ = Collections.synchronizedMap(
+         new LinkedHashMap<ScoreKey, Double>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ScoreKey, Double> eldest) {
+               return size() > MAX_CACHED_SCORES;
+            }
+         });
 
    /**
     * Utility class making it easy to select a sharpness algorithm.
@@ -70,6 +101,9 @@ public class ImgSharpnessAnalysis {
     * @param fftUpperCutoff Frequencies above this will be filtered out
     */
    public void setFFTCutoff(double fftLowerCutoff, double fftUpperCutoff) {
+      if (fftLowerCutoff != fftLowerCutoff_ || fftUpperCutoff != fftUpperCutoff_) {
+         scoreCache_.clear();
+      }
       fftLowerCutoff_ = fftLowerCutoff;
       fftUpperCutoff_ = fftUpperCutoff;
    }
@@ -83,9 +117,56 @@ public class ImgSharpnessAnalysis {
    }
 
    public void setComputationMethod(Method method) {
+      if (method != method_) {
+         scoreCache_.clear();
+      }
       method_ = method;
    }
 
+   /**
+    * Restricts scoring by {@link #computeAll(List)} to part of each plane.
+    *
+    * @param roi Region to score, or null to score whole planes.
+    */
+   public void setRoi(Rectangle roi) {
+      Rectangle newRoi = roi == null ? null : new Rectangle(roi);
+      if (newRoi == null ? roi_ != null : !newRoi.equals(roi_)) {
+         scoreCache_.clear();
+      }
+      roi_ = newRoi;
+   }
+
+   public Rectangle getRoi() {
+      return roi_ == null ? null : new Rectangle(roi_);
+   }
+
+   /**
+    * Lets {@link #computeAll(List)} bin planes before scoring, which is faster but less
+    * sensitive to fine detail.
+    *
+    * @param factor Binning factor (1 for no binning).
+    */
+   public void setDownsample(int factor) {
+      if (factor < 1) {
+         throw new IllegalArgumentException("Downsample factor should be at least 1");
+      }
+      if (factor != downsample_) {
+         scoreCache_.clear();
+      }
+      downsample_ = factor;
+   }
+
+   public int getDownsample() {
+      return downsample_;
+   }
+
+   /**
+    * Forget all cached scores.
+    */
+   public void clearCache() {
+      scoreCache_.clear();
+   }
+
    /**
     * If pixels can be modified, set this to true to get some speed gain.
     *
@@ -264,7 +345,7 @@ public class ImgSharpnessAnalysis {
       int[] ken1 = {-1, 0, 1, -2, 0, 2, -1, 0, 1};
       int[] ken2 = {1, 2, 1, 0, 0, 0, -1, -2, -1};
       ImageProcessor proc1 = proc;
-      if (allowInPlaceModification) {
+      if (!allowInPlaceModification) {
          proc1 = proc.duplicate();
       }
 
@@ -388,4 +469,314 @@ public class ImgSharpnessAnalysis {
       ps.setRoi(outerCutoff);
       return ps.getStatistics().mean;
    }
+
+   /**
+    * A plane to be scored by {@link #computeAll(List)}.
+    */
+   public static final class Plane {
+      private final Object pixels_;
+      private final int width_;
+      private final int height_;
+      private final UUID uuid_;
+      private final Object position_;
+
+      /**
+       * Creates a plane that is identified by its UUID only.
+       *
+       * @see #Plane(Object, int, int, UUID, Object)
+       */
+      public Plane(Object pixels, int width, int height, UUID uuid) {
+         this(pixels, width, height, uuid, null);
+      }
+
+      /**
+       * Creates a plane. The pixels are not copied, and are never modified.
+       *
+       * <p>Images derived from one another (e.g. channels split off one camera image, or
+       * crops) can share a UUID, so the score is cached under the UUID together with the
+       * position and the size of the plane.
+       *
+       * @param pixels   byte[] or short[] (unsigned), float[], or int[] (packed RGB, scored
+       *                 by the mean of the three components).
+       * @param width    Width of the plane.
+       * @param height   Height of the plane.
+       * @param uuid     Identity of the image, used to cache its score, or null.
+       * @param position Position of the image in its dataset (e.g. its Coords), or null.
+       *                 Must implement equals and hashCode.
+       */
+      public Plane(Object pixels, int width, int height, UUID uuid, Object position) {
+         if (!(pixels instanceof byte[] || pixels instanceof short[]
+               || pixels instanceof float[] || pixels instanceof int[])) {
+            throw new IllegalArgumentException("Unsupported pixel type");
+         }
+         pixels_ = pixels;
+         width_ = width;
+         height_ = height;
+         uuid_ = uuid;
+         position_ = position;
+      }
+   }
+
+   private static final class ScoreKey {
+      private final UUID uuid_;
+      private final Object position_;
+      private final int width_;
+      private final int height_;
+
+      ScoreKey(Plane plane) {
+         uuid_ = plane.uuid_;
+         position_ = plane.position_;
+         width_ = plane.width_;
+         height_ = plane.height_;
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof ScoreKey)) {
+            return false;
+         }
+         ScoreKey key = (ScoreKey) other;
+         return uuid_.equals(key.uuid_) && Objects.equals(position_, key.position_)
+               && width_ == key.width_ && height_ == key.height_;
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hash(uuid_, position_, width_, height_);
+      }
+   }
+
+   /**
+    * Computes the sharpness of each plane using the current settings, in parallel.
+    *
+    * <p>Mean, StdDev, NormalizedVariance, Edges, Tenengrad, Redondo, Volath and Volath5 are
+    * computed directly on the pixel arrays, in floating point, without creating image
+    * processors. For 8 and 16-bit images, Edges and Tenengrad can therefore differ slightly from
+    * {@link #compute(ImageProcessor)}, where ImageJ rounds and clamps the filtered images to the
+    * pixel type. The other methods use the ImageJ code.
+    *
+    * <p>Scores of planes with a UUID are cached by UUID, position and size, and are reused as
+    * long as the method, FFT cutoffs, ROI and downsample factor do not change.  The cache
+    * belongs to this instance, so callers control how widely scores are shared.
+    *
+    * @param planes Planes to score.
+    * @return Sharpness values, in the order of the planes.
+    */
+   public double[] computeAll(List<Plane> planes) {
+      final double[] scores = new double[planes.size()];
+      IntStream.range(0, planes.size()).parallel().forEach(i -> {
+         Plane plane = planes.get(i);
+         ScoreKey key = plane.uuid_ == null ? null : new ScoreKey(plane);
+         Double cached = key == null ? null : scoreCache_.get(key);
+         if (cached != null) {
+            scores[i] = cached;
+         } else {
+            scores[i] = computePlane(plane);
+            if (key != null) {
+               scoreCache_.put(key, scores[i]);
+            }
+         }
+      });
+      return scores;
+   }
+
+   private double computePlane(Plane plane) {
+      Rectangle roi = roi_ == null ? new Rectangle(0, 0, plane.width_, plane.height_)
+            : roi_.intersection(new Rectangle(0, 0, plane.width_, plane.height_));
+      final int w = roi.width / downsample_;
+      final int h = roi.height / downsample_;
+      if (w < 1 || h < 1) {
+         throw new IllegalArgumentException("ROI lies outside of the image");
+      }
+      switch (method_) {
+         case SharpEdges:
+         case MedianEdges:
+         case FFTBandpass:
+            ImageProcessor proc;
+            if (roi_ == null && downsample_ == 1) {
+               proc = wrap(plane);
+            } else {
+               float[] pixels = new float[w * h];
+               load(plane, roi, downsample_, pixels, w, h);
+               proc = new FloatProcessor(w, h, pixels);
+            }
+            // The ImageJ code modifies the processor, so duplicate unless we created it
+            boolean inPlace = proc.getPixels() != plane.pixels_;
+            if (method_ == Method.SharpEdges) {
+               return computeSharpEdges(proc, inPlace);
+            } else if (method_ == Method.MedianEdges) {
+               return computeMedianEdges(proc, inPlace);
+            }
+            return computeFFTBandpass(proc, fftLowerCutoff_, fftUpperCutoff_);
+         default:
+            break;
+      }
+      float[] f = WORK_PLANE.get();
+      if (f.length < w * h) {
+         f = new float[w * h];
+         WORK_PLANE.set(f);
+      }
+      load(plane, roi, downsample_, f, w, h);
+      switch (method_) {
+         case Mean:
+            return mean(f, w * h);
+         case StdDev:
+            return stdDevOverMean(f, w * h, false);
+         case NormalizedVariance:
+            return stdDevOverMean(f, w * h, true);
+         case Edges:
+            return gradient(f, w, h, false) / (w * h) / mean(f, w * h);
+         case Tenengrad:
+            return gradient(f, w, h, true);
+         case Redondo:
+            return redondo(f, w, h);
+         case Volath:
+            return volath(f, w, h);
+         case Volath5:
+            return volath5(f, w, h);
+         default:
+            throw new AssertionError(method_.name());
+      }
+   }
+
+   private static ImageProcessor wrap(Plane plane) {
+      if (plane.pixels_ instanceof byte[]) {
+         return new ByteProcessor(plane.width_, plane.height_, (byte[]) plane.pixels_);
+      } else if (plane.pixels_ instanceof short[]) {
+         return new ShortProcessor(plane.width_, plane.height_, (short[]) plane.pixels_, null);
+      } else if (plane.pixels_ instanceof float[]) {
+         return new FloatProcessor(plane.width_, plane.height_, (float[]) plane.pixels_);
+      }
+      return new ColorProcessor(plane.width_, plane.height_, (int[]) plane.pixels_);
+   }
+
+   /**
+    * Copies the ROI of the plane into dst as floats, averaging blocks of binning x binning
+    * pixels.
+    */
+   private static void load(Plane plane, Rectangle roi, int binning, float[] dst, int w, int h) {
+      final int width = plane.width_;
+      final float scale = 1.0f / (binning * binning);
+      for (int y = 0; y < h; y++) {
+         for (int x = 0; x < w; x++) {
+            float sum = 0.0f;
+            for (int by = 0; by < binning; by++) {
+               int offset = (roi.y + y * binning + by) * width + roi.x + x * binning;
+               for (int bx = 0; bx < binning; bx++) {
+                  sum += value(plane.pixels_, offset + bx);
+               }
+            }
+            dst[y * w + x] = sum * scale;
+         }
+      }
+   }
+
+   private static float value(Object pixels, int index) {
+      if (pixels instanceof short[]) {
+         return ((short[]) pixels)[index] & 0xffff;
+      } else if (pixels instanceof byte[]) {
+         return ((byte[]) pixels)[index] & 0xff;
+      } else if (pixels instanceof float[]) {
+         return ((float[]) pixels)[index];
+      }
+      int rgb = ((int[]) pixels)[index];
+      return (((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3.0f;
+   }
+
+   private static double mean(float[] f, int n) {
+      double sum = 0.0;
+      for (int i = 0; i < n; i++) {
+         sum += f[i];
+      }
+      return sum / n;
+   }
+
+   /**
+    * Standard deviation (or variance) over the mean, with the standard deviation normalized by
+    * n - 1, as in ImageJ's statistics.
+    */
+   private static double stdDevOverMean(float[] f, int n, boolean variance) {
+      double sum = 0.0;
+      double sum2 = 0.0;
+      for (int i = 0; i < n; i++) {
+         double v = f[i];
+         sum += v;
+         sum2 += v * v;
+      }
+      double mean = sum / n;
+      double var = n > 1 ? Math.max(0.0, (sum2 - sum * mean) / (n - 1.0)) : 0.0;
+      return (variance ? var : Math.sqrt(var)) / mean;
+   }
+
+   /**
+    * Sum of the Sobel gradient magnitudes (or of their squares), with edge pixels replicated
+    * beyond the border, as in ImageJ's findEdges and convolve3x3.
+    */
+   private static double gradient(float[] f, int w, int h, boolean squared) {
+      double sum = 0.0;
+      for (int y = 0; y < h; y++) {
+         final int above = Math.max(y - 1, 0) * w;
+         final int row = y * w;
+         final int below = Math.min(y + 1, h - 1) * w;
+         for (int x = 0; x < w; x++) {
+            final int left = Math.max(x - 1, 0);
+            final int right = Math.min(x + 1, w - 1);
+            float p1 = f[above + left];
+            float p2 = f[above + x];
+            float p3 = f[above + right];
+            float p4 = f[row + left];
+            float p6 = f[row + right];
+            float p7 = f[below + left];
+            float p8 = f[below + x];
+            float p9 = f[below + right];
+            double gx = (p3 + 2 * p6 + p9) - (p1 + 2 * p4 + p7);
+            double gy = (p1 + 2 * p2 + p3) - (p7 + 2 * p8 + p9);
+            double g2 = gx * gx + gy * gy;
+            sum += squared ? g2 : Math.sqrt(g2);
+         }
+      }
+      return sum;
+   }
+
+   // See computeRedondo
+   private static double redondo(float[] f, int w, int h) {
+      double sum = 0.0;
+      for (int j = 1; j < h - 1; ++j) {
+         final int row = j * w;
+         for (int i = 1; i < w - 1; ++i) {
+            double p = f[row + i + 1] + f[row - w + i] + f[row + w + i] - 3 * f[row + i - 1];
+            sum += p * p;
+         }
+      }
+      return sum;
+   }
+
+   // See computeVolath
+   private static double volath(float[] f, int w, int h) {
+      double sum1 = 0.0;
+      double sum2 = 0.0;
+      for (int j = 0; j < h; ++j) {
+         final int row = j * w;
+         for (int i = 1; i < w - 1; ++i) {
+            sum1 += (double) f[row + i] * f[row + i + 1];
+         }
+         for (int i = 0; i < w - 2; ++i) {
+            sum2 += (double) f[row + i] * f[row + i + 2];
+         }
+      }
+      return sum1 - sum2;
+   }
+
+   // See computeVolath5
+   private static double volath5(float[] f, int w, int h) {
+      double sum = 0.0;
+      for (int j = 0; j < h; ++j) {
+         final int row = j * w;
+         for (int i = 0; i < w - 1; ++i) {
+            sum += (double) f[row + i] * f[row + i + 1];
+         }
+      }
+      double mean = mean(f, w * h);
+      return sum - (w - 1) * h * mean * mean;
+   }
 }
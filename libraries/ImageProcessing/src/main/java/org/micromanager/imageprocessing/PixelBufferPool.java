@@ -0,0 +1,98 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelBufferPool.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ImageProcessing library
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2024
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.imageprocessing;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A small pool of scratch buffers for use with {@link PixelKernels}.
+ *
+ * <p>Only buffers that are private to the caller may be returned to the
+ * pool: pixel buffers that end up in an {@code Image} must never be released,
+ * since images are immutable and may be held on to by other code. Typical use
+ * is for intermediate results that are needed while processing a single image.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class PixelBufferPool {
+   private final int capacity_;
+   private final ArrayDeque<Object> free_ = new ArrayDeque<>();
+
+   /**
+    * Create a pool.
+    *
+    * @param capacity maximum number of released buffers to retain
+    */
+   public PixelBufferPool(int capacity) {
+      capacity_ = capacity;
+   }
+
+   /**
+    * Obtain a buffer of the given type and length. The contents are undefined.
+    *
+    * @param componentType element type, e.g. {@code float.class}
+    * @param length number of elements
+    * @return a pooled or newly allocated buffer
+    */
+   public synchronized Object get(Class<?> componentType, int length) {
+      Iterator<Object> it = free_.iterator();
+      while (it.hasNext()) {
+         Object buffer = it.next();
+         if (buffer.getClass().getComponentType() == componentType
+               && Array.getLength(buffer) == length) {
+            it.remove();
+            return buffer;
+         }
+      }
+      return Array.newInstance(componentType, length);
+   }
+
+   public float[] getFloats(int length) {
+      return (float[]) get(float.class, length);
+   }
+
+   public int[] getInts(int length) {
+      return (int[]) get(int.class, length);
+   }
+
+   /**
+    * Return a buffer to the pool. The caller must not use it afterwards.
+    *
+    * @param buffer a buffer obtained from this pool (or any primitive array)
+    */
+   public synchronized void release(Object buffer) {
+      if (buffer == null) {
+         return;
+      }
+      if (free_.size() >= capacity_) {
+         free_.removeLast();
+      }
+      free_.addFirst(buffer);
+   }
+
+   /**
+    * Drop all retained buffers.
+    */
+   public synchronized void clear() {
+      free_.clear();
+   }
+}
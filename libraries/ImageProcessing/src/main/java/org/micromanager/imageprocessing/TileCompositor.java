@@ -0,0 +1,415 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TileCompositor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ImageProcessing library
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2024
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.imageprocessing;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Places source images (e.g. the sites of a stitched acquisition) into a
+ * larger canvas.
+ *
+ * <p>Sources are placed at an integer offset or through an affine transform
+ * (sampled with nearest neighbor interpolation). The canvas is divided into
+ * square tiles, and the sources that overlap each tile are determined once,
+ * when the layout is first used. Compositing then fills the tiles in
+ * parallel, each tile touching only its own sources, so that the same layout
+ * can be applied cheaply to every channel, time point and slice.
+ *
+ * <p>Where sources overlap, the last one added wins, unless feathering is
+ * enabled: overlapping pixels are then blended with weights that fall off
+ * linearly over the given number of pixels from the edges of each source.
+ * Canvas pixels not covered by any source are set to zero.
+ *
+ * <p>Pixels are {@code byte[]} or {@code short[]} (unsigned), as returned by
+ * {@code Image.getRawPixels()} for single component images.
+ *
+ * <p>The layout methods are not thread-safe; {@link #composite} may be called
+ * from several threads once the layout is complete.
+ */
+public final class TileCompositor {
+   public static final int DEFAULT_TILE_SIZE = 256;
+
+   private static final class Source {
+      private final int width_;
+      private final int height_;
+      private final int x_;
+      private final int y_;
+      // Canvas to source transform, or null when placed at (x_, y_)
+      private final double[] inverse_;
+      // Bounding box in the canvas, clipped to the canvas
+      private final int minX_;
+      private final int minY_;
+      private final int maxX_;
+      private final int maxY_;
+
+      private Source(int width, int height, int x, int y, double[] inverse,
+                     int minX, int minY, int maxX, int maxY) {
+         width_ = width;
+         height_ = height;
+         x_ = x;
+         y_ = y;
+         inverse_ = inverse;
+         minX_ = minX;
+         minY_ = minY;
+         maxX_ = maxX;
+         maxY_ = maxY;
+      }
+   }
+
+   private final int width_;
+   private final int height_;
+   private final int tileSize_;
+   private final int tilesX_;
+   private final int tilesY_;
+   private final List<Source> sources_ = new ArrayList<>();
+   private int feather_ = 0;
+   // Indices of the sources overlapping each tile, in the order added
+   private int[][] tileSources_;
+   private final ThreadLocal<float[][]> blendBuffers_;
+
+   /**
+    * Create a compositor for a canvas of the given size, using tiles of
+    * {@link #DEFAULT_TILE_SIZE} pixels.
+    *
+    * @param width canvas width
+    * @param height canvas height
+    */
+   public TileCompositor(int width, int height) {
+      this(width, height, DEFAULT_TILE_SIZE);
+   }
+
+   /**
+    * Create a compositor.
+    *
+    * @param width canvas width
+    * @param height canvas height
+    * @param tileSize edge length of the tiles that are filled in parallel
+    */
+   public TileCompositor(int width, int height, int tileSize) {
+      if (width < 1 || height < 1 || tileSize < 1) {
+         throw new IllegalArgumentException("Canvas and tile size must be positive");
+      }
+      width_ = width;
+      height_ = height;
+      tileSize_ = tileSize;
+      tilesX_ = (width + tileSize - 1) / tileSize;
+      tilesY_ = (height + tileSize - 1) / tileSize;
+      final int tilePixels = tileSize * tileSize;
+      blendBuffers_ = ThreadLocal.withInitial(
+            () -> new float[][] {new float[tilePixels], new float[tilePixels]});
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   /**
+    * Add a source whose top left pixel is placed at (x, y) in the canvas.
+    * Parts outside the canvas are ignored.
+    *
+    * @param x canvas x of the left edge of the source
+    * @param y canvas y of the top edge of the source
+    * @param width source width
+    * @param height source height
+    * @return index of the source, i.e. of its pixels in the array passed to
+    *     {@link #composite}
+    */
+   public int addSource(int x, int y, int width, int height) {
+      return add(new Source(width, height, x, y, null,
+            Math.max(0, x), Math.max(0, y),
+            Math.min(width_, x + width), Math.min(height_, y + height)));
+   }
+
+   /**
+    * Add a source that is placed through an affine transform.
+    *
+    * @param width source width
+    * @param height source height
+    * @param transform source to canvas transform, as {m00, m01, m02, m10, m11,
+    *                  m12}: x = m00 * srcX + m01 * srcY + m02, y = m10 *
+    *                  srcX + m11 * srcY + m12
+    * @return index of the source
+    */
+   public int addSource(int width, int height, double[] transform) {
+      double det = transform[0] * transform[4] - transform[1] * transform[3];
+      if (det == 0.0) {
+         throw new IllegalArgumentException("Transform is not invertible");
+      }
+      double[] inverse = new double[6];
+      inverse[0] = transform[4] / det;
+      inverse[1] = -transform[1] / det;
+      inverse[3] = -transform[3] / det;
+      inverse[4] = transform[0] / det;
+      inverse[2] = -(inverse[0] * transform[2] + inverse[1] * transform[5]);
+      inverse[5] = -(inverse[3] * transform[2] + inverse[4] * transform[5]);
+      // Bounding box of the pixel footprints of the source corners
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      for (double cx : new double[] {-0.5, width - 0.5}) {
+         for (double cy : new double[] {-0.5, height - 0.5}) {
+            double x = transform[0] * cx + transform[1] * cy + transform[2];
+            double y = transform[3] * cx + transform[4] * cy + transform[5];
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+         }
+      }
+      return add(new Source(width, height, 0, 0, inverse,
+            (int) Math.max(0, Math.floor(minX)), (int) Math.max(0, Math.floor(minY)),
+            (int) Math.min(width_, Math.ceil(maxX) + 1),
+            (int) Math.min(height_, Math.ceil(maxY) + 1)));
+   }
+
+   private int add(Source source) {
+      sources_.add(source);
+      tileSources_ = null;
+      return sources_.size() - 1;
+   }
+
+   /**
+    * Number of sources added.
+    */
+   public int getSourceCount() {
+      return sources_.size();
+   }
+
+   /**
+    * Set the width of the band along the edges of each source over which
+    * overlapping sources are blended.
+    *
+    * @param pixels width of the blending band, or 0 to let the last source
+    *               added overwrite earlier ones
+    */
+   public void setFeather(int pixels) {
+      feather_ = Math.max(0, pixels);
+   }
+
+   public int getFeather() {
+      return feather_;
+   }
+
+   /**
+    * Composite one plane.
+    *
+    * @param sources pixels of each source, by index; null for sources that
+    *                have no image in this plane. All of the same type.
+    * @param dst canvas pixels, of the same type as the sources, width *
+    *            height long. Every pixel is written.
+    */
+   public void composite(final Object[] sources, final Object dst) {
+      if (!(dst instanceof byte[] || dst instanceof short[])
+            || Array.getLength(dst) != width_ * height_) {
+         throw new IllegalArgumentException("Expected 8 or 16-bit pixels of a "
+               + width_ + " x " + height_ + " image");
+      }
+      if (sources.length != sources_.size()) {
+         throw new IllegalArgumentException("Expected pixels for "
+               + sources_.size() + " sources");
+      }
+      for (int i = 0; i < sources.length; i++) {
+         Source source = sources_.get(i);
+         if (sources[i] != null && (sources[i].getClass() != dst.getClass()
+               || Array.getLength(sources[i])
+               != source.width_ * source.height_)) {
+            throw new IllegalArgumentException("Pixels of source " + i
+                  + " do not match its size or the pixel type of the canvas");
+         }
+      }
+      final int[][] tileSources = plan();
+      IntStream.range(0, tileSources.length).parallel().forEach(
+            tile -> fillTile(tile, tileSources[tile], sources, dst));
+   }
+
+   private int[][] plan() {
+      if (tileSources_ == null) {
+         int[][] tileSources = new int[tilesX_ * tilesY_][];
+         int[] counts = new int[tileSources.length];
+         for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < sources_.size(); i++) {
+               Source source = sources_.get(i);
+               if (source.minX_ >= source.maxX_ || source.minY_ >= source.maxY_) {
+                  continue;
+               }
+               for (int ty = source.minY_ / tileSize_;
+                     ty <= (source.maxY_ - 1) / tileSize_; ty++) {
+                  for (int tx = source.minX_ / tileSize_;
+                        tx <= (source.maxX_ - 1) / tileSize_; tx++) {
+                     int tile = ty * tilesX_ + tx;
+                     if (pass == 0) {
+                        counts[tile]++;
+                     } else {
+                        tileSources[tile][counts[tile]++] = i;
+                     }
+                  }
+               }
+            }
+            if (pass == 0) {
+               for (int tile = 0; tile < tileSources.length; tile++) {
+                  tileSources[tile] = new int[counts[tile]];
+               }
+               Arrays.fill(counts, 0);
+            }
+         }
+         tileSources_ = tileSources;
+      }
+      return tileSources_;
+   }
+
+   private void fillTile(int tile, int[] indices, Object[] sources, Object dst) {
+      final int x0 = (tile % tilesX_) * tileSize_;
+      final int y0 = (tile / tilesX_) * tileSize_;
+      final int x1 = Math.min(width_, x0 + tileSize_);
+      final int y1 = Math.min(height_, y0 + tileSize_);
+      if (feather_ == 0) {
+         for (int y = y0; y < y1; y++) {
+            clearRow(dst, y * width_ + x0, x1 - x0);
+         }
+         for (int index : indices) {
+            if (sources[index] != null) {
+               paste(sources_.get(index), sources[index], dst, x0, y0, x1, y1);
+            }
+         }
+      } else {
+         blend(indices, sources, dst, x0, y0, x1, y1);
+      }
+   }
+
+   private static void clearRow(Object pixels, int start, int length) {
+      if (pixels instanceof byte[]) {
+         Arrays.fill((byte[]) pixels, start, start + length, (byte) 0);
+      } else {
+         Arrays.fill((short[]) pixels, start, start + length, (short) 0);
+      }
+   }
+
+   private void paste(Source source, Object src, Object dst, int x0, int y0,
+                      int x1, int y1) {
+      int minX = Math.max(x0, source.minX_);
+      int minY = Math.max(y0, source.minY_);
+      int maxX = Math.min(x1, source.maxX_);
+      int maxY = Math.min(y1, source.maxY_);
+      if (minX >= maxX || minY >= maxY) {
+         return;
+      }
+      if (source.inverse_ == null) {
+         for (int y = minY; y < maxY; y++) {
+            System.arraycopy(src, (y - source.y_) * source.width_ + minX - source.x_,
+                  dst, y * width_ + minX, maxX - minX);
+         }
+         return;
+      }
+      final double[] m = source.inverse_;
+      final boolean bytes = src instanceof byte[];
+      for (int y = minY; y < maxY; y++) {
+         double rowX = m[1] * y + m[2];
+         double rowY = m[4] * y + m[5];
+         for (int x = minX; x < maxX; x++) {
+            int sx = (int) Math.floor(m[0] * x + rowX + 0.5);
+            int sy = (int) Math.floor(m[3] * x + rowY + 0.5);
+            if (sx < 0 || sy < 0 || sx >= source.width_ || sy >= source.height_) {
+               continue;
+            }
+            int s = sy * source.width_ + sx;
+            if (bytes) {
+               ((byte[]) dst)[y * width_ + x] = ((byte[]) src)[s];
+            } else {
+               ((short[]) dst)[y * width_ + x] = ((short[]) src)[s];
+            }
+         }
+      }
+   }
+
+   private void blend(int[] indices, Object[] sources, Object dst, int x0, int y0,
+                      int x1, int y1) {
+      final int tileWidth = x1 - x0;
+      final float[][] buffers = blendBuffers_.get();
+      final float[] sum = buffers[0];
+      final float[] weight = buffers[1];
+      Arrays.fill(sum, 0, tileWidth * (y1 - y0), 0.0f);
+      Arrays.fill(weight, 0, tileWidth * (y1 - y0), 0.0f);
+      final boolean bytes = dst instanceof byte[];
+      for (int index : indices) {
+         Object src = sources[index];
+         if (src == null) {
+            continue;
+         }
+         Source source = sources_.get(index);
+         int minX = Math.max(x0, source.minX_);
+         int minY = Math.max(y0, source.minY_);
+         int maxX = Math.min(x1, source.maxX_);
+         int maxY = Math.min(y1, source.maxY_);
+         final double[] m = source.inverse_;
+         for (int y = minY; y < maxY; y++) {
+            int t = (y - y0) * tileWidth - x0;
+            for (int x = minX; x < maxX; x++) {
+               int sx;
+               int sy;
+               if (m == null) {
+                  sx = x - source.x_;
+                  sy = y - source.y_;
+               } else {
+                  sx = (int) Math.floor(m[0] * x + m[1] * y + m[2] + 0.5);
+                  sy = (int) Math.floor(m[3] * x + m[4] * y + m[5] + 0.5);
+                  if (sx < 0 || sy < 0 || sx >= source.width_ || sy >= source.height_) {
+                     continue;
+                  }
+               }
+               float w = ramp(sx, source.width_) * ramp(sy, source.height_);
+               int s = sy * source.width_ + sx;
+               int v = bytes ? ((byte[]) src)[s] & 0xff : ((short[]) src)[s] & 0xffff;
+               sum[t + x] += w * v;
+               weight[t + x] += w;
+            }
+         }
+      }
+      for (int y = y0; y < y1; y++) {
+         int t = (y - y0) * tileWidth;
+         int d = y * width_ + x0;
+         for (int x = 0; x < tileWidth; x++, t++, d++) {
+            int v = weight[t] > 0.0f ? (int) (sum[t] / weight[t] + 0.5f) : 0;
+            if (bytes) {
+               ((byte[]) dst)[d] = (byte) Math.min(0xff, v);
+            } else {
+               ((short[]) dst)[d] = (short) Math.min(0xffff, v);
+            }
+         }
+      }
+   }
+
+   /**
+    * Blending weight of a pixel at the given position along an axis of a
+    * source: rises linearly from the edges to 1 at the feather distance.
+    */
+   private float ramp(int position, int length) {
+      int distance = Math.min(position, length - 1 - position) + 1;
+      return distance > feather_ ? 1.0f : (float) distance / (feather_ + 1);
+   }
+}
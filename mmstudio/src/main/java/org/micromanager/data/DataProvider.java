@@ -157,4 +157,31 @@ public interface DataProvider extends Closeable {
    void registerForEvents(Object obj);
 
    void unregisterForEvents(Object obj);
+
+   /**
+    * Register an object to receive {@link DataProviderHasNewImagesEvent}s,
+    * which deliver newly added images in batches rather than one event per
+    * image.
+    *
+    * <p>Not all DataProviders support batched delivery. If this method returns
+    * false, the object has not been registered and should instead use
+    * {@link #registerForEvents(Object)} to receive
+    * {@link DataProviderHasNewImageEvent}s.
+    *
+    * @param obj object with a method annotated with {@code @Subscribe} that
+    *            takes a {@link DataProviderHasNewImagesEvent}
+    * @return true if registered; false if batched delivery is not supported
+    */
+   default boolean registerForBatchedImageEvents(Object obj) {
+      return false;
+   }
+
+   /**
+    * Stop delivery of batched new-image events to an object registered with
+    * {@link #registerForBatchedImageEvents(Object)}.
+    *
+    * @param obj object to unregister
+    */
+   default void unregisterForBatchedImageEvents(Object obj) {
+   }
 }
\ No newline at end of file
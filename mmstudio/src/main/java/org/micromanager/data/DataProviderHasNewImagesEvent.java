@@ -0,0 +1,65 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data;
+
+import java.util.List;
+import java.util.Map;
+import org.micromanager.MMEvent;
+
+/**
+ * This event signifies that one or more images have been added to a
+ * DataProvider since the previous such event.
+ *
+ * <p>Unlike {@link DataProviderHasNewImageEvent}, which is posted once per
+ * image, this event is posted at most once per time window and summarizes all
+ * images added during that window. It is intended for subscribers that do not
+ * need to look at every image (displays, live plots), for which per-image
+ * delivery is wasted work at high frame rates.
+ *
+ * <p>Subscribe using
+ * {@link DataProvider#registerForBatchedImageEvents(Object)}.</p>
+ */
+public interface DataProviderHasNewImagesEvent extends MMEvent {
+   /**
+    * Returns the coordinates of all images added in this batch, in the order
+    * they were added.
+    *
+    * @return unmodifiable list of coords; never empty
+    */
+   List<Coords> getCoordsList();
+
+   /**
+    * Returns the most recently added image of each channel in this batch.
+    *
+    * @return unmodifiable map from channel index to image
+    */
+   Map<Integer, Image> getLatestImagesByChannel();
+
+   /**
+    * Returns the last image added in this batch.
+    *
+    * @return the most recent image
+    */
+   Image getLatestImage();
+
+   /**
+    * Provides the DataProvider the images were added to.
+    *
+    * @return the DataProvider the images were added to.
+    */
+   DataProvider getDataProvider();
+}
@@ -89,6 +89,7 @@ public class DefaultDatastore implements Datastore {
    protected String name_ = "Untitled";
    protected Map<String, Annotation> annotations_ = new HashMap<>();
    protected PrioritizedEventBus bus_;
+   protected final NewImageBatcher newImageBatcher_ = new NewImageBatcher(this);
    protected boolean isFrozen_ = false;
    protected final Studio studio_;
 
@@ -172,6 +173,27 @@ public class DefaultDatastore implements Datastore {
       bus_.unregister(obj);
    }
 
+   @Override
+   public boolean registerForBatchedImageEvents(Object obj) {
+      newImageBatcher_.register(obj);
+      return true;
+   }
+
+   @Override
+   public void unregisterForBatchedImageEvents(Object obj) {
+      newImageBatcher_.unregister(obj);
+   }
+
+   /**
+    * Sets the time window over which new images are collected into a single
+    * DataProviderHasNewImagesEvent.
+    *
+    * @param windowMs window length in milliseconds
+    */
+   public void setBatchedImageEventWindowMs(long windowMs) {
+      newImageBatcher_.setWindowMs(windowMs);
+   }
+
    @Override
    public Image getImage(Coords coords) throws IOException {
       if (storage_ != null) {
@@ -253,6 +275,7 @@ public class DefaultDatastore implements Datastore {
       // should use as few resources as possible.  Note that the bus is asynchronous,
       // so we do not have to wait for processing to finish.
       bus_.post(new DefaultNewImageEvent(image, this));
+      newImageBatcher_.imageAdded(image);
    }
 
    @Override
@@ -386,6 +409,7 @@ public class DefaultDatastore implements Datastore {
          if (storage_ != null) {
             storage_.freeze();
          }
+         newImageBatcher_.flush();
          bus_.post(new DefaultDatastoreFrozenEvent());
       }
    }
@@ -417,6 +441,7 @@ public class DefaultDatastore implements Datastore {
          System.gc();
       }
       bus_.shutDown();
+      newImageBatcher_.shutDown();
    }
 
    @Override
@@ -0,0 +1,71 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import com.google.common.base.Preconditions;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.DataProviderHasNewImagesEvent;
+import org.micromanager.data.Image;
+
+/**
+ * Batch of images added to a DataProvider within one time window.
+ *
+ * <p>This Event posts on the batched-event bus of the DataProvider.
+ * Subscribe using {@link DataProvider#registerForBatchedImageEvents(Object)}.
+ */
+public final class DefaultNewImagesEvent implements DataProviderHasNewImagesEvent {
+   private final List<Coords> coords_;
+   private final Map<Integer, Image> latestByChannel_;
+   private final Image latest_;
+   private final DataProvider provider_;
+
+   /**
+    * The given collections are taken over, not copied.
+    */
+   DefaultNewImagesEvent(List<Coords> coords, Map<Integer, Image> latestByChannel,
+                         Image latest, DataProvider provider) {
+      Preconditions.checkArgument(!coords.isEmpty());
+      coords_ = Collections.unmodifiableList(coords);
+      latestByChannel_ = Collections.unmodifiableMap(latestByChannel);
+      latest_ = latest;
+      provider_ = provider;
+   }
+
+   @Override
+   public List<Coords> getCoordsList() {
+      return coords_;
+   }
+
+   @Override
+   public Map<Integer, Image> getLatestImagesByChannel() {
+      return latestByChannel_;
+   }
+
+   @Override
+   public Image getLatestImage() {
+      return latest_;
+   }
+
+   @Override
+   public DataProvider getDataProvider() {
+      return provider_;
+   }
+}
@@ -0,0 +1,133 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Image;
+import org.micromanager.internal.utils.PrioritizedEventBus;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+
+/**
+ * Collects images added to a datastore and posts them as one
+ * {@link DefaultNewImagesEvent} per time window.
+ *
+ * <p>The per-image cost on the thread adding images is an append under a
+ * short lock; the event is posted from a timer thread to an asynchronous bus.
+ * Nothing is collected while there are no subscribers.
+ */
+final class NewImageBatcher {
+   static final long DEFAULT_WINDOW_MS = 20;
+
+   // One timer thread for all datastores; flushing only posts to async buses
+   private static final ScheduledExecutorService FLUSH_SCHEDULER =
+         Executors.newSingleThreadScheduledExecutor(ThreadFactoryFactory
+               .createThreadFactory("New Image Batcher"));
+
+   private final DataProvider provider_;
+   private final PrioritizedEventBus bus_ = new PrioritizedEventBus(true);
+   private volatile long windowMs_ = DEFAULT_WINDOW_MS;
+
+   // Written under monitor on this, read without
+   private volatile int subscriberCount_ = 0;
+
+   // Guarded by monitor on this
+   private List<Coords> pendingCoords_ = new ArrayList<>();
+   private Map<Integer, Image> pendingLatestByChannel_ = new TreeMap<>();
+   private Image pendingLatest_;
+   private boolean flushScheduled_ = false;
+   private boolean shutDown_ = false;
+
+   NewImageBatcher(DataProvider provider) {
+      provider_ = provider;
+   }
+
+   synchronized void register(Object subscriber) {
+      if (shutDown_) {
+         return;
+      }
+      bus_.register(subscriber);
+      ++subscriberCount_;
+   }
+
+   synchronized void unregister(Object subscriber) {
+      bus_.unregister(subscriber);
+      subscriberCount_ = Math.max(0, subscriberCount_ - 1);
+   }
+
+   void setWindowMs(long windowMs) {
+      windowMs_ = Math.max(0, windowMs);
+   }
+
+   long getWindowMs() {
+      return windowMs_;
+   }
+
+   void imageAdded(Image image) {
+      if (subscriberCount_ == 0) {
+         return;
+      }
+      synchronized (this) {
+         if (shutDown_) {
+            return;
+         }
+         Coords coords = image.getCoords();
+         pendingCoords_.add(coords);
+         pendingLatestByChannel_.put(coords.getChannel(), image);
+         pendingLatest_ = image;
+         if (!flushScheduled_) {
+            flushScheduled_ = true;
+            FLUSH_SCHEDULER.schedule(this::flush, windowMs_, TimeUnit.MILLISECONDS);
+         }
+      }
+   }
+
+   /**
+    * Post any pending images now.
+    */
+   void flush() {
+      DefaultNewImagesEvent event;
+      synchronized (this) {
+         flushScheduled_ = false;
+         if (pendingCoords_.isEmpty()) {
+            return;
+         }
+         event = new DefaultNewImagesEvent(pendingCoords_,
+               pendingLatestByChannel_, pendingLatest_, provider_);
+         pendingCoords_ = new ArrayList<>();
+         pendingLatestByChannel_ = new TreeMap<>();
+         pendingLatest_ = null;
+      }
+      bus_.post(event);
+   }
+
+   void shutDown() {
+      flush();
+      synchronized (this) {
+         shutDown_ = true;
+         subscriberCount_ = 0;
+      }
+      bus_.shutDown();
+   }
+}
@@ -33,12 +33,14 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.swing.SwingUtilities;
 import org.micromanager.Studio;
 import org.micromanager.data.Coordinates;
 import org.micromanager.data.Coords;
 import org.micromanager.data.DataProvider;
 import org.micromanager.data.DataProviderHasNewImageEvent;
+import org.micromanager.data.DataProviderHasNewImagesEvent;
 import org.micromanager.data.DataProviderHasNewNameEvent;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreClosingEvent;
@@ -63,6 +65,8 @@ import org.micromanager.display.internal.event.DisplayWindowDidRemoveOverlayEven
 import org.micromanager.display.internal.imagestats.BoundsRectAndMask;
 import org.micromanager.display.internal.imagestats.ImageStatsRequest;
 import org.micromanager.display.internal.imagestats.ImagesAndStats;
+import org.micromanager.display.internal.imagestats.LatestFrameMailbox;
+import org.micromanager.display.internal.imagestats.SharedImageStatsCaches;
 import org.micromanager.display.internal.imagestats.StatsComputeQueue;
 import org.micromanager.display.internal.link.LinkManager;
 import org.micromanager.display.internal.link.internal.DefaultLinkManager;
@@ -98,12 +102,17 @@ public final class DisplayController extends DisplayWindowAPIAdapter
    // Accessed only on EDT
    private long latestStatsSeqNr_ = -1;
 
+   // Hand-over of images-and-stats from the compute queue to the EDT.
+   // Lock-free, so that the stats result thread never waits for painting.
+   private final LatestFrameMailbox frameMailbox_ = LatestFrameMailbox.create();
+
    // Not final but set only upon creation
    private AnimationController<Coords> animationController_;
 
    private final Set<String> playbackAxes_ = new HashSet<>();
 
-   private final StatsComputeQueue computeQueue_ = StatsComputeQueue.create();
+   // Stats are cached per data provider, shared by all its displays
+   private final StatsComputeQueue computeQueue_;
    private static final long MIN_REPAINT_PERIOD_NS = Math.round(1e9 / 60.0);
 
    private final LinkManager linkManager_;
@@ -113,8 +122,8 @@ public final class DisplayController extends DisplayWindowAPIAdapter
    // Must access on EDT
    private DisplayUIController uiController_;
 
-   private final Object selectionLock_ = new Object();
-   private BoundsRectAndMask selection_ = BoundsRectAndMask.unselected();
+   private final AtomicReference<BoundsRectAndMask> selection_ =
+         new AtomicReference<>(BoundsRectAndMask.unselected());
 
    private final List<Overlay> overlays_ = new ArrayList<>();
 
@@ -123,12 +132,18 @@ public final class DisplayController extends DisplayWindowAPIAdapter
 
    // A way to know from a non-EDT thread that the display has definitely
    // closed (may not be true for a short period after closing)
-   // Guarded by monitor on itself
+   // Written under closeGuard_; may be read without it
    private volatile boolean closeCompleted_;
    private final Object closeGuard_ = new Object();
 
    private DisplayWindowControlsFactory controlsFactory_;
 
+   // New images are received in batches when the data provider supports it,
+   // and otherwise one event per image. Only one of these is registered.
+   private final Object newImageSubscriber_ = new NewImageSubscriber();
+   private final Object newImagesSubscriber_ = new NewImagesSubscriber();
+   private boolean usingBatchedImageEvents_;
+
    private CoalescentEDTRunnablePool runnablePool_ =
          CoalescentEDTRunnablePool.create();
 
@@ -256,6 +271,8 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       controlsFactory_ = controlsFactory;
       linkManager_ = linkManager;
 
+      computeQueue_ = StatsComputeQueue.create(
+            SharedImageStatsCaches.acquire(dataProvider));
       computeQueue_.setPerformanceMonitor(perfMon_);
 
       ReportingUtils.logMessage("Class: " + this.getClass());
@@ -280,6 +297,11 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       // Start receiving events
       studio_.events().registerForEvents(this);
       dataProvider_.registerForEvents(this);
+      usingBatchedImageEvents_ =
+            dataProvider_.registerForBatchedImageEvents(newImagesSubscriber_);
+      if (!usingBatchedImageEvents_) {
+         dataProvider_.registerForEvents(newImageSubscriber_);
+      }
    }
 
    // Allow internal objects (in particular, UI controller) to post events
@@ -348,99 +370,114 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       // If using that method, here would be the place to wait for previously
       // requested paints to finish.
       //
-      // Here, we schedule painting using coalescent runnables. No repaint is
-      // scheduled until the EDT catches up to the last of (the InvocationEvent
-      // resulting from) our coalescent runnables. Because the EDT will not
-      // catch up if congested, we don't exacerbate the situation by scheduling
-      // further repaints.
-      // It is also guaranteed that a repaint _will_ be scheduled when no
-      // longer congested, because before becoming idle the EDT will have to
-      // process the last of our coalescent runnable, thereby scheduling a
-      // repaint with the latest requested display position.
-      // One of the nice things about doing it this way is that we can
-      // coalesce the displaying tasks for multiple display windows.
-
-      runnablePool_.invokeAsLateAsPossibleWithCoalescence(new CoalescentRunnable() {
-         @Override
-         public Class<?> getCoalescenceClass() {
-            return getClass();
+      // Here, we deposit the images into a single-slot mailbox. Only the
+      // thread that finds the mailbox empty schedules a task on the EDT; any
+      // images posted before that task runs simply replace the waiting ones
+      // (and are counted as dropped). So there is never more than one
+      // outstanding repaint task per display, and that task always paints
+      // the latest images. Because the hand-over is a single atomic swap, the
+      // stats result thread (and, through it, the acquisition thread) never
+      // blocks on the EDT or on a monitor shared with it.
+
+      if (!frameMailbox_.post(images)) {
+         if (perfMon_ != null) {
+            perfMon_.sampleTimeInterval("Scheduling of repaint coalesced");
          }
+         return;
+      }
+      SwingUtilities.invokeLater(this::displayLatestFrame);
+   }
 
-         @Override
-         public CoalescentRunnable coalesceWith(CoalescentRunnable later) {
-            // Only the most recent repaint task need be run
-            if (perfMon_ != null) {
-               perfMon_.sampleTimeInterval("Scheduling of repaint coalesced");
+   @MustCallOnEDT
+   private void displayLatestFrame() {
+      final ImagesAndStats images = frameMailbox_.take();
+      if (images == null) {
+         return;
+      }
+      if (uiController_ == null) { // Closed
+         return;
+      }
+
+      Image primaryImage = images.getRequest().getImage(0);
+      Coords nominalCoords = images.getRequest().getNominalCoords();
+      if (nominalCoords.hasAxis(Coords.CHANNEL)) {
+         int channel = nominalCoords.getChannel();
+         for (Image image : images.getRequest().getImages()) {
+            if (image.getCoords().hasAxis(Coords.CHANNEL)
+                  && image.getCoords().getChannel() == channel) {
+               primaryImage = image;
+               break;
             }
-            return later;
          }
+      }
 
-         @Override
-         public void run() {
-            if (uiController_ == null) { // Closed
-               return;
+      boolean imagesDiffer = true;
+      if (displayedImages_ != null
+            && images.getRequest().getNumberOfImages()
+            == displayedImages_.getRequest().getNumberOfImages()) {
+         imagesDiffer = false;
+         for (int i = 0; i < images.getRequest().getNumberOfImages(); ++i) {
+            if (images.getRequest().getImage(i)
+                  != displayedImages_.getRequest().getImage(i)) {
+               imagesDiffer = true;
+               break;
             }
+         }
+      }
 
-            Image primaryImage = images.getRequest().getImage(0);
-            Coords nominalCoords = images.getRequest().getNominalCoords();
-            if (nominalCoords.hasAxis(Coords.CHANNEL)) {
-               int channel = nominalCoords.getChannel();
-               for (Image image : images.getRequest().getImages()) {
-                  if (image.getCoords().hasAxis(Coords.CHANNEL)
-                        && image.getCoords().getChannel() == channel) {
-                     primaryImage = image;
-                     break;
-                  }
-               }
-            }
+      if (perfMon_ != null) {
+         perfMon_.sample("Scheduling identical images (%)", imagesDiffer ? 0.0 : 100.0);
+      }
+      if (imagesDiffer || getDisplaySettings().isAutostretchEnabled()
+            || getDisplaySettings().getColorMode()
+            != DisplaySettings.ColorMode.COMPOSITE) {
+         uiController_.displayImages(images);
+      } else if (getDisplaySettings().getColorMode()
+            == DisplaySettings.ColorMode.COMPOSITE) {
+         // in composite mode, keep the channel name in sync with the 
+         // channel set by the slider.  It would be even better to 
+         // disable the channel slider and display the names of all 
+         // channels, but that becomes very hacky
+         uiController_.updateSliders(images);
+         uiController_.setImageInfoLabel(images);
+      }
 
-            boolean imagesDiffer = true;
-            if (displayedImages_ != null
-                  && images.getRequest().getNumberOfImages()
-                  == displayedImages_.getRequest().getNumberOfImages()) {
-               imagesDiffer = false;
-               for (int i = 0; i < images.getRequest().getNumberOfImages(); ++i) {
-                  if (images.getRequest().getImage(i)
-                        != displayedImages_.getRequest().getImage(i)) {
-                     imagesDiffer = true;
-                     break;
-                  }
-               }
-            }
+      postEvent(DefaultDisplayDidShowImageEvent.create(
+            this,
+            images.getRequest().getImages(),
+            primaryImage));
 
-            if (perfMon_ != null) {
-               perfMon_.sample("Scheduling identical images (%)", imagesDiffer ? 0.0 : 100.0);
-            }
-            if (imagesDiffer || getDisplaySettings().isAutostretchEnabled()
-                  || getDisplaySettings().getColorMode()
-                  != DisplaySettings.ColorMode.COMPOSITE) {
-               uiController_.displayImages(images);
-            } else if (getDisplaySettings().getColorMode()
-                  == DisplaySettings.ColorMode.COMPOSITE) {
-               // in composite mode, keep the channel name in sync with the 
-               // channel set by the slider.  It would be even better to 
-               // disable the channel slider and display the names of all 
-               // channels, but that becomes very hacky
-               uiController_.updateSliders(images);
-               uiController_.setImageInfoLabel(images);
-            }
+      if (images.getStatsSequenceNumber() > latestStatsSeqNr_) {
+         postEvent(ImageStatsChangedEvent.create(images));
+         latestStatsSeqNr_ = images.getStatsSequenceNumber();
+      }
+      displayedImages_ = images;
 
-            postEvent(DefaultDisplayDidShowImageEvent.create(
-                  DisplayController.this,
-                  images.getRequest().getImages(),
-                  primaryImage));
+      if (perfMon_ != null) {
+         perfMon_.sample("Frames dropped before repaint (%)",
+               100.0 * frameMailbox_.getDroppedCount()
+                     / Math.max(1, frameMailbox_.getPostedCount()));
+         perfMon_.sampleTimeInterval("Scheduled repaint on EDT");
+      }
+   }
 
-            if (images.getStatsSequenceNumber() > latestStatsSeqNr_) {
-               postEvent(ImageStatsChangedEvent.create(images));
-               latestStatsSeqNr_ = images.getStatsSequenceNumber();
-            }
-            displayedImages_ = images;
+   /**
+    * Returns the number of images-and-stats that were replaced by newer ones
+    * before they could be painted.
+    *
+    * @return number of frames skipped by the display
+    */
+   public long getDroppedFrameCount() {
+      return frameMailbox_.getDroppedCount();
+   }
 
-            if (perfMon_ != null) {
-               perfMon_.sampleTimeInterval("Scheduled repaint on EDT");
-            }
-         }
-      });
+   /**
+    * Returns the number of images-and-stats handed to the UI for painting.
+    *
+    * @return number of frames taken for display
+    */
+   public long getDeliveredFrameCount() {
+      return frameMailbox_.getTakenCount();
    }
 
    @Override
@@ -636,9 +673,7 @@ public final class DisplayController extends DisplayWindowAPIAdapter
 
       BoundsRectAndMask selection = BoundsRectAndMask.unselected();
       if (getDisplaySettings().isROIAutoscaleEnabled()) {
-         synchronized (selectionLock_) {
-            selection = selection_;
-         }
+         selection = selection_.get();
       }
 
       if (perfMon_ != null) {
@@ -789,9 +824,7 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       if (selection == null) {
          selection = BoundsRectAndMask.unselected();
       }
-      synchronized (selectionLock_) {
-         selection_ = selection;
-      }
+      selection_.set(selection);
       if (getDisplaySettings().isROIAutoscaleEnabled()) {
          // This is the thread-safe way to trigger a redisplay
          Coords pos;
@@ -907,20 +940,33 @@ public final class DisplayController extends DisplayWindowAPIAdapter
    // Event handlers
    //
 
+   private final class NewImageSubscriber {
+      @Subscribe
+      public void onNewImage(DataProviderHasNewImageEvent event) {
+         DisplayController.this.onNewImage(event);
+      }
+   }
+
+   private final class NewImagesSubscriber {
+      @Subscribe
+      public void onNewImages(DataProviderHasNewImagesEvent event) {
+         DisplayController.this.onNewImages(event);
+      }
+   }
+
    /**
     * A new image arrived in the Datastore.
     *
+    * <p>Only called when the data provider does not deliver batched events.
+    *
     * @param event Contains information about the newly arrived image.
     */
-   @Subscribe
    public void onNewImage(final DataProviderHasNewImageEvent event) {
       if (perfMon_ != null) {
          perfMon_.sampleTimeInterval("NewImageEvent");
       }
-      synchronized (closeGuard_) {
-         if (closeCompleted_) {
-            return;
-         }
+      if (closeCompleted_) {
+         return;
       }
 
       // Generally we want to display new images (if not instructed otherwise
@@ -931,6 +977,31 @@ public final class DisplayController extends DisplayWindowAPIAdapter
       animationController_.newDataPosition(event.getImage().getCoords());
    }
 
+   /**
+    * A batch of new images arrived in the Datastore.
+    *
+    * <p>We only need to show the latest image, but the displayed range must
+    * include every new position.
+    *
+    * @param event Contains the coords of the new images and the latest image.
+    */
+   public void onNewImages(final DataProviderHasNewImagesEvent event) {
+      if (perfMon_ != null) {
+         perfMon_.sampleTimeInterval("NewImagesEvent");
+         perfMon_.sample("NewImagesEvent batch size", event.getCoordsList().size());
+      }
+      if (closeCompleted_) {
+         return;
+      }
+
+      CoalescentEDTRunnablePool pool = runnablePool_;
+      if (pool != null && event.getCoordsList().size() > 1) {
+         pool.invokeLaterWithCoalescence(
+               new ExpandDisplayRangeCoalescentRunnable(event.getCoordsList()));
+      }
+      animationController_.newDataPosition(event.getLatestImage().getCoords());
+   }
+
 
    /**
     * A coalescent runnable to avoid excessively frequent update of the data
@@ -944,6 +1015,10 @@ public final class DisplayController extends DisplayWindowAPIAdapter
          coords_.add(coords);
       }
 
+      ExpandDisplayRangeCoalescentRunnable(List<Coords> coords) {
+         coords_.addAll(coords);
+      }
+
       @Override
       public Class<?> getCoalescenceClass() {
          return getClass();
@@ -1125,13 +1200,20 @@ public final class DisplayController extends DisplayWindowAPIAdapter
             // RememberedDisplaySettings we do not need to do it again here
          }
          dataProvider_.unregisterForEvents(this);
+         if (usingBatchedImageEvents_) {
+            dataProvider_.unregisterForBatchedImageEvents(newImagesSubscriber_);
+         } else {
+            dataProvider_.unregisterForEvents(newImageSubscriber_);
+         }
          try {
             computeQueue_.removeListener(this);
             computeQueue_.shutdown();
          } catch (InterruptedException ie) {
             // TODO: report exception
          }
+         SharedImageStatsCaches.release(dataProvider_);
          perfMon_ = null;
+         frameMailbox_.clear();
          animationController_.shutdown();
          animationController_.removeListener(this);
          animationController_ = null;
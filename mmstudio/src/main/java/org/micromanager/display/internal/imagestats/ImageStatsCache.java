@@ -0,0 +1,299 @@
+// Copyright (C) 2017 Open Imaging, Inc.
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.imagestats;
+
+import com.google.common.base.Preconditions;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+
+/**
+ * Bounded cache of computed per-image statistics.
+ *
+ * <p>Entries are keyed by image UUID, coords and size, sample bit depth,
+ * histogram bin count and the region over which stats were computed (the
+ * whole image, a rectangle, or a rectangle with mask). The UUID alone does not
+ * identify the pixels, since derived images (split channels, crops) may
+ * carry the metadata, and thus the UUID, of their source. Images without a
+ * UUID cannot be cached.
+ *
+ * <p>For each image, the most recently stored unmasked rectangle is also
+ * remembered, so that stats for a slightly moved or resized rectangle can be
+ * derived incrementally (see {@link IntegerStatsAccumulator}).
+ *
+ * <p>A cache may be shared between displays showing the same data (see
+ * {@link SharedImageStatsCaches}); {@link #getOrCompute} then ensures that
+ * concurrent requests for the same stats result in a single computation.
+ *
+ * <p>The cache is bounded by the total number of histogram bins held, since
+ * that dominates memory use (a 16-bit histogram is half a megabyte per
+ * component). All methods are thread-safe.
+ */
+public final class ImageStatsCache {
+   // About 32 MB of histograms
+   private static final long DEFAULT_MAX_TOTAL_BINS = 4L * 1024 * 1024;
+
+   /**
+    * Identifies the stats of one image over one region.
+    */
+   static final class Key {
+      private final UUID uuid_;
+      private final Coords coords_;
+      private final int width_;
+      private final int height_;
+      private final int bitDepth_;
+      private final int binCountPowerOf2_;
+      private final Rectangle bounds_; // null for whole image
+      private final byte[] mask_; // null for unmasked
+
+      private Key(UUID uuid, Coords coords, int width, int height,
+                  int bitDepth, int binCountPowerOf2,
+                  Rectangle bounds, byte[] mask) {
+         Preconditions.checkNotNull(uuid);
+         uuid_ = uuid;
+         coords_ = coords;
+         width_ = width;
+         height_ = height;
+         bitDepth_ = bitDepth;
+         binCountPowerOf2_ = binCountPowerOf2;
+         bounds_ = bounds == null ? null : new Rectangle(bounds);
+         mask_ = mask;
+      }
+
+      private Key(Image image, int bitDepth, int binCountPowerOf2,
+                  Rectangle bounds, byte[] mask) {
+         this(image.getMetadata().getUUID(), image.getCoords(),
+               image.getWidth(), image.getHeight(),
+               bitDepth, binCountPowerOf2, bounds, mask);
+      }
+
+      static Key forWholeImage(Image image, int bitDepth, int binCountPowerOf2) {
+         return new Key(image, bitDepth, binCountPowerOf2, null, null);
+      }
+
+      static Key forRect(Image image, int bitDepth, int binCountPowerOf2,
+                         Rectangle bounds) {
+         Preconditions.checkNotNull(bounds);
+         return new Key(image, bitDepth, binCountPowerOf2, bounds, null);
+      }
+
+      /**
+       * The mask array is not copied and must not be modified afterwards.
+       */
+      static Key forMask(Image image, int bitDepth, int binCountPowerOf2,
+                         Rectangle bounds, byte[] mask) {
+         Preconditions.checkNotNull(bounds);
+         Preconditions.checkNotNull(mask);
+         return new Key(image, bitDepth, binCountPowerOf2, bounds, mask);
+      }
+
+      Key imageKey() {
+         return new Key(uuid_, coords_, width_, height_,
+               bitDepth_, binCountPowerOf2_, null, null);
+      }
+
+      boolean isUnmaskedRect() {
+         return bounds_ != null && mask_ == null;
+      }
+
+      Rectangle getBounds() {
+         return bounds_ == null ? null : new Rectangle(bounds_);
+      }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof Key)) {
+            return false;
+         }
+         Key k = (Key) other;
+         return uuid_.equals(k.uuid_)
+               && Objects.equals(coords_, k.coords_)
+               && width_ == k.width_
+               && height_ == k.height_
+               && bitDepth_ == k.bitDepth_
+               && binCountPowerOf2_ == k.binCountPowerOf2_
+               && Objects.equals(bounds_, k.bounds_)
+               && Arrays.equals(mask_, k.mask_);
+      }
+
+      @Override
+      public int hashCode() {
+         int hash = uuid_.hashCode();
+         hash = 31 * hash + Objects.hashCode(coords_);
+         hash = 31 * hash + width_;
+         hash = 31 * hash + height_;
+         hash = 31 * hash + bitDepth_;
+         hash = 31 * hash + binCountPowerOf2_;
+         hash = 31 * hash + Objects.hashCode(bounds_);
+         hash = 31 * hash + Arrays.hashCode(mask_);
+         return hash;
+      }
+   }
+
+   private final long maxTotalBins_;
+
+   // Guarded by monitor on this; access-ordered for LRU eviction
+   private final LinkedHashMap<Key, IntegerComponentStats[]> entries_ =
+         new LinkedHashMap<>(16, 0.75f, true);
+   private long totalBins_ = 0;
+
+   // Image key -> key of latest unmasked rectangle stored for that image
+   // Guarded by monitor on this
+   private final Map<Key, Key> latestRects_ = new LinkedHashMap<>();
+
+   // Computations in progress, so that concurrent requests can share them
+   private final ConcurrentHashMap<Key, FutureTask<IntegerComponentStats[]>>
+         inFlight_ = new ConcurrentHashMap<>();
+
+   private long hitCount_ = 0;
+   private long missCount_ = 0;
+
+   public static ImageStatsCache create() {
+      return new ImageStatsCache(DEFAULT_MAX_TOTAL_BINS);
+   }
+
+   static ImageStatsCache createWithMaxTotalBins(long maxTotalBins) {
+      return new ImageStatsCache(maxTotalBins);
+   }
+
+   private ImageStatsCache(long maxTotalBins) {
+      maxTotalBins_ = maxTotalBins;
+   }
+
+   synchronized IntegerComponentStats[] get(Key key) {
+      IntegerComponentStats[] stats = entries_.get(key);
+      if (stats == null) {
+         ++missCount_;
+         return null;
+      }
+      ++hitCount_;
+      return stats.clone();
+   }
+
+   synchronized void put(Key key, IntegerComponentStats[] stats) {
+      IntegerComponentStats[] old = entries_.put(key, stats.clone());
+      if (old != null) {
+         totalBins_ -= weigh(old);
+      }
+      totalBins_ += weigh(stats);
+      if (key.isUnmaskedRect()) {
+         latestRects_.put(key.imageKey(), key);
+      }
+      evict();
+   }
+
+   /**
+    * Return cached stats, or compute and cache them. If another thread is
+    * already computing the same stats, wait for its result instead.
+    *
+    * @param key the stats to look up
+    * @param computer computes the stats; may return null if the image cannot
+    *     be handled, in which case nothing is cached
+    * @return the stats, or null if {@code computer} returned null
+    */
+   IntegerComponentStats[] getOrCompute(Key key,
+                                        Callable<IntegerComponentStats[]> computer) {
+      IntegerComponentStats[] cached = get(key);
+      if (cached != null) {
+         return cached;
+      }
+      FutureTask<IntegerComponentStats[]> task = new FutureTask<>(computer);
+      FutureTask<IntegerComponentStats[]> existing = inFlight_.putIfAbsent(key, task);
+      if (existing == null) {
+         try {
+            task.run();
+            IntegerComponentStats[] result = task.get();
+            if (result != null) {
+               put(key, result);
+            }
+            return result == null ? null : result.clone();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+         } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+         } finally {
+            inFlight_.remove(key, task);
+         }
+      }
+      try {
+         IntegerComponentStats[] result = existing.get();
+         return result == null ? null : result.clone();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return null;
+      } catch (ExecutionException e) {
+         throw new RuntimeException(e.getCause());
+      }
+   }
+
+   /**
+    * Return the key of the latest unmasked rectangle whose stats are still
+    * cached for the same image as the given key, or null.
+    */
+   synchronized Key getLatestRect(Key key) {
+      Key rectKey = latestRects_.get(key.imageKey());
+      if (rectKey != null && !entries_.containsKey(rectKey)) {
+         latestRects_.remove(key.imageKey());
+         return null;
+      }
+      return rectKey;
+   }
+
+   public synchronized void clear() {
+      entries_.clear();
+      latestRects_.clear();
+      totalBins_ = 0;
+   }
+
+   public synchronized long getHitCount() {
+      return hitCount_;
+   }
+
+   public synchronized long getMissCount() {
+      return missCount_;
+   }
+
+   private void evict() {
+      Iterator<Map.Entry<Key, IntegerComponentStats[]>> it =
+            entries_.entrySet().iterator();
+      while (totalBins_ > maxTotalBins_ && entries_.size() > 1 && it.hasNext()) {
+         Map.Entry<Key, IntegerComponentStats[]> eldest = it.next();
+         totalBins_ -= weigh(eldest.getValue());
+         Key key = eldest.getKey();
+         if (key.isUnmaskedRect() && key.equals(latestRects_.get(key.imageKey()))) {
+            latestRects_.remove(key.imageKey());
+         }
+         it.remove();
+      }
+   }
+
+   private static long weigh(IntegerComponentStats[] stats) {
+      long bins = 0;
+      for (IntegerComponentStats s : stats) {
+         bins += s.getHistogramBinCount() + 2;
+      }
+      return bins;
+   }
+}
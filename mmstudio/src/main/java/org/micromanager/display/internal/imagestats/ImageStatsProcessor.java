@@ -17,6 +17,7 @@ import com.google.common.base.Preconditions;
 import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -24,6 +25,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.lang.reflect.Array;
 import net.imglib2.Cursor;
 import net.imglib2.IterableInterval;
 import net.imglib2.histogram.BinMapper1d;
@@ -53,13 +55,28 @@ public final class ImageStatsProcessor {
 
    private final ExecutorService executor_;
 
+   private final ImageStatsCache cache_;
+
    private PerformanceMonitor perfMon_;
 
    public static ImageStatsProcessor create() {
-      return new ImageStatsProcessor();
+      return new ImageStatsProcessor(ImageStatsCache.create());
+   }
+
+   /**
+    * Create a processor that stores and looks up results in the given
+    * (possibly shared) cache.
+    *
+    * @param cache the stats cache to use
+    * @return the new processor
+    */
+   public static ImageStatsProcessor create(ImageStatsCache cache) {
+      Preconditions.checkNotNull(cache);
+      return new ImageStatsProcessor(cache);
    }
 
-   private ImageStatsProcessor() {
+   private ImageStatsProcessor(ImageStatsCache cache) {
+      cache_ = cache;
       // Allow as many threads as requested jobs, since there should be no more
       // than a handful of channels.
       executor_ = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
@@ -159,47 +176,221 @@ public final class ImageStatsProcessor {
       }
 
       // If (the used part of) the mask has no pixels, revert to full image
-      IterableInterval<UnsignedByteType> mask =
-            wrapROIMask(maskBytes, nComponents, maskBounds, statsBounds);
-      boolean maskEmpty = true;
-      for (Cursor<UnsignedByteType> c = mask.cursor(); c.hasNext(); c.fwd()) {
-         if (c.get().getInteger() >= MASK_THRESH) {
-            maskEmpty = false;
-            break;
-         }
-      }
-      if (maskEmpty) {
+      if (isMaskEmpty(maskBytes, maskBounds, statsBounds)) {
          statsBounds = imageBounds;
-         mask = wrapROIMask(null, nComponents, imageBounds, statsBounds);
+         maskBytes = null;
          useROI = false;
       }
 
+      final Object pixels = image.getRawPixels();
+      final int width = image.getWidth();
+      final int height = image.getHeight();
+      final Rectangle fStatsBounds = statsBounds;
+      final Rectangle fMaskBounds = maskBounds;
+      final byte[] fMaskBytes = maskBytes;
+      final boolean fUseROI = useROI;
+
+      // Look up previously computed stats for the same image and region. The
+      // cache may be shared with other displays of the same data, in which
+      // case identical requests are computed only once.
+      IntegerComponentStats[] componentStats;
+      UUID uuid = image.getMetadata().getUUID();
+      if (uuid != null) {
+         final ImageStatsCache.Key cacheKey;
+         if (!useROI) {
+            cacheKey = ImageStatsCache.Key.forWholeImage(image, bitDepth,
+                  binCountPowerOf2);
+         } else if (maskBytes == null) {
+            cacheKey = ImageStatsCache.Key.forRect(image, bitDepth,
+                  binCountPowerOf2, statsBounds);
+         } else {
+            cacheKey = ImageStatsCache.Key.forMask(image, bitDepth,
+                  binCountPowerOf2, maskBounds, maskBytes);
+         }
+         componentStats = cache_.getOrCompute(cacheKey,
+               () -> computeComponentStats(pixels, width, height,
+                     nComponents, bytesPerSample, bitDepth, binCountPowerOf2,
+                     fStatsBounds, fMaskBounds, fMaskBytes, fUseROI, cacheKey));
+      } else {
+         componentStats = computeComponentStats(pixels, width, height,
+               nComponents, bytesPerSample, bitDepth, binCountPowerOf2,
+               statsBounds, maskBounds, maskBytes, useROI, null);
+      }
+
       ImageStats result = null;
+      if (componentStats != null) {
+         result = ImageStats.create(index, componentStats);
+      }
+
+      if (perfMon_ != null) {
+         perfMon_.sample("Process CPU time (ms)", cpuTimer.getMs());
+      }
+
+      return result; // null if we don't know how to compute (TODO FIX)
+   }
+
+   private IntegerComponentStats[] computeComponentStats(Object pixels,
+         int width, int height, int nComponents, int bytesPerSample,
+         int bitDepth, int binCountPowerOf2,
+         Rectangle statsBounds, Rectangle maskBounds, byte[] maskBytes,
+         boolean useROI, ImageStatsCache.Key cacheKey) {
+      boolean rawLayoutSupported = (bytesPerSample == 1 || bytesPerSample == 2)
+            && Array.getLength(pixels) == width * height * nComponents;
+      if (maskBytes == null && rawLayoutSupported) {
+         // Unmasked rectangle (or whole image): work on the raw buffer,
+         // incrementally from a previous rectangle if possible.
+         if (useROI && cacheKey != null) {
+            IntegerComponentStats[] incremental = computeRectIncrementally(
+                  pixels, width, cacheKey, statsBounds, bitDepth,
+                  binCountPowerOf2);
+            if (incremental != null) {
+               return incremental;
+            }
+         }
+         IntegerStatsAccumulator acc = IntegerStatsAccumulator.create(
+               nComponents, bitDepth, binCountPowerOf2);
+         acc.accumulate(pixels, width, statsBounds);
+         return acc.toComponentStats(useROI);
+      }
+
+      IterableInterval<UnsignedByteType> mask =
+            wrapROIMask(maskBytes, nComponents, maskBounds, statsBounds);
+      ImageStats computed = null;
       if (bytesPerSample == 1) {
          Img<UnsignedByteType> img =
-               ArrayImgs.unsignedBytes((byte[]) image.getRawPixels(),
-                     nComponents, image.getWidth(), image.getHeight());
-         result = compute(
+               ArrayImgs.unsignedBytes((byte[]) pixels,
+                     nComponents, width, height);
+         computed = compute(
                clipToRect(img, nComponents, statsBounds),
                mask,
                nComponents, bitDepth, binCountPowerOf2,
-               useROI, index);
+               useROI, 0);
       } else if (bytesPerSample == 2) {
          Img<UnsignedShortType> img =
-               ArrayImgs.unsignedShorts((short[]) image.getRawPixels(),
-                     nComponents, image.getWidth(), image.getHeight());
-         result = compute(
+               ArrayImgs.unsignedShorts((short[]) pixels,
+                     nComponents, width, height);
+         computed = compute(
                clipToRect(img, nComponents, statsBounds),
                mask,
                nComponents, bitDepth, binCountPowerOf2,
-               useROI, index);
+               useROI, 0);
+      }
+      if (computed == null) {
+         return null;
+      }
+      IntegerComponentStats[] ret =
+            new IntegerComponentStats[computed.getNumberOfComponents()];
+      for (int c = 0; c < ret.length; ++c) {
+         ret[c] = computed.getComponentStats(c);
+      }
+      return ret;
+   }
+
+   /**
+    * Derive the stats of an unmasked rectangle from the cached stats of the
+    * latest rectangle on the same image, by subtracting the pixels that left
+    * and adding those that entered. Returns null if this is not possible or
+    * not cheaper than computing from scratch.
+    */
+   private IntegerComponentStats[] computeRectIncrementally(Object pixels,
+         int imageWidth, ImageStatsCache.Key key, Rectangle newRect,
+         int bitDepth, int binCountPowerOf2) {
+      ImageStatsCache.Key previousKey = cache_.getLatestRect(key);
+      if (previousKey == null) {
+         return null;
+      }
+      IntegerComponentStats[] previous = cache_.get(previousKey);
+      if (previous == null) {
+         return null;
+      }
+      Rectangle oldRect = previousKey.getBounds();
+      List<Rectangle> leaving = subtractRect(oldRect, newRect);
+      List<Rectangle> entering = subtractRect(newRect, oldRect);
+      long deltaArea = 0;
+      for (Rectangle r : leaving) {
+         deltaArea += (long) r.width * r.height;
+      }
+      for (Rectangle r : entering) {
+         deltaArea += (long) r.width * r.height;
+      }
+      if (deltaArea >= (long) newRect.width * newRect.height) {
+         return null;
       }
 
+      IntegerStatsAccumulator acc = IntegerStatsAccumulator.fromStats(
+            previous, bitDepth, binCountPowerOf2);
+      IntegerStatsAccumulator removed = IntegerStatsAccumulator.create(
+            previous.length, bitDepth, binCountPowerOf2);
+      for (Rectangle r : leaving) {
+         removed.accumulate(pixels, imageWidth, r);
+      }
+      if (!acc.subtractPreservingExtrema(removed)) {
+         if (perfMon_ != null) {
+            perfMon_.sample("Stats incremental update (%)", 0.0);
+         }
+         return null;
+      }
+      IntegerStatsAccumulator added = IntegerStatsAccumulator.create(
+            previous.length, bitDepth, binCountPowerOf2);
+      for (Rectangle r : entering) {
+         added.accumulate(pixels, imageWidth, r);
+      }
+      acc.merge(added);
       if (perfMon_ != null) {
-         perfMon_.sample("Process CPU time (ms)", cpuTimer.getMs());
+         perfMon_.sample("Stats incremental update (%)", 100.0);
       }
+      return acc.toComponentStats(true);
+   }
 
-      return result; // null if we don't know how to compute (TODO FIX)
+   /**
+    * Return the part of {@code a} not covered by {@code b}, as up to four
+    * disjoint rectangles.
+    */
+   static List<Rectangle> subtractRect(Rectangle a, Rectangle b) {
+      List<Rectangle> ret = new ArrayList<Rectangle>(4);
+      Rectangle overlap = a.intersection(b);
+      if (overlap.isEmpty()) {
+         if (!a.isEmpty()) {
+            ret.add(new Rectangle(a));
+         }
+         return ret;
+      }
+      // Full-width bands above and below the overlap
+      if (overlap.y > a.y) {
+         ret.add(new Rectangle(a.x, a.y, a.width, overlap.y - a.y));
+      }
+      int overlapBottom = overlap.y + overlap.height;
+      if (overlapBottom < a.y + a.height) {
+         ret.add(new Rectangle(a.x, overlapBottom, a.width,
+               a.y + a.height - overlapBottom));
+      }
+      // Left and right pieces within the overlap's rows
+      if (overlap.x > a.x) {
+         ret.add(new Rectangle(a.x, overlap.y, overlap.x - a.x, overlap.height));
+      }
+      int overlapRight = overlap.x + overlap.width;
+      if (overlapRight < a.x + a.width) {
+         ret.add(new Rectangle(overlapRight, overlap.y,
+               a.x + a.width - overlapRight, overlap.height));
+      }
+      return ret;
+   }
+
+   private static boolean isMaskEmpty(byte[] maskBytes, Rectangle maskBounds,
+                                      Rectangle statsBounds) {
+      if (maskBytes == null) {
+         return false;
+      }
+      // Only the part of the mask overlapping the image (statsBounds)
+      for (int y = statsBounds.y; y < statsBounds.y + statsBounds.height; ++y) {
+         int rowStart = (y - maskBounds.y) * maskBounds.width - maskBounds.x;
+         for (int x = statsBounds.x; x < statsBounds.x + statsBounds.width; ++x) {
+            if ((maskBytes[rowStart + x] & 0xff) >= MASK_THRESH) {
+               return false;
+            }
+         }
+      }
+      return true;
    }
 
    private <T extends IntegerType<T>> ImageStats compute(
@@ -372,6 +372,10 @@ public final class IntegerComponentStats {
       }
    }
 
+   public long getSum() {
+      return sum_;
+   }
+
    public long getSumOfSquares() {
       return sumOfSquares_;
    }
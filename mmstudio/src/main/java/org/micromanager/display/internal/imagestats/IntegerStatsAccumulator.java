@@ -0,0 +1,244 @@
+// Copyright (C) 2017 Open Imaging, Inc.
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.imagestats;
+
+import com.google.common.base.Preconditions;
+import java.awt.Rectangle;
+
+/**
+ * Mutable, per-component image statistics that can be accumulated over
+ * rectangles of a raw pixel buffer, combined, and (with care) subtracted.
+ *
+ * <p>This works directly on the {@code byte[]} or {@code short[]} pixel
+ * buffer, which is considerably faster than going through ImgLib2 cursors
+ * when no mask is involved. Binning follows {@code PowerOf2BinMapper}, so the
+ * results are identical to those of the cursor-based computation.
+ *
+ * <p>Histograms, counts, sums and sums of squares are additive, so the
+ * statistics of a rectangle can be updated incrementally by subtracting the
+ * strips that left it and adding the strips that entered it. Extrema are not
+ * subtractable; {@link #subtractPreservingExtrema} refuses the subtraction
+ * when the removed pixels might have held an extremum.
+ */
+final class IntegerStatsAccumulator {
+   private final int nComponents_;
+   private final int sampleShift_;
+   private final int binWidthPowerOf2_;
+   private final long endOfRange_;
+   private final int lastBin_;
+
+   private final long[][] histograms_;
+   private final long[] counts_;
+   private final long[] countsExcludingZeros_;
+   private final long[] minima_;
+   private final long[] minimaExcludingZeros_;
+   private final long[] maxima_;
+   private final long[] sums_;
+   private final long[] sumsOfSquares_;
+
+   static IntegerStatsAccumulator create(int nComponents, int sampleBitDepth,
+                                         int binCountPowerOf2) {
+      return new IntegerStatsAccumulator(nComponents, sampleBitDepth,
+            binCountPowerOf2);
+   }
+
+   /**
+    * Create an accumulator initialized with previously computed statistics.
+    */
+   static IntegerStatsAccumulator fromStats(IntegerComponentStats[] stats,
+                                            int sampleBitDepth, int binCountPowerOf2) {
+      IntegerStatsAccumulator ret = new IntegerStatsAccumulator(stats.length,
+            sampleBitDepth, binCountPowerOf2);
+      for (int c = 0; c < stats.length; ++c) {
+         IntegerComponentStats s = stats[c];
+         long[] inRange = s.getInRangeHistogram();
+         Preconditions.checkArgument(inRange != null
+               && inRange.length == ret.histograms_[c].length - 2);
+         ret.histograms_[c][0] = s.getPixelCountBelowRange();
+         System.arraycopy(inRange, 0, ret.histograms_[c], 1, inRange.length);
+         ret.histograms_[c][ret.lastBin_] = s.getPixelCountAboveRange();
+         ret.counts_[c] = s.getPixelCount();
+         ret.countsExcludingZeros_[c] = s.getPixelCountExcludingZeros();
+         ret.minima_[c] = s.getMinIntensity();
+         ret.minimaExcludingZeros_[c] = s.getMinIntensityExcludingZeros();
+         ret.maxima_[c] = s.getMaxIntensity();
+         ret.sums_[c] = s.getSum();
+         ret.sumsOfSquares_[c] = s.getSumOfSquares();
+      }
+      return ret;
+   }
+
+   private IntegerStatsAccumulator(int nComponents, int sampleBitDepth,
+                                   int binCountPowerOf2) {
+      nComponents_ = nComponents;
+      sampleShift_ = Math.max(0, sampleBitDepth - binCountPowerOf2);
+      binWidthPowerOf2_ = sampleShift_;
+      endOfRange_ = (1L << sampleBitDepth) - 1;
+      int nBins = (1 << binCountPowerOf2) + 2;
+      lastBin_ = nBins - 1;
+      histograms_ = new long[nComponents][nBins];
+      counts_ = new long[nComponents];
+      countsExcludingZeros_ = new long[nComponents];
+      minima_ = new long[nComponents];
+      minimaExcludingZeros_ = new long[nComponents];
+      maxima_ = new long[nComponents];
+      sums_ = new long[nComponents];
+      sumsOfSquares_ = new long[nComponents];
+      for (int c = 0; c < nComponents; ++c) {
+         minima_[c] = Long.MAX_VALUE;
+         minimaExcludingZeros_[c] = Long.MAX_VALUE;
+         maxima_[c] = Long.MIN_VALUE;
+      }
+   }
+
+   /**
+    * Accumulate the pixels within a rectangle of an interleaved raw buffer.
+    *
+    * @param pixels the {@code byte[]} or {@code short[]} buffer
+    * @param imageWidth the width of the image in pixels
+    * @param rect the region to accumulate; must lie within the image
+    */
+   void accumulate(Object pixels, int imageWidth, Rectangle rect) {
+      if (rect.width <= 0 || rect.height <= 0) {
+         return;
+      }
+      if (pixels instanceof byte[]) {
+         byte[] bytes = (byte[]) pixels;
+         for (int y = rect.y; y < rect.y + rect.height; ++y) {
+            int start = (y * imageWidth + rect.x) * nComponents_;
+            int end = start + rect.width * nComponents_;
+            for (int i = start, c = 0; i < end; ++i) {
+               add(c, bytes[i] & 0xff);
+               if (++c == nComponents_) {
+                  c = 0;
+               }
+            }
+         }
+      } else if (pixels instanceof short[]) {
+         short[] shorts = (short[]) pixels;
+         for (int y = rect.y; y < rect.y + rect.height; ++y) {
+            int start = (y * imageWidth + rect.x) * nComponents_;
+            int end = start + rect.width * nComponents_;
+            for (int i = start, c = 0; i < end; ++i) {
+               add(c, shorts[i] & 0xffff);
+               if (++c == nComponents_) {
+                  c = 0;
+               }
+            }
+         }
+      } else {
+         throw new IllegalArgumentException("Unsupported pixel buffer type");
+      }
+   }
+
+   private void add(int c, long value) {
+      histograms_[c][value > endOfRange_ ? lastBin_ : (int) (value >> sampleShift_) + 1]++;
+      counts_[c]++;
+      if (value > 0) {
+         countsExcludingZeros_[c]++;
+         if (value < minimaExcludingZeros_[c]) {
+            minimaExcludingZeros_[c] = value;
+         }
+      }
+      if (value < minima_[c]) {
+         minima_[c] = value;
+      }
+      if (value > maxima_[c]) {
+         maxima_[c] = value;
+      }
+      sums_[c] += value;
+      sumsOfSquares_[c] += value * value;
+   }
+
+   /**
+    * Add the statistics of disjoint pixels to this accumulator.
+    */
+   void merge(IntegerStatsAccumulator other) {
+      Preconditions.checkArgument(other.nComponents_ == nComponents_);
+      for (int c = 0; c < nComponents_; ++c) {
+         long[] h = histograms_[c];
+         long[] oh = other.histograms_[c];
+         for (int b = 0; b < h.length; ++b) {
+            h[b] += oh[b];
+         }
+         counts_[c] += other.counts_[c];
+         countsExcludingZeros_[c] += other.countsExcludingZeros_[c];
+         minima_[c] = Math.min(minima_[c], other.minima_[c]);
+         minimaExcludingZeros_[c] = Math.min(minimaExcludingZeros_[c],
+               other.minimaExcludingZeros_[c]);
+         maxima_[c] = Math.max(maxima_[c], other.maxima_[c]);
+         sums_[c] += other.sums_[c];
+         sumsOfSquares_[c] += other.sumsOfSquares_[c];
+      }
+   }
+
+   /**
+    * Remove the statistics of a subset of the accumulated pixels, provided
+    * that doing so cannot change the extrema.
+    *
+    * <p>The subtraction is performed only if, for every component, the
+    * removed pixels' minimum and maximum lie strictly inside the current
+    * range (so that the current extrema must be attained by a remaining
+    * pixel). Otherwise this accumulator is left unchanged.
+    *
+    * @param removed statistics of pixels that were included in this
+    *     accumulator
+    * @return true if subtracted; false if a full recomputation is needed
+    */
+   boolean subtractPreservingExtrema(IntegerStatsAccumulator removed) {
+      Preconditions.checkArgument(removed.nComponents_ == nComponents_);
+      for (int c = 0; c < nComponents_; ++c) {
+         if (removed.counts_[c] == 0) {
+            continue;
+         }
+         if (removed.minima_[c] <= minima_[c] || removed.maxima_[c] >= maxima_[c]) {
+            return false;
+         }
+         if (removed.countsExcludingZeros_[c] > 0
+               && removed.minimaExcludingZeros_[c] <= minimaExcludingZeros_[c]) {
+            return false;
+         }
+      }
+      for (int c = 0; c < nComponents_; ++c) {
+         long[] h = histograms_[c];
+         long[] rh = removed.histograms_[c];
+         for (int b = 0; b < h.length; ++b) {
+            h[b] -= rh[b];
+         }
+         counts_[c] -= removed.counts_[c];
+         countsExcludingZeros_[c] -= removed.countsExcludingZeros_[c];
+         sums_[c] -= removed.sums_[c];
+         sumsOfSquares_[c] -= removed.sumsOfSquares_[c];
+      }
+      return true;
+   }
+
+   IntegerComponentStats[] toComponentStats(boolean usedROI) {
+      IntegerComponentStats[] ret = new IntegerComponentStats[nComponents_];
+      for (int c = 0; c < nComponents_; ++c) {
+         ret[c] = IntegerComponentStats.builder()
+               .histogram(histograms_[c], binWidthPowerOf2_)
+               .pixelCount(counts_[c])
+               .pixelCountExcludingZeros(countsExcludingZeros_[c])
+               .usedROI(usedROI)
+               .minimum(minima_[c])
+               .minimumExcludingZeros(minimaExcludingZeros_[c])
+               .maximum(maxima_[c])
+               .sum(sums_[c])
+               .sumOfSquares(sumsOfSquares_[c])
+               .build();
+      }
+      return ret;
+   }
+}
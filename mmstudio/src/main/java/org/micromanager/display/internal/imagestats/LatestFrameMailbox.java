@@ -0,0 +1,103 @@
+// Copyright (C) 2017 Open Imaging, Inc.
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.imagestats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free single-slot mailbox holding the latest images-and-stats to be
+ * painted.
+ *
+ * <p>Producers (the stats result thread) {@code post} new frames; the consumer
+ * (the EDT) {@code take}s the latest one. Posting never blocks: a frame that
+ * has not been taken by the time a newer one is posted is dropped and counted.
+ * Because {@code ImagesAndStats} is immutable, the slot can be handed over by
+ * a single atomic swap.
+ *
+ * <p>{@code post} reports whether the slot was empty, so that the producer can
+ * schedule exactly one consumer task per batch of posted frames.
+ */
+public final class LatestFrameMailbox {
+   private final AtomicReference<ImagesAndStats> slot_ =
+         new AtomicReference<>();
+
+   private final AtomicLong postedCount_ = new AtomicLong();
+   private final AtomicLong droppedCount_ = new AtomicLong();
+   private final AtomicLong takenCount_ = new AtomicLong();
+
+   public static LatestFrameMailbox create() {
+      return new LatestFrameMailbox();
+   }
+
+   private LatestFrameMailbox() {
+   }
+
+   /**
+    * Deposit a frame, replacing (and dropping) any frame not yet taken.
+    *
+    * @param frame the images and stats to deliver
+    * @return true if the mailbox was empty, meaning the caller is responsible
+    *     for arranging a subsequent {@code take}
+    */
+   public boolean post(ImagesAndStats frame) {
+      if (frame == null) {
+         throw new NullPointerException();
+      }
+      postedCount_.incrementAndGet();
+      ImagesAndStats previous = slot_.getAndSet(frame);
+      if (previous != null) {
+         droppedCount_.incrementAndGet();
+         return false;
+      }
+      return true;
+   }
+
+   /**
+    * Remove and return the latest frame.
+    *
+    * @return the latest posted frame, or null if none is waiting
+    */
+   public ImagesAndStats take() {
+      ImagesAndStats frame = slot_.getAndSet(null);
+      if (frame != null) {
+         takenCount_.incrementAndGet();
+      }
+      return frame;
+   }
+
+   /**
+    * Discard any waiting frame without counting it as dropped.
+    */
+   public void clear() {
+      slot_.set(null);
+   }
+
+   public long getPostedCount() {
+      return postedCount_.get();
+   }
+
+   /**
+    * Return the number of frames that were replaced before being taken.
+    *
+    * @return number of dropped frames
+    */
+   public long getDroppedCount() {
+      return droppedCount_.get();
+   }
+
+   public long getTakenCount() {
+      return takenCount_.get();
+   }
+}
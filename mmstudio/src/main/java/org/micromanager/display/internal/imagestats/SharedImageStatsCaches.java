@@ -0,0 +1,84 @@
+// Copyright (C) 2017 Open Imaging, Inc.
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.imagestats;
+
+import com.google.common.base.Preconditions;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.micromanager.data.DataProvider;
+
+/**
+ * Reference-counted image stats caches, one per data provider.
+ *
+ * <p>All displays showing the same data provider (duplicated or linked
+ * windows) share one {@link ImageStatsCache}, so that stats for a given
+ * image and ROI are computed once rather than once per display. Each display
+ * acquires the cache when it is created and releases it when it closes; the
+ * cache is discarded when the last display releases it.
+ *
+ * <p>Since a shared cache serves every display of the data provider, its
+ * entries must identify an image by more than its UUID (which derived
+ * images may share with their source); see {@link ImageStatsCache}.
+ */
+public final class SharedImageStatsCaches {
+   private static final class Entry {
+      private final ImageStatsCache cache_ = ImageStatsCache.create();
+      private int refCount_ = 0;
+   }
+
+   // Guarded by monitor on the class
+   private static final Map<DataProvider, Entry> entries_ =
+         new IdentityHashMap<>();
+
+   private SharedImageStatsCaches() {
+   }
+
+   /**
+    * Obtain the shared cache for a data provider, creating it if necessary.
+    * Each call must be balanced by a call to {@link #release}.
+    *
+    * @param provider the data provider whose images will be analyzed
+    * @return the shared cache
+    */
+   public static synchronized ImageStatsCache acquire(DataProvider provider) {
+      Preconditions.checkNotNull(provider);
+      Entry entry = entries_.get(provider);
+      if (entry == null) {
+         entry = new Entry();
+         entries_.put(provider, entry);
+      }
+      ++entry.refCount_;
+      return entry.cache_;
+   }
+
+   /**
+    * Give up a reference obtained by {@link #acquire}.
+    *
+    * @param provider the data provider passed to {@code acquire}
+    */
+   public static synchronized void release(DataProvider provider) {
+      Entry entry = entries_.get(provider);
+      Preconditions.checkState(entry != null,
+            "Releasing stats cache that was not acquired");
+      if (--entry.refCount_ == 0) {
+         entries_.remove(provider);
+         entry.cache_.clear();
+      }
+   }
+
+   static synchronized int getReferenceCount(DataProvider provider) {
+      Entry entry = entries_.get(provider);
+      return entry == null ? 0 : entry.refCount_;
+   }
+}
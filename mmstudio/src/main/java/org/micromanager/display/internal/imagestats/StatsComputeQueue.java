@@ -35,12 +35,12 @@ public final class StatsComputeQueue {
       long imageStatsReady(ImagesAndStats result);
    }
 
-   // Guarded by monitor on this
+   // Mutations guarded by monitor on this; firing is thread-safe
    private final EventListenerSupport<Listener> listeners_ =
          new EventListenerSupport<>(Listener.class, Listener.class.getClassLoader());
 
    // Only accessed from compute executor thread
-   private final ImageStatsProcessor processor_ = ImageStatsProcessor.create();
+   private final ImageStatsProcessor processor_;
 
    private final ExecutorService computeExecutor_ =
          Executors.newSingleThreadExecutor(ThreadFactoryFactory
@@ -91,10 +91,22 @@ public final class StatsComputeQueue {
 
 
    public static StatsComputeQueue create() {
-      return new StatsComputeQueue();
+      return new StatsComputeQueue(ImageStatsProcessor.create());
+   }
+
+   /**
+    * Create a queue whose results are stored in, and looked up from, the
+    * given cache, which may be shared with other queues.
+    *
+    * @param cache the stats cache
+    * @return the new queue
+    */
+   public static StatsComputeQueue create(ImageStatsCache cache) {
+      return new StatsComputeQueue(ImageStatsProcessor.create(cache));
    }
 
-   private StatsComputeQueue() {
+   private StatsComputeQueue(ImageStatsProcessor processor) {
+      processor_ = processor;
    }
 
    public void setPerformanceMonitor(PerformanceMonitor perfMon) {
@@ -290,8 +302,11 @@ public final class StatsComputeQueue {
             } catch (InterruptedException unexpected) {
             }
 
+            // Do not hold our monitor while calling out, so that new requests
+            // (submitted from the acquisition/animation thread) are never
+            // blocked by a slow listener. listeners_ is itself thread-safe.
+            long intervalNs = listeners_.fire().imageStatsReady(result);
             synchronized (StatsComputeQueue.this) {
-               long intervalNs = listeners_.fire().imageStatsReady(result);
                nextStatsReadyCallAllowedNs_ = System.nanoTime() + intervalNs;
             }
          }
@@ -0,0 +1,66 @@
+package org.micromanager.display.internal.imagestats;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.UUID;
+import org.junit.Test;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import static org.junit.Assert.*;
+
+public class ImageStatsCacheTest {
+   private static final UUID SHARED_UUID = UUID.randomUUID();
+
+   private static Image image(int width, int height, int channel, int value) {
+      short[] pixels = new short[width * height];
+      Arrays.fill(pixels, (short) value);
+      return new DefaultImage(pixels, width, height, 2, 1,
+            new DefaultCoords.Builder().c(channel).build(),
+            new DefaultMetadata.Builder().uuid(SHARED_UUID).build());
+   }
+
+   private static IntegerComponentStats[] stats(long max) {
+      return new IntegerComponentStats[] {
+            IntegerComponentStats.builder()
+                  .histogram(new long[] {0, 1, 0}, 0)
+                  .pixelCount(1).maximum(max).build()};
+   }
+
+   @Test
+   public void testImagesSharingUUIDDoNotShareStats() {
+      // E.g. two channels split off one camera image, or a crop of an image,
+      // keep the metadata (and thus the UUID) of the source
+      Image channel0 = image(16, 8, 0, 100);
+      Image channel1 = image(16, 8, 1, 200);
+      Image crop = image(8, 8, 0, 300);
+      assertEquals(channel0.getMetadata().getUUID(), channel1.getMetadata().getUUID());
+
+      ImageStatsCache.Key key0 = ImageStatsCache.Key.forWholeImage(channel0, 16, 8);
+      ImageStatsCache.Key key1 = ImageStatsCache.Key.forWholeImage(channel1, 16, 8);
+      ImageStatsCache.Key keyCrop = ImageStatsCache.Key.forWholeImage(crop, 16, 8);
+      assertNotEquals(key0, key1);
+      assertNotEquals(key0, keyCrop);
+
+      ImageStatsCache cache = ImageStatsCache.create();
+      cache.put(key0, stats(100));
+      assertNull(cache.get(key1));
+      assertNull(cache.get(keyCrop));
+      assertEquals(100, cache.get(ImageStatsCache.Key.forWholeImage(
+            image(16, 8, 0, 100), 16, 8))[0].getMaxIntensity());
+   }
+
+   @Test
+   public void testLatestRectIsPerImage() {
+      Image channel0 = image(16, 8, 0, 100);
+      Image channel1 = image(16, 8, 1, 200);
+      ImageStatsCache cache = ImageStatsCache.create();
+      ImageStatsCache.Key rect0 = ImageStatsCache.Key.forRect(channel0, 16, 8,
+            new Rectangle(2, 2, 4, 4));
+      cache.put(rect0, stats(100));
+      assertEquals(rect0, cache.getLatestRect(rect0));
+      assertNull(cache.getLatestRect(ImageStatsCache.Key.forRect(channel1, 16, 8,
+            new Rectangle(2, 2, 4, 4))));
+   }
+}
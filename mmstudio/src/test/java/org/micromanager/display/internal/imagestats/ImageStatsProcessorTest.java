@@ -0,0 +1,53 @@
+package org.micromanager.display.internal.imagestats;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import static org.junit.Assert.*;
+
+public class ImageStatsProcessorTest {
+   private static final UUID SHARED_UUID = UUID.randomUUID();
+
+   private static Image image(Coords coords, int value) {
+      short[] pixels = new short[32 * 16];
+      Arrays.fill(pixels, (short) value);
+      return new DefaultImage(pixels, 32, 16, 2, 1, coords,
+            new DefaultMetadata.Builder().uuid(SHARED_UUID).bitDepth(12).build());
+   }
+
+   private static long max(ImageStatsProcessor processor, Image image)
+         throws InterruptedException {
+      ImageStatsRequest request = ImageStatsRequest.create(image.getCoords(),
+            Collections.singletonList(image), BoundsRectAndMask.unselected());
+      return processor.process(1, request, false).getResult().get(0)
+            .getComponentStats(0).getMaxIntensity();
+   }
+
+   @Test
+   public void testSharedCacheKeepsImagesWithSameUUIDApart()
+         throws InterruptedException {
+      // Two displays of the same data share a cache; the images of two
+      // channels split off one camera image share their source's UUID
+      ImageStatsCache cache = ImageStatsCache.create();
+      ImageStatsProcessor display1 = ImageStatsProcessor.create(cache);
+      ImageStatsProcessor display2 = ImageStatsProcessor.create(cache);
+      try {
+         Image channel0 = image(new DefaultCoords.Builder().c(0).build(), 100);
+         Image channel1 = image(new DefaultCoords.Builder().c(1).build(), 200);
+         assertEquals(100, max(display1, channel0));
+         assertEquals(200, max(display2, channel1));
+         assertEquals(200, max(display1, channel1));
+         assertEquals(100, max(display2, channel0));
+         assertEquals(2, cache.getHitCount());
+      } finally {
+         display1.shutdown();
+         display2.shutdown();
+      }
+   }
+}
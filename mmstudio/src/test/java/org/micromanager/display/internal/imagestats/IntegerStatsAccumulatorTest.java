@@ -0,0 +1,95 @@
+package org.micromanager.display.internal.imagestats;
+
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IntegerStatsAccumulatorTest {
+   private static final int W = 64;
+   private static final int H = 48;
+
+   private static short[] randomImage() {
+      Random random = new Random(42);
+      short[] pixels = new short[W * H];
+      for (int i = 0; i < pixels.length; ++i) {
+         pixels[i] = (short) random.nextInt(4096);
+      }
+      return pixels;
+   }
+
+   private static void assertStatsEqual(IntegerComponentStats expected,
+                                        IntegerComponentStats actual) {
+      assertArrayEquals(expected.getInRangeHistogram(), actual.getInRangeHistogram());
+      assertEquals(expected.getPixelCountBelowRange(), actual.getPixelCountBelowRange());
+      assertEquals(expected.getPixelCountAboveRange(), actual.getPixelCountAboveRange());
+      assertEquals(expected.getPixelCount(), actual.getPixelCount());
+      assertEquals(expected.getPixelCountExcludingZeros(),
+            actual.getPixelCountExcludingZeros());
+      assertEquals(expected.getMinIntensity(), actual.getMinIntensity());
+      assertEquals(expected.getMinIntensityExcludingZeros(),
+            actual.getMinIntensityExcludingZeros());
+      assertEquals(expected.getMaxIntensity(), actual.getMaxIntensity());
+      assertEquals(expected.getSum(), actual.getSum());
+      assertEquals(expected.getSumOfSquares(), actual.getSumOfSquares());
+   }
+
+   @Test
+   public void testIncrementalMatchesFull() {
+      short[] pixels = randomImage();
+      for (int i = 0; i < pixels.length; ++i) {
+         pixels[i] = (short) (100 + pixels[i] % 3000);
+      }
+      // Put the extrema where both rectangles overlap, so they persist
+      pixels[15 * W + 20] = 5;
+      pixels[15 * W + 21] = 4090;
+      Rectangle oldRect = new Rectangle(10, 10, 30, 20);
+      Rectangle newRect = new Rectangle(13, 8, 30, 22);
+
+      IntegerStatsAccumulator old = IntegerStatsAccumulator.create(1, 12, 8);
+      old.accumulate(pixels, W, oldRect);
+      IntegerStatsAccumulator inc = IntegerStatsAccumulator.fromStats(
+            old.toComponentStats(true), 12, 8);
+
+      IntegerStatsAccumulator removed = IntegerStatsAccumulator.create(1, 12, 8);
+      for (Rectangle r : ImageStatsProcessor.subtractRect(oldRect, newRect)) {
+         removed.accumulate(pixels, W, r);
+      }
+      IntegerStatsAccumulator added = IntegerStatsAccumulator.create(1, 12, 8);
+      for (Rectangle r : ImageStatsProcessor.subtractRect(newRect, oldRect)) {
+         added.accumulate(pixels, W, r);
+      }
+      assertTrue(inc.subtractPreservingExtrema(removed));
+      inc.merge(added);
+      IntegerStatsAccumulator full = IntegerStatsAccumulator.create(1, 12, 8);
+      full.accumulate(pixels, W, newRect);
+      assertStatsEqual(full.toComponentStats(true)[0],
+            inc.toComponentStats(true)[0]);
+   }
+
+   @Test
+   public void testSubtractRefusedWhenExtremumLeaves() {
+      short[] pixels = randomImage();
+      Rectangle oldRect = new Rectangle(0, 0, 10, 10);
+      pixels[0] = 4095; // Maximum, and it leaves the rectangle
+      IntegerStatsAccumulator acc = IntegerStatsAccumulator.create(1, 12, 8);
+      acc.accumulate(pixels, W, oldRect);
+      IntegerStatsAccumulator removed = IntegerStatsAccumulator.create(1, 12, 8);
+      removed.accumulate(pixels, W, new Rectangle(0, 0, 1, 10));
+      assertFalse(acc.subtractPreservingExtrema(removed));
+   }
+
+   @Test
+   public void testSubtractRect() {
+      Rectangle a = new Rectangle(0, 0, 10, 10);
+      long area = 0;
+      for (Rectangle r : ImageStatsProcessor.subtractRect(a, new Rectangle(2, 3, 4, 4))) {
+         area += (long) r.width * r.height;
+         assertTrue(a.contains(r));
+      }
+      assertEquals(100 - 16, area);
+      assertEquals(1, ImageStatsProcessor.subtractRect(a,
+            new Rectangle(20, 20, 5, 5)).size());
+      assertTrue(ImageStatsProcessor.subtractRect(a, a).isEmpty());
+   }
+}
@@ -0,0 +1,51 @@
+package org.micromanager.display.internal.imagestats;
+
+import java.util.Collections;
+import org.junit.Test;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultCoords;
+import static org.junit.Assert.*;
+
+public class LatestFrameMailboxTest {
+   private static ImagesAndStats frame(int t) {
+      return ImagesAndStats.create(t, ImageStatsRequest.create(
+            new DefaultCoords.Builder().t(t).build(),
+            Collections.<Image>emptyList(),
+            BoundsRectAndMask.unselected()));
+   }
+
+   @Test
+   public void testTakeFromEmpty() {
+      LatestFrameMailbox box = LatestFrameMailbox.create();
+      assertNull(box.take());
+      assertEquals(0, box.getTakenCount());
+   }
+
+   @Test
+   public void testOnlyFirstPostRequestsDrain() {
+      LatestFrameMailbox box = LatestFrameMailbox.create();
+      ImagesAndStats f0 = frame(0);
+      ImagesAndStats f1 = frame(1);
+      ImagesAndStats f2 = frame(2);
+      assertTrue(box.post(f0));
+      assertFalse(box.post(f1));
+      assertFalse(box.post(f2));
+      assertSame(f2, box.take());
+      assertNull(box.take());
+      assertEquals(3, box.getPostedCount());
+      assertEquals(2, box.getDroppedCount());
+      assertEquals(1, box.getTakenCount());
+
+      // Once drained, the next post must request a drain again
+      assertTrue(box.post(f0));
+   }
+
+   @Test
+   public void testClearDoesNotCountAsDropped() {
+      LatestFrameMailbox box = LatestFrameMailbox.create();
+      box.post(frame(0));
+      box.clear();
+      assertNull(box.take());
+      assertEquals(0, box.getDroppedCount());
+   }
+}
@@ -1,7 +1,5 @@
 package org.micromanager.aidpc;
 
-import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 import java.util.ArrayList;
 import java.util.List;
 import org.micromanager.PropertyMap;
@@ -11,6 +9,7 @@ import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.imageprocessing.PixelKernels;
 
 
 class AIDPCProcessor implements Processor {
@@ -127,48 +126,31 @@ class AIDPCProcessor implements Processor {
 
    private void process(Image image1, Image image2, ProcessorContext context) {
       // Get pixel data
-      short[] pixels1 = (short[]) image1.getRawPixels();
-      short[] pixels2 = (short[]) image2.getRawPixels();
+      Object pixels1 = image1.getRawPixels();
+      Object pixels2 = image2.getRawPixels();
       int width = image1.getWidth();
       int height = image1.getHeight();
+      int bytesPerPixel = image1.getBytesPerPixel();
 
-      // Create DPC image
-      short[] dpcPixels = new short[pixels1.length];
-      short[] avgPixels = includeAvg_ ? new short[pixels1.length] : null;
-
-      for (int i = 0; i < pixels1.length; i++) {
-         float i1 = pixels1[i] & 0xFFFF;  // Convert unsigned short to float
-         float i2 = pixels2[i] & 0xFFFF;
-
-         // Calculate DPC: 2*(I_R - I_L)/(I_R + I_L)
-         float sum = i1 + i2;
-         float dpc = 0;
-         if (sum > 0) {
-            dpc = 2.0f * (i1 - i2) / sum;
-         }
-
-         // Scale from [-2,2] to [0,65535]
-         dpc = (dpc + 2.0f) * 16383.75f;  // 65535/4 = 16383.75
-         dpcPixels[i] = (short) Math.max(0, Math.min(65535, Math.round(dpc)));
-
-         // Calculate average if needed
-         if (includeAvg_) {
-            avgPixels[i] = (short) (sum / 2);
-         }
-      }
+      // Create DPC (and average) image: 2*(I_R - I_L)/(I_R + I_L), scaled
+      // from [-2,2] to the full range of the pixel type
+      Object dpcPixels = PixelKernels.newBufferLike(pixels1, width * height);
+      Object avgPixels = includeAvg_ ? PixelKernels.newBufferLike(pixels1, width * height)
+            : null;
+      PixelKernels.differentialPhaseContrast(pixels1, pixels2, dpcPixels, avgPixels);
 
       // Create and emit DPC image
-      ImageProcessor aidpcIP = new ShortProcessor(width, height, dpcPixels, null);
       final Coords aidpcCoords = image1.getCoords().copyBuilder().c(aidpcIndex_).build();
-      Image aidpcImage = studio_.data().ij().createImage(aidpcIP, aidpcCoords,
+      Image aidpcImage = studio_.data().createImage(dpcPixels, width, height,
+            bytesPerPixel, 1, aidpcCoords,
             image1.getMetadata().copyBuilderWithNewUUID()
                   .build());
       context.outputImage(aidpcImage);
 
       if (includeAvg_) {
-         ImageProcessor avgIP = new ShortProcessor(width, height, avgPixels, null);
          final Coords avgCoords = image1.getCoords().copyBuilder().c(avgIndex_).build();
-         Image avgImage = studio_.data().ij().createImage(avgIP, avgCoords,
+         Image avgImage = studio_.data().createImage(avgPixels, width, height,
+               bytesPerPixel, 1, avgCoords,
                image1.getMetadata().copyBuilderWithNewUUID()
                      .build());
          context.outputImage(avgImage);
@@ -1,20 +1,14 @@
 package org.micromanager.assembledata;
 
-import boofcv.abst.distort.FDistort;
-import boofcv.alg.misc.GImageMiscOps;
-import boofcv.core.image.ConvertImage;
-import boofcv.struct.border.BorderType;
-import boofcv.struct.image.GrayF32;
-import boofcv.struct.image.GrayS32;
-import boofcv.struct.image.GrayU16;
-import boofcv.struct.image.GrayU8;
-import boofcv.struct.image.ImageGray;
 import georegression.struct.affine.Affine2D_F64;
 import georegression.struct.homography.Homography2D_F64;
 import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.micromanager.Studio;
 import org.micromanager.data.Coordinates;
 import org.micromanager.data.Coords;
@@ -24,6 +18,7 @@ import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.imageprocessing.TileCompositor;
 import org.micromanager.internal.utils.imageanalysis.BoofCVImageConverter;
 
 /**
@@ -153,21 +148,7 @@ public class AssembleDataAlgo {
          singlePositionAf64I.tx = widthPixels / 2.0 + xOffset;
          singlePositionAf64I.ty = heightPixels / 2.0 + yOffset;
 
-         //for (DataProvider data : datas) {
          cb.t(0).c(0).p(0).z(0);
-         ImageGray newImgBoof;
-         ImageGray oldImgBoof;
-         ImageGray tmpImgBoof;
-         if (bytesPerPixel == 1) {
-            newImgBoof = new GrayU8(widthPixels, heightPixels);
-            tmpImgBoof = new GrayU8(widthPixels, heightPixels);
-         } else { // bytesPerPixel == 2
-            newImgBoof = new GrayU16(widthPixels, heightPixels);
-            tmpImgBoof = new GrayU16(widthPixels, heightPixels);
-         }
-         
-         GrayF32 tmpImgNF32 = new GrayF32(
-               mpd.getAnyImage().getWidth(), mpd.getAnyImage().getHeight());
 
          // single position data
          final int spdTLength = test ? 1 : spd.getNextIndex(Coords.T);
@@ -182,7 +163,6 @@ public class AssembleDataAlgo {
                         .copyBuilderWithNewUUID().pixelSizeUm(basePixelSize);
                   /*
                   TODO: use stage position informatoin to correct for inaccuracies
-                  this will currently cause errors in the GImageMiscOps.copy step
                   double pSize = img.getMetadata().getPixelSizeUm();
                   double tmpXMinUm = img.getMetadata().getXPositionUm()
                            - (0.5 * img.getWidth() * pSize);
@@ -192,27 +172,12 @@ public class AssembleDataAlgo {
                   int xMinPixel = (int) ((tmpXMinUm - xMinUm) / basePixelSize);
                   int yMinPixel = (int) ((tmpYMinUm - yMinUm) / basePixelSize);
                    */
-
-                  if (bytesPerPixel == 1) {
-                     GrayU8 tmp = new GrayU8(img.getWidth(), img.getHeight());
-                     tmp.setData((byte[]) img.getRawPixels());
-                     oldImgBoof = tmp;
-                  } else { // bytesPerPixel == 2
-                     GrayU16 tmp = new GrayU16(img.getWidth(), img.getHeight());
-                     tmp.setData((short[]) img.getRawPixels());
-                     oldImgBoof = tmp;
-                  }
-                  //GImageMiscOps.copy(0, 0, xMinPixel, yMinPixel, img.getWidth(), img.getHeight(),
-                  //        oldImgBoof, newImgBoof);
-                  GImageMiscOps.copy(0, 0, 0, 0, img.getWidth(), img.getHeight(),
-                          oldImgBoof, newImgBoof);
+                  // The output has the size of the single position images, and
+                  // images are immutable, so they can be used as they are
                   Coords coords = cb.p(targetPosition).c(c).t(t).build();
                   System.out.println(coords.toString());
                   newMetadataB.positionName("Site-" + targetPosition);
-                  Image newImage = BoofCVImageConverter.boofCVToMM(newImgBoof,
-                          cb.p(targetPosition).c(c).t(t).build(), newMetadataB.build());
-                  output.putImage(newImage);
-                  GImageMiscOps.fill(newImgBoof, 0.0);
+                  output.putImage(img.copyWith(coords, newMetadataB.build()));
                }
             }
             int progress = (int) (50.0 * t / spd.getNextIndex(Coords.T));
@@ -220,83 +185,49 @@ public class AssembleDataAlgo {
          }
 
          // multi position data
+         // The placement of each position is worked out from the first image
+         // found for it, and then reused for all channels and time points.
+         TileCompositor compositor = new TileCompositor(widthPixels, heightPixels);
+         Map<Integer, Integer> sourceIndices = new HashMap<>();
          final int mpdTLength = test ? 1 : mpd.getNextIndex(Coords.T);
          final int mpdCLenghth = test ? 1 : mpd.getNextIndex(Coords.C);
+         final int mpdPLength = mpd.getNextIndex(Coords.STAGE_POSITION);
          for (int t = 0; t < mpdTLength; t++) {
             for (int c = 0; c < mpdCLenghth; c++) {
                newMetadataB = null;
-               for (int p = 0; p < mpd.getNextIndex(Coords.STAGE_POSITION); p++) {
+               Object[] sources = new Object[mpdPLength];
+               for (int p = 0; p < mpdPLength; p++) {
                   Image img = mpd.getImage(cb.c(c).t(t).p(p).build());
                   if (img != null) {
                      newMetadataB = img.getMetadata()
                            .copyBuilderWithNewUUID().pixelSizeUm(basePixelSize);
-                     if (bytesPerPixel == 1) {
-                        GrayU8 tmp = new GrayU8(img.getWidth(), img.getHeight());
-                        tmp.setData((byte[]) img.getRawPixels());
-                        oldImgBoof = tmp;
-                     } else { // bytesPerPixel == 2
-                        GrayU16 tmp = new GrayU16(img.getWidth(), img.getHeight());
-                        tmp.setData((short[]) img.getRawPixels());
-                        //oldImgBoof = new GrayF32(img.getWidth(), img.getHeight());
-                        ConvertImage.convert(tmp, tmpImgNF32);
-                        oldImgBoof = tmp;
-                     }
-                     double diffX = centerXUm - img.getMetadata().getXPositionUm();
-                     double diffY = centerYUm - img.getMetadata().getYPositionUm();
-
-                     Affine2D_F64 aff = multiPositionAf64.copy();
+                     if (!sourceIndices.containsKey(p)) {
+                        double diffX = centerXUm - img.getMetadata().getXPositionUm();
+                        double diffY = centerYUm - img.getMetadata().getYPositionUm();
 
-                     aff.tx = -(diffX);
-                     aff.ty = -(diffY);
-                     //centerXUm - img.getMetadata().getXPositionUm(),.0
-                     //centerYUm - img.getMetadata().getYPositionUm());
-
-                     aff = aff.concat(singlePositionAf64I, null);
-                     //
-                     FDistort fd = new FDistort();
-                     fd.input(oldImgBoof);
-                     fd.output(tmpImgBoof);
-                     fd.affine(aff);
-                     fd.interpNN();
-                     fd.border(BorderType.SKIP);
-                     fd.apply();
-                     // GPixelMath.add(newImgBoof, tmpImgBoof, tmp2ImgBoof);
-                     // GConvertImage.convert(tmp2ImgBoof, newImgBoof);
-                     /*
-                     Affine2D_F32 a32 = new Affine2D_F32((float) aff.a11,
-                              (float) aff.a12,
-                              (float) aff.a21,
-                              (float) aff.a22,
-                              (float) aff.tx,
-                              (float) aff.ty );
-                     PixelTransformAffine_F32 model = new PixelTransformAffine_F32(a32);
-                     //PixelTransformHomography_F32 model =
-                        new PixelTransformHomography_F32();
-                     //model.set(pf);
-                     InterpolatePixelS<GrayF32> interp = FactoryInterpolation.bilinearPixelS(
-                             GrayF32.class, BorderType.ZERO);
-                     AssignPixelValue_SB.F32 f32 = new AssignPixelValue_SB.F32();
-                     ImageDistort<GrayF32, GrayF32> distort = new ImageDistortBasic_SB(
-                                    f32, interp);
-                     // ImageDistort<Planar<GrayF32>,Planar<GrayF32>> distort =
-                     //               DistortSupport.createDistortPL(
-                                          GrayF32.class, model, interp, false);
-                     distort.setModel(model);
-                     distort.setRenderAll(false);
-                     distort.apply(tmpImgNF32, tmpImgSF32);
-                     */
+                        Affine2D_F64 aff = multiPositionAf64.copy();
+                        aff.tx = -(diffX);
+                        aff.ty = -(diffY);
+                        // source pixels to output pixels
+                        aff = aff.concat(singlePositionAf64I, null);
+                        sourceIndices.put(p, compositor.addSource(img.getWidth(),
+                              img.getHeight(), new double[] {
+                                 aff.a11, aff.a12, aff.tx, aff.a21, aff.a22, aff.ty}));
+                     }
+                     sources[sourceIndices.get(p)] = img.getRawPixels();
                   }
                }
                if (newMetadataB != null) {
                   Coords coords = cb.p(targetPosition).c(c + spdCLength).t(t).build();
                   System.out.println(coords.toString());                  
                   newMetadataB.positionName("Site-" + targetPosition);
-                  //GrayU16 g = new GrayU16(tmpImgSF32.width, tmpImgSF32.height);
-                  //ConvertImage.convert(tmpImgSF32, g);
-                  Image newImage = BoofCVImageConverter.boofCVToMM(tmpImgBoof, 
-                          coords, newMetadataB.build());
-                  output.putImage(newImage);
-                  GImageMiscOps.fill(tmpImgBoof, 0.0);
+                  Object pixels = bytesPerPixel == 1
+                        ? new byte[widthPixels * heightPixels]
+                        : new short[widthPixels * heightPixels];
+                  compositor.composite(Arrays.copyOf(sources, compositor.getSourceCount()),
+                        pixels);
+                  output.putImage(studio.data().createImage(pixels, widthPixels, heightPixels,
+                        bytesPerPixel, 1, coords, newMetadataB.build()));
                }
             }
             int progress = (int) (50.0 + 50.0 * t / spdTLength);
@@ -0,0 +1,83 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelCorrectorConfigurator.java
+//PROJECT:       Micro-Manager 
+//SUBSYSTEM:     ChannelCorrector plugin
+//
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.channelcorrector;
+
+import javax.swing.JComboBox;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.channelcorrector.utils.ChannelRegistration;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.internal.utils.WindowPositioning;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+class ChannelCorrectorConfigurator implements ProcessorConfigurator {
+   private final Studio studio_;
+   private final MutablePropertyMapView settings_;
+
+   public ChannelCorrectorConfigurator(PropertyMap settings, Studio studio) {
+      studio_ = studio;
+      settings_ = studio_.profile().getSettings(this.getClass());
+      settings_.putString(ChannelCorrectorProcessorPlugin.INTERPOLATION,
+            settings.getString(ChannelCorrectorProcessorPlugin.INTERPOLATION,
+                  settings_.getString(ChannelCorrectorProcessorPlugin.INTERPOLATION,
+                        ChannelRegistration.Interpolation.NEAREST_NEIGHBOR.name())));
+   }
+
+   @Override
+   public void showGUI() {
+      JPanel panel = new JPanel(new MigLayout("fillx"));
+      JComboBox<String> interpolationBox =
+            new JComboBox<>(ChannelCorrectorFrame.INTERPOLATIONS);
+      interpolationBox.setSelectedItem(settings_.getString(
+            ChannelCorrectorProcessorPlugin.INTERPOLATION,
+            ChannelRegistration.Interpolation.NEAREST_NEIGHBOR.name()));
+      interpolationBox.addActionListener(e ->
+            settings_.putString(ChannelCorrectorProcessorPlugin.INTERPOLATION,
+                  (String) interpolationBox.getSelectedItem()));
+      panel.add(new JLabel("Interpolation:"), "split 2");
+      panel.add(interpolationBox, "wrap");
+      panel.add(new JLabel("Transforms are set in " + ChannelCorrector.MENUNAME),
+            "wrap");
+
+      JDialog dialog = new JDialog(studio_.app().getMainWindow(),
+            "Channel Corrector Settings", false);
+      dialog.setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
+      dialog.getContentPane().add(panel);
+      dialog.pack();
+      WindowPositioning.setUpLocationMemory(dialog, this.getClass(), null);
+      dialog.setVisible(true);
+   }
+
+   @Override
+   public void cleanup() {
+   }
+
+   @Override
+   public PropertyMap getSettings() {
+      return settings_.toPropertyMap();
+   }
+}
@@ -0,0 +1,46 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelCorrectorFactory.java
+//PROJECT:       Micro-Manager 
+//SUBSYSTEM:     ChannelCorrector plugin
+//
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.channelcorrector;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.channelcorrector.utils.ChannelRegistration;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorFactory;
+
+class ChannelCorrectorFactory implements ProcessorFactory {
+   private final PropertyMap settings_;
+   private final Studio studio_;
+
+   public ChannelCorrectorFactory(PropertyMap settings, Studio studio) {
+      settings_ = settings;
+      studio_ = studio;
+   }
+
+   @Override
+   public Processor createProcessor() {
+      return new ChannelCorrectorProcessor(studio_, ChannelRegistration.Interpolation.valueOf(
+            settings_.getString(ChannelCorrectorProcessorPlugin.INTERPOLATION,
+                  ChannelRegistration.Interpolation.NEAREST_NEIGHBOR.name())));
+   }
+}
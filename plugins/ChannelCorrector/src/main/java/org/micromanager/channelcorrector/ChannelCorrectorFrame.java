@@ -25,7 +25,6 @@ import com.google.common.eventbus.Subscribe;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -33,11 +32,13 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JSeparator;
 import javax.swing.WindowConstants;
 import net.miginfocom.swing.MigLayout;
 import org.micromanager.Studio;
+import org.micromanager.channelcorrector.utils.ChannelRegistration;
 import org.micromanager.channelcorrector.utils.ImageAffineTransform;
 import org.micromanager.channelcorrector.utils.ImageAffineTransformException;
 import org.micromanager.display.DataViewer;
@@ -57,6 +58,11 @@ public class ChannelCorrectorFrame extends JFrame {
    private DataViewer dataViewer_;
 
    private static final String USE_ALL_POS_KEY = "UseAllPositions";
+   static final String INTERPOLATION_KEY = "Interpolation";
+   static final String[] INTERPOLATIONS = {
+         ChannelRegistration.Interpolation.NEAREST_NEIGHBOR.name(),
+         ChannelRegistration.Interpolation.BILINEAR.name(),
+         ChannelRegistration.Interpolation.BICUBIC.name()};
 
    public ChannelCorrectorFrame(Studio studio) {
       studio_ = studio;
@@ -89,7 +95,14 @@ public class ChannelCorrectorFrame extends JFrame {
          }
       });
       useAllPositions.setSelected(settings_.getBoolean(USE_ALL_POS_KEY, false));
-      super.add(applyButton, "span 4, split 2, center, wmin button");
+      JComboBox<String> interpolationBox = new JComboBox<>(INTERPOLATIONS);
+      interpolationBox.setSelectedItem(settings_.getString(INTERPOLATION_KEY,
+            ChannelRegistration.Interpolation.NEAREST_NEIGHBOR.name()));
+      interpolationBox.addActionListener((ActionEvent ae) ->
+            settings_.putString(INTERPOLATION_KEY,
+                  (String) interpolationBox.getSelectedItem()));
+      super.add(applyButton, "span 4, split 3, center, wmin button");
+      super.add(interpolationBox);
       super.add(useAllPositions, "right, wrap");
       super.add(new JSeparator(), "span 4, growx, wrap");
 
@@ -162,9 +175,10 @@ public class ChannelCorrectorFrame extends JFrame {
       for (ChannelCorrectorPanel ccp : channelCorrectorPanels_) {
          affineTransforms.add(ccp.getAffineTransform());
       }
-      // Note that types other than Nearest Neighbor lead to strange pixel values
       ImageAffineTransform iat = new ImageAffineTransform(studio_, dataViewer_,
-            affineTransforms, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+            affineTransforms, ChannelRegistration.Interpolation.valueOf(
+                  settings_.getString(INTERPOLATION_KEY,
+                        ChannelRegistration.Interpolation.NEAREST_NEIGHBOR.name())));
       iat.apply(settings_.getBoolean(USE_ALL_POS_KEY, false));
       studio_.alerts().postAlert("ChannelCorrector", this.getClass(),
             "Finished correcting " + dataViewerName);
@@ -0,0 +1,126 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelCorrectorProcessor.java
+//PROJECT:       Micro-Manager 
+//SUBSYSTEM:     ChannelCorrector plugin
+//
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.channelcorrector;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.util.ArrayList;
+import java.util.List;
+import org.micromanager.Studio;
+import org.micromanager.channelcorrector.utils.ChannelRegistration;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+/**
+ * Registers all channels onto the first channel as images arrive. Transforms
+ * are the ones stored by the Channel Corrector window for the channel group
+ * and channel names of the acquisition. All images are cropped to the area
+ * covered by all channels.
+ *
+ * @author nico
+ */
+class ChannelCorrectorProcessor implements Processor {
+   private final Studio studio_;
+   private final ChannelRegistration.Interpolation interpolation_;
+   private List<AffineTransform> transforms_;
+   private ChannelRegistration registration_;
+
+   ChannelCorrectorProcessor(Studio studio, ChannelRegistration.Interpolation interpolation) {
+      studio_ = studio;
+      interpolation_ = interpolation;
+   }
+
+   @Override
+   public SummaryMetadata processSummaryMetadata(SummaryMetadata summary) {
+      List<String> channels = summary.getChannelNameList();
+      transforms_ = null;
+      registration_ = null;
+      if (channels == null || channels.size() < 2) {
+         return summary;
+      }
+      // Same keys as used by ChannelCorrectorPanel
+      MutablePropertyMapView settings =
+            studio_.profile().getSettings(ChannelCorrectorPanel.class);
+      List<AffineTransform> transforms = new ArrayList<>(channels.size() - 1);
+      boolean found = false;
+      for (int c = 1; c < channels.size(); c++) {
+         String key = summary.getChannelGroup() + "-" + channels.get(0) + "-"
+               + channels.get(c);
+         AffineTransform transform = settings.getAffineTransform(key, null);
+         found |= transform != null;
+         transforms.add(transform);
+      }
+      if (!found) {
+         studio_.alerts().postAlert(ChannelCorrector.MENUNAME, this.getClass(),
+               "No channel transforms found for channel group "
+                     + summary.getChannelGroup());
+         return summary;
+      }
+      transforms_ = transforms;
+      if (summary.getImageWidth() != null && summary.getImageHeight() != null
+            && createRegistration(summary.getImageWidth(), summary.getImageHeight())) {
+         return summary.copyBuilder().imageWidth(registration_.getOutputWidth())
+               .imageHeight(registration_.getOutputHeight()).build();
+      }
+      return summary;
+   }
+
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      if (transforms_ == null || image.getNumComponents() != 1
+            || image.getBytesPerPixel() > 2) {
+         context.outputImage(image);
+         return;
+      }
+      if (registration_ == null || registration_.getInputWidth() != image.getWidth()
+            || registration_.getInputHeight() != image.getHeight()) {
+         if (!createRegistration(image.getWidth(), image.getHeight())) {
+            context.outputImage(image);
+            return;
+         }
+      }
+      Object pixels = registration_.apply(image.getCoords().getC(),
+            image.getRawPixels(), true);
+      context.outputImage(studio_.data().createImage(pixels,
+            registration_.getOutputWidth(), registration_.getOutputHeight(),
+            image.getBytesPerPixel(), 1, image.getCoords(),
+            image.getMetadata().copyBuilderWithNewUUID().build()));
+   }
+
+   private boolean createRegistration(int width, int height) {
+      try {
+         registration_ = new ChannelRegistration(width, height, transforms_,
+               interpolation_);
+         return true;
+      } catch (NoninvertibleTransformException | IllegalArgumentException e) {
+         studio_.alerts().postAlert(ChannelCorrector.MENUNAME, this.getClass(),
+               "Can not correct channels: " + e.getMessage());
+         transforms_ = null;
+         registration_ = null;
+         return false;
+      }
+   }
+}
@@ -0,0 +1,79 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelCorrectorProcessorPlugin.java
+//PROJECT:       Micro-Manager 
+//SUBSYSTEM:     ChannelCorrector plugin
+//
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.channelcorrector;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.data.ProcessorFactory;
+import org.micromanager.data.ProcessorPlugin;
+import org.scijava.plugin.Plugin;
+import org.scijava.plugin.SciJavaPlugin;
+
+/**
+ * Processor plugin that registers channels onto the first channel during
+ * acquisition, using the transforms determined in the Channel Corrector window.
+ *
+ * @author nico
+ */
+@Plugin(type = ProcessorPlugin.class)
+public class ChannelCorrectorProcessorPlugin implements ProcessorPlugin, SciJavaPlugin {
+   static final String INTERPOLATION = "interpolation";
+   private Studio studio_;
+
+   @Override
+   public void setContext(Studio studio) {
+      studio_ = studio;
+   }
+
+   @Override
+   public ProcessorConfigurator createConfigurator(PropertyMap settings) {
+      return new ChannelCorrectorConfigurator(settings, studio_);
+   }
+
+   @Override
+   public ProcessorFactory createFactory(PropertyMap settings) {
+      return new ChannelCorrectorFactory(settings, studio_);
+   }
+
+   @Override
+   public String getName() {
+      return "Channel Corrector";
+   }
+
+   @Override
+   public String getHelpText() {
+      return "Corrects spatial aberrations between channels, using the transforms "
+            + "determined with " + ChannelCorrector.MENUNAME;
+   }
+
+   @Override
+   public String getVersion() {
+      return "Version 0.1-beta";
+   }
+
+   @Override
+   public String getCopyright() {
+      return "Regents of the University of California, 2020";
+   }
+}
@@ -0,0 +1,372 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelRegistration.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ChannelCorrector plugin
+//
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.channelcorrector.utils;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Registers channels onto the first channel by applying an affine transform
+ * to each of the other channels.
+ *
+ * <p>For every transform, the source location of each output pixel is
+ * computed once and stored in a remap table (the index of the source pixel and
+ * the sub-pixel offsets), so that correcting a plane is a single pass over the
+ * raw pixels, without any floating point geometry or conversion to AWT
+ * images. Output images are cropped to the area that is covered by all
+ * transformed channels, in the same way as AffineTransformOp would.
+ *
+ * <p>Instances are immutable and can be used from multiple threads.
+ */
+public final class ChannelRegistration {
+
+   public enum Interpolation {
+      NEAREST_NEIGHBOR, BILINEAR, BICUBIC
+   }
+
+   private static final int SUBPIXEL_BITS = 8;
+   private static final int SUBPIXELS = 1 << SUBPIXEL_BITS;
+   // Weights of the 4 taps of the cubic convolution kernel (a = -0.5, as used
+   // by Java2D) for each sub-pixel offset
+   private static final float[] CUBIC_WEIGHTS = new float[4 * SUBPIXELS];
+   // Below this, the overhead of parallel processing outweighs the benefit
+   private static final int MIN_PIXELS_PER_BAND = 64 * 1024;
+
+   static {
+      for (int f = 0; f < SUBPIXELS; f++) {
+         double t = (double) f / SUBPIXELS;
+         CUBIC_WEIGHTS[4 * f] = (float) cubic(1 + t);
+         CUBIC_WEIGHTS[4 * f + 1] = (float) cubic(t);
+         CUBIC_WEIGHTS[4 * f + 2] = (float) cubic(1 - t);
+         CUBIC_WEIGHTS[4 * f + 3] = (float) cubic(2 - t);
+      }
+   }
+
+   private final int width_;
+   private final int height_;
+   private final int outWidth_;
+   private final int outHeight_;
+   private final Interpolation interpolation_;
+   private final RemapTable[] tables_;
+
+   /**
+    * Source locations of all output pixels for one transform.
+    *
+    * <p>{@code index_} holds, for each output pixel, -1 when it maps outside
+    * the source image. Otherwise it holds the source index of the first tap
+    * (the nearest pixel for nearest neighbor, the top-left tap of the
+    * interpolation kernel otherwise) when all taps are inside the image, or a
+    * value below -1 that encodes the tap coordinates for pixels near the
+    * edges, whose taps need to be clamped.
+    */
+   private static final class RemapTable {
+      private final int[] index_;
+      private final byte[] fracX_;
+      private final byte[] fracY_;
+
+      private RemapTable(int size, boolean interpolate) {
+         index_ = new int[size];
+         fracX_ = interpolate ? new byte[size] : null;
+         fracY_ = interpolate ? new byte[size] : null;
+      }
+   }
+
+   /**
+    * Creates the remap tables.
+    *
+    * @param width width of the input images
+    * @param height height of the input images
+    * @param transforms for each channel after the first one, the transform
+    *                   that maps it onto the first channel (as used with
+    *                   AffineTransformOp). Null entries leave that channel
+    *                   untransformed.
+    * @param interpolation interpolation method
+    * @throws NoninvertibleTransformException if any transform can not be inverted
+    * @throws IllegalArgumentException if a transform maps the image entirely
+    *                                  outside of the first channel
+    */
+   public ChannelRegistration(int width, int height, List<AffineTransform> transforms,
+                              Interpolation interpolation)
+         throws NoninvertibleTransformException {
+      width_ = width;
+      height_ = height;
+      interpolation_ = interpolation;
+      int outWidth = width;
+      int outHeight = height;
+      for (AffineTransform transform : transforms) {
+         if (transform == null) {
+            continue;
+         }
+         // Size of the image AffineTransformOp creates
+         Rectangle2D bounds = transform.createTransformedShape(
+               new Rectangle2D.Double(0, 0, width, height)).getBounds2D();
+         outWidth = Math.min(outWidth, (int) (bounds.getX() + bounds.getWidth()));
+         outHeight = Math.min(outHeight, (int) (bounds.getY() + bounds.getHeight()));
+      }
+      if (outWidth <= 0 || outHeight <= 0) {
+         throw new IllegalArgumentException(
+               "Transformed channels do not overlap with the first channel");
+      }
+      outWidth_ = outWidth;
+      outHeight_ = outHeight;
+      tables_ = new RemapTable[transforms.size() + 1];
+      for (int c = 0; c < transforms.size(); c++) {
+         AffineTransform transform = transforms.get(c);
+         if (transform != null && !transform.isIdentity()) {
+            tables_[c + 1] = createTable(transform.createInverse());
+         }
+      }
+   }
+
+   public int getOutputWidth() {
+      return outWidth_;
+   }
+
+   public int getOutputHeight() {
+      return outHeight_;
+   }
+
+   public int getInputWidth() {
+      return width_;
+   }
+
+   public int getInputHeight() {
+      return height_;
+   }
+
+   /**
+    * Registers one plane.
+    *
+    * @param channel channel index of the plane; 0 is the reference channel,
+    *                which is only cropped, as are channels without transform
+    * @param pixels raw 8 or 16-bit pixels of the input plane
+    * @param parallel whether to use multiple threads for large planes. Use
+    *                 false when planes are already processed in parallel.
+    * @return new pixel array of the output size, of the same type as the input
+    */
+   public Object apply(int channel, Object pixels, boolean parallel) {
+      if (!(pixels instanceof byte[]) && !(pixels instanceof short[])) {
+         throw new IllegalArgumentException("Only 8 and 16-bit images are supported");
+      }
+      final int nPixels = outWidth_ * outHeight_;
+      final Object result = pixels instanceof byte[] ? new byte[nPixels] : new short[nPixels];
+      final RemapTable table = channel < tables_.length ? tables_[channel] : null;
+      if (table == null) {
+         for (int row = 0; row < outHeight_; row++) {
+            System.arraycopy(pixels, row * width_, result, row * outWidth_, outWidth_);
+         }
+         return result;
+      }
+      int nBands = parallel ? Math.max(1, Math.min(outHeight_, Math.min(
+            Runtime.getRuntime().availableProcessors(), nPixels / MIN_PIXELS_PER_BAND))) : 1;
+      if (nBands == 1) {
+         remap(table, pixels, result, 0, outHeight_);
+      } else {
+         IntStream.range(0, nBands).parallel().forEach(b -> remap(table, pixels, result,
+               (int) ((long) outHeight_ * b / nBands),
+               (int) ((long) outHeight_ * (b + 1) / nBands)));
+      }
+      return result;
+   }
+
+   private RemapTable createTable(AffineTransform inverse) {
+      final boolean interpolate = interpolation_ != Interpolation.NEAREST_NEIGHBOR;
+      // Taps before and after the base pixel
+      final int before = interpolation_ == Interpolation.BICUBIC ? 1 : 0;
+      final int after = interpolation_ == Interpolation.NEAREST_NEIGHBOR ? 0
+            : interpolation_ == Interpolation.BILINEAR ? 1 : 2;
+      RemapTable table = new RemapTable(outWidth_ * outHeight_, interpolate);
+      double[] m = new double[6];
+      inverse.getMatrix(m);
+      for (int y = 0, d = 0; y < outHeight_; y++) {
+         for (int x = 0; x < outWidth_; x++, d++) {
+            // Sample at the pixel center, as Java2D does
+            double sx = m[0] * (x + 0.5) + m[2] * (y + 0.5) + m[4];
+            double sy = m[1] * (x + 0.5) + m[3] * (y + 0.5) + m[5];
+            if (!(sx >= 0 && sy >= 0 && sx < width_ && sy < height_)) {
+               table.index_[d] = -1;
+               continue;
+            }
+            int x0;
+            int y0;
+            if (interpolate) {
+               double u = sx - 0.5;
+               double v = sy - 0.5;
+               x0 = (int) Math.floor(u);
+               y0 = (int) Math.floor(v);
+               int fx = (int) Math.round((u - x0) * SUBPIXELS);
+               int fy = (int) Math.round((v - y0) * SUBPIXELS);
+               if (fx == SUBPIXELS) {
+                  fx = 0;
+                  x0++;
+               }
+               if (fy == SUBPIXELS) {
+                  fy = 0;
+                  y0++;
+               }
+               table.fracX_[d] = (byte) fx;
+               table.fracY_[d] = (byte) fy;
+            } else {
+               x0 = (int) sx;
+               y0 = (int) sy;
+            }
+            if (x0 - before >= 0 && y0 - before >= 0 && x0 + after < width_
+                  && y0 + after < height_) {
+               table.index_[d] = (y0 - before) * width_ + x0 - before;
+            } else {
+               // x0 and y0 are at least -1; store them offset by 2
+               table.index_[d] = -2 - ((y0 + 2) * (width_ + 4) + x0 + 2);
+            }
+         }
+      }
+      return table;
+   }
+
+   private void remap(RemapTable table, Object src, Object dst, int firstRow, int endRow) {
+      final boolean shorts = src instanceof short[];
+      final short[] srcShorts = shorts ? (short[]) src : null;
+      final byte[] srcBytes = shorts ? null : (byte[]) src;
+      final int max = shorts ? 0xffff : 0xff;
+      final int w = width_;
+      final int[] index = table.index_;
+      for (int y = firstRow; y < endRow; y++) {
+         for (int x = 0, d = y * outWidth_; x < outWidth_; x++, d++) {
+            final int i = index[d];
+            int value;
+            if (i == -1) {
+               value = 0;
+            } else if (i < -1) {
+               value = sampleClamped(table, d, src, max);
+            } else if (interpolation_ == Interpolation.NEAREST_NEIGHBOR) {
+               value = shorts ? srcShorts[i] & 0xffff : srcBytes[i] & 0xff;
+            } else if (interpolation_ == Interpolation.BILINEAR) {
+               final int fx = table.fracX_[d] & 0xff;
+               final int fy = table.fracY_[d] & 0xff;
+               int a;
+               int b;
+               int c;
+               int e;
+               if (shorts) {
+                  a = srcShorts[i] & 0xffff;
+                  b = srcShorts[i + 1] & 0xffff;
+                  c = srcShorts[i + w] & 0xffff;
+                  e = srcShorts[i + w + 1] & 0xffff;
+               } else {
+                  a = srcBytes[i] & 0xff;
+                  b = srcBytes[i + 1] & 0xff;
+                  c = srcBytes[i + w] & 0xff;
+                  e = srcBytes[i + w + 1] & 0xff;
+               }
+               long top = (long) a * (SUBPIXELS - fx) + (long) b * fx;
+               long bottom = (long) c * (SUBPIXELS - fx) + (long) e * fx;
+               value = (int) ((top * (SUBPIXELS - fy) + bottom * fy
+                     + (1 << (2 * SUBPIXEL_BITS - 1))) >> (2 * SUBPIXEL_BITS));
+            } else {
+               final int wx = 4 * (table.fracX_[d] & 0xff);
+               final int wy = 4 * (table.fracY_[d] & 0xff);
+               float sum = 0.0f;
+               for (int ty = 0, row = i; ty < 4; ty++, row += w) {
+                  float rowSum = 0.0f;
+                  for (int tx = 0; tx < 4; tx++) {
+                     int p = shorts ? srcShorts[row + tx] & 0xffff : srcBytes[row + tx] & 0xff;
+                     rowSum += CUBIC_WEIGHTS[wx + tx] * p;
+                  }
+                  sum += CUBIC_WEIGHTS[wy + ty] * rowSum;
+               }
+               value = clamp(sum, max);
+            }
+            if (shorts) {
+               ((short[]) dst)[d] = (short) value;
+            } else {
+               ((byte[]) dst)[d] = (byte) value;
+            }
+         }
+      }
+   }
+
+   /**
+    * Interpolates an output pixel whose kernel extends beyond the image,
+    * replicating the edge pixels.
+    */
+   private int sampleClamped(RemapTable table, int d, Object src, int max) {
+      int k = -2 - table.index_[d];
+      int x0 = k % (width_ + 4) - 2;
+      int y0 = k / (width_ + 4) - 2;
+      if (interpolation_ == Interpolation.NEAREST_NEIGHBOR) {
+         return valueAt(src, clampedIndex(x0, y0));
+      }
+      final int fx = table.fracX_[d] & 0xff;
+      final int fy = table.fracY_[d] & 0xff;
+      if (interpolation_ == Interpolation.BILINEAR) {
+         double top = valueAt(src, clampedIndex(x0, y0)) * (SUBPIXELS - fx)
+               + valueAt(src, clampedIndex(x0 + 1, y0)) * fx;
+         double bottom = valueAt(src, clampedIndex(x0, y0 + 1)) * (SUBPIXELS - fx)
+               + valueAt(src, clampedIndex(x0 + 1, y0 + 1)) * fx;
+         return clamp((float) ((top * (SUBPIXELS - fy) + bottom * fy)
+               / (SUBPIXELS * SUBPIXELS)), max);
+      }
+      float sum = 0.0f;
+      for (int ty = 0; ty < 4; ty++) {
+         float rowSum = 0.0f;
+         for (int tx = 0; tx < 4; tx++) {
+            rowSum += CUBIC_WEIGHTS[4 * fx + tx]
+                  * valueAt(src, clampedIndex(x0 - 1 + tx, y0 - 1 + ty));
+         }
+         sum += CUBIC_WEIGHTS[4 * fy + ty] * rowSum;
+      }
+      return clamp(sum, max);
+   }
+
+   private int clampedIndex(int x, int y) {
+      return Math.max(0, Math.min(height_ - 1, y)) * width_
+            + Math.max(0, Math.min(width_ - 1, x));
+   }
+
+   private static int valueAt(Object pixels, int i) {
+      if (pixels instanceof short[]) {
+         return ((short[]) pixels)[i] & 0xffff;
+      }
+      return ((byte[]) pixels)[i] & 0xff;
+   }
+
+   private static int clamp(float value, int max) {
+      float v = value + 0.5f;
+      return v >= max ? max : v > 0.0f ? (int) v : 0;
+   }
+
+   /**
+    * Cubic convolution kernel with a = -0.5.
+    */
+   private static double cubic(double x) {
+      final double a = -0.5;
+      x = Math.abs(x);
+      if (x <= 1) {
+         return ((a + 2) * x - (a + 3)) * x * x + 1;
+      }
+      if (x < 2) {
+         return ((a * x - 5 * a) * x + 8 * a) * x - 4 * a;
+      }
+      return 0;
+   }
+}
@@ -5,12 +5,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
 import org.micromanager.PropertyMap;
 import org.micromanager.PropertyMaps;
 import org.micromanager.Studio;
@@ -23,10 +19,12 @@ import org.micromanager.data.SummaryMetadata;
 import org.micromanager.data.internal.DefaultImage;
 import org.micromanager.data.internal.PixelType;
 import org.micromanager.data.internal.PropertyKey;
-import org.micromanager.lightsheet.StackResampler;
 
 /**
- * Deskews data using the Deskew code in PycroManager.
+ * Deskews data on the CPU.
+ *
+ * <p>Planes are handed to a {@link SlabDeskewer} as they arrive, so that
+ * only the requested outputs (and not the input stacks) are kept in memory.
  */
 public class DeskewProcessor implements Processor {
    private SummaryMetadata inputSummaryMetadata_;
@@ -41,15 +39,13 @@ public class DeskewProcessor implements Processor {
    private final PropertyMap settings_;
 
    private final ExecutorService processingExecutor_;
-   private final Map<Coords, StackResampler> fullVolumeResamplers_ = new HashMap<>();
-   private final List<StackResampler> freeFullVolumeResamplers_ = new ArrayList<>();
-   private final Map<Coords, StackResampler> xyProjectionResamplers_ = new HashMap<>();
-   private final List<StackResampler> freeXYProjectionResamplers_ = new ArrayList<>();
-   private final Map<Coords, StackResampler> orthogonalProjectionResamplers_ = new HashMap<>();
-   private final List<StackResampler> freeOrthogonalProjectionResamplers_ = new ArrayList<>();
-   private final Map<Coords, Future<?>> fullVolumeFutures_ = new HashMap<>();
-   private final Map<Coords, Future<?>> xyProjectionFutures_ = new HashMap<>();
-   private final Map<Coords, Future<?>> orthogonalFutures_ = new HashMap<>();
+   private final int nrThreads_;
+   private final Map<Coords, SlabDeskewer> fullVolumeResamplers_ = new HashMap<>();
+   private final List<SlabDeskewer> freeFullVolumeResamplers_ = new ArrayList<>();
+   private final Map<Coords, SlabDeskewer> xyProjectionResamplers_ = new HashMap<>();
+   private final List<SlabDeskewer> freeXYProjectionResamplers_ = new ArrayList<>();
+   private final Map<Coords, SlabDeskewer> orthogonalProjectionResamplers_ = new HashMap<>();
+   private final List<SlabDeskewer> freeOrthogonalProjectionResamplers_ = new ArrayList<>();
    private Datastore fullVolumeStore_;
    private Datastore xyProjectionStore_;
    private Datastore orthogonalStore_;
@@ -80,12 +76,15 @@ public class DeskewProcessor implements Processor {
       doOrthogonalProjections_ = doOrthogonalProjections;
       orthogonalProjectionsMode_ = orthogonalProjectionsMode;
       keepOriginals_ = keepOriginals;
-      processingExecutor_ =
-               new ThreadPoolExecutor(1,
-                        settings.getInteger(DeskewFrame.NR_THREADS, 12),
-                        1000,
-                        TimeUnit.MILLISECONDS,
-                        new LinkedBlockingDeque<>());
+      // Note that a ThreadPoolExecutor with an unbounded queue never grows
+      // beyond its core size, so use a fixed pool.
+      nrThreads_ = Math.max(1, settings.getInteger(DeskewFrame.NR_THREADS,
+               Runtime.getRuntime().availableProcessors()));
+      processingExecutor_ = Executors.newFixedThreadPool(nrThreads_, r -> {
+         Thread t = new Thread(r, "Deskew CPU worker");
+         t.setDaemon(true);
+         return t;
+      });
       settings_ = settings;
    }
 
@@ -112,24 +111,23 @@ public class DeskewProcessor implements Processor {
             if (doFullVolume_) {
                if (fullVolumeResamplers_.get(coordsNoZ) == null) {
                   if (freeFullVolumeResamplers_.isEmpty()) {
-                     fullVolumeResamplers_.put(coordsNoZ, new StackResampler(
-                              StackResampler.FULL_VOLUME,
+                     fullVolumeResamplers_.put(coordsNoZ, new SlabDeskewer(
+                              SlabDeskewer.FULL_VOLUME,
                               false,
                               theta_,
                               image.getMetadata().getPixelSizeUm(),
                               inputSummaryMetadata_.getZStepUm(),
                               inputSummaryMetadata_.getIntendedDimensions().getZ(),
                               image.getHeight(),
-                              image.getWidth()));
+                              image.getWidth(),
+                              processingExecutor_,
+                              nrThreads_));
                   } else {
                      fullVolumeResamplers_.put(coordsNoZ,
                               freeFullVolumeResamplers_.remove(0));
                   }
                }
-               fullVolumeResamplers_.get(coordsNoZ).initializeProjections();
-               fullVolumeFutures_.put(image.getCoords().copyBuilder().z(0).build(),
-                        processingExecutor_.submit(fullVolumeResamplers_.get(coordsNoZ)
-                                 .startStackProcessing()));
+               fullVolumeResamplers_.get(coordsNoZ).startStack();
                double newZStep = fullVolumeResamplers_.get(
                         coordsNoZ).getReconstructionVoxelSizeUm();
                int width = fullVolumeResamplers_.get(coordsNoZ).getResampledShapeX();
@@ -150,24 +148,23 @@ public class DeskewProcessor implements Processor {
             if (doXYProjections_) {
                if (xyProjectionResamplers_.get(coordsNoZ) == null) {
                   if (freeXYProjectionResamplers_.isEmpty()) {
-                     xyProjectionResamplers_.put(coordsNoZ, new StackResampler(
-                              StackResampler.YX_PROJECTION,
+                     xyProjectionResamplers_.put(coordsNoZ, new SlabDeskewer(
+                              SlabDeskewer.YX_PROJECTION,
                               xyProjectionMode_.equals(DeskewFrame.MAX),
                               theta_,
                               image.getMetadata().getPixelSizeUm(),
                               inputSummaryMetadata_.getZStepUm(),
                               inputSummaryMetadata_.getIntendedDimensions().getZ(),
                               image.getHeight(),
-                              image.getWidth()));
+                              image.getWidth(),
+                              processingExecutor_,
+                              nrThreads_));
                   } else {
                      xyProjectionResamplers_.put(coordsNoZ,
                               freeXYProjectionResamplers_.remove(0));
                   }
                }
-               xyProjectionResamplers_.get(coordsNoZ).initializeProjections();
-               xyProjectionFutures_.put(image.getCoords().copyBuilder().z(0).build(),
-                        processingExecutor_.submit(xyProjectionResamplers_.get(coordsNoZ)
-                                 .startStackProcessing()));
+               xyProjectionResamplers_.get(coordsNoZ).startStack();
                if (xyProjectionStore_ == null) {
                   int width = xyProjectionResamplers_.get(
                           coordsNoZ).getResampledShapeX();
@@ -193,22 +190,20 @@ public class DeskewProcessor implements Processor {
                               freeOrthogonalProjectionResamplers_.get(0));
                      freeOrthogonalProjectionResamplers_.remove(0);
                   } else {
-                     orthogonalProjectionResamplers_.put(coordsNoZ, new StackResampler(
-                              StackResampler.ORTHOGONAL_VIEWS,
+                     orthogonalProjectionResamplers_.put(coordsNoZ, new SlabDeskewer(
+                              SlabDeskewer.ORTHOGONAL_VIEWS,
                               orthogonalProjectionsMode_.equals(DeskewFrame.MAX),
                               theta_,
                               image.getMetadata().getPixelSizeUm(),
                               inputSummaryMetadata_.getZStepUm(),
                               inputSummaryMetadata_.getIntendedDimensions().getZ(),
                               image.getHeight(),
-                              image.getWidth()));
+                              image.getWidth(),
+                              processingExecutor_,
+                              nrThreads_));
                   }
                }
-               orthogonalProjectionResamplers_.get(coordsNoZ).initializeProjections();
-               orthogonalFutures_.put(coordsNoZ,
-                        processingExecutor_.submit(
-                                 orthogonalProjectionResamplers_.get(coordsNoZ)
-                                          .startStackProcessing()));
+               orthogonalProjectionResamplers_.get(coordsNoZ).startStack();
                if (orthogonalStore_ == null) {
                   String newPrefix = inputSummaryMetadata_.getPrefix() + "-"
                            + (orthogonalProjectionsMode_.equals(DeskewFrame.MAX) ? "Max" : "Avg")
@@ -238,29 +233,18 @@ public class DeskewProcessor implements Processor {
          }
       }
       if (fullVolumeResamplers_.get(coordsNoZ) != null) {
-         fullVolumeResamplers_.get(coordsNoZ).addToProcessImageQueue(
-                  (short[]) image.getRawPixels(), image.getCoords().getZ());
+         addPlane(fullVolumeResamplers_.get(coordsNoZ), image);
       }
       if (xyProjectionResamplers_.get(coordsNoZ) != null) {
-         xyProjectionResamplers_.get(coordsNoZ).addToProcessImageQueue(
-                  (short[]) image.getRawPixels(), image.getCoords().getZ());
+         addPlane(xyProjectionResamplers_.get(coordsNoZ), image);
       }
       if (orthogonalProjectionResamplers_.get(coordsNoZ) != null) {
-         orthogonalProjectionResamplers_.get(coordsNoZ).addToProcessImageQueue(
-                  (short[]) image.getRawPixels(), image.getCoords().getZ());
+         addPlane(orthogonalProjectionResamplers_.get(coordsNoZ), image);
       }
 
       if (image.getCoords().getZ() == inputSummaryMetadata_.getIntendedDimensions().getZ() - 1) {
          if (fullVolumeResamplers_.get(coordsNoZ) != null) {
-            Future<?> future = fullVolumeFutures_.getOrDefault(coordsNoZ, null);
-            if (future != null) {
-               try {
-                  future.get();
-               } catch (InterruptedException | ExecutionException | OutOfMemoryError e) {
-                  throw new RuntimeException(e);
-               }
-            }
-            fullVolumeResamplers_.get(coordsNoZ).finalizeProjections();
+            fullVolumeResamplers_.get(coordsNoZ).finishStack();
             int width = fullVolumeResamplers_.get(coordsNoZ).getResampledShapeX();
             int height = fullVolumeResamplers_.get(coordsNoZ).getResampledShapeY();
             PropertyMap.Builder formatBuilder = PropertyMaps.builder();
@@ -288,15 +272,7 @@ public class DeskewProcessor implements Processor {
             fullVolumeResamplers_.remove(coordsNoZ);
          }
          if (xyProjectionResamplers_.get(coordsNoZ) != null) {
-            Future<?> future = xyProjectionFutures_.getOrDefault(coordsNoZ, null);
-            if (future != null) {
-               try {
-                  future.get();
-               } catch (InterruptedException | ExecutionException e) {
-                  throw new RuntimeException(e);
-               }
-            }
-            xyProjectionResamplers_.get(coordsNoZ).finalizeProjections();
+            xyProjectionResamplers_.get(coordsNoZ).finishStack();
             int width = xyProjectionResamplers_.get(coordsNoZ).getResampledShapeX();
             int height = xyProjectionResamplers_.get(coordsNoZ).getResampledShapeY();
             PropertyMap.Builder formatBuilder = PropertyMaps.builder();
@@ -317,16 +293,7 @@ public class DeskewProcessor implements Processor {
             xyProjectionResamplers_.remove(coordsNoZ);
          }
          if (orthogonalProjectionResamplers_.get(coordsNoZ) != null) {
-            Future<?> future = orthogonalFutures_.getOrDefault(
-                     image.getCoords().copyBuilder().z(0).build(), null);
-            if (future != null) {
-               try {
-                  future.get();
-               } catch (InterruptedException | ExecutionException e) {
-                  throw new RuntimeException(e);
-               }
-            }
-            orthogonalProjectionResamplers_.get(coordsNoZ).finalizeProjections();
+            orthogonalProjectionResamplers_.get(coordsNoZ).finishStack();
             int width = orthogonalProjectionResamplers_.get(
                      coordsNoZ).getResampledShapeX();
             int height = orthogonalProjectionResamplers_.get(
@@ -381,4 +348,24 @@ public class DeskewProcessor implements Processor {
 
    }
 
+   @Override
+   public void cleanup(ProcessorContext context) {
+      processingExecutor_.shutdown();
+   }
+
+   /**
+    * Hands a plane to a deskewer, logging planes that are missing from the
+    * stack (which the deskewer fills with zeros) or that can not be used.
+    */
+   private void addPlane(SlabDeskewer deskewer, Image image) {
+      int z = image.getCoords().getZ();
+      int expected = deskewer.getNextPlaneIndex();
+      if (!deskewer.addPlane((short[]) image.getRawPixels(), z)) {
+         studio_.logs().logMessage("Deskew: dropped plane " + image.getCoords()
+               + ", expected plane " + expected + " of the stack");
+      } else if (z > expected) {
+         studio_.logs().logMessage("Deskew: planes " + expected + " to " + (z - 1)
+               + " are missing before " + image.getCoords() + ", using zeros instead");
+      }
+   }
 }
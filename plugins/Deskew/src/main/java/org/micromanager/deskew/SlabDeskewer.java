@@ -0,0 +1,481 @@
+package org.micromanager.deskew;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Deskews stage-scanned light-sheet stacks on the CPU, one plane at a time.
+ *
+ * <p>Camera row {@code y} of the plane acquired at scan index {@code k} is
+ * mapped to height {@code Z = y * sin(theta)} and scan position
+ * {@code Y = k * zStep / pixelSize + y * cos(theta)}, both in units of the
+ * camera pixel size (which is also the reconstruction voxel size); X is
+ * unchanged. Each output voxel is bilinearly interpolated between two camera
+ * rows of two consecutive planes. Since only consecutive planes are involved,
+ * all voxels that lie between plane k-1 and plane k can be computed as soon
+ * as plane k arrives, after which plane k-1 is no longer needed. Projections
+ * are accumulated as voxels are produced, so the full volume is held in
+ * memory only if it is requested as output.
+ *
+ * <p>The interpolation rows and weights for each output Z are precomputed.
+ * The work for each plane is split into bands of columns that are processed
+ * by the given executor while the caller continues to deliver planes; the
+ * inner loops run over contiguous columns with no branches so that the JIT
+ * can vectorize them.
+ *
+ * <p>Planes that are missing from a stack are treated as planes of zeros,
+ * and planes that arrive out of order are dropped, so that an incomplete
+ * stack still results in (partially empty) output.
+ *
+ * <p>Instances can be reused for successive stacks of the same shape, but
+ * must be driven from a single thread.
+ */
+final class SlabDeskewer {
+   static final int FULL_VOLUME = 0;
+   static final int YX_PROJECTION = 1;
+   static final int ORTHOGONAL_VIEWS = 2;
+
+   private static final int MIN_BAND_WIDTH = 64;
+
+   private final int mode_;
+   private final boolean doMax_;
+   private final double pixelSizeUm_;
+   private final int nSlices_;
+   private final int camHeight_;
+   private final int width_;
+   private final double planeSpacing_; // in output pixels along Y
+   private final int depth_; // output Z
+   private final int height_; // output Y
+   private final ExecutorService executor_;
+
+   // Per output Z: camera rows and weight to interpolate between, and the
+   // Y offset of the camera row
+   private final int[] row0_;
+   private final int[] row1_;
+   private final float[] rowWeight_;
+   private final double[] yOffset_;
+
+   // Column bands; each has its own scratch space
+   private final int[] bandStarts_;
+   private final int rowsPerPlane_;
+   private final float[][] lineScratch_;
+   private final double[][] yzScratch_; // [band][z * rowsPerPlane_ + j]
+
+   // Per output Z: range of Y rows computed from the current plane pair
+   private final int[] firstY_;
+   private final int[] endY_;
+
+   // Accumulators; which ones are allocated depends on the mode
+   private short[][] volume_;
+   private short[] yxMax_;
+   private float[] yxSum_;
+   private int[] yxCount_;
+   private short[] zxMax_;
+   private double[] zxSum_;
+   private int[] zxCount_;
+   private double[] yz_;
+
+   private short[] previousPlane_;
+   private int previousIndex_ = -1;
+   private short[] zeroPlane_; // stands in for missing planes
+   private final List<Future<?>> pending_ = new ArrayList<>();
+
+   /**
+    * Create a deskewer.
+    *
+    * @param mode {@link #FULL_VOLUME}, {@link #YX_PROJECTION} or
+    *             {@link #ORTHOGONAL_VIEWS}
+    * @param doMax max projections if true, average projections otherwise
+    * @param theta angle between the light sheet and the sample plane, in radians
+    * @param pixelSizeUm camera pixel size in the sample
+    * @param zStepUm stage scan step between planes
+    * @param nSlices number of planes in a stack
+    * @param camHeight height of camera images
+    * @param camWidth width of camera images
+    * @param executor executor on which column bands are processed
+    * @param nBands number of column bands to split each plane into
+    */
+   SlabDeskewer(int mode, boolean doMax, double theta, double pixelSizeUm,
+                double zStepUm, int nSlices, int camHeight, int camWidth,
+                ExecutorService executor, int nBands) {
+      if (theta <= 0.0 || theta >= Math.PI) {
+         throw new IllegalArgumentException("Invalid light sheet angle: " + theta);
+      }
+      if (pixelSizeUm <= 0.0 || zStepUm <= 0.0) {
+         throw new IllegalArgumentException("Pixel size and z step must be positive");
+      }
+      mode_ = mode;
+      doMax_ = doMax;
+      pixelSizeUm_ = pixelSizeUm;
+      nSlices_ = nSlices;
+      camHeight_ = camHeight;
+      width_ = camWidth;
+      planeSpacing_ = zStepUm / pixelSizeUm;
+      executor_ = executor;
+
+      double sin = Math.sin(theta);
+      double cos = Math.cos(theta);
+      depth_ = (int) Math.floor((camHeight - 1) * sin) + 1;
+      double minOffset = Math.min(0.0, (camHeight - 1) * cos);
+      double maxOffset = Math.max(0.0, (camHeight - 1) * cos);
+      height_ = (int) Math.floor((nSlices - 1) * planeSpacing_
+            + maxOffset - minOffset) + 1;
+
+      row0_ = new int[depth_];
+      row1_ = new int[depth_];
+      rowWeight_ = new float[depth_];
+      yOffset_ = new double[depth_];
+      for (int z = 0; z < depth_; z++) {
+         double camRow = Math.min(z / sin, camHeight - 1);
+         row0_[z] = (int) Math.floor(camRow);
+         row1_[z] = Math.min(row0_[z] + 1, camHeight - 1);
+         rowWeight_[z] = (float) (camRow - row0_[z]);
+         yOffset_[z] = camRow * cos - minOffset;
+      }
+
+      int bands = Math.max(1, Math.min(nBands, camWidth / MIN_BAND_WIDTH));
+      bandStarts_ = new int[bands + 1];
+      for (int b = 0; b <= bands; b++) {
+         bandStarts_[b] = (int) ((long) camWidth * b / bands);
+      }
+      rowsPerPlane_ = (int) Math.ceil(planeSpacing_) + 1;
+      lineScratch_ = new float[bands][];
+      yzScratch_ = new double[bands][];
+      for (int b = 0; b < bands; b++) {
+         lineScratch_[b] = new float[bandStarts_[b + 1] - bandStarts_[b]];
+         yzScratch_[b] = new double[depth_ * rowsPerPlane_];
+      }
+      firstY_ = new int[depth_];
+      endY_ = new int[depth_];
+   }
+
+   int getResampledShapeX() {
+      return width_;
+   }
+
+   int getResampledShapeY() {
+      return height_;
+   }
+
+   int getResampledShapeZ() {
+      return depth_;
+   }
+
+   double getReconstructionVoxelSizeUm() {
+      return pixelSizeUm_;
+   }
+
+   /**
+    * Prepare for a new stack. Results of the previous stack that were
+    * obtained through the getters remain valid.
+    */
+   void startStack() {
+      waitForPending();
+      previousPlane_ = null;
+      previousIndex_ = -1;
+      int yxSize = height_ * width_;
+      if (mode_ == FULL_VOLUME) {
+         volume_ = new short[depth_][yxSize];
+         return;
+      }
+      if (doMax_) {
+         yxMax_ = new short[yxSize];
+      } else {
+         yxSum_ = reuse(yxSum_, yxSize);
+         yxCount_ = reuse(yxCount_, height_);
+      }
+      if (mode_ == ORTHOGONAL_VIEWS) {
+         if (doMax_) {
+            zxMax_ = new short[depth_ * width_];
+         } else {
+            zxSum_ = reuse(zxSum_, depth_ * width_);
+            zxCount_ = reuse(zxCount_, depth_);
+         }
+         yz_ = new double[height_ * depth_];
+      }
+   }
+
+   /**
+    * @return index of the plane that {@link #addPlane} expects next
+    */
+   int getNextPlaneIndex() {
+      return previousIndex_ + 1;
+   }
+
+   /**
+    * Add the next plane of the stack. Planes should be added in order of
+    * increasing index, starting at 0. Planes that were skipped are taken to
+    * be zero; a plane with an index that was already passed, or that lies
+    * beyond the stack, is dropped. Processing happens asynchronously; the
+    * pixel array must not be modified afterwards.
+    *
+    * @param pixels 16-bit camera image
+    * @param index index of the plane within the stack
+    * @return false if the plane was dropped
+    */
+   boolean addPlane(short[] pixels, int index) {
+      if (pixels.length < camHeight_ * width_) {
+         throw new IllegalArgumentException("Plane is smaller than expected");
+      }
+      if (index <= previousIndex_ || index >= nSlices_) {
+         return false;
+      }
+      while (previousIndex_ + 1 < index) {
+         if (zeroPlane_ == null) {
+            zeroPlane_ = new short[camHeight_ * width_];
+         }
+         addNextPlane(zeroPlane_);
+      }
+      addNextPlane(pixels);
+      return true;
+   }
+
+   private void addNextPlane(short[] pixels) {
+      int index = previousIndex_ + 1;
+      waitForPending();
+      if (previousPlane_ != null) {
+         submitInterval(previousPlane_, pixels, index - 1, false);
+      }
+      previousPlane_ = pixels;
+      previousIndex_ = index;
+   }
+
+   /**
+    * Process the remainder of the stack and finalize the projections. Must be
+    * called after the last plane has been added, before reading results.
+    */
+   void finishStack() {
+      waitForPending();
+      if (previousPlane_ != null) {
+         // Voxels that fall exactly on the last plane
+         submitInterval(previousPlane_, previousPlane_, previousIndex_, true);
+         waitForPending();
+      }
+      previousPlane_ = null;
+   }
+
+   /**
+    * @return the deskewed volume, indexed [z][y * width + x]
+    */
+   short[][] getReconstructedVolumeZYX() {
+      return volume_;
+   }
+
+   short[] getYXProjection() {
+      if (doMax_) {
+         return yxMax_;
+      }
+      short[] ret = new short[height_ * width_];
+      for (int y = 0; y < height_; y++) {
+         float count = Math.max(1, yxCount_[y]);
+         int offset = y * width_;
+         for (int x = 0; x < width_; x++) {
+            ret[offset + x] = toShort(yxSum_[offset + x] / count);
+         }
+      }
+      return ret;
+   }
+
+   /**
+    * @return projection along X, indexed [y * depth + z]
+    */
+   short[] getYZProjection() {
+      short[] ret = new short[height_ * depth_];
+      double divisor = doMax_ ? 1.0 : width_;
+      for (int i = 0; i < ret.length; i++) {
+         ret[i] = toShort((float) (yz_[i] / divisor));
+      }
+      return ret;
+   }
+
+   /**
+    * @return projection along Y, indexed [z * width + x]
+    */
+   short[] getZXProjection() {
+      if (doMax_) {
+         return zxMax_;
+      }
+      short[] ret = new short[depth_ * width_];
+      for (int z = 0; z < depth_; z++) {
+         double count = Math.max(1, zxCount_[z]);
+         int offset = z * width_;
+         for (int x = 0; x < width_; x++) {
+            ret[offset + x] = toShort((float) (zxSum_[offset + x] / count));
+         }
+      }
+      return ret;
+   }
+
+   /**
+    * Compute all output rows whose (fractional) plane index lies in
+    * [planeIndex, planeIndex + 1), or equals planeIndex if lastOnly.
+    */
+   private void submitInterval(final short[] plane0, final short[] plane1,
+                               final int planeIndex, final boolean lastOnly) {
+      double start = planeIndex * planeSpacing_;
+      for (int z = 0; z < depth_; z++) {
+         double y0 = start + yOffset_[z];
+         int first = (int) Math.ceil(y0 - 1e-9);
+         int end = lastOnly ? (int) Math.floor(y0 + 1e-9) + 1
+               : (int) Math.ceil(y0 + planeSpacing_ - 1e-9);
+         firstY_[z] = Math.max(0, first);
+         endY_[z] = Math.min(height_, Math.min(end, first + rowsPerPlane_));
+         if (yxCount_ != null) {
+            for (int y = firstY_[z]; y < endY_[z]; y++) {
+               yxCount_[y]++;
+            }
+         }
+         if (zxCount_ != null) {
+            zxCount_[z] += Math.max(0, endY_[z] - firstY_[z]);
+         }
+      }
+      for (int b = 0; b < bandStarts_.length - 1; b++) {
+         final int band = b;
+         pending_.add(executor_.submit(() ->
+               processBand(plane0, plane1, planeIndex, band)));
+      }
+   }
+
+   private void processBand(short[] plane0, short[] plane1, int planeIndex, int band) {
+      final int x0 = bandStarts_[band];
+      final int n = bandStarts_[band + 1] - x0;
+      final float[] line = lineScratch_[band];
+      final double[] yzScratch = yzScratch_[band];
+      final double start = planeIndex * planeSpacing_;
+      for (int z = 0; z < depth_; z++) {
+         final int a0 = row0_[z] * width_ + x0;
+         final int a1 = row1_[z] * width_ + x0;
+         final float wr = rowWeight_[z];
+         for (int y = firstY_[z]; y < endY_[z]; y++) {
+            float wp = (float) ((y - yOffset_[z] - start) / planeSpacing_);
+            wp = Math.max(0.0f, Math.min(1.0f, wp));
+            final float w00 = (1.0f - wp) * (1.0f - wr);
+            final float w01 = (1.0f - wp) * wr;
+            final float w10 = wp * (1.0f - wr);
+            final float w11 = wp * wr;
+            for (int i = 0; i < n; i++) {
+               line[i] = w00 * (plane0[a0 + i] & 0xffff)
+                     + w01 * (plane0[a1 + i] & 0xffff)
+                     + w10 * (plane1[a0 + i] & 0xffff)
+                     + w11 * (plane1[a1 + i] & 0xffff);
+            }
+            consumeLine(line, n, x0, y, z, yzScratch,
+                  z * rowsPerPlane_ + (y - firstY_[z]));
+         }
+      }
+   }
+
+   private void consumeLine(float[] line, int n, int x0, int y, int z,
+                            double[] yzScratch, int yzIndex) {
+      if (mode_ == FULL_VOLUME) {
+         short[] out = volume_[z];
+         int offset = y * width_ + x0;
+         for (int i = 0; i < n; i++) {
+            out[offset + i] = (short) (int) (line[i] + 0.5f);
+         }
+         return;
+      }
+      int yxOffset = y * width_ + x0;
+      if (doMax_) {
+         accumulateMax(line, n, yxMax_, yxOffset);
+      } else {
+         for (int i = 0; i < n; i++) {
+            yxSum_[yxOffset + i] += line[i];
+         }
+      }
+      if (mode_ != ORTHOGONAL_VIEWS) {
+         return;
+      }
+      int zxOffset = z * width_ + x0;
+      double lineResult = 0.0;
+      if (doMax_) {
+         accumulateMax(line, n, zxMax_, zxOffset);
+         float max = 0.0f;
+         for (int i = 0; i < n; i++) {
+            max = Math.max(max, line[i]);
+         }
+         lineResult = (int) (max + 0.5f);
+      } else {
+         for (int i = 0; i < n; i++) {
+            zxSum_[zxOffset + i] += line[i];
+            lineResult += line[i];
+         }
+      }
+      yzScratch[yzIndex] = lineResult;
+   }
+
+   private static void accumulateMax(float[] line, int n, short[] target, int offset) {
+      for (int i = 0; i < n; i++) {
+         int v = (int) (line[i] + 0.5f);
+         int cur = target[offset + i] & 0xffff;
+         target[offset + i] = (short) Math.max(v, cur);
+      }
+   }
+
+   private void waitForPending() {
+      if (pending_.isEmpty()) {
+         return;
+      }
+      try {
+         for (Future<?> f : pending_) {
+            f.get();
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+         throw new RuntimeException(e.getCause());
+      } finally {
+         pending_.clear();
+      }
+      // Combine the per-band projections along X of the rows just computed
+      if (yz_ != null) {
+         for (int z = 0; z < depth_; z++) {
+            for (int y = firstY_[z]; y < endY_[z]; y++) {
+               int j = z * rowsPerPlane_ + (y - firstY_[z]);
+               double combined = doMax_ ? yz_[y * depth_ + z] : 0.0;
+               for (double[] scratch : yzScratch_) {
+                  combined = doMax_ ? Math.max(combined, scratch[j]) : combined + scratch[j];
+               }
+               if (doMax_) {
+                  yz_[y * depth_ + z] = combined;
+               } else {
+                  yz_[y * depth_ + z] += combined;
+               }
+            }
+         }
+      }
+   }
+
+   private static short toShort(float value) {
+      return (short) (int) Math.min(65535.0f, value + 0.5f);
+   }
+
+   private static float[] reuse(float[] array, int size) {
+      if (array == null || array.length != size) {
+         return new float[size];
+      }
+      Arrays.fill(array, 0.0f);
+      return array;
+   }
+
+   private static double[] reuse(double[] array, int size) {
+      if (array == null || array.length != size) {
+         return new double[size];
+      }
+      Arrays.fill(array, 0.0);
+      return array;
+   }
+
+   private static int[] reuse(int[] array, int size) {
+      if (array == null || array.length != size) {
+         return new int[size];
+      }
+      Arrays.fill(array, 0);
+      return array;
+   }
+}
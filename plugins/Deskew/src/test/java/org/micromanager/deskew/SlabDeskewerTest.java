@@ -0,0 +1,90 @@
+package org.micromanager.deskew;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SlabDeskewerTest {
+   private static final int N_SLICES = 6;
+   private static final int CAM_HEIGHT = 32;
+   private static final int CAM_WIDTH = 128;
+
+   private final ExecutorService executor_ = Executors.newFixedThreadPool(2);
+
+   @After
+   public void tearDown() {
+      executor_.shutdown();
+   }
+
+   private SlabDeskewer createDeskewer() {
+      return new SlabDeskewer(SlabDeskewer.ORTHOGONAL_VIEWS, true, Math.toRadians(30.0),
+            0.5, 1.0, N_SLICES, CAM_HEIGHT, CAM_WIDTH, executor_, 2);
+   }
+
+   private static short[][] randomStack() {
+      Random random = new Random(7);
+      short[][] stack = new short[N_SLICES][CAM_HEIGHT * CAM_WIDTH];
+      for (short[] plane : stack) {
+         for (int i = 0; i < plane.length; i++) {
+            plane[i] = (short) random.nextInt(4096);
+         }
+      }
+      return stack;
+   }
+
+   @Test
+   public void testMissingPlaneIsTakenAsZeros() {
+      short[][] stack = randomStack();
+      final int missing = 3;
+
+      SlabDeskewer withGap = createDeskewer();
+      withGap.startStack();
+      for (int z = 0; z < N_SLICES; z++) {
+         if (z != missing) {
+            Assert.assertTrue(withGap.addPlane(stack[z], z));
+         }
+      }
+      withGap.finishStack();
+
+      SlabDeskewer withZeros = createDeskewer();
+      withZeros.startStack();
+      for (int z = 0; z < N_SLICES; z++) {
+         withZeros.addPlane(z == missing ? new short[CAM_HEIGHT * CAM_WIDTH] : stack[z], z);
+      }
+      withZeros.finishStack();
+
+      Assert.assertArrayEquals(withZeros.getYXProjection(), withGap.getYXProjection());
+      Assert.assertArrayEquals(withZeros.getYZProjection(), withGap.getYZProjection());
+      Assert.assertArrayEquals(withZeros.getZXProjection(), withGap.getZXProjection());
+   }
+
+   @Test
+   public void testOutOfOrderPlaneIsDropped() {
+      short[][] stack = randomStack();
+
+      SlabDeskewer outOfOrder = createDeskewer();
+      outOfOrder.startStack();
+      for (int z = 0; z < N_SLICES; z++) {
+         Assert.assertTrue(outOfOrder.addPlane(stack[z], z));
+         if (z == 2) {
+            Assert.assertFalse(outOfOrder.addPlane(stack[1], 1));
+            Assert.assertEquals(3, outOfOrder.getNextPlaneIndex());
+         }
+      }
+      Assert.assertFalse(outOfOrder.addPlane(stack[0], N_SLICES));
+      outOfOrder.finishStack();
+
+      SlabDeskewer inOrder = createDeskewer();
+      inOrder.startStack();
+      for (int z = 0; z < N_SLICES; z++) {
+         inOrder.addPlane(stack[z], z);
+      }
+      inOrder.finishStack();
+
+      Assert.assertArrayEquals(inOrder.getYXProjection(), outOfOrder.getYXProjection());
+      Assert.assertArrayEquals(inOrder.getYZProjection(), outOfOrder.getYZProjection());
+   }
+}
@@ -22,15 +22,27 @@
 package org.micromanager.duplicator;
 
 import ij.gui.Roi;
-import ij.process.ImageProcessor;
 import java.awt.Component;
+import java.awt.Rectangle;
+import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 import javax.swing.JOptionPane;
 import javax.swing.SwingWorker;
 import org.micromanager.MultiStagePosition;
@@ -42,12 +54,15 @@ import org.micromanager.data.DatastoreFrozenException;
 import org.micromanager.data.DatastoreRewriteException;
 import org.micromanager.data.Image;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.multipagetiff.MultipageTiffReader;
+import org.micromanager.data.internal.ndtiff.NDTiffAdapter;
 import org.micromanager.display.ChannelDisplaySettings;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DataViewerListener;
 import org.micromanager.display.DisplaySettings;
 import org.micromanager.display.DisplayWindow;
 import org.micromanager.display.internal.displaywindow.DisplayController;
+import org.micromanager.imageprocessing.PixelKernels;
 
 /**
  * Does the actual Duplication.
@@ -55,6 +70,10 @@ import org.micromanager.display.internal.displaywindow.DisplayController;
  * @author nico
  */
 public class DuplicatorExecutor extends SwingWorker<Void, Void> {
+   // Number of images read ahead of the one being written
+   private static final int READ_AHEAD = 16;
+   // Bytes copied between checks for cancellation when copying files
+   private static final long COPY_CHUNK = 64L * 1024 * 1024;
    private final Studio studio_;
    private final DisplayWindow theWindow_;
    private final String newName_;
@@ -138,6 +157,18 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
    @Override
    protected Void doInBackground() {
       DataProvider oldStore = theWindow_.getDataProvider();
+      // TODO: use Overlays instead
+      final Roi roi = theWindow_.getImagePlus().getRoi();
+
+      if (canCopyFiles(oldStore, roi)) {
+         try {
+            copyFiles(((Datastore) oldStore).getSavePath(), theWindow_.getDisplaySettings());
+         } catch (IOException ioe) {
+            studio_.logs().showError(ioe, "Failed to copy files to " + filePath_);
+         }
+         return null;
+      }
+
       Datastore tmpStore = null;
       try {
          if (saveMode_ == null) {
@@ -160,9 +191,6 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
       final DisplaySettings.Builder newDisplaySettingsBuilder =
             theWindow_.getDisplaySettings().copyBuilder();
 
-      // TODO: use Overlays instead
-      final Roi roi = theWindow_.getImagePlus().getRoi();
-      
       Coords.CoordsBuilder newSizeCoordsBuilder = studio_.data().coordsBuilder();
       for (String axis : oldStore.getAxes()) {
          newSizeCoordsBuilder.index(axis, oldStore.getNextIndex(axis) - 1);
@@ -197,12 +225,15 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
       }
 
       Integer width = oldMetadata.getImageWidth();
-      if (roi != null) {
-         width = roi.getBounds().width;
-      }
       Integer height = oldMetadata.getImageHeight();
       if (roi != null) {
-         height = roi.getBounds().height;
+         // Crops are clipped to the image, as in ImageJ
+         Rectangle bounds = roi.getBounds();
+         if (width != null && height != null) {
+            bounds = bounds.intersection(new Rectangle(0, 0, width, height));
+         }
+         width = bounds.width;
+         height = bounds.height;
       }
 
       CloseViewerListener closeListener = null;
@@ -244,7 +275,7 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
                timeOut = true;
             }
             try {
-               Thread.sleep(100);
+               Thread.sleep(10);
             } catch (InterruptedException e) {
                timeOut = true;
                studio_.logs().logError(e);
@@ -283,6 +314,8 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
             }
          });
 
+         // Work out which images to copy, and their new coordinates
+         List<Coords[]> toCopy = new ArrayList<>();
          for (Coords oldCoord : orderedImageCoords) {
             List<String> oldAxes = oldStore.getAxes();
             boolean copy = !oldAxes.contains(Coords.CHANNEL);
@@ -327,36 +360,38 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
                      newCoordBuilder.index(axis, oldCoord.getIndex(axis) - mins_.get(axis));
                   }
                }
-               Image img = oldStore.getImage(oldCoord);
-               Coords newCoords = newCoordBuilder.build();
-               Image newImgShallow = img.copyAtCoords(newCoords);
-               if (roi != null) {
-                  ImageProcessor ip = studio_.data().ij().createProcessor(img);
-                  if (ip != null) {
-                     ip.setRoi(roi);
-                     ImageProcessor copyIp = ip.crop();
-                     newImgShallow = studio_.data().createImage(copyIp.getPixels(), 
-                             copyIp.getWidth(), copyIp.getHeight(), 
-                             img.getBytesPerPixel(), img.getNumComponents(), 
-                             newCoords, newImgShallow.getMetadata());
-                  } else {
-                     throw new DuplicatorException(
-                           "Unsupported pixel type.  Can only copy 8 or 16 bit images.");
-                  }
+               toCopy.add(new Coords[] {oldCoord, newCoordBuilder.build()});
+            }
+         }
+
+         // Storage implementations are not safe for concurrent reads or
+         // writes, so a single thread reads (and crops) ahead, while this
+         // thread writes, in order.
+         final Rectangle cropRect = roi == null ? null : roi.getBounds();
+         ExecutorService reader = Executors.newSingleThreadExecutor();
+         ArrayDeque<Future<Image>> readAhead = new ArrayDeque<>();
+         try {
+            for (int i = 0; i < toCopy.size() || !readAhead.isEmpty(); ) {
+               while (i < toCopy.size() && readAhead.size() < READ_AHEAD) {
+                  final Coords[] item = toCopy.get(i++);
+                  readAhead.add(reader.submit(
+                        () -> readImage(oldStore, item[0], item[1], cropRect)));
                }
-               if (closeListener.isCancelled()) {
+               Image newImage = nextImage(readAhead.removeFirst());
+               if (closeListener.isCancelled() || isCancelled()) {
                   newStore.freeze();
                   return null;
                }
-               newStore.putImage(newImgShallow);
+               newStore.putImage(newImage);
                nrCopied++;
                try {
                   setProgress((int) ((nrCopied / nrToBeCopied) * 100.0));
                } catch (IllegalArgumentException iae) {
                   System.out.println("Value was: " + (int) (nrCopied / nrToBeCopied * 100.0));
                }
-               
             }
+         } finally {
+            reader.shutdownNow();
          }
          if (nrCopied == 0) {
             copyDisplay.close();
@@ -385,8 +420,161 @@ public class DuplicatorExecutor extends SwingWorker<Void, Void> {
       return null;
    }
    
+   /**
+    * Reads an image, and crops it to the given rectangle (clipped to the
+    * image) if not null.
+    */
+   private Image readImage(DataProvider oldStore, Coords oldCoords, Coords newCoords,
+                           Rectangle crop) throws IOException, DuplicatorException {
+      Image img = oldStore.getImage(oldCoords);
+      if (img == null) {
+         throw new DuplicatorException("Failed to read image at " + oldCoords);
+      }
+      if (crop == null) {
+         return img.copyAtCoords(newCoords);
+      }
+      Rectangle r = crop.intersection(new Rectangle(0, 0, img.getWidth(), img.getHeight()));
+      Object pixels = img.getRawPixels();
+      int elementsPerPixel = PixelKernels.elementsPerPixel(pixels, img.getWidth(),
+            img.getHeight());
+      Object cropped = PixelKernels.newBufferLike(pixels, r.width * r.height * elementsPerPixel);
+      PixelKernels.crop(pixels, img.getWidth(), elementsPerPixel, r.x, r.y, r.width, r.height,
+            cropped);
+      return studio_.data().createImage(cropped, r.width, r.height,
+            img.getBytesPerPixel(), img.getNumComponents(), newCoords,
+            img.getMetadata().copyBuilderWithNewUUID().build());
+   }
+
+   private static Image nextImage(Future<Image> future)
+         throws IOException, DuplicatorException {
+      try {
+         return future.get();
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new DuplicatorException("Interrupted while reading images");
+      } catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         } else if (cause instanceof DuplicatorException) {
+            throw (DuplicatorException) cause;
+         } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new DuplicatorException(String.valueOf(cause));
+      }
+   }
+
+   /**
+    * Whether the copy can be made by copying the files of the original: that
+    * needs the whole, saved dataset to be copied into the format it is in,
+    * to an empty (or new) directory.
+    */
+   private boolean canCopyFiles(DataProvider oldStore, Roi roi) {
+      if (saveMode_ == null || roi != null || !(oldStore instanceof Datastore)
+            || !oldStore.isFrozen()) {
+         return false;
+      }
+      String savePath = ((Datastore) oldStore).getSavePath();
+      if (savePath == null || !new File(savePath).isDirectory()) {
+         return false;
+      }
+      File target = new File(filePath_);
+      String[] targetContents = target.list();
+      if (target.exists() && (targetContents == null || targetContents.length > 0)) {
+         return false;
+      }
+      for (Map.Entry<String, Integer> min : mins_.entrySet()) {
+         if (min.getValue() != 0 || maxes_.get(min.getKey())
+               != oldStore.getNextIndex(min.getKey()) - 1) {
+            return false;
+         }
+      }
+      if (channels_ != null && channels_.containsValue(false)) {
+         return false;
+      }
+      Datastore.SaveMode oldMode;
+      try {
+         if (NDTiffAdapter.isNDTiffDataSet(savePath)) {
+            oldMode = Datastore.SaveMode.ND_TIFF;
+         } else if (MultipageTiffReader.isMMMultipageTiff(savePath)) {
+            oldMode = Datastore.SaveMode.MULTIPAGE_TIFF;
+         } else if (new File(savePath, "metadata.txt").exists()) {
+            oldMode = Datastore.SaveMode.SINGLEPLANE_TIFF_SERIES;
+         } else {
+            return false;
+         }
+      } catch (IOException ioe) {
+         return false;
+      }
+      return oldMode == saveMode_;
+   }
+
+   /**
+    * Copies all files of the original dataset, then opens and shows the copy.
+    * When cancelled, the files copied so far are removed again (the target
+    * directory was empty or did not exist).
+    */
+   private void copyFiles(String sourcePath, DisplaySettings displaySettings)
+         throws IOException {
+      final Path source = Paths.get(sourcePath);
+      final Path target = Paths.get(filePath_);
+      List<Path> files = new ArrayList<>();
+      long totalBytes = 0;
+      try (Stream<Path> paths = Files.walk(source)) {
+         for (Path path : (Iterable<Path>) paths::iterator) {
+            files.add(path);
+            if (Files.isRegularFile(path)) {
+               totalBytes += Files.size(path);
+            }
+         }
+      }
+      long copiedBytes = 0;
+      List<Path> created = new ArrayList<>();
+      for (Path path : files) {
+         Path destination = target.resolve(source.relativize(path).toString());
+         if (Files.isDirectory(path)) {
+            if (!Files.isDirectory(destination)) {
+               created.add(Files.createDirectories(destination));
+            }
+         } else {
+            created.add(destination);
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(destination,
+                       StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+               long size = in.size();
+               for (long position = 0; position < size && !isCancelled(); ) {
+                  long n = in.transferTo(position, Math.min(COPY_CHUNK, size - position), out);
+                  position += n;
+                  copiedBytes += n;
+                  setProgress((int) (100.0 * copiedBytes / Math.max(1, totalBytes)));
+               }
+            }
+            if (isCancelled()) {
+               break;
+            }
+            Files.setLastModifiedTime(destination, Files.getLastModifiedTime(path));
+         }
+      }
+      if (isCancelled()) {
+         Collections.reverse(created);
+         for (Path path : created) {
+            Files.deleteIfExists(path);
+         }
+         return;
+      }
+      Datastore newStore = studio_.data().loadData(filePath_, true);
+      newStore.setName(newName_);
+      DisplayWindow copyDisplay = studio_.displays().createDisplay(newStore);
+      copyDisplay.setDisplaySettings(displaySettings);
+      studio_.displays().manage(newStore);
+   }
+
    @Override
    public void done() {
+      if (isCancelled()) {
+         return;
+      }
       setProgress(100);
       studio_.alerts().postAlert("Finished duplicating", this.getClass(), newName_);
    }
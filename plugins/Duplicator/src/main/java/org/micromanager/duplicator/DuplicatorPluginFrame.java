@@ -45,7 +45,9 @@ import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JSpinner;
 import javax.swing.JTextField;
+import javax.swing.ProgressMonitor;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingWorker;
 import javax.swing.WindowConstants;
 import javax.swing.event.ChangeEvent;
 import javax.swing.filechooser.FileFilter;
@@ -63,7 +65,6 @@ import org.micromanager.display.DisplayWindow;
 // should not imitate this practice.
 import org.micromanager.display.internal.event.DataViewerWillCloseEvent;
 import org.micromanager.internal.utils.FileDialogs;
-import org.micromanager.internal.utils.ProgressBar;
 import org.micromanager.propertymap.MutablePropertyMapView;
 
 /**
@@ -300,11 +301,19 @@ public class DuplicatorPluginFrame extends JDialog {
                   studio_, ourWindow_, nameField.getText(), mins, maxes, channels,
                   saveMode, fileField.getText());
             cpFrame.dispose();
-            final ProgressBar pb = new ProgressBar(ourWindow_.getWindow(),
-                  "Duplicating..", 0, 100);
+            final ProgressMonitor pm = new ProgressMonitor(ourWindow_.getWindow(),
+                  "Duplicating..", "", 0, 100);
+            pm.setMillisToDecideToPopup(0);
+            pm.setMillisToPopup(0);
             de.addPropertyChangeListener((PropertyChangeEvent evt) -> {
+               if (pm.isCanceled()) {
+                  de.cancel(false);
+               }
                if ("progress".equals(evt.getPropertyName())) {
-                  pb.setProgress((Integer) evt.getNewValue());
+                  pm.setProgress((Integer) evt.getNewValue());
+               } else if ("state".equals(evt.getPropertyName())
+                     && evt.getNewValue() == SwingWorker.StateValue.DONE) {
+                  pm.close();
                }
             });
             de.execute();
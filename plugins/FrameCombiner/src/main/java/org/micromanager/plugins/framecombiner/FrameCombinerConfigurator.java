@@ -121,6 +121,7 @@ public class FrameCombinerConfigurator extends JFrame implements ProcessorConfig
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_SUM);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MAX);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MIN);
+      processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_SHARPEST);
       processorAlgoBox_.addActionListener(e -> {
          updateUISelectedItems();
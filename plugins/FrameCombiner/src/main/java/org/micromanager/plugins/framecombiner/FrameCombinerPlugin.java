@@ -13,7 +13,7 @@ public class FrameCombinerPlugin implements ProcessorPlugin, SciJavaPlugin {
 
    public static final String MENU_NAME = "Frame Combiner";
    public static final  String TOOL_TIP_DESCRIPTION =
-         "Combine multiple images into a single output image (mean/sum/max/min)";
+         "Combine multiple images into a single output image (mean/sum/max/min/median)";
    public static final  String VERSION_NUMBER = "1.0";
    public static final String COPYRIGHT = "Hadrien Mary";
 
@@ -21,6 +21,7 @@ public class FrameCombinerPlugin implements ProcessorPlugin, SciJavaPlugin {
    public static final String PROCESSOR_ALGO_SUM = "Sum";
    public static final String PROCESSOR_ALGO_MAX = "Max";
    public static final String PROCESSOR_ALGO_MIN = "Min";
+   public static final String PROCESSOR_ALGO_MEDIAN = "Median";
    public static final String PROCESSOR_ALGO_SHARPEST = "Sharpest";
    public static final String PROCESSOR_DIMENSION_TIME = "Time";
    public static final String PROCESSOR_DIMENSION_Z = "Z";
@@ -18,7 +18,9 @@ import org.micromanager.imageprocessing.curvefit.PlotUtils;
 
 /**
  * This class processes a single combination of Z, T, Channel, Stage Position.
- * It buffers the images and processes them when the buffer is full.
+ * For mean, sum, max, min and median, each image is folded into a
+ * {@link StreamingCombiner} as it arrives. Otherwise, it buffers the images
+ * and processes them when the buffer is full.
  * The single, "projected" processed image is then outputted.
  */
 public class SingleCombinationProcessor {
@@ -38,6 +40,10 @@ public class SingleCombinationProcessor {
    private int currentFrameIndex;
    private int processedFrameIndex;
    private Image[] bufferImages_;
+   private StreamingCombiner streamingCombiner_;
+   private Coords combinationCoords_;
+   private Metadata combinationMetadata_;
+   private boolean reportedUnsupportedImage_ = false;
 
    /**
     * Constructor for the SingleCombinationProcessor.
@@ -84,6 +90,23 @@ public class SingleCombinationProcessor {
          return;
       }
 
+      if (StreamingCombiner.supports(processorAlgo_)) {
+         if (!StreamingCombiner.supportsPixelType(image.getBytesPerPixel(),
+               image.getNumComponents())) {
+            // Neither the streaming nor the buffered code can combine these
+            if (!reportedUnsupportedImage_) {
+               reportedUnsupportedImage_ = true;
+               log_.showError("FrameCombiner can only combine 8- and 16-bit grayscale "
+                     + "images with " + processorAlgo_ + ". Images will be passed on "
+                     + "unprocessed.");
+            }
+            context.outputImage(image);
+            return;
+         }
+         addImageStreaming(image, context, snapLive);
+         return;
+      }
+
       int currentBufferIndex = currentFrameIndex % numberOfImagesToProcess_;
       bufferImages_[currentBufferIndex] = image;
 
@@ -105,49 +128,98 @@ public class SingleCombinationProcessor {
             bufferImages_[i] = null;
          }
 
-         // Add metadata to the processed image
-         Metadata metadata = processedImage.getMetadata();
-         PropertyMap userData = metadata.getUserData();
-         if (userData != null) {
-            userData = userData.copyBuilder().putBoolean("FrameProcessed", true).build();
-            userData =
-                  userData.copyBuilder().putString(
-                          "FrameProcessed-Operation", processorAlgo_).build();
-            userData = userData.copyBuilder().putInteger(
-                    "FrameProcessed-StackNumber", numberOfImagesToProcess_)
-                  .build();
-            metadata = metadata.copyBuilderPreservingUUID().userData(userData).build();
+         outputProcessedImage(processedImage, context, snapLive);
+      }
+
+      currentFrameIndex += 1;
+
+   }
+
+   /**
+    * Folds the image into the running combination, and outputs the result
+    * when the combination is complete.
+    */
+   private void addImageStreaming(Image image, ProcessorContext context, boolean snapLive) {
+      if (streamingCombiner_ == null
+            || streamingCombiner_.getWidth() != image.getWidth()
+            || streamingCombiner_.getHeight() != image.getHeight()
+            || streamingCombiner_.getBytesPerPixel() != image.getBytesPerPixel()) {
+         if (streamingCombiner_ != null && currentFrameIndex % numberOfImagesToProcess_ != 0) {
+            log_.logMessage("FrameCombiner: image size changed, discarding "
+                  + "incomplete combination");
+            currentFrameIndex -= currentFrameIndex % numberOfImagesToProcess_;
          }
-         processedImage = processedImage.copyWithMetadata(metadata);
-
-         // Add correct metadata if in acquisition mode
-         if (!snapLive) {
-            Coords.CoordsBuilder builder = processedImage.getCoords().copyBuilder();
-            if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_TIME)) {
-               builder.time(processedFrameIndex);
-            } else if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_Z)) {
-               builder.z(processedFrameIndex);
-            }
-            processedImage = processedImage.copyAtCoords(builder.build());
-            processedFrameIndex += 1;
+         try {
+            streamingCombiner_ = new StreamingCombiner(processorAlgo_,
+                  numberOfImagesToProcess_, image.getWidth(), image.getHeight(),
+                  image.getBytesPerPixel());
+         } catch (IllegalArgumentException ex) {
+            log_.logError(ex);
+            return;
          }
-
-         // Output processed image
-         context.outputImage(processedImage);
+      }
+      if (currentFrameIndex % numberOfImagesToProcess_ == 0) {
+         combinationCoords_ = image.getCoords();
+         combinationMetadata_ = image.getMetadata();
       }
 
+      boolean complete = streamingCombiner_.add(image.getRawPixels());
       currentFrameIndex += 1;
+      if (complete) {
+         Image processedImage = studio_.data().createImage(
+               streamingCombiner_.getResultAndReset(), image.getWidth(),
+               image.getHeight(), image.getBytesPerPixel(), image.getNumComponents(),
+               combinationCoords_, combinationMetadata_);
+         combinationCoords_ = null;
+         combinationMetadata_ = null;
+         outputProcessedImage(processedImage, context, snapLive);
+      }
+   }
 
+   private void outputProcessedImage(Image processedImage, ProcessorContext context,
+                                     boolean snapLive) {
+      // Add metadata to the processed image
+      Metadata metadata = processedImage.getMetadata();
+      PropertyMap userData = metadata.getUserData();
+      if (userData != null) {
+         userData = userData.copyBuilder().putBoolean("FrameProcessed", true).build();
+         userData =
+               userData.copyBuilder().putString(
+                       "FrameProcessed-Operation", processorAlgo_).build();
+         userData = userData.copyBuilder().putInteger(
+                 "FrameProcessed-StackNumber", numberOfImagesToProcess_)
+               .build();
+         metadata = metadata.copyBuilderPreservingUUID().userData(userData).build();
+      }
+      processedImage = processedImage.copyWithMetadata(metadata);
+
+      // Add correct metadata if in acquisition mode
+      if (!snapLive) {
+         Coords.CoordsBuilder builder = processedImage.getCoords().copyBuilder();
+         if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_TIME)) {
+            builder.time(processedFrameIndex);
+         } else if (processorDimension_.equals(FrameCombinerPlugin.PROCESSOR_DIMENSION_Z)) {
+            builder.z(processedFrameIndex);
+         }
+         processedImage = processedImage.copyAtCoords(builder.build());
+         processedFrameIndex += 1;
+      }
+
+      // Output processed image
+      context.outputImage(processedImage);
    }
 
    /**
     * Clear the buffer.
     */
    public void clear() {
-      for (int i = 0; i < numberOfImagesToProcess_; i++) {
-         bufferImages_[i] = null;
+      if (bufferImages_ != null) {
+         for (int i = 0; i < numberOfImagesToProcess_; i++) {
+            bufferImages_[i] = null;
+         }
       }
       bufferImages_ = null;
+      streamingCombiner_ = null;
    }
 
    /**
@@ -0,0 +1,303 @@
+package org.micromanager.plugins.framecombiner;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Combines a fixed number of frames by folding each frame into per-pixel
+ * accumulators as soon as it arrives, so that frames do not need to be
+ * buffered.
+ *
+ * <p>Mean and sum use exact {@code long} sums; max and min keep running
+ * extrema. The median has to see all values of a pixel, so the samples are
+ * copied into a pixel-major buffer (the incoming images are not retained) and
+ * the median of each pixel is found with a sorting network, which for small
+ * numbers of frames is considerably faster than a general-purpose sort.
+ *
+ * <p>Large frames are split into bands of rows that are processed in
+ * parallel. Instances are not thread-safe.
+ */
+final class StreamingCombiner {
+   // Below this, the overhead of parallel processing outweighs the benefit
+   private static final int MIN_PIXELS_PER_BAND = 32 * 1024;
+   // Above this, sorting networks get too long to be worthwhile
+   private static final int MAX_NETWORK_SIZE = 64;
+
+   private final String algo_;
+   private final int numberOfFrames_;
+   private final int width_;
+   private final int nPixels_;
+   private final int bytesPerPixel_;
+   private final int maxValue_;
+   private final int[] bandStarts_;
+
+   private long[] sums_;
+   private int[] extrema_;
+   private char[] samples_; // [pixel * numberOfFrames_ + frame]
+   private final int[] network_; // Pairs of indices to compare-and-swap
+   private int frameCount_ = 0;
+
+   /**
+    * Whether the given algorithm can be computed by this class.
+    */
+   static boolean supports(String algo) {
+      return algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)
+            || algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)
+            || algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)
+            || algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)
+            || algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN);
+   }
+
+   /**
+    * Whether images of the given type can be combined by this class, i.e.
+    * whether they are 8- or 16-bit grayscale.
+    */
+   static boolean supportsPixelType(int bytesPerPixel, int numComponents) {
+      return numComponents == 1 && (bytesPerPixel == 1 || bytesPerPixel == 2);
+   }
+
+   StreamingCombiner(String algo, int numberOfFrames, int width, int height,
+                     int bytesPerPixel) {
+      if (!supports(algo)) {
+         throw new IllegalArgumentException("Unsupported algorithm: " + algo);
+      }
+      if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+         throw new IllegalArgumentException("Unsupported bytes per pixel: "
+               + bytesPerPixel);
+      }
+      algo_ = algo;
+      numberOfFrames_ = numberOfFrames;
+      width_ = width;
+      nPixels_ = width * height;
+      bytesPerPixel_ = bytesPerPixel;
+      maxValue_ = bytesPerPixel == 1 ? 0xff : 0xffff;
+
+      int nBands = Math.max(1, Math.min(height, Math.min(
+            Runtime.getRuntime().availableProcessors(),
+            nPixels_ / MIN_PIXELS_PER_BAND)));
+      bandStarts_ = new int[nBands + 1];
+      for (int b = 0; b <= nBands; b++) {
+         bandStarts_[b] = (int) ((long) height * b / nBands) * width;
+      }
+
+      boolean median = algo.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN);
+      network_ = median && numberOfFrames <= MAX_NETWORK_SIZE
+            ? sortingNetwork(numberOfFrames) : null;
+      reset();
+   }
+
+   int getWidth() {
+      return width_;
+   }
+
+   int getHeight() {
+      return nPixels_ / width_;
+   }
+
+   int getBytesPerPixel() {
+      return bytesPerPixel_;
+   }
+
+   /**
+    * Fold a frame into the accumulators.
+    *
+    * @param pixels {@code byte[]} or {@code short[]} matching the bytes per
+    *               pixel given at construction
+    * @return true if this was the last frame of the combination, in which
+    *     case the result can be obtained with {@link #getResultAndReset()}
+    */
+   boolean add(final Object pixels) {
+      if (frameCount_ >= numberOfFrames_) {
+         throw new IllegalStateException("Combination is already complete");
+      }
+      if (bytesPerPixel_ == 1 ? !(pixels instanceof byte[])
+            : !(pixels instanceof short[])) {
+         throw new IllegalArgumentException("Unexpected pixel type");
+      }
+      final int frame = frameCount_;
+      forEachBand((start, end) -> fold(pixels, frame, start, end));
+      return ++frameCount_ == numberOfFrames_;
+   }
+
+   /**
+    * Return the combined pixels and prepare for the next combination.
+    *
+    * @return {@code byte[]} or {@code short[]}
+    */
+   Object getResultAndReset() {
+      if (frameCount_ != numberOfFrames_) {
+         throw new IllegalStateException("Combination is not complete");
+      }
+      final Object result = bytesPerPixel_ == 1
+            ? new byte[nPixels_] : new short[nPixels_];
+      forEachBand((start, end) -> finish(result, start, end));
+      reset();
+      return result;
+   }
+
+   private void reset() {
+      frameCount_ = 0;
+      if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)
+            || algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)) {
+         if (sums_ == null) {
+            sums_ = new long[nPixels_];
+         } else {
+            Arrays.fill(sums_, 0L);
+         }
+      } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)) {
+         if (extrema_ == null) {
+            extrema_ = new int[nPixels_];
+         } else {
+            Arrays.fill(extrema_, 0);
+         }
+      } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
+         if (extrema_ == null) {
+            extrema_ = new int[nPixels_];
+         }
+         Arrays.fill(extrema_, maxValue_);
+      } else if (samples_ == null) {
+         if ((long) nPixels_ * numberOfFrames_ > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(
+                  "Too many frames to compute the median of images of this size");
+         }
+         samples_ = new char[nPixels_ * numberOfFrames_];
+      }
+   }
+
+   private interface BandAction {
+      void run(int start, int end);
+   }
+
+   private void forEachBand(BandAction action) {
+      if (bandStarts_.length == 2) {
+         action.run(0, nPixels_);
+         return;
+      }
+      IntStream.range(0, bandStarts_.length - 1).parallel().forEach(b ->
+            action.run(bandStarts_[b], bandStarts_[b + 1]));
+   }
+
+   private void fold(Object pixels, int frame, int start, int end) {
+      if (pixels instanceof byte[]) {
+         byte[] in = (byte[]) pixels;
+         if (sums_ != null) {
+            for (int i = start; i < end; i++) {
+               sums_[i] += in[i] & 0xff;
+            }
+         } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)) {
+            for (int i = start; i < end; i++) {
+               extrema_[i] = Math.max(extrema_[i], in[i] & 0xff);
+            }
+         } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
+            for (int i = start; i < end; i++) {
+               extrema_[i] = Math.min(extrema_[i], in[i] & 0xff);
+            }
+         } else {
+            for (int i = start, j = start * numberOfFrames_ + frame; i < end;
+                  i++, j += numberOfFrames_) {
+               samples_[j] = (char) (in[i] & 0xff);
+            }
+         }
+      } else {
+         short[] in = (short[]) pixels;
+         if (sums_ != null) {
+            for (int i = start; i < end; i++) {
+               sums_[i] += in[i] & 0xffff;
+            }
+         } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX)) {
+            for (int i = start; i < end; i++) {
+               extrema_[i] = Math.max(extrema_[i], in[i] & 0xffff);
+            }
+         } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
+            for (int i = start; i < end; i++) {
+               extrema_[i] = Math.min(extrema_[i], in[i] & 0xffff);
+            }
+         } else {
+            for (int i = start, j = start * numberOfFrames_ + frame; i < end;
+                  i++, j += numberOfFrames_) {
+               samples_[j] = (char) in[i];
+            }
+         }
+      }
+   }
+
+   private void finish(Object result, int start, int end) {
+      if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN)) {
+         for (int i = start; i < end; i++) {
+            store(result, i, sums_[i] / numberOfFrames_);
+         }
+      } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)) {
+         for (int i = start; i < end; i++) {
+            store(result, i, Math.min(sums_[i], maxValue_));
+         }
+      } else if (extrema_ != null) {
+         for (int i = start; i < end; i++) {
+            store(result, i, extrema_[i]);
+         }
+      } else {
+         int n = numberOfFrames_;
+         int[] values = new int[n];
+         int middle = n / 2;
+         for (int i = start; i < end; i++) {
+            int offset = i * n;
+            for (int f = 0; f < n; f++) {
+               values[f] = samples_[offset + f];
+            }
+            if (network_ != null) {
+               applyNetwork(network_, values);
+            } else {
+               Arrays.sort(values);
+            }
+            store(result, i, (n & 1) == 1 ? values[middle]
+                  : (values[middle - 1] + values[middle]) / 2);
+         }
+      }
+   }
+
+   private static void store(Object result, int i, long value) {
+      if (result instanceof byte[]) {
+         ((byte[]) result)[i] = (byte) value;
+      } else {
+         ((short[]) result)[i] = (short) value;
+      }
+   }
+
+   /**
+    * Compare-and-swap each pair of the network, leaving values sorted.
+    */
+   static void applyNetwork(int[] network, int[] values) {
+      for (int c = 0; c < network.length; c += 2) {
+         int a = values[network[c]];
+         int b = values[network[c + 1]];
+         values[network[c]] = Math.min(a, b);
+         values[network[c + 1]] = Math.max(a, b);
+      }
+   }
+
+   /**
+    * Batcher's odd-even merge sort network for n inputs (Knuth, TAOCP vol.
+    * 3, 5.3.4, algorithm M, which works for any n).
+    *
+    * @return index pairs to compare-and-swap, in order
+    */
+   static int[] sortingNetwork(int n) {
+      int[] pairs = new int[16];
+      int size = 0;
+      for (int p = 1; p < n; p <<= 1) {
+         for (int k = p; k >= 1; k >>= 1) {
+            for (int j = k % p; j + k < n; j += 2 * k) {
+               for (int i = 0; i < Math.min(k, n - j - k); i++) {
+                  if ((i + j) / (2 * p) == (i + j + k) / (2 * p)) {
+                     if (size + 2 > pairs.length) {
+                        pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                     }
+                     pairs[size++] = i + j;
+                     pairs[size++] = i + j + k;
+                  }
+               }
+            }
+         }
+      }
+      return Arrays.copyOf(pairs, size);
+   }
+}
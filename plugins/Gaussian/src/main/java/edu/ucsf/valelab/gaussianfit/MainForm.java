@@ -815,46 +815,7 @@ public class MainForm extends JFrame {
 
    private void formWindowClosing(java.awt.event.WindowEvent evt) {
       try {
-         UserProfile up = studio_.getUserProfile();
-         Class oc = MainForm.class;
-         up.setString(oc, NOISETOLERANCE, noiseToleranceTextField_.getText());
-         up.setDouble(oc, PCF,
-               NumberUtils.displayStringToDouble(photonConversionTextField_.getText()));
-         up.setDouble(oc, GAIN, NumberUtils.displayStringToDouble(emGainTextField_.getText()));
-         up.setDouble(oc, PIXELSIZE,
-               NumberUtils.displayStringToDouble(pixelSizeTextField_.getText()));
-         up.setDouble(oc, TIMEINTERVALMS,
-               NumberUtils.displayStringToDouble(timeIntervalTextField_.getText()));
-         up.setDouble(oc, ZSTEPSIZE, NumberUtils.displayStringToDouble(zStepTextField_.getText()));
-         up.setDouble(oc, BACKGROUNDLEVEL,
-               NumberUtils.displayStringToDouble(baseLevelTextField_.getText()));
-         up.setDouble(oc, READNOISE,
-               NumberUtils.displayStringToDouble(readNoiseTextField_.getText()));
-         up.setBoolean(oc, USEFILTER, filterDataCheckBoxWidth_.isSelected());
-         up.setDouble(oc, SIGMAMIN,
-               NumberUtils.displayStringToDouble(minSigmaTextField_.getText()));
-         up.setDouble(oc, SIGMAMAX,
-               NumberUtils.displayStringToDouble(maxSigmaTextField_.getText()));
-         up.setBoolean(oc, USENRPHOTONSFILTER, filterDataCheckBoxNrPhotons_.isSelected());
-         up.setDouble(oc, NRPHOTONSMIN,
-               NumberUtils.displayStringToDouble(minNrPhotonsTextField_.getText()));
-         up.setDouble(oc, NRPHOTONSMAX,
-               NumberUtils.displayStringToDouble(maxNrPhotonsTextField_.getText()));
-         up.setInt(oc, MAXITERATIONS,
-               NumberUtils.displayStringToInt(maxIterationsTextField_.getText()));
-         up.setInt(oc, BOXSIZE, NumberUtils.displayStringToInt(boxSizeTextField.getText()));
-         up.setBoolean(oc, USEFIXEDWIDTH, useFixedWidthInFit_.isSelected());
-         up.setDouble(oc, FIXEDWIDTH,
-               NumberUtils.displayStringToDouble(fixedWidthInFit_.getText()));
-         up.setInt(oc, PREFILTER, preFilterComboBox_.getSelectedIndex());
-         up.setInt(oc, FRAMEXPOS, getX());
-         up.setInt(oc, FRAMEYPOS, getY());
-         up.setBoolean(oc, ENDTRACKBOOL, endTrackCheckBox_.isSelected());
-         up.setInt(oc, ENDTRACKINT, (Integer) endTrackSpinner_.getValue());
-         up.setInt(oc, FITMODE, fitMethodComboBox1_.getSelectedIndex());
-         up.setInt(oc, FITSHAPE, fitDimensionsComboBox1_.getSelectedIndex() + 1);
-         up.setBoolean(oc, SKIPCHANNELS, skipChannelsCheckBox_.isSelected());
-         up.setString(oc, CHANNELSKIPSTRING, channelsToSkip_.getText());
+         storeSettings();
       } catch (ParseException ex) {
          ReportingUtils.logError(ex, "Error while closing Localization Microscopy plugin");
       }
@@ -866,6 +827,93 @@ public class MainForm extends JFrame {
       this.setVisible(false);
    }
 
+   /**
+    * Stores the current settings in the user profile, where they are picked
+    * up by the live localization processor.
+    */
+   private void storeSettings() throws ParseException {
+      UserProfile up = studio_.getUserProfile();
+      Class oc = MainForm.class;
+      up.setString(oc, NOISETOLERANCE, noiseToleranceTextField_.getText());
+      up.setDouble(oc, PCF,
+            NumberUtils.displayStringToDouble(photonConversionTextField_.getText()));
+      up.setDouble(oc, GAIN, NumberUtils.displayStringToDouble(emGainTextField_.getText()));
+      up.setDouble(oc, PIXELSIZE,
+            NumberUtils.displayStringToDouble(pixelSizeTextField_.getText()));
+      up.setDouble(oc, TIMEINTERVALMS,
+            NumberUtils.displayStringToDouble(timeIntervalTextField_.getText()));
+      up.setDouble(oc, ZSTEPSIZE, NumberUtils.displayStringToDouble(zStepTextField_.getText()));
+      up.setDouble(oc, BACKGROUNDLEVEL,
+            NumberUtils.displayStringToDouble(baseLevelTextField_.getText()));
+      up.setDouble(oc, READNOISE,
+            NumberUtils.displayStringToDouble(readNoiseTextField_.getText()));
+      up.setBoolean(oc, USEFILTER, filterDataCheckBoxWidth_.isSelected());
+      up.setDouble(oc, SIGMAMIN,
+            NumberUtils.displayStringToDouble(minSigmaTextField_.getText()));
+      up.setDouble(oc, SIGMAMAX,
+            NumberUtils.displayStringToDouble(maxSigmaTextField_.getText()));
+      up.setBoolean(oc, USENRPHOTONSFILTER, filterDataCheckBoxNrPhotons_.isSelected());
+      up.setDouble(oc, NRPHOTONSMIN,
+            NumberUtils.displayStringToDouble(minNrPhotonsTextField_.getText()));
+      up.setDouble(oc, NRPHOTONSMAX,
+            NumberUtils.displayStringToDouble(maxNrPhotonsTextField_.getText()));
+      up.setInt(oc, MAXITERATIONS,
+            NumberUtils.displayStringToInt(maxIterationsTextField_.getText()));
+      up.setInt(oc, BOXSIZE, NumberUtils.displayStringToInt(boxSizeTextField.getText()));
+      up.setBoolean(oc, USEFIXEDWIDTH, useFixedWidthInFit_.isSelected());
+      up.setDouble(oc, FIXEDWIDTH,
+            NumberUtils.displayStringToDouble(fixedWidthInFit_.getText()));
+      up.setInt(oc, PREFILTER, preFilterComboBox_.getSelectedIndex());
+      up.setInt(oc, FRAMEXPOS, getX());
+      up.setInt(oc, FRAMEYPOS, getY());
+      up.setBoolean(oc, ENDTRACKBOOL, endTrackCheckBox_.isSelected());
+      up.setInt(oc, ENDTRACKINT, (Integer) endTrackSpinner_.getValue());
+      up.setInt(oc, FITMODE, fitMethodComboBox1_.getSelectedIndex());
+      up.setInt(oc, FITSHAPE, fitDimensionsComboBox1_.getSelectedIndex() + 1);
+      up.setBoolean(oc, SKIPCHANNELS, skipChannelsCheckBox_.isSelected());
+      up.setString(oc, CHANNELSKIPSTRING, channelsToSkip_.getText());
+   }
+
+   /**
+    * Copies the settings last used in this window from the user profile.
+    *
+    * @param up - user profile
+    * @param tT - receives the settings
+    */
+   public static void loadSettings(UserProfile up, GaussianInfo tT) {
+      Class oc = MainForm.class;
+      tT.setNoiseTolerance(Integer.parseInt(up.getString(oc, NOISETOLERANCE, "100")));
+      tT.setPhotonConversionFactor(up.getDouble(oc, PCF, 10.41));
+      tT.setGain(up.getDouble(oc, GAIN, 50.0));
+      tT.setPixelSize(up.getDouble(oc, PIXELSIZE, 107.0).floatValue());
+      tT.setZStackStepSize(up.getDouble(oc, ZSTEPSIZE, 50.0).floatValue());
+      tT.setTimeIntervalMs(up.getDouble(oc, TIMEINTERVALMS, 1.0));
+      tT.setBaseLevel(up.getDouble(oc, BACKGROUNDLEVEL, 100.0));
+      tT.setReadNoise(up.getDouble(oc, READNOISE, 0.0));
+      tT.setUseWidthFilter(up.getBoolean(oc, USEFILTER, false));
+      tT.setSigmaMin(up.getDouble(oc, SIGMAMIN, 100.0));
+      tT.setSigmaMax(up.getDouble(oc, SIGMAMAX, 200.0));
+      tT.setUseNrPhotonsFilter(up.getBoolean(oc, USENRPHOTONSFILTER, false));
+      tT.setNrPhotonsMin(up.getDouble(oc, NRPHOTONSMIN, 500.0));
+      tT.setNrPhotonsMax(up.getDouble(oc, NRPHOTONSMAX, 50000.0));
+      tT.setMaxIterations(up.getInt(oc, MAXITERATIONS, 250));
+      tT.setHalfBoxSize(up.getInt(oc, BOXSIZE, 8) / 2);
+      tT.setShape(up.getInt(oc, FITSHAPE, 1));
+      tT.setFitMode(up.getInt(oc, FITMODE, 0) + 1);
+      tT.setUseFixedWidth(up.getBoolean(oc, USEFIXEDWIDTH, false));
+      tT.setFixedWidthNm(up.getDouble(oc, FIXEDWIDTH, 250.0));
+      tT.setEndTrackBool(up.getBoolean(oc, ENDTRACKBOOL, false));
+      tT.setEndTrackAfterNFrames(up.getInt(oc, ENDTRACKINT, 0));
+   }
+
+   /**
+    * Pre-filter last used in this window, from the user profile.
+    */
+   public static FindLocalMaxima.FilterType loadPreFilterType(UserProfile up) {
+      return up.getInt(MainForm.class, PREFILTER, 0) == 1
+            ? FindLocalMaxima.FilterType.GAUSSIAN1_5 : FindLocalMaxima.FilterType.NONE;
+   }
+
    public void formWindowOpened() {
       WINDOWOPEN = true;
    }
@@ -1170,6 +1218,7 @@ public class MainForm extends JFrame {
                JOptionPane.showMessageDialog(null, "Error channels to skip : " + ex.getMessage());
             }
          }
+         storeSettings();
       } catch (NumberFormatException ex) {
          JOptionPane.showMessageDialog(null, "Error interpreting input: " + ex.getMessage());
       } catch (ParseException ex) {
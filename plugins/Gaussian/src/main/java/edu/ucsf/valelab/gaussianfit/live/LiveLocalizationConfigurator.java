@@ -0,0 +1,140 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LiveLocalizationConfigurator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Localization Microscopy plugin
+//
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.gaussianfit.live;
+
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import net.miginfocom.swing.MigLayout;
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.internal.utils.WindowPositioning;
+import org.micromanager.propertymap.MutablePropertyMapView;
+
+class LiveLocalizationConfigurator implements ProcessorConfigurator {
+   private final Studio studio_;
+   private final MutablePropertyMapView settings_;
+
+   public LiveLocalizationConfigurator(PropertyMap settings, Studio studio) {
+      studio_ = studio;
+      settings_ = studio_.profile().getSettings(this.getClass());
+      settings_.putString(LiveLocalizationPlugin.OUTPUT_DIR,
+            settings.getString(LiveLocalizationPlugin.OUTPUT_DIR,
+                  settings_.getString(LiveLocalizationPlugin.OUTPUT_DIR,
+                        System.getProperty("user.home"))));
+      settings_.putInteger(LiveLocalizationPlugin.PREVIEW_INTERVAL,
+            settings.getInteger(LiveLocalizationPlugin.PREVIEW_INTERVAL,
+                  settings_.getInteger(LiveLocalizationPlugin.PREVIEW_INTERVAL,
+                        LiveLocalizationPlugin.DEFAULT_PREVIEW_INTERVAL)));
+      settings_.putDouble(LiveLocalizationPlugin.PREVIEW_PIXEL_SIZE,
+            settings.getDouble(LiveLocalizationPlugin.PREVIEW_PIXEL_SIZE,
+                  settings_.getDouble(LiveLocalizationPlugin.PREVIEW_PIXEL_SIZE,
+                        LiveLocalizationPlugin.DEFAULT_PREVIEW_PIXEL_SIZE)));
+   }
+
+   @Override
+   public void showGUI() {
+      JPanel panel = new JPanel(new MigLayout("fillx"));
+
+      final JTextField dirField = new JTextField(
+            settings_.getString(LiveLocalizationPlugin.OUTPUT_DIR, ""), 30);
+      dirField.getDocument().addDocumentListener(new DocumentListener() {
+         @Override
+         public void insertUpdate(DocumentEvent e) {
+            update();
+         }
+
+         @Override
+         public void removeUpdate(DocumentEvent e) {
+            update();
+         }
+
+         @Override
+         public void changedUpdate(DocumentEvent e) {
+            update();
+         }
+
+         private void update() {
+            settings_.putString(LiveLocalizationPlugin.OUTPUT_DIR, dirField.getText());
+         }
+      });
+      JButton browseButton = new JButton("...");
+      browseButton.addActionListener(e -> {
+         JFileChooser chooser = new JFileChooser(dirField.getText());
+         chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+         if (chooser.showOpenDialog(panel) == JFileChooser.APPROVE_OPTION) {
+            dirField.setText(chooser.getSelectedFile().getAbsolutePath());
+         }
+      });
+      panel.add(new JLabel("Save localizations in:"), "split 3");
+      panel.add(dirField, "growx");
+      panel.add(browseButton, "wrap");
+
+      final JSpinner intervalSpinner = new JSpinner(new SpinnerNumberModel(
+            settings_.getInteger(LiveLocalizationPlugin.PREVIEW_INTERVAL,
+                  LiveLocalizationPlugin.DEFAULT_PREVIEW_INTERVAL), 1, 100000, 10));
+      intervalSpinner.addChangeListener(e ->
+            settings_.putInteger(LiveLocalizationPlugin.PREVIEW_INTERVAL,
+                  (Integer) intervalSpinner.getValue()));
+      panel.add(new JLabel("Update preview every"), "split 3");
+      panel.add(intervalSpinner);
+      panel.add(new JLabel("frames"), "wrap");
+
+      final JSpinner pixelSizeSpinner = new JSpinner(new SpinnerNumberModel(
+            settings_.getDouble(LiveLocalizationPlugin.PREVIEW_PIXEL_SIZE,
+                  LiveLocalizationPlugin.DEFAULT_PREVIEW_PIXEL_SIZE), 1.0, 1000.0, 5.0));
+      pixelSizeSpinner.addChangeListener(e ->
+            settings_.putDouble(LiveLocalizationPlugin.PREVIEW_PIXEL_SIZE,
+                  (Double) pixelSizeSpinner.getValue()));
+      panel.add(new JLabel("Preview pixel size (nm):"), "split 2");
+      panel.add(pixelSizeSpinner, "wrap");
+
+      panel.add(new JLabel("Fit settings are taken from the Localization Microscopy window"),
+            "wrap");
+
+      JDialog dialog = new JDialog(studio_.app().getMainWindow(),
+            LiveLocalizationPlugin.MENUNAME + " Settings", false);
+      dialog.setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
+      dialog.getContentPane().add(panel);
+      dialog.pack();
+      WindowPositioning.setUpLocationMemory(dialog, this.getClass(), null);
+      dialog.setVisible(true);
+   }
+
+   @Override
+   public void cleanup() {
+   }
+
+   @Override
+   public PropertyMap getSettings() {
+      return settings_.toPropertyMap();
+   }
+}
@@ -0,0 +1,56 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LiveLocalizationFactory.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Localization Microscopy plugin
+//
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.gaussianfit.live;
+
+import edu.ucsf.valelab.gaussianfit.MainForm;
+import edu.ucsf.valelab.gaussianfit.fitmanagement.ImageLocalizer;
+import java.io.File;
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorFactory;
+
+class LiveLocalizationFactory implements ProcessorFactory {
+   private final PropertyMap settings_;
+   private final Studio studio_;
+
+   public LiveLocalizationFactory(PropertyMap settings, Studio studio) {
+      settings_ = settings;
+      studio_ = studio;
+   }
+
+   @Override
+   public Processor createProcessor() {
+      // Fit settings are the ones last used in the Localization Microscopy window
+      ImageLocalizer localizer = new ImageLocalizer(
+            MainForm.loadPreFilterType(studio_.getUserProfile()));
+      MainForm.loadSettings(studio_.getUserProfile(), localizer);
+      return new LiveLocalizationProcessor(studio_, localizer,
+            new File(settings_.getString(LiveLocalizationPlugin.OUTPUT_DIR,
+                  System.getProperty("user.home"))),
+            settings_.getInteger(LiveLocalizationPlugin.PREVIEW_INTERVAL,
+                  LiveLocalizationPlugin.DEFAULT_PREVIEW_INTERVAL),
+            settings_.getDouble(LiveLocalizationPlugin.PREVIEW_PIXEL_SIZE,
+                  LiveLocalizationPlugin.DEFAULT_PREVIEW_PIXEL_SIZE));
+   }
+}
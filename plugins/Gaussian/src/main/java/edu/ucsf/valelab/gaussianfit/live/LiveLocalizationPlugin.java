@@ -0,0 +1,85 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LiveLocalizationPlugin.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Localization Microscopy plugin
+//
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package edu.ucsf.valelab.gaussianfit.live;
+
+import org.micromanager.PropertyMap;
+import org.micromanager.Studio;
+import org.micromanager.data.ProcessorConfigurator;
+import org.micromanager.data.ProcessorFactory;
+import org.micromanager.data.ProcessorPlugin;
+import org.scijava.plugin.Plugin;
+import org.scijava.plugin.SciJavaPlugin;
+
+/**
+ * Processor plugin that finds and fits spots in images as they are acquired,
+ * using the settings of the Localization Microscopy window.
+ *
+ * @author nico
+ */
+@Plugin(type = ProcessorPlugin.class)
+public class LiveLocalizationPlugin implements ProcessorPlugin, SciJavaPlugin {
+   static final String MENUNAME = "Live Localization";
+   static final String OUTPUT_DIR = "OutputDirectory";
+   static final String PREVIEW_INTERVAL = "PreviewEveryNFrames";
+   static final String PREVIEW_PIXEL_SIZE = "PreviewPixelSizeNm";
+   static final int DEFAULT_PREVIEW_INTERVAL = 100;
+   static final double DEFAULT_PREVIEW_PIXEL_SIZE = 20.0;
+
+   private Studio studio_;
+
+   @Override
+   public void setContext(Studio studio) {
+      studio_ = studio;
+   }
+
+   @Override
+   public ProcessorConfigurator createConfigurator(PropertyMap settings) {
+      return new LiveLocalizationConfigurator(settings, studio_);
+   }
+
+   @Override
+   public ProcessorFactory createFactory(PropertyMap settings) {
+      return new LiveLocalizationFactory(settings, studio_);
+   }
+
+   @Override
+   public String getName() {
+      return MENUNAME;
+   }
+
+   @Override
+   public String getHelpText() {
+      return "Finds and fits spots while images are acquired, writes the localizations "
+            + "to a text file, and shows a preview of the super-resolution image.";
+   }
+
+   @Override
+   public String getVersion() {
+      return "Version 0.1-beta";
+   }
+
+   @Override
+   public String getCopyright() {
+      return "Regents of the University of California, 2020";
+   }
+}
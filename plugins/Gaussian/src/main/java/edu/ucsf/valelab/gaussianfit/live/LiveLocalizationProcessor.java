@@ -0,0 +1,202 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LiveLocalizationProcessor.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Localization Microscopy plugin
+//
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package edu.ucsf.valelab.gaussianfit.live;
+
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotTable;
+import edu.ucsf.valelab.gaussianfit.data.SpotTextWriter;
+import edu.ucsf.valelab.gaussianfit.fitmanagement.ImageLocalizer;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * Passes images on unchanged, and finds and fits the spots in them on a
+ * separate thread, so that the acquisition is not held up by the analysis.
+ * Localizations are appended to a text file in the output directory, and
+ * shown in a preview that is updated every so many images. When the
+ * acquisition ends, the localizations are added to the Localization
+ * Microscopy data window.
+ *
+ * <p>When the analysis falls behind by more than MAX_QUEUED_IMAGES, the
+ * pipeline waits until it catches up, to bound the memory used by images
+ * waiting for analysis.
+ *
+ * @author nico
+ */
+class LiveLocalizationProcessor implements Processor {
+   private static final int MAX_QUEUED_IMAGES = 64;
+
+   private final Studio studio_;
+   private final ImageLocalizer localizer_;
+   private final File outputDir_;
+   private final int previewInterval_;
+   private final double previewPixelSize_;
+   private final ExecutorService executor_;
+   private final Semaphore queued_ = new Semaphore(MAX_QUEUED_IMAGES);
+
+   // only used on the executor thread
+   private RowData.Builder header_;
+   private SpotTextWriter writer_;
+   private SpotTable table_;
+   private LocalizationPreview preview_;
+   private int nrImages_ = 0;
+   private boolean failed_ = false;
+
+   LiveLocalizationProcessor(Studio studio, ImageLocalizer localizer, File outputDir,
+                             int previewInterval, double previewPixelSize) {
+      studio_ = studio;
+      localizer_ = localizer;
+      outputDir_ = outputDir;
+      previewInterval_ = Math.max(1, previewInterval);
+      previewPixelSize_ = previewPixelSize;
+      executor_ = Executors.newSingleThreadExecutor(r -> new Thread(r, "Live Localization"));
+   }
+
+   @Override
+   public void processImage(Image image, ProcessorContext context) {
+      context.outputImage(image);
+      if (image.getNumComponents() != 1) {
+         return;
+      }
+      final ImageProcessor ip = studio_.data().ij().createProcessor(image);
+      final Coords coords = image.getCoords();
+      final SummaryMetadata summary = context.getSummaryMetadata();
+      try {
+         queued_.acquire();
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         return;
+      }
+      executor_.execute(() -> {
+         try {
+            analyze(ip, coords, summary);
+         } finally {
+            queued_.release();
+         }
+      });
+   }
+
+   private void analyze(ImageProcessor ip, Coords coords, SummaryMetadata summary) {
+      if (failed_) {
+         return;
+      }
+      try {
+         if (writer_ == null) {
+            start(ip, summary);
+         }
+         for (SpotData spot : localizer_.localize(ip, coords.getC() + 1, coords.getZ() + 1,
+               coords.getT() + 1, coords.getP() + 1)) {
+            table_.add(spot);
+            writer_.write(spot);
+            preview_.add(spot);
+         }
+         nrImages_++;
+         if (nrImages_ % previewInterval_ == 0) {
+            writer_.flush();
+            preview_.update();
+         }
+      } catch (IOException ioe) {
+         failed_ = true;
+         studio_.alerts().postAlert(LiveLocalizationPlugin.MENUNAME, this.getClass(),
+               "Failed to write localizations: " + ioe.getMessage());
+         ReportingUtils.logError(ioe, "Live Localization");
+      }
+   }
+
+   private void start(ImageProcessor ip, SummaryMetadata summary) throws IOException {
+      String prefix = summary.getPrefix();
+      if (prefix == null || prefix.isEmpty()) {
+         prefix = "Live";
+      }
+      Coords dims = summary.getIntendedDimensions();
+      header_ = new RowData.Builder();
+      header_.setName(prefix).setTitle(prefix)
+            .setWidth(ip.getWidth()).setHeight(ip.getHeight())
+            .setPixelSizeNm(localizer_.getPixelSize())
+            .setShape(localizer_.getShape()).setHalfSize(localizer_.getHalfBoxSize())
+            .setNrChannels(Math.max(1, dims.getC())).setNrFrames(Math.max(1, dims.getT()))
+            .setNrSlices(Math.max(1, dims.getZ())).setNrPositions(Math.max(1, dims.getP()))
+            .setIsTrack(false)
+            .setCoordinate(DataCollectionForm.Coordinates.NM)
+            .setHasZ(DataCollectionForm.zc_.hasFitFunctions())
+            .setSpotList(new ArrayList<SpotData>());
+
+      if (!outputDir_.isDirectory() && !outputDir_.mkdirs()) {
+         throw new IOException("Can not create directory " + outputDir_.getAbsolutePath());
+      }
+      File file = new File(outputDir_, prefix + "_localizations.txt");
+      for (int i = 1; file.exists(); i++) {
+         file = new File(outputDir_, prefix + "_localizations_" + i + ".txt");
+      }
+      writer_ = new SpotTextWriter(new OutputStreamWriter(new FileOutputStream(file),
+            StandardCharsets.UTF_8), header_.build());
+      table_ = new SpotTable();
+      preview_ = new LocalizationPreview(prefix + " localizations",
+            ip.getWidth() * localizer_.getPixelSize(),
+            ip.getHeight() * localizer_.getPixelSize(), previewPixelSize_);
+   }
+
+   @Override
+   public void cleanup(ProcessorContext context) {
+      executor_.shutdown();
+      try {
+         while (!executor_.awaitTermination(1, TimeUnit.SECONDS)) {
+            ReportingUtils.logMessage("Live Localization: waiting for analysis to finish");
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      }
+      if (writer_ == null) {
+         return;
+      }
+      try {
+         writer_.close();
+      } catch (IOException ioe) {
+         ReportingUtils.logError(ioe, "Live Localization: failed to close output file");
+      }
+      preview_.update();
+      if (table_.size() > 0) {
+         header_.setMaxNrSpots(table_.size()).setSpotTable(table_);
+         DataCollectionForm.getInstance().addSpotData(header_);
+      }
+   }
+}
@@ -0,0 +1,92 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LocalizationPreview.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Localization Microscopy plugin
+//
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package edu.ucsf.valelab.gaussianfit.live;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import javax.swing.SwingUtilities;
+
+/**
+ * Histogram of the localizations found so far, shown as an ImageJ image that
+ * is updated while the acquisition is running.
+ *
+ * <p>add() and update() should be called from the same thread.
+ *
+ * @author nico
+ */
+final class LocalizationPreview {
+   // keeps the preview to a reasonable size for large fields of view
+   private static final int MAX_SIZE = 2048;
+
+   private final String title_;
+   private final double binSizeNm_;
+   private final int width_;
+   private final int height_;
+   private final float[] histogram_;
+   private ImagePlus imp_;
+
+   /**
+    * @param title        - title of the preview window
+    * @param widthNm      - width of the field of view in nm
+    * @param heightNm     - height of the field of view in nm
+    * @param pixelSizeNm  - requested size of the preview pixels in nm. Will be
+    *                     enlarged when the preview would become too large
+    */
+   LocalizationPreview(String title, double widthNm, double heightNm, double pixelSizeNm) {
+      title_ = title;
+      binSizeNm_ = Math.max(pixelSizeNm, Math.max(widthNm, heightNm) / MAX_SIZE);
+      width_ = Math.max(1, (int) Math.ceil(widthNm / binSizeNm_));
+      height_ = Math.max(1, (int) Math.ceil(heightNm / binSizeNm_));
+      histogram_ = new float[width_ * height_];
+   }
+
+   void add(SpotData spot) {
+      int x = (int) (spot.getXCenter() / binSizeNm_);
+      int y = (int) (spot.getYCenter() / binSizeNm_);
+      if (x >= 0 && x < width_ && y >= 0 && y < height_) {
+         histogram_[y * width_ + x] += 1.0f;
+      }
+   }
+
+   /**
+    * Shows the localizations added so far.
+    */
+   void update() {
+      final float[] snapshot = histogram_.clone();
+      SwingUtilities.invokeLater(new Runnable() {
+         @Override
+         public void run() {
+            if (imp_ == null || imp_.getWindow() == null) {
+               imp_ = new ImagePlus(title_, new FloatProcessor(width_, height_, snapshot));
+               imp_.show();
+            } else {
+               imp_.getProcessor().setPixels(snapshot);
+               imp_.getProcessor().resetMinAndMax();
+               imp_.updateAndDraw();
+            }
+         }
+      });
+   }
+}
@@ -0,0 +1,189 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import com.google.protobuf.ExtensionRegistry;
+import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
+import edu.ucsf.valelab.tsf.MMLocM;
+import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the hand-written protocol buffer encoder (SpotTSFWriter) and decoder
+ * (SpotFileReader) against TaggedSpotsProtos.
+ *
+ * @author nico
+ */
+public class TestSpotFileReader {
+   private static final int NR_SPOTS = 2000;
+
+   private File file_;
+   private List<SpotData> spots_;
+
+   @Before
+   public void setUp() throws IOException {
+      file_ = File.createTempFile("spots", ".tsf");
+      Random random = new Random(42);
+      spots_ = new ArrayList<SpotData>();
+      for (int i = 0; i < NR_SPOTS; i++) {
+         // negative and large values exercise 10 byte and multi-byte varints
+         SpotData spot = new SpotData(null, random.nextInt(3) - 1, random.nextInt(5),
+               random.nextInt(100000), random.nextInt(3), i, random.nextInt(2048),
+               random.nextInt(2048));
+         spot.setData(random.nextDouble() * 5000, random.nextDouble() * 100,
+               random.nextDouble() * 100000, random.nextDouble() * 100000, 0.0,
+               random.nextDouble() * 500, random.nextDouble() * 2, random.nextGaussian(),
+               random.nextDouble() * 20);
+         spot.setZCenter(random.nextGaussian() * 300);
+         spot.addKeyValue(SpotData.Keys.APERTUREINTENSITY, random.nextDouble() * 5000);
+         spot.addKeyValue(SpotData.Keys.APERTUREBACKGROUND, random.nextDouble() * 100);
+         spot.addKeyValue(SpotData.Keys.INTENSITYRATIO, random.nextDouble());
+         spot.addKeyValue(SpotData.Keys.MSIGMA, random.nextDouble() * 200);
+         if (i % 2 == 0) {
+            spot.addKeyValue(SpotData.Keys.INTEGRALAPERTURESIGMA, random.nextDouble() * 200);
+         }
+         spots_.add(spot);
+      }
+   }
+
+   @After
+   public void tearDown() {
+      file_.delete();
+   }
+
+   private RowData header() {
+      return new RowData.Builder().setName("spots").setTitle("spots")
+            .setWidth(2048).setHeight(2048).setPixelSizeNm(107.0f).setShape(3)
+            .setHalfSize(4).setNrChannels(3).setNrFrames(100000).setNrSlices(5)
+            .setNrPositions(3).setSpotList(new ArrayList<SpotData>())
+            .setCoordinate(DataCollectionForm.Coordinates.NM).setHasZ(true).build();
+   }
+
+   private static TaggedSpotsProtos.Spot toProto(SpotData gd, int nr) {
+      return TaggedSpotsProtos.Spot.newBuilder()
+            .setMolecule(nr)
+            .setFrame(gd.getFrame())
+            .setChannel(gd.getChannel())
+            .setPos(gd.getPosition())
+            .setSlice(gd.getSlice())
+            .setX((float) gd.getXCenter())
+            .setY((float) gd.getYCenter())
+            .setZ((float) gd.getZCenter())
+            .setIntensity((float) gd.getIntensity())
+            .setBackground((float) gd.getBackground())
+            .setXPosition(gd.getX())
+            .setYPosition(gd.getY())
+            .setWidth((float) gd.getWidth())
+            .setA((float) gd.getA())
+            .setTheta((float) gd.getTheta())
+            .setXPrecision((float) gd.getSigma())
+            .setExtension(MMLocM.intensityAperture,
+                  gd.getValue(SpotData.Keys.APERTUREINTENSITY, -1.0).floatValue())
+            .setExtension(MMLocM.intensityBackground,
+                  gd.getValue(SpotData.Keys.APERTUREBACKGROUND, -1.0).floatValue())
+            .setExtension(MMLocM.intensityRatio,
+                  gd.getValue(SpotData.Keys.INTENSITYRATIO, -1.0).floatValue())
+            .setExtension(MMLocM.mSigma,
+                  gd.getValue(SpotData.Keys.MSIGMA, -1.0).floatValue())
+            .setExtension(MMLocM.integralApertureSigma,
+                  gd.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA, -1.0).floatValue())
+            .build();
+   }
+
+   @Test
+   public void testWriterMatchesProtobuf() throws IOException {
+      try (SpotTSFWriter writer = new SpotTSFWriter(file_, header())) {
+         for (SpotData spot : spots_) {
+            writer.write(spot);
+         }
+      }
+
+      ExtensionRegistry registry = ExtensionRegistry.newInstance();
+      MMLocM.registerAllExtensions(registry);
+      try (InputStream in = new BufferedInputStream(new FileInputStream(file_))) {
+         Assert.assertEquals(12, in.skip(12));
+         for (int i = 0; i < NR_SPOTS; i++) {
+            TaggedSpotsProtos.Spot spot = TaggedSpotsProtos.Spot.parseDelimitedFrom(in, registry);
+            Assert.assertEquals(toProto(spots_.get(i), i), spot);
+         }
+         TaggedSpotsProtos.SpotList spotList = TaggedSpotsProtos.SpotList.parseDelimitedFrom(in);
+         Assert.assertEquals(NR_SPOTS, spotList.getNrSpots());
+         Assert.assertEquals("spots", spotList.getName());
+         Assert.assertEquals(TaggedSpotsProtos.FitMode.TWOAXISANDTHETA, spotList.getFitMode());
+         Assert.assertEquals(-1, in.read());
+      }
+   }
+
+   @Test
+   public void testReaderMatchesProtobuf() throws IOException {
+      // written the way saveData did before it used SpotTSFWriter
+      try (FileOutputStream fo = new FileOutputStream(file_)) {
+         fo.write(new byte[12]);
+         for (int i = 0; i < NR_SPOTS; i++) {
+            toProto(spots_.get(i), i).writeDelimitedTo(fo);
+         }
+         FileChannel fc = fo.getChannel();
+         long offset = fc.position();
+         TaggedSpotsProtos.SpotList.newBuilder().setApplicationId(LoadAndSave.MMAPPID)
+               .setName("spots").setNrPixelsX(2048).setNrPixelsY(2048)
+               .setFitMode(TaggedSpotsProtos.FitMode.TWOAXIS).setNrSpots(NR_SPOTS)
+               .build().writeDelimitedTo(fo);
+         fc.position(4);
+         DataOutputStream dos = new DataOutputStream(fo);
+         dos.writeLong(offset - 12);
+         dos.flush();
+      }
+
+      RowData.Builder builder;
+      try (SpotFileReader reader = new SpotFileReader(file_)) {
+         builder = reader.readTSF();
+         Assert.assertEquals(0, reader.getNrSpotsWithErrors());
+      }
+      // the reader does not keep the file open or mapped
+      Assert.assertTrue(file_.delete());
+
+      RowData rowData = builder.build();
+      Assert.assertEquals("spots", rowData.getName());
+      Assert.assertEquals(2, rowData.shape_);
+      Assert.assertTrue(rowData.hasZ_);
+      SpotTable table = rowData.getSpotTable();
+      Assert.assertEquals(NR_SPOTS, table.size());
+      for (int i = 0; i < NR_SPOTS; i++) {
+         TaggedSpotsProtos.Spot expected = toProto(spots_.get(i), i);
+         Assert.assertEquals(i, table.getNr(i));
+         Assert.assertEquals(expected.getFrame(), table.getFrame(i));
+         Assert.assertEquals(expected.getChannel(), table.getChannel(i));
+         Assert.assertEquals(expected.getSlice(), table.getSlice(i));
+         Assert.assertEquals(expected.getPos(), table.getPosition(i));
+         Assert.assertEquals(expected.getXPosition(), table.getX(i));
+         Assert.assertEquals(expected.getYPosition(), table.getY(i));
+         Assert.assertEquals(expected.getX(), table.getXCenter(i), 0.0);
+         Assert.assertEquals(expected.getY(), table.getYCenter(i), 0.0);
+         Assert.assertEquals(expected.getZ(), table.getZCenter(i), 0.0);
+         Assert.assertEquals(expected.getIntensity(), table.getIntensity(i), 0.0);
+         Assert.assertEquals(expected.getBackground(), table.getBackground(i), 0.0);
+         Assert.assertEquals(expected.getWidth(), table.getWidth(i), 0.0);
+         Assert.assertEquals(expected.getA(), table.getA(i), 0.0);
+         Assert.assertEquals(expected.getTheta(), table.getTheta(i), 0.0);
+         Assert.assertEquals(expected.getXPrecision(), table.getSigma(i), 0.0);
+         Assert.assertEquals(expected.getExtension(MMLocM.intensityAperture),
+               table.getValue(SpotData.Keys.APERTUREINTENSITY, i), 0.0);
+         Assert.assertEquals(expected.getExtension(MMLocM.mSigma),
+               table.getValue(SpotData.Keys.MSIGMA, i), 0.0);
+         Assert.assertEquals(expected.getExtension(MMLocM.integralApertureSigma),
+               table.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA, i), 0.0);
+      }
+   }
+}
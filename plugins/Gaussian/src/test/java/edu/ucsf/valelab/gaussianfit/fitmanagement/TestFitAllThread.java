@@ -0,0 +1,62 @@
+package edu.ucsf.valelab.gaussianfit.fitmanagement;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author nico
+ */
+public class TestFitAllThread {
+
+   private static BlockingQueue<SpotBatch> fullQueue() {
+      BlockingQueue<SpotBatch> batches =
+            new LinkedBlockingQueue<SpotBatch>(FitAllThread.MAX_QUEUED_BATCHES);
+      while (batches.remainingCapacity() > 0) {
+         batches.add(new SpotBatch(1, 1, 1, 1, 8, 1));
+      }
+      return batches;
+   }
+
+   @Test
+   public void testStopWhileQueueIsFull() throws InterruptedException {
+      // Nobody takes batches from the queue, as the fitting threads quit on stop
+      final BlockingQueue<SpotBatch> batches = fullQueue();
+      final AtomicBoolean running = new AtomicBoolean(true);
+      final AtomicBoolean queued = new AtomicBoolean(true);
+      Thread producer = new Thread(() -> {
+         queued.set(FitAllThread.enqueue(batches, new SpotBatch(1, 1, 2, 1, 8, 1),
+               running::get));
+         FitAllThread.signalEnd(batches, running::get);
+      });
+      producer.start();
+      producer.join(500);
+      Assert.assertTrue("Producer should wait for room while running", producer.isAlive());
+
+      running.set(false);
+      producer.join(5000);
+      Assert.assertFalse("Producer should give up once stopped", producer.isAlive());
+      Assert.assertFalse(queued.get());
+      Assert.assertEquals(1, batches.size());
+      Assert.assertSame(SpotBatch.END, batches.peek());
+   }
+
+   @Test
+   public void testEndWaitsForRoomWhileRunning() throws InterruptedException {
+      final BlockingQueue<SpotBatch> batches = fullQueue();
+      Thread producer = new Thread(() -> FitAllThread.signalEnd(batches, () -> true));
+      producer.start();
+      producer.join(500);
+      Assert.assertTrue(producer.isAlive());
+
+      // A fitting thread takes a batch
+      batches.take();
+      producer.join(5000);
+      Assert.assertFalse(producer.isAlive());
+      Assert.assertEquals(FitAllThread.MAX_QUEUED_BATCHES, batches.size());
+      Assert.assertEquals(FitAllThread.MAX_QUEUED_BATCHES - 1,
+            batches.stream().filter(b -> b != SpotBatch.END).count());
+   }
+}
@@ -0,0 +1,72 @@
+package edu.ucsf.valelab.gaussianfit.fitting;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author nico
+ */
+public class TestP2DBootstrap {
+   private static final int NR_POINTS = 500;
+   private static final int NR_RUNS = 400;
+
+   private static double mean(double[] data) {
+      double sum = 0.0;
+      for (double d : data) {
+         sum += d;
+      }
+      return sum / data.length;
+   }
+
+   private static double[] data() {
+      Random random = new Random(3);
+      double[] data = new double[NR_POINTS];
+      for (int i = 0; i < NR_POINTS; i++) {
+         data[i] = 30.0 + 10.0 * random.nextGaussian();
+      }
+      return data;
+   }
+
+   @Test
+   public void testSameSeedGivesSameResult() {
+      final double[] data = data();
+      P2DBootstrap.Estimator estimator =
+            sample -> new double[] {mean(P2DBootstrap.resample(data, sample))};
+      P2DBootstrap.Result first = P2DBootstrap.run(NR_POINTS, estimator, NR_RUNS, 10, 0.95, 42);
+      P2DBootstrap.Result second = P2DBootstrap.run(NR_POINTS, estimator, NR_RUNS, 10, 0.95, 42);
+      Assert.assertEquals(NR_RUNS, first.getNrFits());
+      Assert.assertEquals(0, first.getNrFailures());
+      Assert.assertArrayEquals(first.getValues(0), second.getValues(0), 0.0);
+      Assert.assertEquals(first.getLowerBound(0), second.getLowerBound(0), 0.0);
+      Assert.assertEquals(first.getUpperBound(0), second.getUpperBound(0), 0.0);
+
+      // the spread of the mean of the resamples is the standard error of the mean
+      double mean = mean(data);
+      double sumSq = 0.0;
+      for (double d : data) {
+         sumSq += (d - mean) * (d - mean);
+      }
+      double standardError = Math.sqrt(sumSq / (NR_POINTS - 1) / NR_POINTS);
+      Assert.assertEquals(mean, first.getMean(0), standardError / 2.0);
+      Assert.assertEquals(standardError, first.getStdDev(0), standardError * 0.2);
+      Assert.assertTrue(first.getLowerBound(0) < mean && mean < first.getUpperBound(0));
+   }
+
+   @Test
+   public void testFailedFitsAreCounted() {
+      final double[] data = data();
+      P2DBootstrap.Estimator estimator = sample -> {
+         if (sample[0] % 4 == 0) {
+            throw new FittingException("Failed");
+         }
+         return new double[] {mean(P2DBootstrap.resample(data, sample))};
+      };
+      P2DBootstrap.Result result = P2DBootstrap.run(NR_POINTS, estimator, NR_RUNS,
+            NR_RUNS, 0.95, 7);
+      Assert.assertTrue(result.getNrFailures() > 0);
+      Assert.assertEquals(NR_RUNS, result.getNrFits() + result.getNrFailures());
+      Assert.assertEquals(result.getNrFailures(), P2DBootstrap.run(NR_POINTS, estimator,
+            NR_RUNS, NR_RUNS, 0.95, 7).getNrFailures());
+   }
+}
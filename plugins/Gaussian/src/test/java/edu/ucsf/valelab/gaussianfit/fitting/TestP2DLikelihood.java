@@ -0,0 +1,52 @@
+package edu.ucsf.valelab.gaussianfit.fitting;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author nico
+ */
+public class TestP2DLikelihood {
+   private static final int NR_POINTS = 2000;
+
+   private final double[] distances_ = new double[NR_POINTS];
+   private final double[] sigmas_ = new double[NR_POINTS];
+
+   public TestP2DLikelihood() {
+      Random random = new Random(1);
+      for (int i = 0; i < NR_POINTS; i++) {
+         double dx = 30.0 + random.nextGaussian() * 12.0;
+         double dy = random.nextGaussian() * 12.0;
+         distances_[i] = Math.hypot(dx, dy);
+         sigmas_[i] = 10.0 + 4.0 * random.nextDouble();
+      }
+      // outliers, for which P2DFunctions clamps the density
+      distances_[0] = 1500.0;
+      distances_[1] = 4000.0;
+   }
+
+   @Test
+   public void testMatchesSumOfLogP2D() {
+      P2DLikelihood likelihood = new P2DLikelihood(distances_, null);
+      P2DLikelihood individual = new P2DLikelihood(distances_, sigmas_);
+      double[][] parameters = {{30.0, 12.0}, {5.0, 12.0}, {0.5, 20.0}, {60.0, 8.0}};
+      for (double[] p : parameters) {
+         double expected = 0.0;
+         double expectedIndividual = 0.0;
+         double expectedApproximation = 0.0;
+         for (int i = 0; i < NR_POINTS; i++) {
+            expected += Math.log(P2DFunctions.p2d(distances_[i], p[0], p[1]));
+            expectedIndividual += Math.log(P2DFunctions.p2d(distances_[i], p[0], sigmas_[i]));
+            expectedApproximation += Math.log(
+                  P2DFunctions.p2dApproximation(distances_[i], p[0], sigmas_[i]));
+         }
+         Assert.assertEquals(expected, likelihood.logLikelihood(p[0], p[1]),
+               1e-9 * Math.abs(expected));
+         Assert.assertEquals(expectedIndividual, individual.logLikelihood(p[0], false),
+               1e-9 * Math.abs(expectedIndividual));
+         Assert.assertEquals(expectedApproximation, individual.logLikelihood(p[0], true),
+               1e-9 * Math.abs(expectedApproximation));
+      }
+   }
+}
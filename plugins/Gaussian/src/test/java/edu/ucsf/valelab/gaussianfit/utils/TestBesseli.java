@@ -0,0 +1,29 @@
+package edu.ucsf.valelab.gaussianfit.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author nico
+ */
+public class TestBesseli {
+
+   @Test
+   public void testLogBessi0MatchesLogOfBessi0() {
+      // covers both the polynomial (|x| < 3.75) and the asymptotic branch
+      for (double x = -700.0; x <= 700.0; x += 0.05) {
+         double expected = Math.log(Besseli.bessi0(x));
+         Assert.assertEquals("x = " + x, expected, Besseli.logBessi0(x),
+               1e-12 * Math.max(1.0, Math.abs(expected)));
+      }
+   }
+
+   @Test
+   public void testLogBessi0DoesNotOverflow() {
+      Assert.assertTrue(Double.isInfinite(Besseli.bessi0(1000.0)));
+      double logI0 = Besseli.logBessi0(1000.0);
+      Assert.assertFalse(Double.isInfinite(logI0));
+      // I0(x) ~ exp(x) / sqrt(2 pi x)
+      Assert.assertEquals(1000.0 - 0.5 * Math.log(2.0 * Math.PI * 1000.0), logI0, 1e-3);
+   }
+}
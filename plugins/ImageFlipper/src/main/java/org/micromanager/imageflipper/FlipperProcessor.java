@@ -20,7 +20,7 @@
 
 package org.micromanager.imageflipper;
 
-import ij.process.ImageProcessor;
+import java.lang.reflect.Array;
 import org.micromanager.PropertyMap;
 import org.micromanager.PropertyMaps;
 import org.micromanager.Studio;
@@ -29,6 +29,7 @@ import org.micromanager.data.Metadata;
 import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.imageprocessing.PixelKernels;
 
 
 public class FlipperProcessor implements Processor {
@@ -111,21 +112,6 @@ public class FlipperProcessor implements Processor {
    public static Image transformImage(Studio studio, Image image,
                                       boolean isMirrored, int rotation) {
 
-      ImageProcessor proc = studio.data().ij().createProcessor(image);
-
-      if (isMirrored) {
-         proc.flipHorizontal();
-      }
-      if (rotation == R90) {
-         proc = proc.rotateRight();
-      }
-      if (rotation == R180) {
-         proc = proc.rotateRight();
-         proc = proc.rotateRight();
-      }
-      if (rotation == R270) {
-         proc = proc.rotateLeft();
-      }
       // Insert some metadata to indicate what we did to the image.
       PropertyMap.Builder builder;
       PropertyMap userData = image.getMetadata().getUserData();
@@ -138,7 +124,21 @@ public class FlipperProcessor implements Processor {
       builder.putString("ImageFlipper-Mirror", isMirrored ? "On" : "Off");
       Metadata newMetadata =
             image.getMetadata().copyBuilderPreservingUUID().userData(builder.build()).build();
-      Image result = studio.data().ij().createImage(proc, image.getCoords(),
+      if (!isMirrored && rotation == R0) {
+         return image.copyWithMetadata(newMetadata);
+      }
+      // Mirror and rotate in a single pass, straight into the new pixel array
+      Object pixels = image.getRawPixels();
+      int width = image.getWidth();
+      int height = image.getHeight();
+      Object newPixels = PixelKernels.newBufferLike(pixels, Array.getLength(pixels));
+      PixelKernels.transform(pixels, width, height,
+            PixelKernels.elementsPerPixel(pixels, width, height),
+            isMirrored, rotation, newPixels);
+      boolean swapAxes = rotation == R90 || rotation == R270;
+      Image result = studio.data().createImage(newPixels,
+            swapAxes ? height : width, swapAxes ? width : height,
+            image.getBytesPerPixel(), image.getNumComponents(), image.getCoords(),
             newMetadata);
       return result;
    }
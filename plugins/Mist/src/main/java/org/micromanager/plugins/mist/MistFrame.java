@@ -21,9 +21,6 @@
 package org.micromanager.plugins.mist;
 
 import com.google.common.eventbus.Subscribe;
-import ij.IJ;
-import ij.ImagePlus;
-import ij.process.ImageProcessor;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Insets;
@@ -35,6 +32,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -61,10 +59,11 @@ import org.micromanager.data.Coords;
 import org.micromanager.data.DataProvider;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
-import org.micromanager.data.internal.DefaultImageJConverter;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DisplayWindow;
 import org.micromanager.display.internal.event.DataViewerWillCloseEvent;
+import org.micromanager.imageprocessing.PixelKernels;
+import org.micromanager.imageprocessing.TileCompositor;
 import org.micromanager.internal.utils.FileDialogs;
 import org.micromanager.internal.utils.WindowPositioning;
 import org.micromanager.propertymap.MutablePropertyMapView;
@@ -93,6 +92,7 @@ public class MistFrame extends JFrame {
    private static final String MULTIPAGE_TIFF = "Image Stack File";
    private static final String RAM = "RAM only";
    private static final String UNSELECTED_CHANNELS = "UnselectedChannels";
+   private static final String BLEND_WIDTH = "BlendWidth";
 
 
    /**
@@ -302,6 +302,15 @@ public class MistFrame extends JFrame {
       browseButton_.setEnabled(saveFormat_.getSelectedIndex() != 0);
       super.add(browseButton_, "wrap");
 
+      super.add(new JLabel("Blend overlap (pixels): "));
+      final JSpinner blendSpinner = new JSpinner(new SpinnerNumberModel(
+              profileSettings_.getInteger(BLEND_WIDTH, 0), 0, 10000, 1));
+      blendSpinner.setToolTipText("Width of the band along tile edges over which overlapping "
+              + "tiles are blended. 0 pastes tiles over each other.");
+      blendSpinner.addChangeListener((ChangeEvent ce) ->
+              profileSettings_.putInteger(BLEND_WIDTH, (Integer) blendSpinner.getValue()));
+      super.add(blendSpinner, "wmin 60, wrap");
+
       JButton helpButton = new JButton("Help");
       helpButton.addActionListener((ActionEvent e) ->
             new Thread(org.micromanager.internal.utils.GUIUtils.makeURLRunnable(
@@ -535,6 +544,16 @@ public class MistFrame extends JFrame {
       int newWidth = maxX + imWidth;
       int newHeight = maxY + imHeight;
 
+      // The layout is the same for every plane: work out once which tiles
+      // contribute to which part of the mosaic
+      TileCompositor compositor = new TileCompositor(newWidth, newHeight);
+      compositor.setFeather(profileSettings_.getInteger(BLEND_WIDTH, 0));
+      Map<Integer, Integer> siteIndices = new HashMap<>();
+      for (MistGlobalData entry : mistEntries) {
+         siteIndices.putIfAbsent(entry.getSiteNr(), compositor.getSourceCount());
+         compositor.addSource(entry.getPositionX(), entry.getPositionY(), imWidth, imHeight);
+      }
+
       final int newNrC = channelList.size();
       final int newNrT = (maxes.getOrDefault(Coords.T, 0) - mins.getOrDefault(Coords.T, 0)
               + 1);
@@ -567,6 +586,7 @@ public class MistFrame extends JFrame {
          }
          Coords intendedDimensions = intendedDimensionsB.build();
          Coords.Builder imgCb = studio_.data().coordsBuilder();
+         Object[] tilePixels = new Object[compositor.getSourceCount()];
          int nrImages = 0;
          for (int newP = 0; newP < newNrP; newP++) {
             int tmpC = -1;
@@ -580,22 +600,13 @@ public class MistFrame extends JFrame {
                   for (int z = mins.getOrDefault(Coords.Z, 0); z <= maxes.getOrDefault(Coords.Z, 0);
                         z++) {
                      if (monitor.isCanceled()) {
-                        newStore.freeze();
-                        if (newDataViewer == null) {
-                           newStore.close();
-                        }
                         SwingUtilities.invokeLater(() -> assembleButton_.setEnabled(true));
                         return;
                      }
-                     ImagePlus newImgPlus = IJ.createImage(
-                             "Stitched image-" + newP, "16-bit black", newWidth, newHeight, 2);
-                     boolean imgAdded = false;
+                     Arrays.fill(tilePixels, null);
+                     Image firstImg = null;
                      for (int p = 0; p < mistEntries.size(); p++) {
                         if (monitor.isCanceled()) {
-                           newStore.freeze();
-                           if (newDataViewer == null) {
-                              newStore.close();
-                           }
                            SwingUtilities.invokeLater(() -> assembleButton_.setEnabled(true));
                            return;
                         }
@@ -607,40 +618,41 @@ public class MistFrame extends JFrame {
                            img = dp.getImage(coords);
                         }
                         if (img != null) {
-                           imgAdded = true;
-                           String posName = img.getMetadata().getPositionName("");
-                           MistGlobalData msg = null;
+                           Integer index;
                            if (PositionConvention.HCS.equals(positionConvention)) {
-                              int siteNr = Integer.parseInt(posName.substring(
-                                       posName.lastIndexOf('_')
-                                       + 1));
-                              for (MistGlobalData entry : mistEntries) {
-                                 if (entry.getSiteNr() == siteNr) {
-                                    msg = entry;
-                                    break;
-                                 }
-                              }
+                              String posName = img.getMetadata().getPositionName("");
+                              index = siteIndices.get(Integer.parseInt(posName.substring(
+                                       posName.lastIndexOf('_') + 1)));
                            } else {
-                              for (MistGlobalData entry : mistEntries) {
-                                 if (entry.getSiteNr() == p) {
-                                    msg = entry;
-                                    break;
-                                 }
-                              }
+                              index = siteIndices.get(p);
                            }
-                           if (msg == null) {
+                           if (index == null) {
                               studio_.logs().showError("Did not find specified image");
                               SwingUtilities.invokeLater(() -> assembleButton_.setEnabled(true));
                               return;
                            }
-                           ImageProcessor ip = DefaultImageJConverter.createProcessor(img,
-                                    false);
-                           newImgPlus.getProcessor().insert(ip, msg.getPositionX(),
-                                    msg.getPositionY());
+                           if (img.getNumComponents() != 1 || img.getWidth() != imWidth
+                                    || img.getHeight() != imHeight) {
+                              studio_.logs().showError("Only single component images of "
+                                       + imWidth + " x " + imHeight + " pixels can be stitched");
+                              SwingUtilities.invokeLater(() -> assembleButton_.setEnabled(true));
+                              return;
+                           }
+                           if (firstImg == null) {
+                              firstImg = img;
+                           }
+                           tilePixels[index] = img.getRawPixels();
                         }
                      }
-                     if (imgAdded) {
-                        Image newImg = studio_.data().ij().createImage(newImgPlus.getProcessor(),
+                     if (firstImg != null) {
+                        // Images are immutable, so the new pixels are handed
+                        // to the store as is, and a new buffer is used for
+                        // every plane
+                        Object pixels = PixelKernels.newBufferLike(firstImg.getRawPixels(),
+                                newWidth * newHeight);
+                        compositor.composite(tilePixels, pixels);
+                        Image newImg = studio_.data().createImage(pixels, newWidth, newHeight,
+                                firstImg.getBytesPerPixel(), 1,
                                 imgCb.c(tmpC).t(t - mins.getOrDefault(Coords.T, 0))
                                         .z(z - mins.getOrDefault(Coords.Z, 0))
                                         .p(newP).build(),
@@ -46,6 +46,8 @@ public class ImagePlusInfo extends ImagePlus {
    private final int binning_;
    private final Rectangle roi_;
    private final Map<ClearCLContext, ClearCLBuffer> clBuffers_;
+   private int[] unsignedPixels_;
+   private float[] floatPixels_;
 
 
    public ImagePlusInfo(ImagePlus ip, int binning, Rectangle roi) {
@@ -111,4 +113,57 @@ public class ImagePlusInfo extends ImagePlus {
       }
       return clBuffers_.get(cclContext);
    }
+
+   /**
+    * Provides the pixel values of this image as unsigned integers, for use
+    * as background on the CPU. Float values are truncated to 16 bits, as in
+    * {@link ImageUtils#subtractPixelArrays(short[], float[])}.
+    * The array is computed once and cached; it must not be modified.
+    *
+    * @return - Pixel values as unsigned integers
+    */
+   public synchronized int[] getUnsignedPixels() {
+      if (unsignedPixels_ == null) {
+         Object pixels = super.getProcessor().getPixels();
+         int[] result = new int[super.getWidth() * super.getHeight()];
+         if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            for (int i = 0; i < result.length; i++) {
+               result[i] = ImageUtils.unsignedValue(bytes[i]);
+            }
+         } else if (pixels instanceof short[]) {
+            short[] shorts = (short[]) pixels;
+            for (int i = 0; i < result.length; i++) {
+               result[i] = ImageUtils.unsignedValue(shorts[i]);
+            }
+         } else if (pixels instanceof float[]) {
+            float[] floats = (float[]) pixels;
+            for (int i = 0; i < result.length; i++) {
+               result[i] = ImageUtils.unsignedValue((short) floats[i]);
+            }
+         }
+         unsignedPixels_ = result;
+      }
+      return unsignedPixels_;
+   }
+
+   /**
+    * Provides the pixel values of this image as floats, for use as
+    * (normalized) flatfield multipliers on the CPU. Flatfield images are
+    * stored as floats already, in which case no copy is made.
+    * The array must not be modified.
+    *
+    * @return - Pixel values as floats
+    */
+   public synchronized float[] getFloatPixels() {
+      if (floatPixels_ == null) {
+         ImageProcessor proc = super.getProcessor();
+         if (proc instanceof FloatProcessor) {
+            floatPixels_ = (float[]) proc.getPixels();
+         } else {
+            floatPixels_ = (float[]) proc.convertToFloat().getPixels();
+         }
+      }
+      return floatPixels_;
+   }
 }
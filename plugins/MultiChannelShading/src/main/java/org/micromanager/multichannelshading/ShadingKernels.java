@@ -0,0 +1,115 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ShadingKernels.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     MultiChannelShading plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco 2014
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.multichannelshading;
+
+import java.util.stream.IntStream;
+
+/**
+ * CPU counterparts of the kernels in bufferMath.cl.
+ *
+ * <p>Background subtraction and flatfield multiplication are done in a
+ * single pass over the raw pixels, writing straight into the output array,
+ * without intermediate ImageJ processors or arrays. Background values are
+ * clamped at zero (as in {@link ImageUtils}), products are rounded and
+ * clamped to the range of the pixel type. Large images are split into bands
+ * of rows that are processed in parallel.
+ */
+final class ShadingKernels {
+   // Below this, the overhead of parallel processing outweighs the benefit
+   private static final int MIN_PIXELS_PER_BAND = 64 * 1024;
+
+   private ShadingKernels() {
+   }
+
+   /**
+    * Correct an 8 or 16-bit image.
+    *
+    * @param pixels     byte[] or short[] input pixels; not modified
+    * @param width      image width
+    * @param height     image height
+    * @param background background to subtract, or null
+    * @param flatField  normalized flatfield to multiply with, or null
+    * @return new pixel array of the same type as the input
+    */
+   static Object correct(final Object pixels, final int width, final int height,
+                         final int[] background, final float[] flatField) {
+      final int nPixels = width * height;
+      final Object result = pixels instanceof byte[]
+            ? new byte[nPixels] : new short[nPixels];
+      int nBands = Math.max(1, Math.min(height, Math.min(
+            Runtime.getRuntime().availableProcessors(),
+            nPixels / MIN_PIXELS_PER_BAND)));
+      if (nBands == 1) {
+         correctRange(pixels, result, background, flatField, 0, nPixels);
+      } else {
+         IntStream.range(0, nBands).parallel().forEach(b -> {
+            int start = (int) ((long) height * b / nBands) * width;
+            int end = (int) ((long) height * (b + 1) / nBands) * width;
+            correctRange(pixels, result, background, flatField, start, end);
+         });
+      }
+      return result;
+   }
+
+   private static void correctRange(Object pixels, Object result, int[] background,
+                                    float[] flatField, int start, int end) {
+      if (pixels instanceof byte[]) {
+         byte[] in = (byte[]) pixels;
+         byte[] out = (byte[]) result;
+         if (flatField == null) {
+            for (int i = start; i < end; i++) {
+               out[i] = (byte) Math.max(0, (in[i] & 0xff) - background[i]);
+            }
+         } else if (background == null) {
+            for (int i = start; i < end; i++) {
+               out[i] = (byte) scale(in[i] & 0xff, flatField[i], 0xff);
+            }
+         } else {
+            for (int i = start; i < end; i++) {
+               int v = Math.max(0, (in[i] & 0xff) - background[i]);
+               out[i] = (byte) scale(v, flatField[i], 0xff);
+            }
+         }
+      } else {
+         short[] in = (short[]) pixels;
+         short[] out = (short[]) result;
+         if (flatField == null) {
+            for (int i = start; i < end; i++) {
+               out[i] = (short) Math.max(0, (in[i] & 0xffff) - background[i]);
+            }
+         } else if (background == null) {
+            for (int i = start; i < end; i++) {
+               out[i] = (short) scale(in[i] & 0xffff, flatField[i], 0xffff);
+            }
+         } else {
+            for (int i = start; i < end; i++) {
+               int v = Math.max(0, (in[i] & 0xffff) - background[i]);
+               out[i] = (short) scale(v, flatField[i], 0xffff);
+            }
+         }
+      }
+   }
+
+   private static int scale(int value, float factor, int max) {
+      float f = value * factor + 0.5f;
+      // NaN (0 times an infinite factor) ends up as 0
+      return f >= max ? max : (int) f;
+   }
+}
@@ -33,7 +33,6 @@ import clearcl.backend.ClearCLBackends;
 import clearcl.enums.BuildStatus;
 import clearcl.exceptions.OpenCLException;
 import coremem.enums.NativeTypeEnum;
-import ij.process.ImageProcessor;
 import java.awt.Rectangle;
 import java.io.IOException;
 import java.util.HashSet;
@@ -147,6 +146,9 @@ public class ShadingProcessor implements Processor {
    private static class NotFlatFieldedClass {
    }
 
+   private static class ErrorFlatFieldingClass {
+   }
+
    private static class ErrorInOpenCLClass {
    }
 
@@ -308,26 +310,28 @@ public class ShadingProcessor implements Processor {
          }
       }
 
+      // CPU path: background subtraction and flatfield correction are done in
+      // a single (multithreaded) pass into the output pixels.  Background and
+      // flatfield pixel arrays are cached in the ImagePlusInfo objects.
       PropertyMap userData = metadata.getUserData();
+      final int nPixels = width * height;
+      int[] backgroundPixels = null;
+      float[] flatFieldPixels = null;
 
       if (background != null) {
-         ImageProcessor ip = studio_.data().ij().createProcessor(image);
-         ImageProcessor ipBackground = background.getProcessor();
-         try {
-            ip = ImageUtils.subtractImageProcessors(ip, ipBackground);
-            if (userData != null) {
-               userData = userData.copyBuilder().putBoolean("Background-corrected", true).build();
-            }
-         } catch (ShadingException e) {
+         backgroundPixels = background.getUnsignedPixels();
+         if (backgroundPixels.length != nPixels) {
+            backgroundPixels = null;
             if (!alertSet_.contains(ErrorSubtractingClass.class)) {
-               String msg = "Unable to subtract background: " + e.getMessage();
+               String msg = "Unable to subtract background: "
+                     + "Images are not the same size";
                studio_.alerts().postAlert(MultiChannelShading.MENUNAME,
                      ErrorSubtractingClass.class, msg);
                alertSet_.add(ErrorSubtractingClass.class);
             }
+         } else if (userData != null) {
+            userData = userData.copyBuilder().putBoolean("Background-corrected", true).build();
          }
-         image = studio_.data().ij().createImage(ip, image.getCoords(),
-               metadata.copyBuilderWithNewUUID().userData(userData).build());
       } else {
          if (!alertSet_.contains(NoBackgroundForThisBinModeClass.class)) {
             String msg = "No background available...";
@@ -337,62 +341,43 @@ public class ShadingProcessor implements Processor {
          }
       }
 
-
+      if (flatFieldImage != null) {
+         flatFieldPixels = flatFieldImage.getFloatPixels();
+         if (flatFieldPixels.length != nPixels) {
+            flatFieldPixels = null;
+            if (!alertSet_.contains(ErrorFlatFieldingClass.class)) {
+               String msg = "Unable to apply flatfield: "
+                     + "Images are not the same size";
+               studio_.alerts().postAlert(MultiChannelShading.MENUNAME,
+                     ErrorFlatFieldingClass.class, msg);
+               alertSet_.add(ErrorFlatFieldingClass.class);
+            }
+         } else if (userData != null) {
+            userData = userData.copyBuilder().putBoolean("Flatfield-corrected", true).build();
+         }
+      }
       // do not calculate flat field if we don't have a matching channel;
       // just return the background-subtracted image (which is the unmodified
       // image if we also don't have a background subtraction file).
-      if (flatFieldImage == null) {
-         if (!alertSet_.contains(NotFlatFieldedClass.class)) {
+      if (flatFieldPixels == null) {
+         if (flatFieldImage == null && !alertSet_.contains(NotFlatFieldedClass.class)) {
             String msg = "No flatfield found...";
             studio_.alerts().postAlert(MultiChannelShading.MENUNAME,
                     NotFlatFieldedClass.class, msg);
             alertSet_.add(NotFlatFieldedClass.class);
          }
-         context.outputImage(image);
-         return;
-      }
-
-      if (userData != null) {
-         userData = userData.copyBuilder().putBoolean("Flatfield-corrected", true).build();
-         metadata = metadata.copyBuilderWithNewUUID().userData(userData).build();
-      }
-
-
-      if (image.getBytesPerPixel() == 1) {
-         byte[] newPixels = new byte[width * height];
-         byte[] oldPixels = (byte[]) image.getRawPixels();
-         int length = oldPixels.length;
-         float[] flatFieldPixels = (float[]) flatFieldImage.getProcessor().getPixels();
-         for (int index = 0; index < length; index++) {
-            float oldPixel = (float) ((int) (oldPixels[index]) & 0x000000ff);
-            float newValue = oldPixel * flatFieldPixels[index];
-            if (newValue > 2 * Byte.MAX_VALUE) {
-               newValue = 2 * Byte.MAX_VALUE;
-            }
-            newPixels[index] = (byte) (newValue);
-         }
-         result = studio_.data().createImage(newPixels, width, height,
-               1, 1, image.getCoords(), metadata);
-         context.outputImage(result);
-      } else if (image.getBytesPerPixel() == 2) {
-         short[] newPixels = new short[width * height];
-         short[] oldPixels = (short[]) image.getRawPixels();
-         int length = oldPixels.length;
-         for (int index = 0; index < length; index++) {
-            // shorts are signed in java so have to do this conversion to get 
-            // the right value
-            float oldPixel = (float) ((int) (oldPixels[index]) & 0x0000ffff);
-            float newValue = (oldPixel
-                  * flatFieldImage.getProcessor().getf(index)) + 0.5f;
-            if (newValue > 2 * Short.MAX_VALUE) {
-               newValue = 2 * Short.MAX_VALUE;
-            }
-            newPixels[index] = (short) (((int) newValue) & 0x0000ffff);
+         if (backgroundPixels == null) {
+            context.outputImage(image);
+            return;
          }
-         result = studio_.data().createImage(newPixels, width, height,
-               2, 1, image.getCoords(), metadata);
-         context.outputImage(result);
       }
+
+      Object newPixels = ShadingKernels.correct(image.getRawPixels(), width, height,
+            backgroundPixels, flatFieldPixels);
+      result = studio_.data().createImage(newPixels, width, height,
+            image.getBytesPerPixel(), 1, image.getCoords(),
+            metadata.copyBuilderWithNewUUID().userData(userData).build());
+      context.outputImage(result);
    }
 
 
@@ -0,0 +1,186 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelStatistics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2018
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+
+package org.micromanager.ptctools;
+
+import ij.process.FloatProcessor;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Accumulates per-pixel mean and variance (Welford's online algorithm), a
+ * histogram of all pixel values, and the mean intensity of each frame, one
+ * frame at a time. Frames do not need to be kept, so memory use does not
+ * depend on the number of frames.
+ *
+ * <p>Frames are processed in bands of rows, in parallel.
+ *
+ * <p>Not thread-safe: frames should be added from a single thread.
+ */
+final class PixelStatistics {
+   // Below this, the overhead of parallel processing outweighs the benefit
+   private static final int MIN_PIXELS_PER_BAND = 64 * 1024;
+
+   private final int width_;
+   private final int height_;
+   private final int nBands_;
+   private final double[] mean_;
+   private final double[] m2_;
+   // Histograms per band, so that bands do not contend. Allocated on the
+   // first frame, when the pixel type is known.
+   private long[][] bandHistograms_;
+   private final long[] bandSums_;
+   private double[] frameMeans_ = new double[16];
+   private int count_ = 0;
+
+   PixelStatistics(int width, int height) {
+      width_ = width;
+      height_ = height;
+      int nPixels = width * height;
+      nBands_ = Math.max(1, Math.min(height, Math.min(
+            Runtime.getRuntime().availableProcessors(),
+            nPixels / MIN_PIXELS_PER_BAND)));
+      mean_ = new double[nPixels];
+      m2_ = new double[nPixels];
+      bandSums_ = new long[nBands_];
+   }
+
+   /**
+    * Adds a frame.
+    *
+    * @param pixels byte[] or short[] pixels (interpreted as unsigned) of a
+    *               frame of the size given to the constructor
+    */
+   void add(final Object pixels) {
+      final int nPixels = width_ * height_;
+      final int bins;
+      if (pixels instanceof byte[] && ((byte[]) pixels).length == nPixels) {
+         bins = 1 << 8;
+      } else if (pixels instanceof short[] && ((short[]) pixels).length == nPixels) {
+         bins = 1 << 16;
+      } else {
+         throw new IllegalArgumentException("Expected 8 or 16-bit pixels of a "
+               + width_ + " x " + height_ + " image");
+      }
+      if (bandHistograms_ == null) {
+         bandHistograms_ = new long[nBands_][bins];
+      } else if (bandHistograms_[0].length != bins) {
+         throw new IllegalArgumentException("Pixel type changed during the sequence");
+      }
+      count_++;
+      final double invCount = 1.0 / count_;
+      if (nBands_ == 1) {
+         addRange(pixels, invCount, 0, 0, nPixels);
+      } else {
+         IntStream.range(0, nBands_).parallel().forEach(b -> {
+            int start = (int) ((long) height_ * b / nBands_) * width_;
+            int end = (int) ((long) height_ * (b + 1) / nBands_) * width_;
+            addRange(pixels, invCount, b, start, end);
+         });
+      }
+      long sum = 0;
+      for (long bandSum : bandSums_) {
+         sum += bandSum;
+      }
+      if (count_ > frameMeans_.length) {
+         frameMeans_ = Arrays.copyOf(frameMeans_, 2 * frameMeans_.length);
+      }
+      frameMeans_[count_ - 1] = (double) sum / nPixels;
+   }
+
+   private void addRange(Object pixels, double invCount, int band, int start, int end) {
+      long[] histogram = bandHistograms_[band];
+      long sum = 0;
+      if (pixels instanceof byte[]) {
+         byte[] in = (byte[]) pixels;
+         for (int i = start; i < end; i++) {
+            int v = in[i] & 0xff;
+            update(i, v, invCount);
+            histogram[v]++;
+            sum += v;
+         }
+      } else {
+         short[] in = (short[]) pixels;
+         for (int i = start; i < end; i++) {
+            int v = in[i] & 0xffff;
+            update(i, v, invCount);
+            histogram[v]++;
+            sum += v;
+         }
+      }
+      bandSums_[band] = sum;
+   }
+
+   private void update(int i, int value, double invCount) {
+      double delta = value - mean_[i];
+      double mean = mean_[i] + delta * invCount;
+      mean_[i] = mean;
+      m2_[i] += delta * (value - mean);
+   }
+
+   /**
+    * Returns the per-pixel mean.
+    */
+   FloatProcessor getMean() {
+      float[] result = new float[mean_.length];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = (float) mean_[i];
+      }
+      return new FloatProcessor(width_, height_, result);
+   }
+
+   /**
+    * Returns the per-pixel sample standard deviation (normalized by n - 1).
+    */
+   FloatProcessor getStdDev() {
+      float[] result = new float[m2_.length];
+      if (count_ >= 2) {
+         double scale = 1.0 / (count_ - 1);
+         for (int i = 0; i < result.length; i++) {
+            result[i] = (float) Math.sqrt(m2_[i] * scale);
+         }
+      }
+      return new FloatProcessor(width_, height_, result);
+   }
+
+   /**
+    * Returns the histogram of all pixel values of all frames, with one bin
+    * per value (256 or 65536 bins), or an empty array if no frames were added.
+    */
+   long[] getHistogram() {
+      if (bandHistograms_ == null) {
+         return new long[0];
+      }
+      long[] result = bandHistograms_[0].clone();
+      for (int b = 1; b < nBands_; b++) {
+         for (int i = 0; i < result.length; i++) {
+            result[i] += bandHistograms_[b][i];
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Returns the mean intensity of each frame, in the order they were added.
+    */
+   double[] getFrameMeans() {
+      return Arrays.copyOf(frameMeans_, count_);
+   }
+}
@@ -26,19 +26,11 @@ import ij.CompositeImage;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.ResultsTable;
-import ij.plugin.ZProjector;
-import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
-import ij.process.ShortProcessor;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
-import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -49,11 +41,6 @@ import mmcorej.TaggedImage;
 import net.miginfocom.swing.MigLayout;
 import org.micromanager.PropertyMap;
 import org.micromanager.Studio;
-import org.micromanager.data.Coordinates;
-import org.micromanager.data.Coords;
-import org.micromanager.data.Datastore;
-import org.micromanager.data.Image;
-import org.micromanager.data.SummaryMetadata;
 import org.micromanager.internal.utils.NumberUtils;
 import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.WindowPositioning;
@@ -109,18 +96,6 @@ public class PtcToolsExecutor extends Thread {
          stack_ = new ImageStack((int) core.getImageWidth(),
                (int) core.getImageHeight());
 
-         // temporary store to hold images while calculating mean and stdDev
-         Datastore store = studio_.data().createRAMDatastore();
-         final SummaryMetadata.Builder smb = studio_.data().summaryMetadataBuilder();
-         final Coords.Builder cb = Coordinates.builder();
-         Coords coords = cb.c(1).p(1).t(nrFrames).z(1).build();
-         try {
-            store.setSummaryMetadata(smb.intendedDimensions(coords).startDate(
-                  new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date())).build());
-         } catch (IOException ex) {
-            // should never happen with a RAMDatastore...
-         }
-
          double exposure;
          try {
             exposure = NumberUtils.displayStringToDouble(
@@ -130,29 +105,18 @@ public class PtcToolsExecutor extends Thread {
             return;
          }
 
+         PixelStatistics stats;
          try {
-            runSequence(core, store, nrFrames, exposure);
+            stats = runSequence(core, nrFrames, exposure);
          } catch (Exception ex) {
             studio_.logs().showError(ex, "Error while acquiring images");
             return;
          }
 
-         // TODO: make sure that we have 16-bit (short) images
-         try {
-            calculateAndAddToStack(stack_, store);
-            ExpMeanStdDev cemsd = calcExpMeanStdDev(store);
-            expMeanStdDev_.add(cemsd);
-            rt.incrementCounter();
-            rt.addValue("Exposure", 0.0);
-            rt.addValue("Mean", cemsd.mean_);
-            rt.addValue("Std.Dev", cemsd.stdDev_);
-
-            store.freeze();
-            store.close();
-         } catch (IOException ex) {
-            studio_.logs().showError(ex, "Error while calculating mean and stdDev");
-            return;
-         }
+         addToStack(stack_, stats);
+         ExpMeanStdDev cemsd = calcExpMeanStdDev(stats);
+         expMeanStdDev_.add(cemsd);
+         addResults(rt, 0.0, cemsd, stats, (int) core.getImageBitDepth());
 
          PtcSequenceRunner sr = new LightSequence();
          showDialog("Now switch on the light, and make sure it can reach the"
@@ -200,36 +164,25 @@ public class PtcToolsExecutor extends Thread {
 
             exposures[i] = Math.exp(minExpLog + i * expLogStep);
 
-            Datastore store = studio_.data().createRAMDatastore();
+            PixelStatistics stats;
             try {
-               runSequence(core, store, nrFrames, exposures[i]);
+               stats = runSequence(core, nrFrames, exposures[i]);
             } catch (Exception ex) {
                studio_.logs().showError(ex, "Error while acquiring images");
                return;
             }
 
-            // TODO: make sure that we have 16-bit (short) images
+            addToStack(stack_, stats);
+            ExpMeanStdDev cemsd = calcExpMeanStdDev(stats);
+            double realExposure;
             try {
-               calculateAndAddToStack(stack_, store);
-               ExpMeanStdDev cemsd = calcExpMeanStdDev(store);
-               double realExposure;
-               try {
-                  realExposure = core.getExposure();
-               } catch (Exception e) {
-                  ReportingUtils.showError(e);
-                  return;
-               }
-               expMeanStdDev_.add(cemsd);
-               rt.incrementCounter();
-               rt.addValue("Exposure", realExposure);
-               rt.addValue("Mean", cemsd.mean_);
-               rt.addValue("Std.Dev", cemsd.stdDev_);
-               store.close();
-            } catch (IOException ex) {
-               studio_.logs().showError(ex, "Error while calculating mean and stdDev");
+               realExposure = core.getExposure();
+            } catch (Exception e) {
+               ReportingUtils.showError(e);
                return;
             }
-            System.gc();
+            expMeanStdDev_.add(cemsd);
+            addResults(rt, realExposure, cemsd, stats, (int) core.getImageBitDepth());
 
          }
 
@@ -280,71 +233,63 @@ public class PtcToolsExecutor extends Thread {
       dialog.setVisible(true);
    }
 
-   private void runSequence(CMMCore core, Datastore store, int nrFrames,
-                            double exposure) throws Exception {
-      final Coords.Builder cb = Coordinates.builder().c(1).p(1).t(1).z(1);
+   /**
+    * Acquires a sequence, and accumulates per-pixel and per-frame statistics
+    * as images come out of the circular buffer, without keeping them.
+    */
+   private PixelStatistics runSequence(CMMCore core, int nrFrames,
+                                       double exposure) throws Exception {
+      PixelStatistics stats = new PixelStatistics((int) core.getImageWidth(),
+            (int) core.getImageHeight());
       core.setExposure(exposure);
       core.startSequenceAcquisition(nrFrames, 0.0, true);
-      int frCounter = 0;
       // TODO: this can hang
       while (core.isSequenceRunning() || core.getRemainingImageCount() > 0) {
          if (core.getRemainingImageCount() > 0) {
             TaggedImage nextImage = core.popNextTaggedImage();
             if (nextImage != null) {
-               Image img = studio_.data().convertTaggedImage(nextImage);
-               store.putImage(img.copyAtCoords(cb.t(frCounter).build()));
-               frCounter++;
+               stats.add(nextImage.pix);
             }
          }
       }
-      store.freeze();
+      return stats;
    }
 
-   private void calculateAndAddToStack(ImageStack stack, Datastore store)
-         throws IOException, OutOfMemoryError {
-      final Coords.Builder cb = Coordinates.builder().c(1).p(1).t(1).z(1);
-      int nrFrames = store.getNextIndex(Coords.T);
-      ImageStack tmpStack = new ImageStack(stack.getWidth(), stack.getHeight());
-      List<ShortProcessor> lc = new ArrayList<>(nrFrames);
-      for (int i = 0; i < nrFrames; i++) {
-         ShortProcessor tmpShortProc = new ShortProcessor(stack.getWidth(),
-               stack.getHeight());
-         tmpShortProc.setPixels(store.getImage(cb.t(i).build()).getRawPixels());
-         tmpStack.addSlice(tmpShortProc);
-      }
-      ZProjector zProj = new ZProjector(new ImagePlus("tmp", tmpStack));
-      zProj.setMethod(ZProjector.AVG_METHOD);
-      zProj.doProjection();
-      ImagePlus meanP = zProj.getProjection();
-      FloatProcessor mean = (FloatProcessor) meanP.getProcessor().convertToFloat();
-      zProj.setMethod(ZProjector.SD_METHOD);
-      zProj.doProjection();
-      ImagePlus stdDevP = zProj.getProjection();
-      FloatProcessor stdDev = (FloatProcessor) stdDevP.getProcessor().convertToFloat();
-
-      stack.addSlice(mean);
-      stack.addSlice(stdDev);
+   private void addToStack(ImageStack stack, PixelStatistics stats) {
+      stack.addSlice(stats.getMean());
+      stack.addSlice(stats.getStdDev());
    }
 
 
-   private ExpMeanStdDev calcExpMeanStdDev(Datastore store) throws IOException {
+   private ExpMeanStdDev calcExpMeanStdDev(PixelStatistics stats) {
       ExpMeanStdDev result = new ExpMeanStdDev();
-      final Coords.Builder cb = Coordinates.builder().c(1).p(1).t(1).z(1);
-      final int nrFrames = store.getNextIndex(Coords.T);
-      double[] means = new double[nrFrames];
-      for (int i = 0; i < nrFrames; i++) {
-         Image image = store.getImage(cb.t(i).build());
-         ImageProcessor proc = studio_.data().ij().createProcessor(image);
-         ImageStatistics stats = ImageStatistics.getStatistics(proc,
-               ImageStatistics.MEAN, null);
-         means[i] = stats.mean;
-      }
+      double[] means = stats.getFrameMeans();
       result.mean_ = avg(means);
       result.stdDev_ = stdDev(means, result.mean_);
 
       return result;
    }
 
+   /**
+    * Adds a row to the results table. "Saturated" is the fraction of all
+    * pixel values in the sequence at the maximum for the camera bit depth.
+    */
+   private void addResults(ResultsTable rt, double exposure, ExpMeanStdDev cemsd,
+                           PixelStatistics stats, int bitDepth) {
+      long[] histogram = stats.getHistogram();
+      long total = 0;
+      for (long count : histogram) {
+         total += count;
+      }
+      int maxValue = (1 << bitDepth) - 1;
+      long saturated = maxValue < histogram.length ? histogram[maxValue] : 0;
+      rt.incrementCounter();
+      rt.addValue("Exposure", exposure);
+      rt.addValue("Mean", cemsd.mean_);
+      rt.addValue("Std.Dev", cemsd.stdDev_);
+      rt.addValue("Saturated", total > 0 ? (double) saturated / total : 0.0);
+   }
+
    public static double avg(double[] numbers) {
       double sum = 0.0;
       for (double num : numbers) {
@@ -51,6 +51,7 @@ import org.micromanager.Studio;
 import org.micromanager.acquisition.AcquisitionStartedEvent;
 import org.micromanager.data.DataProvider;
 import org.micromanager.data.DataProviderHasNewImageEvent;
+import org.micromanager.data.DataProviderHasNewImagesEvent;
 import org.micromanager.data.Image;
 import org.micromanager.display.DataViewer;
 import org.micromanager.events.LiveModeEvent;
@@ -228,7 +229,7 @@ public class RTIntensitiesFrame extends JFrame {
       }
       title_.setText("Set");
       delayedStart_ = true;
-      event.getDatastore().registerForEvents(RThandler_);
+      registerForImages(event.getDatastore());
    }
 
    @Subscribe
@@ -327,18 +328,34 @@ public class RTIntensitiesFrame extends JFrame {
       });
       if (!delayedStart_) {
          title_.setText("Waiting for images...");
-         dataProvider_.registerForEvents(RThandler_);
+         registerForImages(dataProvider_);
       } else {
          delayedStart_ = false;
       }
    }
 
 
+   // We sample at most every minPeriod_ ms, so there is no need to be told
+   // about every image; ask for batches when the data provider supports it.
+   private static void registerForImages(DataProvider dp) {
+      if (!dp.registerForBatchedImageEvents(RThandler_)) {
+         dp.registerForEvents(RThandler_);
+      }
+   }
+
    @Subscribe
    public void onNewImage(DataProviderHasNewImageEvent event) {
       processImage(event.getDataProvider(), event.getImage());
    }
 
+   @Subscribe
+   public void onNewImages(DataProviderHasNewImagesEvent event) {
+      // Latest image of each channel, in channel order
+      for (Image image : event.getLatestImagesByChannel().values()) {
+         processImage(event.getDataProvider(), image);
+      }
+   }
+
    private void processImage(DataProvider dp, Image image) {
       // Kind of ugly way to autostart on new acquisition, new acquisition event seems too early
       if (delayedStart_) {
@@ -24,12 +24,12 @@
 package org.micromanager.ratioimaging;
 
 import ij.ImagePlus;
-import ij.process.Blitter;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import java.awt.Rectangle;
+import java.lang.reflect.Array;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
@@ -40,6 +40,8 @@ import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.imageprocessing.PixelBufferPool;
+import org.micromanager.imageprocessing.PixelKernels;
 // Imports for MMStudio internal packages
 // Plugins should not access internal packages, to ensure modularity and
 // maintainability. However, this plugin code is older than the current
@@ -64,6 +66,7 @@ public class RatioImagingProcessor implements Processor {
    private ImagePlus bc1_;
    private ImagePlus bc2_;
    private final List<Image> images_;
+   private final PixelBufferPool scratch_ = new PixelBufferPool(1);
    private boolean process_;
    private int ch1Index_;
    private int ch2Index_;
@@ -210,9 +213,9 @@ public class RatioImagingProcessor implements Processor {
          roi.y = 0;
       }
       if (nrBytesPerPixel == 1) {
-         resultProcessor.convertToByteProcessor(false);
+         resultProcessor = resultProcessor.convertToByteProcessor(false);
       } else if (nrBytesPerPixel == 2) {
-         resultProcessor.convertToShortProcessor(false);
+         resultProcessor = resultProcessor.convertToShortProcessor(false);
       }
       resultProcessor.setRoi(roi);
       return new ImagePlus("", resultProcessor.crop());
@@ -236,9 +239,11 @@ public class RatioImagingProcessor implements Processor {
       int nrBytesPerPixel = newImage.getBytesPerPixel();
       if (bc1_ == null) {
          bc1_ = getBackground(bc1Path_, binning, roi, nrBytesPerPixel);
+         checkBackground(bc1_, bc1Path_, newImage);
       }
       if (bc2_ == null) {
          bc2_ = getBackground(bc2Path_, binning, roi, nrBytesPerPixel);
+         checkBackground(bc2_, bc2Path_, newImage);
       }
       
       if (!process_) {
@@ -276,44 +281,86 @@ public class RatioImagingProcessor implements Processor {
    private void process(Image ch1Image, Image ch2Image, ProcessorContext context) {
       
       final Coords ratioCoords = ch1Image.getCoords().copyBuilder().c(ratioIndex_).build();
-      
-      ImageProcessor ch1Proc = studio_.data().ij().createProcessor(ch1Image);
-      ImageProcessor ch2Proc = studio_.data().ij().createProcessor(ch2Image);
-      if (bc1_ != null) {
-         ch1Proc = subtractImageProcessors(ch1Proc, bc1_.getProcessor());
-      }
-      if (bc2_ != null) {
-         ch2Proc = subtractImageProcessors(ch2Proc, bc2_.getProcessor());
-      }
-      ch1Proc = ch1Proc.convertToFloat();
-      ch2Proc = ch2Proc.convertToFloat();
-      ch1Proc.subtract(bc1Constant_);
-      ch2Proc.subtract(bc2Constant_);
-      ImageProcessor ch3Proc = ch1Proc.createProcessor(ch1Proc.getWidth(), 
-              ch1Proc.getHeight());
-      ch3Proc.insert(ch1Proc, 0, 0);
-      ch3Proc.copyBits(ch2Proc, 0, 0, Blitter.DIVIDE);
-      ch3Proc.multiply(factor_);
-      
-      if (ch1Image.getBytesPerPixel() == 1) {
-         // check this actually works....
-         ch3Proc = ch3Proc.convertToByteProcessor();
-      } else if (ch1Image.getBytesPerPixel() == 2) {
-         // ImageJ method seems to be broken. Copied code from ImageJ1 here
-         ch3Proc = convertFloatToShort((FloatProcessor) ch3Proc);
+      final int nrPixels = ch1Image.getWidth() * ch1Image.getHeight();
+      final Object ch1Pixels = ch1Image.getRawPixels();
+      final Object ch2Pixels = ch2Image.getRawPixels();
+
+      // Background subtraction, ratio and scaling are done in one pass into a
+      // scratch buffer, which is then converted into the output pixels
+      final float[] ratio = scratch_.getFloats(nrPixels);
+      final Object ratioPixels;
+      int max = 0;
+      try {
+         PixelKernels.ratio(ch1Pixels, backgroundPixels(bc1_, ch1Pixels), bc1Constant_,
+               ch2Pixels, backgroundPixels(bc2_, ch2Pixels), bc2Constant_, factor_, ratio);
+         if (ch1Image.getBytesPerPixel() == 1) {
+            byte[] bytes = new byte[nrPixels];
+            PixelKernels.floatToByteScaled(ratio, bytes);
+            for (byte b : bytes) {
+               max = Math.max(max, unsignedValue(b));
+            }
+            ratioPixels = bytes;
+         } else {
+            short[] shorts = new short[nrPixels];
+            PixelKernels.floatToShort(ratio, shorts);
+            for (short v : shorts) {
+               max = Math.max(max, unsignedValue(v));
+            }
+            ratioPixels = shorts;
+         }
+      } finally {
+         scratch_.release(ratio);
       }
-      int max = (int) ch3Proc.getMax();
       int bitDepth = 1;
       while ((1 << bitDepth) < max && bitDepth <= ch1Image.getBytesPerPixel() * 8) {
          bitDepth += 1;
       }
       
-      Image ratioImage = studio_.data().ij().createImage(ch3Proc, ratioCoords, 
+      Image ratioImage = studio_.data().createImage(ratioPixels, ch1Image.getWidth(),
+              ch1Image.getHeight(), ch1Image.getBytesPerPixel(), 1, ratioCoords,
               ch1Image.getMetadata().copyBuilderWithNewUUID().bitDepth(bitDepth)
                           .build());
       
       context.outputImage(ratioImage);
    }
+
+   /**
+    * Alerts the user when a background image (after binning and ROI correction)
+    * does not match the images, since it will then not be subtracted.
+    * Backgrounds are loaded only once, so this alerts only once.
+    */
+   private void checkBackground(ImagePlus background, String path, Image image) {
+      if (background == null) {
+         return;
+      }
+      if (background.getWidth() != image.getWidth()
+            || background.getHeight() != image.getHeight()
+            || background.getBytesPerPixel() != image.getBytesPerPixel()) {
+         studio_.alerts().postAlert(RatioImaging.MENU_NAME, this.getClass(),
+               "Background image " + path + " (" + background.getWidth() + "x"
+                     + background.getHeight() + ", " + background.getBytesPerPixel()
+                     + " bytes per pixel) does not match the images ("
+                     + image.getWidth() + "x" + image.getHeight() + ", "
+                     + image.getBytesPerPixel()
+                     + " bytes per pixel), and will not be subtracted");
+      }
+   }
+
+   /**
+    * Returns the pixels of the background image if they can be subtracted
+    * from the given pixels, null otherwise.
+    */
+   private static Object backgroundPixels(ImagePlus background, Object pixels) {
+      if (background == null) {
+         return null;
+      }
+      Object bgPixels = background.getProcessor().getPixels();
+      if (bgPixels.getClass() != pixels.getClass()
+            || Array.getLength(bgPixels) != Array.getLength(pixels)) {
+         return null;
+      }
+      return bgPixels;
+   }
    
    /**
     * Copied from https://github.com/imagej/imagej1/blob/master/ij/process/TypeConverter.java.
@@ -21,14 +21,15 @@
 
 package org.micromanager.sharpest;
 
-import ij.ImageStack;
-import ij.process.ImageProcessor;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
 import javax.swing.SwingWorker;
 import org.jfree.data.xy.XYSeries;
 import org.micromanager.Studio;
@@ -61,6 +62,12 @@ import org.micromanager.internal.utils.ProgressBar;
  * @author nico
  */
 public class SharpestPluginExecutor {
+   // One scorer per data provider and method, shared between runs, so that
+   // scores of planes are not computed again when projecting the same data
+   // with other settings.  Scorers are never shared between datasets, whose
+   // images can have the same UUID (e.g. a copy of a dataset).
+   private static final Map<DataProvider, Map<ImgSharpnessAnalysis.Method,
+           ImgSharpnessAnalysis>> SCORERS = new WeakHashMap<>();
 
    private final Studio studio_;
    private DisplayWindow window_;
@@ -235,6 +242,20 @@ public class SharpestPluginExecutor {
       }
    }
    
+   private static ImgSharpnessAnalysis getScorer(DataProvider provider,
+           ImgSharpnessAnalysis.Method method) {
+      synchronized (SCORERS) {
+         Map<ImgSharpnessAnalysis.Method, ImgSharpnessAnalysis> scorers =
+                 SCORERS.computeIfAbsent(provider,
+                         p -> new EnumMap<>(ImgSharpnessAnalysis.Method.class));
+         return scorers.computeIfAbsent(method, m -> {
+            ImgSharpnessAnalysis scorer = new ImgSharpnessAnalysis();
+            scorer.setComputationMethod(m);
+            return scorer;
+         });
+      }
+   }
+
    /**
     * Do the actual projection.
     *
@@ -252,8 +273,7 @@ public class SharpestPluginExecutor {
                  "No images found while projecting");
          return;
       }
-      ImageStack stack = new ImageStack(
-               tmpImg.getWidth(), tmpImg.getHeight());
+      List<ImgSharpnessAnalysis.Plane> planes = new ArrayList<>();
       Metadata imgMetadata = null;
       for (int z = 0; z < oldProvider_.getNextIndex(Coords.Z); z++) {
          Image img = oldProvider_.getImage(cbp.index(Coords.Z, z).build());
@@ -261,21 +281,21 @@ public class SharpestPluginExecutor {
             if (imgMetadata == null) {
                imgMetadata = img.getMetadata().copyBuilderWithNewUUID().build();
             }
-            ImageProcessor ip
-                    = studio_.data().getImageJConverter().createProcessor(img);
-            stack.addSlice(ip);
+            // RGB raw pixels are interleaved bytes; let ImageJ pack them
+            Object pixels = img.getNumComponents() == 1 ? img.getRawPixels()
+                    : studio_.data().getImageJConverter().createProcessor(img).getPixels();
+            planes.add(new ImgSharpnessAnalysis.Plane(pixels, img.getWidth(),
+                    img.getHeight(), img.getMetadata().getUUID(), img.getCoords()));
          }
       }
-      if (stack.getSize() > 0 && imgMetadata != null) {
-         ImgSharpnessAnalysis imgScoringFunction = new ImgSharpnessAnalysis();
-         imgScoringFunction.setComputationMethod(zpd.sharpnessMethod_);
-         imgScoringFunction.allowInPlaceModification(true);
+      if (planes.size() > 0 && imgMetadata != null) {
+         double[] scores = getScorer(oldProvider_, zpd.sharpnessMethod_).computeAll(planes);
          SortedMap<Integer, Double> focusScoreMap = new TreeMap<>();
-         int nrSlices = stack.getSize();
+         int nrSlices = planes.size();
          double maxScore = Double.NEGATIVE_INFINITY;
          int bestIndex = 0;
          for (int i = 0; i < nrSlices; i++) {
-            double score = imgScoringFunction.compute(stack.getProcessor(i + 1));
+            double score = scores[i];
             if (score > maxScore) {
                maxScore = score;
                bestIndex = i;
@@ -304,8 +324,8 @@ public class SharpestPluginExecutor {
          }
          if (bestIndex < 0) {
             bestIndex = 0;
-         } else if (bestIndex >= stack.size()) {
-            bestIndex = stack.size() - 1;
+         } else if (bestIndex >= nrSlices) {
+            bestIndex = nrSlices - 1;
          }
          int start = bestIndex;
          int end = bestIndex;
@@ -317,8 +337,8 @@ public class SharpestPluginExecutor {
             start = 0;
             end = zpd.nrPlanes_ - 1;
          }
-         if (end >= stack.size()) {
-            end = stack.size() - 1;
+         if (end >= nrSlices) {
+            end = nrSlices - 1;
             start = end - zpd.nrPlanes_ + 1;
          }
          for (int z = start; z <= end; z++) {
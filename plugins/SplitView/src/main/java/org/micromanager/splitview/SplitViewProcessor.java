@@ -22,7 +22,6 @@
 
 package org.micromanager.splitview;
 
-import ij.process.ImageProcessor;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -32,6 +31,7 @@ import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
 import org.micromanager.data.SummaryMetadata;
+import org.micromanager.imageprocessing.PixelKernels;
 
 /**
  * DataProcessor that splits images as instructed in SplitViewFrame
@@ -102,7 +102,10 @@ public class SplitViewProcessor implements Processor {
 
    @Override
    public void processImage(Image image, ProcessorContext context) {
-      ImageProcessor proc = studio_.data().ij().createProcessor(image);
+      Object pixels = image.getRawPixels();
+      final int fullWidth = image.getWidth();
+      final int elementsPerPixel = PixelKernels.elementsPerPixel(pixels,
+            fullWidth, image.getHeight());
 
       int width = image.getWidth();
       int height = image.getHeight();
@@ -118,11 +121,15 @@ public class SplitViewProcessor implements Processor {
 
       int channelIndex = image.getCoords().getChannel();
       for (int i = 0; i < numSplits_; ++i) {
-         proc.setRoi(i * xStep, i * yStep, width, height);
+         // Copy each part straight out of the raw pixels
+         Object part = PixelKernels.newBufferLike(pixels,
+               width * height * elementsPerPixel);
+         PixelKernels.crop(pixels, fullWidth, elementsPerPixel, i * xStep, i * yStep,
+               width, height, part);
 
          Coords coords = image.getCoords().copy()
                .channel(channelIndex * numSplits_ + i).build();
-         Image output = studio_.data().createImage(proc.crop().getPixels(),
+         Image output = studio_.data().createImage(part,
                width, height, image.getBytesPerPixel(),
                image.getNumComponents(), coords, image.getMetadata());
          context.outputImage(output);
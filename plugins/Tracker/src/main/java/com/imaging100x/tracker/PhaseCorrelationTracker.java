@@ -0,0 +1,305 @@
+/*
+ * FFT based phase correlation for the Tracker plugin
+ * Copyright UCSF, BSD license
+ *
+ */
+
+package com.imaging100x.tracker;
+
+import ij.process.FHT;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the displacement of a region of interest between two frames by phase
+ * correlation.
+ *
+ * <p>The ROI grown by the search range is taken from both frames,
+ * mean-subtracted, multiplied with a Hann window, and zero-padded to a power
+ * of two. Their (partially whitened) cross-power spectrum is computed with
+ * ImageJ's Hartley transform, and the peak of its inverse is located within
+ * the search range and refined to sub-pixel precision with a parabolic fit.
+ * A second, small correlation with the window in the current frame moved by
+ * the estimated shift then refines the result. Cost is O(N^2 log N) for an N x N
+ * transform, independent of the search range, whereas the brute-force
+ * correlation costs O(range^2 * ROI area).
+ *
+ * <p>Transform tables and work buffers are kept per transform size and reused
+ * for every frame. For large search windows, the first estimate can
+ * optionally be made on binned images (coarse-to-fine), which keeps the
+ * transforms small.
+ *
+ * <p>Not thread-safe.
+ */
+final class PhaseCorrelationTracker {
+   // Largest transform used for the coarse level of the pyramid
+   private static final int MAX_COARSE_SIZE = 256;
+   // Search range for the refinement step, in units of the binning factor
+   // of the first step
+   private static final int REFINE_RANGE_BINS = 2;
+
+   private static final class Plan {
+      private final FHT fht_ = new FHT();
+      private final float[] prev_;
+      private final float[] cur_;
+
+      private Plan(int size) {
+         prev_ = new float[size * size];
+         cur_ = new float[size * size];
+      }
+   }
+
+   private final Map<Integer, Plan> plans_ = new HashMap<>();
+   private final Map<Integer, float[]> hannWindows_ = new HashMap<>();
+   private final boolean coarseToFine_;
+   private float[] prevPatch_ = new float[0];
+   private float[] curPatch_ = new float[0];
+   // Correlation surface of the first (possibly coarse) step of the last call
+   private float[] lastSurface_;
+   private int lastSize_;
+   private int lastBinning_;
+
+   PhaseCorrelationTracker(boolean coarseToFine) {
+      coarseToFine_ = coarseToFine;
+   }
+
+   /**
+    * Finds the displacement of the ROI contents between two frames.
+    *
+    * @param prev pixels of the previous frame
+    * @param cur pixels of the current frame
+    * @param width frame width
+    * @param height frame height
+    * @param roi region of interest in the previous frame
+    * @param maxShift largest displacement (in pixels, along x and y) searched
+    * @return {dx, dy}: the ROI contents at (x, y) in prev are found at
+    *     (x + dx, y + dy) in cur
+    */
+   double[] findShift(float[] prev, float[] cur, int width, int height,
+                      Rectangle roi, int maxShift) {
+      int extent = Math.max(roi.width, roi.height) + 2 * maxShift;
+      int binning = 1;
+      if (coarseToFine_) {
+         while (nextPowerOf2(extent / binning) > MAX_COARSE_SIZE
+               && roi.width / (2 * binning) >= 4 && roi.height / (2 * binning) >= 4) {
+            binning *= 2;
+         }
+      }
+      double[] shift = correlate(prev, cur, width, height, roi, 0, 0,
+            maxShift, binning, true);
+      // Refine at full resolution, with the window in the current frame
+      // following the ROI contents. This also removes the bias towards zero
+      // that results from the contents moving within a fixed window.
+      int offsetX = (int) Math.round(shift[0]);
+      int offsetY = (int) Math.round(shift[1]);
+      double[] fine = correlate(prev, cur, width, height, roi, offsetX, offsetY,
+            REFINE_RANGE_BINS * binning, 1, false);
+      return new double[] {offsetX + fine[0], offsetY + fine[1]};
+   }
+
+   /**
+    * Returns the value of the correlation surface of the last call to
+    * findShift at the given displacement, in full resolution pixels, or 0 if
+    * it is outside of the surface. When the shift was found coarse-to-fine,
+    * this is the coarse surface.
+    */
+   float getCorrelation(int dx, int dy) {
+      if (lastSurface_ == null) {
+         return 0.0f;
+      }
+      int x = Math.floorDiv(dx, lastBinning_);
+      int y = Math.floorDiv(dy, lastBinning_);
+      if (Math.abs(x) >= lastSize_ / 2 || Math.abs(y) >= lastSize_ / 2) {
+         return 0.0f;
+      }
+      return lastSurface_[Math.floorMod(y, lastSize_) * lastSize_
+            + Math.floorMod(x, lastSize_)];
+   }
+
+   /**
+    * Correlates the ROI grown by the search range in prev with the same
+    * region, displaced by the offset, in cur. Both are binned. Returns the
+    * displacement relative to the offset.
+    */
+   private double[] correlate(float[] prev, float[] cur, int width, int height,
+                              Rectangle roi, int offsetX, int offsetY, int maxShift,
+                              int binning, boolean keepSurface) {
+      int range = (maxShift + binning - 1) / binning;
+      int sw = Math.max(1, roi.width / binning) + 2 * range;
+      int sh = Math.max(1, roi.height / binning) + 2 * range;
+      int n = nextPowerOf2(Math.max(sw, sh));
+      Plan plan = plans_.get(n);
+      if (plan == null) {
+         plan = new Plan(n);
+         plans_.put(n, plan);
+      }
+      if (prevPatch_.length < sw * sh) {
+         prevPatch_ = new float[sw * sh];
+         curPatch_ = new float[sw * sh];
+      }
+      extract(prev, width, height, roi.x - range * binning,
+            roi.y - range * binning, sw, sh, binning, prevPatch_);
+      extract(cur, width, height, roi.x + offsetX - range * binning,
+            roi.y + offsetY - range * binning, sw, sh, binning, curPatch_);
+      fill(plan.prev_, n, prevPatch_, sw, sh);
+      fill(plan.cur_, n, curPatch_, sw, sh);
+
+      plan.fht_.rc2DFHT(plan.prev_, false, n);
+      plan.fht_.rc2DFHT(plan.cur_, false, n);
+      crossPowerSpectrum(plan.cur_, plan.prev_, n);
+      plan.fht_.rc2DFHT(plan.prev_, true, n);
+      float[] surface = plan.prev_;
+
+      // Peak within the search range
+      int limit = Math.min(range, n / 2 - 1);
+      int bestX = 0;
+      int bestY = 0;
+      float best = -Float.MAX_VALUE;
+      for (int dy = -limit; dy <= limit; dy++) {
+         int row = Math.floorMod(dy, n) * n;
+         for (int dx = -limit; dx <= limit; dx++) {
+            float v = surface[row + Math.floorMod(dx, n)];
+            if (v > best) {
+               best = v;
+               bestX = dx;
+               bestY = dy;
+            }
+         }
+      }
+      double subX = parabolicPeak(surface[index(bestX - 1, bestY, n)], best,
+            surface[index(bestX + 1, bestY, n)]);
+      double subY = parabolicPeak(surface[index(bestX, bestY - 1, n)], best,
+            surface[index(bestX, bestY + 1, n)]);
+
+      if (keepSurface) {
+         if (lastSurface_ == null || lastSurface_.length != surface.length) {
+            lastSurface_ = new float[surface.length];
+         }
+         System.arraycopy(surface, 0, lastSurface_, 0, surface.length);
+         lastSize_ = n;
+         lastBinning_ = binning;
+      }
+      return new double[] {(bestX + subX) * binning, (bestY + subY) * binning};
+   }
+
+   /**
+    * Copies a (binned) region of the image into dst, replicating edge pixels
+    * for parts that are outside the image.
+    */
+   private static void extract(float[] image, int width, int height, int x0, int y0,
+                               int w, int h, int binning, float[] dst) {
+      float scale = 1.0f / (binning * binning);
+      for (int y = 0; y < h; y++) {
+         for (int x = 0; x < w; x++) {
+            float sum = 0.0f;
+            for (int by = 0; by < binning; by++) {
+               int row = Math.max(0, Math.min(height - 1, y0 + y * binning + by)) * width;
+               for (int bx = 0; bx < binning; bx++) {
+                  sum += image[row + Math.max(0, Math.min(width - 1, x0 + x * binning + bx))];
+               }
+            }
+            dst[y * w + x] = sum * scale;
+         }
+      }
+   }
+
+   /**
+    * Zeroes the n x n buffer, and puts the mean-subtracted, Hann-windowed
+    * patch in its top left corner.
+    */
+   private void fill(float[] buffer, int n, float[] patch, int w, int h) {
+      Arrays.fill(buffer, 0.0f);
+      double mean = 0.0;
+      for (int i = 0; i < w * h; i++) {
+         mean += patch[i];
+      }
+      float m = (float) (mean / (w * h));
+      float[] wx = hannWindow(w);
+      float[] wy = hannWindow(h);
+      for (int y = 0; y < h; y++) {
+         int src = y * w;
+         int dst = y * n;
+         for (int x = 0; x < w; x++) {
+            buffer[dst + x] = (patch[src + x] - m) * wx[x] * wy[y];
+         }
+      }
+   }
+
+   private float[] hannWindow(int length) {
+      float[] window = hannWindows_.get(length);
+      if (window == null) {
+         window = new float[length];
+         for (int i = 0; i < length; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2.0 * Math.PI * (i + 0.5) / length));
+         }
+         hannWindows_.put(length, window);
+      }
+      return window;
+   }
+
+   /**
+    * Replaces h2 with the cross-power spectrum of the Hartley transforms h1
+    * and h2, divided by the square root of its magnitude (the Hartley
+    * equivalent of F1 * conj(F2) / |F1 * conj(F2)|^0.5). Its inverse peaks at
+    * the shift of the contents of 2 to those of 1.
+    *
+    * <p>Dividing by the full magnitude (pure phase correlation) gives equal
+    * weight to all frequencies, including those that contain only noise,
+    * which makes tracking of smooth objects in noisy images unreliable.
+    * Dividing by the square root keeps most of the sharpness of the peak.
+    */
+   private static void crossPowerSpectrum(float[] h1, float[] h2, int n) {
+      // Each element is combined with its mirror element, so process pairs
+      for (int r = 0; r < n; r++) {
+         int rowMod = (n - r) % n;
+         for (int c = 0; c < n; c++) {
+            int colMod = (n - c) % n;
+            int i = r * n + c;
+            int j = rowMod * n + colMod;
+            if (j < i) {
+               continue;
+            }
+            float h2e = (h2[i] + h2[j]) / 2;
+            float h2o = (h2[i] - h2[j]) / 2;
+            float pi = h1[i] * h2e - h1[j] * h2o;
+            float pj = h1[j] * h2e + h1[i] * h2o;
+            // Square root of the magnitude of the complex value of the pair
+            float scale = (float) Math.sqrt(Math.sqrt((pi * pi + pj * pj) / 2));
+            if (scale > 1e-20f) {
+               h2[i] = pi / scale;
+               h2[j] = pj / scale;
+            } else {
+               h2[i] = 0.0f;
+               h2[j] = 0.0f;
+            }
+         }
+      }
+   }
+
+   private static int index(int dx, int dy, int n) {
+      return Math.floorMod(dy, n) * n + Math.floorMod(dx, n);
+   }
+
+   /**
+    * Offset of the vertex of the parabola through three equidistant points,
+    * relative to the middle one.
+    */
+   private static double parabolicPeak(float left, float center, float right) {
+      double denominator = left - 2.0 * center + right;
+      if (denominator >= 0.0) {
+         return 0.0;
+      }
+      double offset = 0.5 * (left - right) / denominator;
+      return Math.max(-0.5, Math.min(0.5, offset));
+   }
+
+   private static int nextPowerOf2(int value) {
+      int n = 2;
+      while (n < value) {
+         n *= 2;
+      }
+      return n;
+   }
+}
@@ -40,6 +40,7 @@ import java.util.GregorianCalendar;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JRadioButton;
@@ -84,7 +85,11 @@ public class TrackerControl extends JFrame {
    private Timer timer_;
    private float[] pixelsPrev_ = null;
    private float[] pixelsCur_ = null;
+   // Previous frame buffer that is no longer in use, reused for the next snap
+   private float[] pixelsSpare_ = null;
    private int imWidth_ = 0;
+   private int imHeight_ = 0;
+   private PhaseCorrelationTracker phaseCorrelation_;
    private String stage_ = "XYStage";
    private Roi roi_;
    private ImageStack corrStack_;
@@ -104,6 +109,8 @@ public class TrackerControl extends JFrame {
    private static final String OFFSET_PIX = "offset_pix";
    private static final String INTERVAL_MS = "interval_pix";
    private static final String DISK_RECORDING = "disk_recording";
+   private static final String FFT_TRACKING = "fft_tracking";
+   private static final String COARSE_TO_FINE = "coarse_to_fine";
    private static final String ROOT = "root";
    private static final String NAME = "name";
    private static final String TRACK_Y = "TRACK_X_UM";
@@ -123,6 +130,8 @@ public class TrackerControl extends JFrame {
    private final JRadioButton memoryRadioButton_;
    private JRadioButton diskRadioButton_;
    private final JLabel speedLabel_;
+   private final JCheckBox fftCheckBox_;
+   private final JCheckBox coarseToFineCheckBox_;
    private double distUm_;
    private final JButton topLeftButton_;
    private final JButton bottomRightButton_;
@@ -196,6 +205,11 @@ public class TrackerControl extends JFrame {
             intervalMs_ = up.getInt(TrackerControl.this.getClass(), INTERVAL_MS, intervalMs_);
             diskRadioButton_.setSelected(up.getBoolean(TrackerControl.this.getClass(),
                   DISK_RECORDING, diskRadioButton_.isSelected()));
+            fftCheckBox_.setSelected(up.getBoolean(TrackerControl.this.getClass(),
+                  FFT_TRACKING, fftCheckBox_.isSelected()));
+            coarseToFineCheckBox_.setSelected(up.getBoolean(TrackerControl.this.getClass(),
+                  COARSE_TO_FINE, coarseToFineCheckBox_.isSelected()));
+            coarseToFineCheckBox_.setEnabled(fftCheckBox_.isSelected());
             rootField_.setText(up.getString(TrackerControl.this.getClass(), ROOT, ""));
             nameField_.setText(up.getString(TrackerControl.this.getClass(), NAME, ""));
 
@@ -212,6 +226,10 @@ public class TrackerControl extends JFrame {
             up.setInt(TrackerControl.this.getClass(), INTERVAL_MS, intervalMs_);
             up.setBoolean(TrackerControl.this.getClass(), DISK_RECORDING,
                   diskRadioButton_.isSelected());
+            up.setBoolean(TrackerControl.this.getClass(), FFT_TRACKING,
+                  fftCheckBox_.isSelected());
+            up.setBoolean(TrackerControl.this.getClass(), COARSE_TO_FINE,
+                  coarseToFineCheckBox_.isSelected());
             up.setString(TrackerControl.this.getClass(), ROOT, rootField_.getText());
             up.setString(TrackerControl.this.getClass(), NAME, nameField_.getText());
          }
@@ -330,6 +348,22 @@ public class TrackerControl extends JFrame {
       diskRadioButton_.setBounds(240, 203, 160, 24);
       getContentPane().add(diskRadioButton_);
 
+      fftCheckBox_ = new JCheckBox("FFT phase correlation");
+      fftCheckBox_.setToolTipText("<html>Find the displacement by phase correlation, with "
+            + "sub-pixel precision.<br>When unchecked, the correlation is calculated "
+            + "directly, every \"Resolution\" pixels.</html>");
+      fftCheckBox_.setSelected(true);
+      fftCheckBox_.setBounds(240, 120, 160, 20);
+      getContentPane().add(fftCheckBox_);
+
+      coarseToFineCheckBox_ = new JCheckBox("Coarse-to-fine");
+      coarseToFineCheckBox_.setToolTipText("<html>Make a first estimate on binned images, "
+            + "which is faster for large offsets</html>");
+      coarseToFineCheckBox_.setBounds(240, 142, 160, 20);
+      getContentPane().add(coarseToFineCheckBox_);
+      fftCheckBox_.addActionListener(
+            e -> coarseToFineCheckBox_.setEnabled(fftCheckBox_.isSelected()));
+
       final JLabel sequenceDataLabel = new JLabel();
       sequenceDataLabel.setText("Sequence data:");
       sequenceDataLabel.setBounds(240, 170, 160, 16);
@@ -456,6 +490,9 @@ public class TrackerControl extends JFrame {
       corrImplus_ = new ij.ImagePlus("Cross Correlation", corrStack_);
       corrImplus_.show();
 
+      phaseCorrelation_ = fftCheckBox_.isSelected()
+            ? new PhaseCorrelationTracker(coarseToFineCheckBox_.isSelected()) : null;
+
       app_.logs().logMessage("Tracking started at " + GregorianCalendar.getInstance().getTime());
 
       acqName_ = nameField_.getText();
@@ -500,24 +537,27 @@ public class TrackerControl extends JFrame {
                   .time(imageCounter_).build());
             store_.putImage(image);
             int size = image.getWidth() * image.getHeight();
+            float[] buffer = pixelsSpare_ != null && pixelsSpare_.length == size
+                  ? pixelsSpare_ : new float[size];
+            pixelsSpare_ = null;
             if (tagged.pix instanceof byte[]) {
-               pixelsCur_ = new float[size];
                byte[] pixels = (byte[]) tagged.pix;
                for (int i = 0; i < size; i++) {
-                  pixelsCur_[i] = pixels[i];
+                  buffer[i] = pixels[i] & 0xff;
                }
             }
             if (tagged.pix instanceof short[]) {
-               pixelsCur_ = new float[size];
                short[] pixels = (short[]) tagged.pix;
                for (int i = 0; i < size; i++) {
-                  pixelsCur_[i] = pixels[i];
+                  buffer[i] = pixels[i] & 0xffff;
                }
             }
             if (tagged.pix instanceof float[]) {
-               pixelsCur_ = java.util.Arrays.copyOf((float[]) tagged.pix, size);
+               System.arraycopy(tagged.pix, 0, buffer, 0, size);
             }
+            pixelsCur_ = buffer;
             imWidth_ = image.getWidth();
+            imHeight_ = image.getHeight();
          }
          return tagged;
       } catch (Exception e) {
@@ -542,8 +582,8 @@ public class TrackerControl extends JFrame {
       corrStack_.addSlice(corrImproc);
 
       // position of correlation maximum
-      int kMax = 0;
-      int lMax = 0;
+      double kMax = 0;
+      double lMax = 0;
 
       Rectangle r = roi_.getBounds();
       display_.getImagePlus().setRoi(roi_, true);
@@ -554,38 +594,53 @@ public class TrackerControl extends JFrame {
       double corScale = width * height;
 
       double maxCor = 0;
-      for (int k = -offsetPix_; k < offsetPix_; k += resolutionPix_) {
-         for (int l = -offsetPix_; l < offsetPix_; l += resolutionPix_) {
-
-            // calculate correlation
-            double sum = 0.0;
-            double meanPrev = 0.0;
-            double meanCur = 0.0;
-            for (int i = 0; i < height; i++) {
-               for (int j = 0; j < width; j++) {
-                  int row = r.y + i;
-                  int col = r.x + j;
-                  double pixPrev = pixelsPrev_[row * imWidth_ + col];
-                  double pixCur = pixelsCur_[(row + k) * imWidth_ + (col + l)];
-                  sum += pixPrev * pixCur;
-                  meanPrev += pixPrev;
-                  meanCur += pixCur;
-               }
+      if (phaseCorrelation_ != null) {
+         double[] shift = phaseCorrelation_.findShift(pixelsPrev_, pixelsCur_,
+               imWidth_, imHeight_, r, offsetPix_);
+         lMax = shift[0];
+         kMax = shift[1];
+         // Show the correlation surface on the same grid as the direct correlation
+         for (int k = -offsetPix_; k < offsetPix_; k += resolutionPix_) {
+            for (int l = -offsetPix_; l < offsetPix_; l += resolutionPix_) {
+               int x = (l + offsetPix_) / resolutionPix_;
+               int y = (k + offsetPix_) / resolutionPix_;
+               corrImproc.setf(x + lCount * y, phaseCorrelation_.getCorrelation(l, k));
             }
-            sum /= corScale;
-            meanPrev /= corScale;
-            meanCur /= corScale;
-            sum /= meanPrev * meanCur;
-
-            int x = (l + offsetPix_) / resolutionPix_;
-            int y = (k + offsetPix_) / resolutionPix_;
-            corrImproc.setf(x + lCount * y, (float) sum);
-
-            // check for max value
-            if (sum > maxCor) {
-               maxCor = sum;
-               kMax = k;
-               lMax = l;
+         }
+      } else {
+         for (int k = -offsetPix_; k < offsetPix_; k += resolutionPix_) {
+            for (int l = -offsetPix_; l < offsetPix_; l += resolutionPix_) {
+
+               // calculate correlation
+               double sum = 0.0;
+               double meanPrev = 0.0;
+               double meanCur = 0.0;
+               for (int i = 0; i < height; i++) {
+                  for (int j = 0; j < width; j++) {
+                     int row = r.y + i;
+                     int col = r.x + j;
+                     double pixPrev = pixelsPrev_[row * imWidth_ + col];
+                     double pixCur = pixelsCur_[(row + k) * imWidth_ + (col + l)];
+                     sum += pixPrev * pixCur;
+                     meanPrev += pixPrev;
+                     meanCur += pixCur;
+                  }
+               }
+               sum /= corScale;
+               meanPrev /= corScale;
+               meanCur /= corScale;
+               sum /= meanPrev * meanCur;
+
+               int x = (l + offsetPix_) / resolutionPix_;
+               int y = (k + offsetPix_) / resolutionPix_;
+               corrImproc.setf(x + lCount * y, (float) sum);
+
+               // check for max value
+               if (sum > maxCor) {
+                  maxCor = sum;
+                  kMax = k;
+                  lMax = l;
+               }
             }
          }
       }
@@ -599,6 +654,7 @@ public class TrackerControl extends JFrame {
       }
 
       //IJ.write("maxc=" + maxCor + ", offset=(" + lMax + "," + kMax + ")");
+      pixelsSpare_ = pixelsPrev_;
       pixelsPrev_ = pixelsCur_;
 
       // offset in um
@@ -665,7 +721,7 @@ public class TrackerControl extends JFrame {
          } // relative motion
       } else {
          // move the roi
-         roi_.setLocation(r.x + lMax, r.y + kMax);
+         roi_.setLocation(r.x + (int) Math.round(lMax), r.y + (int) Math.round(kMax));
 
          display_.getImagePlus().setRoi(roi_, true);
       }
@@ -0,0 +1,327 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ProjectionAccumulator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    Regents of the University of California 2019
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.zprojector;
+
+import ij.plugin.ZProjector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Running projection of grayscale planes, fed one plane at a time.
+ *
+ * <p>Planes are the raw {@code byte[]} or {@code short[]} pixel buffers of
+ * 8- or 16-bit single-component images. Max, min, sum, average and standard
+ * deviation keep only per-pixel running values, so memory use does not depend
+ * on the number of planes. The median needs all values of a pixel and
+ * therefore retains the (raw, not float-converted) planes that were added.
+ *
+ * <p>Results match those of ImageJ's {@link ZProjector} followed by the
+ * conversion back to the input type that this plugin applies: max and min
+ * keep the input values, the average is truncated (as ImageJ does for
+ * integer images), and the other methods are rounded and clamped to the
+ * range of the input type. Instances are not thread-safe; use one per
+ * projection.
+ */
+abstract class ProjectionAccumulator {
+   protected final int nPixels_;
+   protected final int bytesPerPixel_;
+   private final int maxValue_;
+   protected int planeCount_ = 0;
+
+   /**
+    * Create an accumulator for the given ImageJ projection method.
+    *
+    * @param method one of the {@code ZProjector.*_METHOD} constants
+    * @param nPixels number of pixels per plane
+    * @param bytesPerPixel 1 or 2
+    * @return new accumulator
+    * @throws IllegalArgumentException for unsupported methods or pixel sizes
+    */
+   static ProjectionAccumulator create(int method, int nPixels, int bytesPerPixel) {
+      if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+         throw new IllegalArgumentException("Unsupported bytes per pixel: "
+               + bytesPerPixel);
+      }
+      switch (method) {
+         case ZProjector.MAX_METHOD:
+            return new Extremum(nPixels, bytesPerPixel, true);
+         case ZProjector.MIN_METHOD:
+            return new Extremum(nPixels, bytesPerPixel, false);
+         case ZProjector.SUM_METHOD:
+            return new Sum(nPixels, bytesPerPixel, false);
+         case ZProjector.AVG_METHOD:
+            return new Sum(nPixels, bytesPerPixel, true);
+         case ZProjector.SD_METHOD:
+            return new StandardDeviation(nPixels, bytesPerPixel);
+         case ZProjector.MEDIAN_METHOD:
+            return new Median(nPixels, bytesPerPixel);
+         default:
+            throw new IllegalArgumentException("Unsupported projection method: "
+                  + method);
+      }
+   }
+
+   /**
+    * Whether the given method can be computed by this class.
+    */
+   static boolean supportsMethod(int method) {
+      switch (method) {
+         case ZProjector.MAX_METHOD:
+         case ZProjector.MIN_METHOD:
+         case ZProjector.SUM_METHOD:
+         case ZProjector.AVG_METHOD:
+         case ZProjector.SD_METHOD:
+         case ZProjector.MEDIAN_METHOD:
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   private ProjectionAccumulator(int nPixels, int bytesPerPixel) {
+      nPixels_ = nPixels;
+      bytesPerPixel_ = bytesPerPixel;
+      maxValue_ = bytesPerPixel == 1 ? 0xff : 0xffff;
+   }
+
+   /**
+    * Add one plane to the projection.
+    *
+    * @param pixels {@code byte[]} or {@code short[]} matching the bytes per
+    *     pixel given at creation
+    */
+   final void add(Object pixels) {
+      if (bytesPerPixel_ == 1) {
+         if (!(pixels instanceof byte[]) || ((byte[]) pixels).length < nPixels_) {
+            throw new IllegalArgumentException("Expected 8-bit plane");
+         }
+      } else {
+         if (!(pixels instanceof short[]) || ((short[]) pixels).length < nPixels_) {
+            throw new IllegalArgumentException("Expected 16-bit plane");
+         }
+      }
+      addPlane(pixels);
+      ++planeCount_;
+   }
+
+   final int getPlaneCount() {
+      return planeCount_;
+   }
+
+   /**
+    * Return the projection as a new pixel buffer of the input type, or null
+    * if no planes were added.
+    */
+   final Object getResult() {
+      if (planeCount_ == 0) {
+         return null;
+      }
+      return computeResult();
+   }
+
+   protected abstract void addPlane(Object pixels);
+
+   protected abstract Object computeResult();
+
+   protected static int valueAt(Object pixels, int i) {
+      if (pixels instanceof byte[]) {
+         return ((byte[]) pixels)[i] & 0xff;
+      }
+      return ((short[]) pixels)[i] & 0xffff;
+   }
+
+   protected final Object newBuffer() {
+      return bytesPerPixel_ == 1 ? new byte[nPixels_] : new short[nPixels_];
+   }
+
+   /**
+    * Store a float result the way ImageJ's {@code convertToByte(false)} and
+    * {@code convertToShort(false)} do: clamp, then round.
+    */
+   protected final void storeRounded(Object buffer, int i, double value) {
+      int v;
+      if (value <= 0.0) {
+         v = 0;
+      } else if (value >= maxValue_) {
+         v = maxValue_;
+      } else {
+         v = (int) (value + 0.5);
+      }
+      if (buffer instanceof byte[]) {
+         ((byte[]) buffer)[i] = (byte) v;
+      } else {
+         ((short[]) buffer)[i] = (short) v;
+      }
+   }
+
+   private static final class Extremum extends ProjectionAccumulator {
+      private final boolean max_;
+      private Object extrema_;
+
+      private Extremum(int nPixels, int bytesPerPixel, boolean max) {
+         super(nPixels, bytesPerPixel);
+         max_ = max;
+      }
+
+      @Override
+      protected void addPlane(Object pixels) {
+         if (extrema_ == null) {
+            extrema_ = newBuffer();
+            System.arraycopy(pixels, 0, extrema_, 0, nPixels_);
+            return;
+         }
+         if (pixels instanceof byte[]) {
+            byte[] in = (byte[]) pixels;
+            byte[] out = (byte[]) extrema_;
+            for (int i = 0; i < nPixels_; ++i) {
+               int v = in[i] & 0xff;
+               int cur = out[i] & 0xff;
+               if (max_ ? v > cur : v < cur) {
+                  out[i] = in[i];
+               }
+            }
+         } else {
+            short[] in = (short[]) pixels;
+            short[] out = (short[]) extrema_;
+            for (int i = 0; i < nPixels_; ++i) {
+               int v = in[i] & 0xffff;
+               int cur = out[i] & 0xffff;
+               if (max_ ? v > cur : v < cur) {
+                  out[i] = in[i];
+               }
+            }
+         }
+      }
+
+      @Override
+      protected Object computeResult() {
+         Object ret = newBuffer();
+         System.arraycopy(extrema_, 0, ret, 0, nPixels_);
+         return ret;
+      }
+   }
+
+   private static final class Sum extends ProjectionAccumulator {
+      private final boolean average_;
+      private final long[] sums_;
+
+      private Sum(int nPixels, int bytesPerPixel, boolean average) {
+         super(nPixels, bytesPerPixel);
+         average_ = average;
+         sums_ = new long[nPixels];
+      }
+
+      @Override
+      protected void addPlane(Object pixels) {
+         if (pixels instanceof byte[]) {
+            byte[] in = (byte[]) pixels;
+            for (int i = 0; i < nPixels_; ++i) {
+               sums_[i] += in[i] & 0xff;
+            }
+         } else {
+            short[] in = (short[]) pixels;
+            for (int i = 0; i < nPixels_; ++i) {
+               sums_[i] += in[i] & 0xffff;
+            }
+         }
+      }
+
+      @Override
+      protected Object computeResult() {
+         Object ret = newBuffer();
+         for (int i = 0; i < nPixels_; ++i) {
+            // ImageJ truncates the average of integer images
+            storeRounded(ret, i, average_
+                  ? (double) (sums_[i] / planeCount_) : (double) sums_[i]);
+         }
+         return ret;
+      }
+   }
+
+   private static final class StandardDeviation extends ProjectionAccumulator {
+      private final long[] sums_;
+      private final long[] sumsOfSquares_;
+
+      private StandardDeviation(int nPixels, int bytesPerPixel) {
+         super(nPixels, bytesPerPixel);
+         sums_ = new long[nPixels];
+         sumsOfSquares_ = new long[nPixels];
+      }
+
+      @Override
+      protected void addPlane(Object pixels) {
+         for (int i = 0; i < nPixels_; ++i) {
+            long v = valueAt(pixels, i);
+            sums_[i] += v;
+            sumsOfSquares_[i] += v * v;
+         }
+      }
+
+      @Override
+      protected Object computeResult() {
+         Object ret = newBuffer();
+         int n = planeCount_;
+         if (n < 2) {
+            return ret;
+         }
+         // The one-pass formula (as used by ImageJ) is evaluated in exact
+         // integer arithmetic, so it does not suffer from cancellation. This
+         // does not overflow for 16-bit data up to about 46000 planes.
+         for (int i = 0; i < nPixels_; ++i) {
+            long scaled = n * sumsOfSquares_[i] - sums_[i] * sums_[i];
+            double variance = scaled / (double) n / (n - 1.0);
+            storeRounded(ret, i, variance > 0.0 ? Math.sqrt(variance) : 0.0);
+         }
+         return ret;
+      }
+   }
+
+   private static final class Median extends ProjectionAccumulator {
+      private final List<Object> planes_ = new ArrayList<>();
+
+      private Median(int nPixels, int bytesPerPixel) {
+         super(nPixels, bytesPerPixel);
+      }
+
+      @Override
+      protected void addPlane(Object pixels) {
+         planes_.add(pixels);
+      }
+
+      @Override
+      protected Object computeResult() {
+         Object ret = newBuffer();
+         int n = planes_.size();
+         int[] values = new int[n];
+         int middle = n / 2;
+         for (int i = 0; i < nPixels_; ++i) {
+            for (int p = 0; p < n; ++p) {
+               values[p] = valueAt(planes_.get(p), i);
+            }
+            Arrays.sort(values);
+            double median = (n & 1) == 0
+                  ? (values[middle - 1] + values[middle]) / 2.0 : values[middle];
+            storeRounded(ret, i, median);
+         }
+         return ret;
+      }
+   }
+}
@@ -27,10 +27,16 @@ import ij.plugin.ZProjector;
 import ij.process.ImageProcessor;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import javax.swing.SwingWorker;
 import org.jfree.data.xy.XYSeries;
 import org.micromanager.Studio;
@@ -193,7 +199,11 @@ public class ZProjectorPluginExecutor {
             }
          }
 
-         findAllProjections(newStore, axes, cb, zpd);
+         if (canProjectNatively(zpd)) {
+            executeParallelProjections(newStore, axes, zpd);
+         } else {
+            findAllProjections(newStore, axes, cb, zpd);
+         }
 
       } catch (DatastoreFrozenException ex) {
          studio_.logs().showError("Can not add data to frozen datastore");
@@ -210,6 +220,188 @@ public class ZProjectorPluginExecutor {
       return newStore;
    }
 
+   /**
+    * Whether the projection can be done with {@link ProjectionAccumulator},
+    * i.e., without converting to ImageJ stacks.
+    */
+   private boolean canProjectNatively(ZProjectorData zpd) {
+      Image tmpImg = oldProvider_.getAnyImage();
+      return tmpImg != null
+            && tmpImg.getNumComponents() == 1
+            && (tmpImg.getBytesPerPixel() == 1 || tmpImg.getBytesPerPixel() == 2)
+            && ProjectionAccumulator.supportsMethod(zpd.projectionMethod_);
+   }
+
+   /**
+    * Lists the coordinates (with the projection axis omitted) of all
+    * projections, in the same order as {@link #findAllProjections}.
+    */
+   private void listProjections(List<String> remainingAxes, Coords.Builder cbp,
+                                List<Coords> result) {
+      if (remainingAxes.isEmpty()) {
+         result.add(cbp.build());
+         return;
+      }
+      String currentAxis = remainingAxes.get(0);
+      List<String> rcAxes = new ArrayList<>(remainingAxes);
+      rcAxes.remove(currentAxis);
+      for (int i = 0; i < oldProvider_.getNextIndex(currentAxis); i++) {
+         cbp.index(currentAxis, i);
+         listProjections(rcAxes, cbp, result);
+      }
+   }
+
+   /**
+    * A single output image under construction: the accumulator, the size and
+    * metadata of the first input plane, and the chain of pending
+    * accumulation steps, which keeps the planes of this output in order
+    * and off the accumulator concurrently.
+    */
+   private static final class Projection {
+      private final Coords coords_;
+      private ProjectionAccumulator accumulator_;
+      private int width_;
+      private int height_;
+      private int bytesPerPixel_;
+      private Metadata metadata_;
+      private CompletableFuture<Void> tail_ = CompletableFuture.completedFuture(null);
+
+      private Projection(Coords coords) {
+         coords_ = coords;
+      }
+   }
+
+   /**
+    * Performs all projections in parallel, streaming the input planes into
+    * one {@link ProjectionAccumulator} per output image (i.e., per position,
+    * channel, time point, etc.).
+    *
+    * <p>Input planes are read on the calling thread only, since storage
+    * implementations (i.e. StorageMultipageTiff) can not be read
+    * concurrently. Each plane is handed to a fork/join pool to be added to
+    * the accumulator of its output as soon as it is read, so that input
+    * stacks are never held in memory. The number of planes read but not yet
+    * added, and the number of outputs being accumulated, are bounded.
+    * Results are put into the new store in order on the calling thread, so
+    * that the store is not written concurrently either.
+    *
+    * @param newStore Datastore to put the new projected images into
+    * @param axes Axes other than the projection axis
+    * @param zpd ZProjectorData object with projection parameters
+    * @throws IOException Can arise when reading data or saving to disk
+    */
+   private void executeParallelProjections(Datastore newStore, List<String> axes,
+                                           ZProjectorData zpd) throws IOException {
+      List<Coords> outputs = new ArrayList<>();
+      listProjections(axes, Coordinates.builder(), outputs);
+
+      int parallelism = Runtime.getRuntime().availableProcessors();
+      int maxInFlight = parallelism + 1;
+      final Semaphore planesInFlight = new Semaphore(2 * parallelism);
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      ArrayDeque<CompletableFuture<Image>> pending = new ArrayDeque<>();
+      try {
+         for (Coords coords : outputs) {
+            final Projection projection = new Projection(coords);
+            Coords.Builder cb = coords.copyBuilder();
+            for (int i = zpd.firstFrame_; i <= zpd.lastFrame_; i++) {
+               Image img = oldProvider_.getImage(cb.index(zpd.projectionAxis_, i).build());
+               if (img == null) {  // null happens when this image was skipped
+                  continue;
+               }
+               if (projection.accumulator_ == null) {
+                  projection.width_ = img.getWidth();
+                  projection.height_ = img.getHeight();
+                  projection.bytesPerPixel_ = img.getBytesPerPixel();
+                  projection.metadata_ = img.getMetadata();
+                  projection.accumulator_ = ProjectionAccumulator.create(
+                        zpd.projectionMethod_, img.getWidth() * img.getHeight(),
+                        img.getBytesPerPixel());
+               } else if (img.getWidth() != projection.width_
+                     || img.getHeight() != projection.height_
+                     || img.getBytesPerPixel() != projection.bytesPerPixel_) {
+                  throw new IOException("Image sizes differ along the projection axis");
+               }
+               final Object pixels = img.getRawPixels();
+               planesInFlight.acquire();
+               projection.tail_ = projection.tail_.handleAsync((Void v, Throwable t) -> {
+                  try {
+                     if (t != null) {
+                        throw t instanceof CompletionException
+                              ? (CompletionException) t : new CompletionException(t);
+                     }
+                     projection.accumulator_.add(pixels);
+                     return null;
+                  } finally {
+                     planesInFlight.release();
+                  }
+               }, pool);
+            }
+            pending.add(projection.tail_.thenApply((Void v) -> projectionResult(projection, zpd)));
+            while (pending.size() >= maxInFlight) {
+               storeProjection(newStore, pending.poll().get());
+            }
+         }
+         while (!pending.isEmpty()) {
+            storeProjection(newStore, pending.poll().get());
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         }
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new IOException(cause);
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   /**
+    * Puts a projection computed by {@link #executeParallelProjections} into
+    * the new store, and updates the progress.
+    *
+    * @param newStore Datastore to put the new projected images into
+    * @param outImg projected image, or null if no input images were found
+    * @throws IOException Can arise when saving to disk
+    */
+   private void storeProjection(Datastore newStore, Image outImg) throws IOException {
+      if (outImg != null) {
+         newStore.putImage(outImg);
+      } else {
+         studio_.alerts().postAlert("Projection problem", this.getClass(),
+               "No images found while projecting");
+      }
+      projectionNr_++;
+      if (progressBar_ != null) {
+         progressBar_.setProgress(projectionNr_);
+      }
+   }
+
+   /**
+    * Creates the output image of a projection once all its planes were
+    * added.
+    *
+    * @param projection the accumulated projection
+    * @param zpd ZProjectorData object with projection parameters
+    * @return projected image, or null if no input images were found
+    */
+   private Image projectionResult(Projection projection, ZProjectorData zpd) {
+      if (projection.accumulator_ == null) {
+         return null;
+      }
+      // TODO: adjust the metadata with the little knowledge we have about the
+      // projection axis (see executeProjection)
+      return studio_.data().createImage(projection.accumulator_.getResult(),
+            projection.width_, projection.height_, projection.bytesPerPixel_, 1,
+            projection.coords_.copyBuilder().index(zpd.projectionAxis_, 0).build(),
+            projection.metadata_.copyBuilderWithNewUUID().build());
+   }
+
    /**
     * Recursively figures out which projections need to be performed
     * It does so by taking the first remaining axes, cycle through all positions
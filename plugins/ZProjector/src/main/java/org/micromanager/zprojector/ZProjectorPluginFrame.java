@@ -186,8 +186,8 @@ public class ZProjectorPluginFrame extends JDialog {
 
       // Note: Median and Std.Dev. yield 32-bit images
       // Those would need to be converted to 16-bit to be shown...
-      final String[] projectionMethods = new String[] {"Max", "Min", "Avg", "Median",
-            "Std.Dev"};
+      final String[] projectionMethods = new String[] {"Max", "Min", "Avg", "Sum",
+            "Median", "Std.Dev"};
       final JComboBox<String> methodBox = new JComboBox<>(projectionMethods);
       methodBox.setSelectedItem(settings_.getString(
                                     ZProjectorPlugin.PROJECTION_METHOD, "Max"));
@@ -225,6 +225,9 @@ public class ZProjectorPluginFrame extends JDialog {
                case "Avg":
                   projectionMethod = ZProjector.AVG_METHOD;
                   break;
+               case "Sum":
+                  projectionMethod = ZProjector.SUM_METHOD;
+                  break;
                case "Median":
                   projectionMethod = ZProjector.MEDIAN_METHOD;
                   break;